@@ -20,13 +20,12 @@ package ubic.gemma.core.analysis.expression.coexpression.links;
 
 import cern.colt.bitvector.BitMatrix;
 import cern.colt.list.DoubleArrayList;
-import cern.colt.list.ObjectArrayList;
+import cern.colt.list.IntArrayList;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import ubic.basecode.dataStructure.Link;
 import ubic.basecode.dataStructure.matrix.CompressedSparseDoubleMatrix;
 import ubic.basecode.dataStructure.matrix.Matrix2D;
 import ubic.basecode.math.CorrelationStats;
@@ -36,6 +35,8 @@ import ubic.gemma.model.expression.designElement.CompositeSequence;
 import ubic.gemma.model.genome.Gene;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author paul
@@ -49,6 +50,16 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
     public static final int HARD_LIMIT_MIN_NUM_USED = 8;
     static final Log log = LogFactory.getLog( PearsonMetrics.class );
     private static final int HALF_BIN = MatrixRowPairAnalysis.NUM_BINS / 2;
+    /**
+     * Approximate number of bytes of row data that make up one side of a tile in the parallel computation; chosen so a
+     * pair of tiles fits comfortably in a per-core L2 cache.
+     */
+    private static final int TILE_BYTES = 1 << 17;
+    /**
+     * Upper limit on the number of candidate links held per tail for single-pass selection (about 800 Mb); if more are
+     * needed we fall back to a second pass.
+     */
+    private static final int MAX_CANDIDATES = 1 << 25;
     private final int[] fastHistogram = new int[MatrixRowPairAnalysis.NUM_BINS];
     private final Map<ExpressionDataMatrixRowElement, CompositeSequence> rowMapCache = new HashMap<>();
     ExpressionDataDoubleMatrix dataMatrix;
@@ -56,7 +67,7 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
     BitMatrix used = null;
     Map<Gene, Collection<CompositeSequence>> geneToProbeMap = null;
     boolean[] hasMissing = null;
-    ObjectArrayList keepers = null;
+    LinkBuffer keepers = null;
     /**
      * If fewer than this number values are available, the correlation is rejected. This helps keep the correlation
      * distribution reasonable. This is primarily relevant when there are missing values in the data, but to be
@@ -80,6 +91,53 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
     private long crossHybridizationRejections = 0;
     private int numUniqueGenes = 0;
     private boolean omitNegativeCorrelationLinks = false;
+    private int numThreads = 1;
+    /**
+     * The most extreme correlations seen on the first pass, if links are to be selected from them rather than from a
+     * second pass; null otherwise. The lower tail is only tracked if we are not using the absolute value.
+     */
+    private BoundedLinkHeap upperCandidates = null;
+    private BoundedLinkHeap lowerCandidates = null;
+    private int candidateCapacity = 0;
+    /**
+     * Keys at or below these can't make it into the candidates; lets the workers of the parallel computation skip most
+     * pairs without touching their own heaps.
+     */
+    private volatile double upperCandidateFloor = Double.NEGATIVE_INFINITY;
+    private volatile double lowerCandidateFloor = Double.NEGATIVE_INFINITY;
+    /**
+     * Writes straight into the fields of this object; used by the serial computation.
+     */
+    final MetricsSink directSink = new MetricsSink() {
+        @Override
+        public void histogram( int bin, double value ) {
+            fastHistogram[bin]++;
+            globalTotal += value;
+            numVals++;
+        }
+
+        @Override
+        public void crossHybridizes() {
+            crossHybridizationRejections++;
+        }
+
+        @Override
+        public void cache( int i, int j, double correl ) {
+            results.set( i, j, correl );
+        }
+
+        @Override
+        public void keep( int i, int j, double correl ) {
+            keepers.add( i, j, correl );
+        }
+
+        @Override
+        public void candidate( int i, int j, double correl ) {
+            AbstractMatrixRowPairAnalysis.this
+                    .offerCandidate( upperCandidates, lowerCandidates, i, j, correl, Double.NEGATIVE_INFINITY,
+                            Double.NEGATIVE_INFINITY );
+        }
+    };
 
     /**
      * Read back the histogram as a DoubleArrayList of counts.
@@ -98,10 +156,10 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
     /**
      * Identify the correlations that are above the set thresholds.
      *
-     * @return cern.colt.list.ObjectArrayList
+     * @return the retained links
      */
     @Override
-    public ObjectArrayList getKeepers() {
+    public LinkBuffer getKeepers() {
         return keepers;
     }
 
@@ -126,6 +184,126 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         return results.cardinality();
     }
 
+    /**
+     * Retain the most extreme correlations during the first pass of {@link #calculateMetrics()}, enough to cover the
+     * given fraction of all pairs (split between the tails unless using the absolute value). Call after
+     * {@link #setDuplicateMap(Map)} and {@link #setUseAbsoluteValue(boolean)}.
+     *
+     * @param fraction fraction of the correlations that will be kept; values outside (0, 1) turn this off.
+     */
+    @Override
+    public void setCandidateFraction( double fraction ) {
+        this.upperCandidates = null;
+        this.lowerCandidates = null;
+        this.upperCandidateFloor = Double.NEGATIVE_INFINITY;
+        this.lowerCandidateFloor = Double.NEGATIVE_INFINITY;
+        if ( fraction <= 0.0 || fraction >= 1.0 ) {
+            return;
+        }
+        if ( hasGenesCache == null ) {
+            throw new IllegalStateException( "Call setDuplicateMap first" );
+        }
+
+        long n = 0;
+        for ( boolean hasGene : hasGenesCache ) {
+            if ( hasGene ) n++;
+        }
+        double numPairs = n * ( n - 1 ) / 2.0;
+        double tailFraction = useAbsoluteValue ? fraction : fraction / 2.0;
+
+        // a little slack, as the cut points are only determined to the resolution of the histogram.
+        this.candidateCapacity = ( int ) Math.min( AbstractMatrixRowPairAnalysis.MAX_CANDIDATES,
+                Math.ceil( tailFraction * numPairs * 1.1 ) + 10000 );
+        this.upperCandidates = new BoundedLinkHeap( candidateCapacity );
+        if ( !useAbsoluteValue ) {
+            this.lowerCandidates = new BoundedLinkHeap( candidateCapacity );
+        }
+        AbstractMatrixRowPairAnalysis.log
+                .info( "Keeping up to " + candidateCapacity + " candidate links per tail during the first pass" );
+    }
+
+    /**
+     * Choose the keepers from the candidates gathered on the first pass, using the current thresholds. This gives the
+     * same links, in the same order, as a second call to {@link #calculateMetrics()}, but only if the candidates
+     * include every correlation that passes the thresholds; otherwise nothing is done. Either way the candidates are
+     * released.
+     *
+     * @return true if the keepers were selected; false if a second pass is needed.
+     */
+    @Override
+    public boolean selectKeepersFromCandidates() {
+        if ( upperCandidates == null ) {
+            return false;
+        }
+
+        try {
+            if ( !histogramIsFilled || usePvalueThreshold ) {
+                AbstractMatrixRowPairAnalysis.log
+                        .info( "Links can't be chosen from the candidates with these settings, doing a second pass" );
+                return false;
+            }
+
+            if ( upperTailThreshold != 0.0 && upperCandidates.getMaxDiscardedKey() >= upperTailThreshold ) {
+                AbstractMatrixRowPairAnalysis.log
+                        .info( "Upper tail threshold is below the weakest candidate, doing a second pass" );
+                return false;
+            }
+
+            if ( lowerCandidates != null && lowerTailThreshold != 0.0
+                    && lowerCandidates.getMaxDiscardedKey() >= -lowerTailThreshold ) {
+                AbstractMatrixRowPairAnalysis.log
+                        .info( "Lower tail threshold is above the weakest candidate, doing a second pass" );
+                return false;
+            }
+
+            int numcols = this.dataMatrix.columns();
+            BoundedLinkHeap upper = upperCandidates;
+            BoundedLinkHeap lower = lowerCandidates;
+            upper.sortByPosition();
+            int nu = upper.size();
+            int nl = 0;
+            if ( lower != null ) {
+                lower.sortByPosition();
+                nl = lower.size();
+            }
+
+            // visit the pairs in row-major order, as the computation would; a pair may be a candidate for both tails.
+            int a = 0;
+            int b = 0;
+            while ( a < nu || b < nl ) {
+                int c;
+                if ( a >= nu ) {
+                    c = 1;
+                } else if ( b >= nl ) {
+                    c = -1;
+                } else {
+                    c = Integer.compare( upper.getRow( a ), lower.getRow( b ) );
+                    if ( c == 0 ) {
+                        c = Integer.compare( upper.getColumn( a ), lower.getColumn( b ) );
+                    }
+                }
+
+                if ( c <= 0 ) {
+                    this.keepCorrellation( upper.getRow( a ), upper.getColumn( a ), upper.getCorrelation( a ), numcols );
+                    a++;
+                    if ( c == 0 ) {
+                        b++;
+                    }
+                } else {
+                    this.keepCorrellation( lower.getRow( b ), lower.getColumn( b ), lower.getCorrelation( b ), numcols );
+                    b++;
+                }
+            }
+
+            AbstractMatrixRowPairAnalysis.log
+                    .info( keepers.size() + " links selected from " + ( nu + nl ) + " candidates, no second pass needed" );
+            return true;
+        } finally {
+            this.upperCandidates = null;
+            this.lowerCandidates = null;
+        }
+    }
+
     @Override
     public void setDuplicateMap( Map<CompositeSequence, Set<Gene>> probeToGeneMap ) {
         this.probeToGeneMap = probeToGeneMap;
@@ -217,6 +395,23 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         this.usePvalueThreshold = usePvalueThreshold;
     }
 
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * @param numThreads how many threads to use when computing the correlations. If greater than 1, the upper triangle
+     *                   of the correlation matrix is split into tiles that are processed on a fork-join pool; the
+     *                   histogram, keepers and cross-hybridization counts are the same as for the serial computation.
+     */
+    @Override
+    public void setNumThreads( int numThreads ) {
+        if ( numThreads < 1 ) {
+            throw new IllegalArgumentException( "Number of threads must be at least 1" );
+        }
+        this.numThreads = numThreads;
+    }
+
     @Override
     public long getCrossHybridizationRejections() {
         return crossHybridizationRejections;
@@ -317,8 +512,9 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
 
         for ( int i = 0; i < numrows; i++ ) {
             int rowmissing = 0;
+            double[] row = this.dataMatrix.getRawRow( i );
             for ( int j = 0; j < numcols; j++ ) {
-                if ( Double.isNaN( this.dataMatrix.get( i, j ) ) ) {
+                if ( Double.isNaN( row[j] ) ) {
                     missingCount++;
                     rowmissing++;
                     used.put( i, j, false );
@@ -359,6 +555,10 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
      * Decide whether to keep the correlation. The correlation must be greater or equal to the set thresholds.
      */
     void keepCorrellation( int i, int j, double correl, int numused ) {
+        this.keepCorrellation( directSink, i, j, correl, numused );
+    }
+
+    void keepCorrellation( MetricsSink sink, int i, int j, double correl, int numused ) {
 
         if ( keepers == null ) {
             return;
@@ -383,10 +583,10 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         if ( upperTailThreshold != 0.0 && c >= upperTailThreshold && ( !this.usePvalueThreshold
                 || this.correctedPvalue( i, j, correl, numused ) <= this.pValueThreshold ) ) {
 
-            keepers.add( new Link( i, j, correl ) );
+            sink.keep( i, j, correl );
         } else if ( !useAbsoluteValue && lowerTailThreshold != 0.0 && c <= lowerTailThreshold && (
                 !this.usePvalueThreshold || this.correctedPvalue( i, j, correl, numused ) <= this.pValueThreshold ) ) {
-            keepers.add( new Link( i, j, correl ) );
+            sink.keep( i, j, correl );
         }
 
     }
@@ -435,8 +635,17 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         }
     }
 
-    int computeMetrics( int numrows, int numcols, boolean docalcs, StopWatch timer, int skipped, int numComputed,
-            double[][] data ) {
+    int computeMetrics( int numrows, final int numcols, boolean docalcs, StopWatch timer, int skipped,
+            int numComputed, final double[][] data ) {
+        if ( this.numThreads > 1 ) {
+            return skipped + this.computeMetricsParallel( numrows, numcols, docalcs, new PairComputation() {
+                @Override
+                public void compute( MetricsSink sink, int i, int j ) {
+                    double correl = AbstractMatrixRowPairAnalysis.this.correlFast( data[i], data[j], i, j );
+                    AbstractMatrixRowPairAnalysis.this.setCorrel( sink, i, j, correl, numcols );
+                }
+            } );
+        }
         ExpressionDataMatrixRowElement itemA;
         double[] vectorA = null;
         for ( int i = 0; i < numrows; i++ ) {
@@ -460,9 +669,13 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
      * Checks for valid values of correlation and encoding.
      */
     void setCorrel( int i, int j, double correl, int numused ) {
+        this.setCorrel( directSink, i, j, correl, numused );
+    }
+
+    void setCorrel( MetricsSink sink, int i, int j, double correl, int numused ) {
 
         if ( this.crossHybridizes( i, j ) ) {
-            crossHybridizationRejections++;
+            sink.crossHybridizes();
             return;
         }
 
@@ -488,25 +701,129 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
             if ( useAbsoluteValue ) {
                 int bin = Math
                         .min( ( int ) ( ( 1.0 + acorrel ) * AbstractMatrixRowPairAnalysis.HALF_BIN ), lastBinIndex );
-                fastHistogram[bin]++;
-                globalTotal += acorrel;
+                sink.histogram( bin, acorrel );
                 // histogram.fill( acorrel ); // this is suprisingly slow due to zillions of calls to Math.floor.
             } else {
-                globalTotal += correl;
                 int bin = Math
                         .min( ( int ) ( ( 1.0 + correl ) * AbstractMatrixRowPairAnalysis.HALF_BIN ), lastBinIndex );
-                fastHistogram[bin]++;
+                sink.histogram( bin, correl );
                 // histogram.fill( correl );
             }
-            numVals++;
+
+            if ( upperCandidates != null ) {
+                sink.candidate( i, j, correl );
+            }
         }
 
         if ( acorrel > storageThresholdValue && results != null ) {
-            results.set( i, j, correl );
+            sink.cache( i, j, correl );
+        }
+
+        this.keepCorrellation( sink, i, j, correl, numused );
+
+    }
+
+    /**
+     * Parallel version of the pass over the upper triangle of the matrix. The rows that have genes are split into bands
+     * of a few hundred rows; each band is a task on a fork-join pool, and within a band the columns are visited one
+     * tile at a time so the rows involved stay in cache. Each task reports to its own {@link BufferedMetricsSink}; these
+     * are merged in band order once all tasks are done, so the histogram, keepers (including their order) and
+     * cross-hybridization counts come out the same as for the serial computation.
+     *
+     * @param numrows     number of rows in the data matrix
+     * @param numcols     number of columns in the data matrix
+     * @param docalcs     false if all the values we need are already in the results matrix
+     * @param computation computes (and reports) the correlation for a single pair of rows
+     * @return how many rows were skipped because they lack a gene
+     */
+    int computeMetricsParallel( int numrows, final int numcols, final boolean docalcs,
+            final PairComputation computation ) {
+
+        IntArrayList rowsWithGenes = new IntArrayList( numrows );
+        int skipped = 0;
+        for ( int i = 0; i < numrows; i++ ) {
+            if ( this.hasGene( this.dataMatrix.getRowElement( i ) ) ) {
+                rowsWithGenes.add( i );
+            } else {
+                skipped++;
+            }
+        }
+        rowsWithGenes.trimToSize();
+        final int[] rows = rowsWithGenes.elements();
+        final int n = rows.length;
+        final int tile = Math.max( 16,
+                Math.min( 1024, AbstractMatrixRowPairAnalysis.TILE_BYTES / ( 8 * Math.max( 1, numcols ) ) ) );
+        final int numBands = ( n + tile - 1 ) / tile;
+
+        AbstractMatrixRowPairAnalysis.log
+                .info( "Computing correlations for " + n + " rows on " + numThreads + " threads, in " + numBands
+                        + " bands of " + tile + " rows" );
+
+        final StopWatch timer = new StopWatch();
+        timer.start();
+        final AtomicInteger bandsDone = new AtomicInteger( 0 );
+        List<Callable<BufferedMetricsSink>> tasks = new ArrayList<>( numBands );
+        for ( int b = 0; b < numBands; b++ ) {
+            final int bandStart = b * tile;
+            final int bandEnd = Math.min( n, bandStart + tile );
+            tasks.add( new Callable<BufferedMetricsSink>() {
+                @Override
+                public BufferedMetricsSink call() {
+                    BufferedMetricsSink sink = new BufferedMetricsSink();
+                    for ( int colStart = bandStart; colStart < n; colStart += tile ) {
+                        int colEnd = Math.min( n, colStart + tile );
+                        for ( int a = bandStart; a < bandEnd; a++ ) {
+                            int i = rows[a];
+                            for ( int c = Math.max( a + 1, colStart ); c < colEnd; c++ ) {
+                                int j = rows[c];
+                                // second pass over matrix? Don't calculate it if we already have it.
+                                if ( !docalcs || results.get( i, j ) != 0.0 ) {
+                                    AbstractMatrixRowPairAnalysis.this
+                                            .keepCorrellation( sink, i, j, results.get( i, j ), numcols );
+                                    continue;
+                                }
+                                computation.compute( sink, i, j );
+                                sink.numComputed++;
+                            }
+                        }
+                    }
+                    sink.sortKeepers();
+                    if ( sink.upper != null ) {
+                        AbstractMatrixRowPairAnalysis.this.mergeCandidates( sink );
+                    }
+                    int done = bandsDone.incrementAndGet();
+                    if ( done % 50 == 0 ) {
+                        AbstractMatrixRowPairAnalysis.log.info( done + "/" + numBands + " bands done, " + String
+                                .format( "time elapsed: %.2f", timer.getTime() / 1000.0 ) + "s" );
+                    }
+                    return sink;
+                }
+            } );
         }
 
-        this.keepCorrellation( i, j, correl, numused );
+        ForkJoinPool pool = new ForkJoinPool( numThreads );
+        long numComputed = 0;
+        try {
+            // futures come back in the order the tasks were submitted, which is row order.
+            for ( Future<BufferedMetricsSink> future : pool.invokeAll( tasks ) ) {
+                BufferedMetricsSink sink = future.get();
+                this.merge( sink );
+                numComputed += sink.numComputed;
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while computing correlations", e );
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
 
+        AbstractMatrixRowPairAnalysis.log.info( numComputed + " correlations computed in " + String
+                .format( "%.2f", timer.getTime() / 1000.0 ) + "s, " + ( keepers.size() > 0 ?
+                keepers.size() + " scores retained" :
+                "" ) );
+        return skipped;
     }
 
     /**
@@ -649,4 +966,159 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         }
         return testCount;
     }
+
+    /**
+     * Add the candidates found by one task of the parallel computation to ours, and raise the floors accordingly. Called
+     * by the workers as they finish, so each task's candidates can be freed early.
+     */
+    private synchronized void mergeCandidates( BufferedMetricsSink sink ) {
+        upperCandidates.addAll( sink.upper );
+        if ( upperCandidates.isFull() ) {
+            upperCandidateFloor = upperCandidates.minKey();
+        }
+        if ( lowerCandidates != null ) {
+            lowerCandidates.addAll( sink.lower );
+            if ( lowerCandidates.isFull() ) {
+                lowerCandidateFloor = lowerCandidates.minKey();
+            }
+        }
+        sink.upper = null;
+        sink.lower = null;
+    }
+
+    /**
+     * Offer a correlation to the candidates for each tail. Keys at or below the floor are only recorded as discarded.
+     */
+    private void offerCandidate( BoundedLinkHeap upper, BoundedLinkHeap lower, int i, int j, double correl,
+            double upperFloor, double lowerFloor ) {
+        if ( omitNegativeCorrelationLinks && correl < 0.0 ) {
+            return; // can't be kept anyway.
+        }
+
+        double key = useAbsoluteValue ? Math.abs( correl ) : correl;
+        if ( key > upperFloor ) {
+            upper.offer( i, j, correl, key );
+        } else {
+            upper.discard( key );
+        }
+
+        if ( lower != null ) {
+            if ( -correl > lowerFloor ) {
+                lower.offer( i, j, correl, -correl );
+            } else {
+                lower.discard( -correl );
+            }
+        }
+    }
+
+    /**
+     * Add the results of one task of the parallel computation to this.
+     */
+    private void merge( BufferedMetricsSink sink ) {
+        for ( int bin = 0; bin < fastHistogram.length; bin++ ) {
+            fastHistogram[bin] += sink.histogram[bin];
+        }
+        globalTotal += sink.total;
+        numVals += sink.numVals;
+        crossHybridizationRejections += sink.crossHybridizationRejections;
+
+        for ( int k = 0, n = sink.cachedValues.size(); k < n; k++ ) {
+            results.set( sink.cachedRows.getQuick( k ), sink.cachedCols.getQuick( k ), sink.cachedValues.getQuick( k ) );
+        }
+
+        if ( keepers != null ) {
+            keepers.addAll( sink.keepers );
+        }
+    }
+
+    /**
+     * Receives the outcome of each pairwise comparison.
+     */
+    interface MetricsSink {
+        void histogram( int bin, double value );
+
+        void crossHybridizes();
+
+        void cache( int i, int j, double correl );
+
+        void keep( int i, int j, double correl );
+
+        /**
+         * Called on the first pass if we are gathering candidates for single-pass link selection.
+         */
+        void candidate( int i, int j, double correl );
+    }
+
+    /**
+     * Computes the correlation between two rows on the first pass and reports it to the sink (usually via
+     * {@link #setCorrel(MetricsSink, int, int, double, int)}). Implementations must not modify shared state, as they are
+     * called from several threads at once.
+     */
+    interface PairComputation {
+        void compute( MetricsSink sink, int i, int j );
+    }
+
+    /**
+     * Holds the results of one task of the parallel computation, so workers don't contend for the histogram, the keepers
+     * or the (not thread-safe) results matrix.
+     */
+    class BufferedMetricsSink implements MetricsSink {
+        private final int[] histogram = new int[MatrixRowPairAnalysis.NUM_BINS];
+        private final IntArrayList cachedRows = new IntArrayList();
+        private final IntArrayList cachedCols = new IntArrayList();
+        private final DoubleArrayList cachedValues = new DoubleArrayList();
+        private final LinkBuffer keepers = new LinkBuffer( Integer.MAX_VALUE );
+        private double total = 0.0;
+        private int numVals = 0;
+        private long crossHybridizationRejections = 0;
+        private long numComputed = 0;
+        private BoundedLinkHeap upper = null;
+        private BoundedLinkHeap lower = null;
+
+        BufferedMetricsSink() {
+            if ( upperCandidates != null ) {
+                upper = new BoundedLinkHeap( candidateCapacity );
+                if ( lowerCandidates != null ) {
+                    lower = new BoundedLinkHeap( candidateCapacity );
+                }
+            }
+        }
+
+        @Override
+        public void histogram( int bin, double value ) {
+            histogram[bin]++;
+            total += value;
+            numVals++;
+        }
+
+        @Override
+        public void crossHybridizes() {
+            crossHybridizationRejections++;
+        }
+
+        @Override
+        public void cache( int i, int j, double correl ) {
+            cachedRows.add( i );
+            cachedCols.add( j );
+            cachedValues.add( correl );
+        }
+
+        @Override
+        public void keep( int i, int j, double correl ) {
+            keepers.add( i, j, correl );
+        }
+
+        @Override
+        public void candidate( int i, int j, double correl ) {
+            AbstractMatrixRowPairAnalysis.this
+                    .offerCandidate( upper, lower, i, j, correl, upperCandidateFloor, lowerCandidateFloor );
+        }
+
+        /**
+         * Tiles visit the pairs of a band column block by column block; put them back in row-major order.
+         */
+        void sortKeepers() {
+            keepers.sort();
+        }
+    }
 }
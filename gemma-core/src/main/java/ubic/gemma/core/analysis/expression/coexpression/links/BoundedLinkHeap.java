@@ -0,0 +1,220 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.coexpression.links;
+
+import cern.colt.GenericSorting;
+import cern.colt.Swapper;
+import cern.colt.function.IntComparator;
+
+/**
+ * Min-heap of bounded size holding the links with the largest keys seen so far. The key is usually the correlation
+ * (or its absolute value, or its negation for the lower tail). Storage grows as needed up to the capacity. The largest
+ * key that was rejected or evicted is remembered, so callers can tell whether every link at or above a given key is
+ * still present. Not thread-safe.
+ */
+class BoundedLinkHeap {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int capacity;
+    private int size = 0;
+    private int[] rows;
+    private int[] cols;
+    private double[] correls;
+    private double[] keys;
+    private double maxDiscardedKey = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param capacity maximum number of links to hold
+     */
+    BoundedLinkHeap( int capacity ) {
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException( "Capacity must be at least 1" );
+        }
+        this.capacity = capacity;
+        int initial = Math.min( capacity, BoundedLinkHeap.INITIAL_CAPACITY );
+        this.rows = new int[initial];
+        this.cols = new int[initial];
+        this.correls = new double[initial];
+        this.keys = new double[initial];
+    }
+
+    /**
+     * Add the contents of another heap to this one.
+     */
+    void addAll( BoundedLinkHeap other ) {
+        for ( int k = 0; k < other.size; k++ ) {
+            this.offer( other.rows[k], other.cols[k], other.correls[k], other.keys[k] );
+        }
+        this.maxDiscardedKey = Math.max( this.maxDiscardedKey, other.maxDiscardedKey );
+    }
+
+    /**
+     * Record that a link with the given key was not offered (e.g. because it was known to be too small).
+     */
+    void discard( double key ) {
+        if ( key > maxDiscardedKey ) {
+            maxDiscardedKey = key;
+        }
+    }
+
+    int getColumn( int k ) {
+        return cols[k];
+    }
+
+    double getCorrelation( int k ) {
+        return correls[k];
+    }
+
+    /**
+     * @return the largest key that was not retained; links with a strictly greater key are all in the heap.
+     */
+    double getMaxDiscardedKey() {
+        return maxDiscardedKey;
+    }
+
+    int getRow( int k ) {
+        return rows[k];
+    }
+
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return the smallest key in the heap; only meaningful if it is not empty.
+     */
+    double minKey() {
+        return keys[0];
+    }
+
+    void offer( int row, int col, double correl, double key ) {
+        if ( size < capacity ) {
+            if ( size == rows.length ) {
+                this.grow();
+            }
+            this.set( size, row, col, correl, key );
+            this.siftUp( size );
+            size++;
+            return;
+        }
+
+        if ( key <= keys[0] ) {
+            this.discard( key );
+            return;
+        }
+
+        this.discard( keys[0] );
+        this.set( 0, row, col, correl, key );
+        this.siftDown( 0 );
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Sort the contents by row, then column. This destroys the heap order, so nothing should be offered afterwards.
+     */
+    void sortByPosition() {
+        GenericSorting.quickSort( 0, size, new IntComparator() {
+            @Override
+            public int compare( int a, int b ) {
+                int c = Integer.compare( rows[a], rows[b] );
+                if ( c != 0 ) {
+                    return c;
+                }
+                return Integer.compare( cols[a], cols[b] );
+            }
+        }, new Swapper() {
+            @Override
+            public void swap( int a, int b ) {
+                BoundedLinkHeap.this.swap( a, b );
+            }
+        } );
+    }
+
+    private void grow() {
+        int newCapacity = ( int ) Math.min( ( long ) capacity, 2L * rows.length );
+        int[] newRows = new int[newCapacity];
+        int[] newCols = new int[newCapacity];
+        double[] newCorrels = new double[newCapacity];
+        double[] newKeys = new double[newCapacity];
+        System.arraycopy( rows, 0, newRows, 0, size );
+        System.arraycopy( cols, 0, newCols, 0, size );
+        System.arraycopy( correls, 0, newCorrels, 0, size );
+        System.arraycopy( keys, 0, newKeys, 0, size );
+        rows = newRows;
+        cols = newCols;
+        correls = newCorrels;
+        keys = newKeys;
+    }
+
+    private void set( int k, int row, int col, double correl, double key ) {
+        rows[k] = row;
+        cols[k] = col;
+        correls[k] = correl;
+        keys[k] = key;
+    }
+
+    private void siftDown( int k ) {
+        while ( true ) {
+            int left = 2 * k + 1;
+            if ( left >= size ) {
+                return;
+            }
+            int smallest = left;
+            int right = left + 1;
+            if ( right < size && keys[right] < keys[left] ) {
+                smallest = right;
+            }
+            if ( keys[k] <= keys[smallest] ) {
+                return;
+            }
+            this.swap( k, smallest );
+            k = smallest;
+        }
+    }
+
+    private void siftUp( int k ) {
+        while ( k > 0 ) {
+            int parent = ( k - 1 ) / 2;
+            if ( keys[parent] <= keys[k] ) {
+                return;
+            }
+            this.swap( k, parent );
+            k = parent;
+        }
+    }
+
+    private void swap( int a, int b ) {
+        int t = rows[a];
+        rows[a] = rows[b];
+        rows[b] = t;
+        t = cols[a];
+        cols[a] = cols[b];
+        cols[b] = t;
+        double d = correls[a];
+        correls[a] = correls[b];
+        correls[b] = d;
+        d = keys[a];
+        keys[a] = keys[b];
+        keys[b] = d;
+    }
+}
@@ -19,10 +19,8 @@
 package ubic.gemma.core.analysis.expression.coexpression.links;
 
 import cern.colt.list.DoubleArrayList;
-import cern.colt.list.ObjectArrayList;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import ubic.basecode.dataStructure.Link;
 import ubic.basecode.dataStructure.matrix.MatrixUtil;
 import ubic.basecode.io.ByteArrayConverter;
 import ubic.basecode.math.CorrelationStats;
@@ -59,7 +57,7 @@ public class LinkAnalysis {
     private BioAssaySet expressionExperiment;
     private NumberFormat form;
 
-    private ObjectArrayList keep; // links that are retained.
+    private LinkBuffer keep; // links that are retained.
 
     private MatrixRowPairAnalysis metricMatrix;
     private Map<Integer, Integer> probeDegreeMap = new HashMap<>();
@@ -116,6 +114,10 @@ public class LinkAnalysis {
      * Clear/null data so this object can be reused.
      */
     public void clear() {
+        if ( this.keep != null ) {
+            this.keep.close();
+            this.keep = null;
+        }
         this.dataMatrix = null;
         this.probeToGeneMap = null;
         this.metricMatrix = null;
@@ -191,7 +193,7 @@ public class LinkAnalysis {
         return genes;
     }
 
-    public ObjectArrayList getKeep() {
+    public LinkBuffer getKeep() {
         return keep;
     }
 
@@ -241,18 +243,32 @@ public class LinkAnalysis {
      * Compute the distribution of similarity metrics for the entire matrix.
      */
     private void calculateDistribution() {
+        boolean singlePass = config.isSinglePass() && config.getSingularThreshold()
+                .equals( SingularThreshold.cdfcut );
+        if ( config.isSinglePass() && !singlePass ) {
+            LinkAnalysis.log.warn( "Single-pass link selection is only possible with the cdfcut threshold, ignoring" );
+        }
+
+        // in single-pass mode the candidates take the place of the cached correlations.
+        double cacheThreshold = singlePass ? 1.0 : config.getCorrelationCacheThreshold();
         if ( config.getMetric().equals( "pearson" ) ) {
             LinkAnalysis.log.info( "Using Pearson linear correlation" );
-            metricMatrix = new PearsonMetrics( this.dataMatrix, config.getCorrelationCacheThreshold() );
+            PearsonMetrics pearsonMetrics = new PearsonMetrics( this.dataMatrix, cacheThreshold );
+            pearsonMetrics.setUseStandardizedKernel( config.isUseStandardizedKernel() );
+            metricMatrix = pearsonMetrics;
         } else if ( config.getMetric().equals( "spearman" ) ) {
             LinkAnalysis.log.info( "Using Spearman rank correlation" );
-            metricMatrix = new SpearmanMetrics( dataMatrix, config.getCorrelationCacheThreshold() );
+            metricMatrix = new SpearmanMetrics( dataMatrix, cacheThreshold );
         }
 
         metricMatrix.setMinNumpresent( config.getMinNumPresent() );
         metricMatrix.setOmitNegativeCorrelationLinks( config.isOmitNegLinks() );
         metricMatrix.setDuplicateMap( probeToGeneMap ); // populates numUniqueGenes
         metricMatrix.setUseAbsoluteValue( config.isAbsoluteValue() );
+        metricMatrix.setNumThreads( config.getNumThreads() );
+        if ( singlePass ) {
+            metricMatrix.setCandidateFraction( config.getCdfCut() );
+        }
         this.init();
 
         metricMatrix.calculateMetrics();
@@ -385,10 +401,10 @@ public class LinkAnalysis {
             probeDegreeMap.put( i, 0 );
         }
 
-        for ( int i = 0; i < keep.size(); i++ ) {
-            Link l = ( Link ) keep.get( i );
-            Integer x = l.getx();
-            Integer y = l.gety();
+        LinkBuffer.LinkIterator it = keep.iterator();
+        while ( it.next() ) {
+            Integer x = it.getRow();
+            Integer y = it.getColumn();
 
             probeDegreeMap.put( x, probeDegreeMap.get( x ) + 1 );
             probeDegreeMap.put( y, probeDegreeMap.get( y ) + 1 );
@@ -401,7 +417,9 @@ public class LinkAnalysis {
      */
     private void getLinks() {
         this.chooseCutPoints();
-        metricMatrix.calculateMetrics();
+        if ( !metricMatrix.selectKeepersFromCandidates() ) {
+            metricMatrix.calculateMetrics();
+        }
 
         keep = metricMatrix.getKeepers();
 
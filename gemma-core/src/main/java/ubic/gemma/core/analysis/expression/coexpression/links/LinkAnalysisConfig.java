@@ -67,6 +67,10 @@ public class LinkAnalysisConfig implements Serializable {
      */
     private int minNumPresent = AbstractMatrixRowPairAnalysis.HARD_LIMIT_MIN_NUM_USED;
     private NormalizationMethod normalizationMethod = NormalizationMethod.none;
+    /**
+     * How many threads to use for computing the correlations. This does not affect the results.
+     */
+    private int numThreads = 1;
     /**
      * Remove negative correlated values at the end.
      */
@@ -80,6 +84,11 @@ public class LinkAnalysisConfig implements Serializable {
      */
     private int probeDegreeThreshold = DEFAULT_PROBE_DEGREE_THRESHOLD;
     private SingularThreshold singularThreshold = SingularThreshold.none; // fwe|cdfCut
+    /**
+     * If links are chosen by cdfCut alone, keep the most extreme correlations during the first pass so the second pass
+     * over the data can usually be skipped. This does not affect the results.
+     */
+    private boolean singlePass = false;
     private boolean subset = false;
     private double subsetSize = 0.0;
     private boolean subsetUsed = false;
@@ -87,6 +96,10 @@ public class LinkAnalysisConfig implements Serializable {
     private boolean upperCdfCutUsed = false;
     private double upperTailCut = 0.01;
     private boolean useDb = true;
+    /**
+     * Use the single-precision Pearson kernel; faster, but the correlations may differ slightly.
+     */
+    private boolean useStandardizedKernel = false;
 
     public boolean isCheckForBatchEffect() {
         return checkForBatchEffect;
@@ -175,6 +188,17 @@ public class LinkAnalysisConfig implements Serializable {
         this.normalizationMethod = normalizationMethod;
     }
 
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public void setNumThreads( int numThreads ) {
+        if ( numThreads < 1 ) {
+            throw new IllegalArgumentException( "Number of threads must be at least 1" );
+        }
+        this.numThreads = numThreads;
+    }
+
     public File getOutputFile() {
         return outputFile;
     }
@@ -281,6 +305,22 @@ public class LinkAnalysisConfig implements Serializable {
         this.omitNegLinks = omitNegLinks;
     }
 
+    public boolean isSinglePass() {
+        return singlePass;
+    }
+
+    public void setSinglePass( boolean singlePass ) {
+        this.singlePass = singlePass;
+    }
+
+    public boolean isUseStandardizedKernel() {
+        return useStandardizedKernel;
+    }
+
+    public void setUseStandardizedKernel( boolean useStandardizedKernel ) {
+        this.useStandardizedKernel = useStandardizedKernel;
+    }
+
     public boolean isSubset() {
         return subset;
     }
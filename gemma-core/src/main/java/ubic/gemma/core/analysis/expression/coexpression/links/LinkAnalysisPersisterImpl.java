@@ -1,12 +1,10 @@
 package ubic.gemma.core.analysis.expression.coexpression.links;
 
-import cern.colt.list.ObjectArrayList;
 import org.apache.commons.lang3.time.StopWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import ubic.basecode.dataStructure.Link;
 import ubic.gemma.core.genome.gene.service.GeneService;
 import ubic.gemma.model.analysis.expression.coexpression.CoexpressionAnalysis;
 import ubic.gemma.model.analysis.expression.coexpression.SupportDetails;
@@ -155,7 +153,7 @@ public class LinkAnalysisPersisterImpl implements LinkAnalysisPersister {
         StopWatch watch = new StopWatch();
         watch.start();
 
-        ObjectArrayList links = la.getKeep();
+        LinkBuffer links = la.getKeep();
 
         int numSaved = this.saveLinks( la, links );
         LinkAnalysisPersisterImpl.log.info( "Seconds to process " + numSaved + " links (plus flipped versions):"
@@ -184,7 +182,7 @@ public class LinkAnalysisPersisterImpl implements LinkAnalysisPersister {
     /**
      * @return how many links were saved
      */
-    private int saveLinks( LinkAnalysis la, ObjectArrayList links ) {
+    private int saveLinks( LinkAnalysis la, LinkBuffer links ) {
 
         LinkCreator c = this.getLinkCreator( la );
 
@@ -193,16 +191,13 @@ public class LinkAnalysisPersisterImpl implements LinkAnalysisPersister {
 
         Set<Gene> genesWithLinks = new HashSet<>();
         Set<NonPersistentNonOrderedCoexpLink> linksForDb = new HashSet<>();
-        for ( int i = 0, n = links.size(); i < n; i++ ) {
+        LinkBuffer.LinkIterator it = links.iterator();
+        for ( long i = 0; it.next(); i++ ) {
 
-            Object val = links.getQuick( i );
-            if ( val == null )
-                continue;
-            Link m = ( Link ) val;
-            Double w = m.getWeight();
+            double w = it.getScore();
 
-            int x = m.getx();
-            int y = m.gety();
+            int x = it.getRow();
+            int y = it.getColumn();
 
             CompositeSequence p1 = la.getProbe( x );
             CompositeSequence p2 = la.getProbe( y );
@@ -0,0 +1,312 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.coexpression.links;
+
+import cern.colt.GenericSorting;
+import cern.colt.Swapper;
+import cern.colt.function.IntComparator;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * Growable store for the links (row, column, score) retained by a link analysis, kept as parallel primitive arrays
+ * rather than one object per link. Once more than a set number of links are held in memory, they are appended to a
+ * temporary file and read back through a memory map, so the heap used does not depend on how many links are kept.
+ * Links are returned by {@link #iterator()} in the order they were added. Call {@link #close()} to remove the
+ * temporary file once the links are no longer needed.
+ * This is not thread-safe.
+ */
+public class LinkBuffer implements Closeable {
+
+    /**
+     * Default number of links held in memory before spilling to disk (about 100 Mb).
+     */
+    public static final int DEFAULT_SPILL_THRESHOLD = 1 << 23;
+
+    private static final Log log = LogFactory.getLog( LinkBuffer.class );
+
+    /**
+     * Bytes per link in the spill file: two ints and a float.
+     */
+    private static final int RECORD_SIZE = 12;
+
+    /**
+     * Largest region of the spill file we map at once; a whole number of records.
+     */
+    private static final long MAX_MAPPED_BYTES = ( Integer.MAX_VALUE / RECORD_SIZE ) * ( long ) RECORD_SIZE;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int spillThreshold;
+    private int[] rows;
+    private int[] cols;
+    private float[] scores;
+    private int numInMemory = 0;
+    private long numSpilled = 0;
+    private File spillFile = null;
+    private FileChannel spillChannel = null;
+
+    public LinkBuffer() {
+        this( LinkBuffer.DEFAULT_SPILL_THRESHOLD );
+    }
+
+    /**
+     * @param spillThreshold how many links to hold in memory before writing them to a temporary file.
+     */
+    public LinkBuffer( int spillThreshold ) {
+        if ( spillThreshold < 1 ) {
+            throw new IllegalArgumentException( "Spill threshold must be at least 1" );
+        }
+        this.spillThreshold = spillThreshold;
+        int capacity = Math.min( LinkBuffer.INITIAL_CAPACITY, spillThreshold );
+        this.rows = new int[capacity];
+        this.cols = new int[capacity];
+        this.scores = new float[capacity];
+    }
+
+    public void add( int row, int col, double score ) {
+        if ( numInMemory == rows.length ) {
+            if ( numInMemory >= spillThreshold ) {
+                this.spill();
+            } else {
+                this.grow();
+            }
+        }
+        rows[numInMemory] = row;
+        cols[numInMemory] = col;
+        scores[numInMemory] = ( float ) score;
+        numInMemory++;
+    }
+
+    /**
+     * Append all the links from another buffer to this one.
+     *
+     * @param other buffer to copy from
+     */
+    public void addAll( LinkBuffer other ) {
+        LinkIterator it = other.iterator();
+        while ( it.next() ) {
+            this.add( it.getRow(), it.getColumn(), it.getScore() );
+        }
+    }
+
+    @Override
+    public void close() {
+        if ( spillChannel != null ) {
+            try {
+                spillChannel.close();
+            } catch ( IOException e ) {
+                LinkBuffer.log.warn( "Could not close link spill file: " + e.getMessage() );
+            }
+            spillChannel = null;
+        }
+        if ( spillFile != null ) {
+            if ( !spillFile.delete() ) {
+                LinkBuffer.log.warn( "Could not delete " + spillFile );
+            }
+            spillFile = null;
+        }
+        numSpilled = 0;
+        numInMemory = 0;
+    }
+
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * @return true if some of the links have been written to disk.
+     */
+    public boolean isSpilled() {
+        return numSpilled > 0;
+    }
+
+    /**
+     * @return a new iterator over the links, in the order they were added. Adding links while iterating is not
+     * supported.
+     */
+    public LinkIterator iterator() {
+        return new LinkIterator();
+    }
+
+    public long size() {
+        return numSpilled + numInMemory;
+    }
+
+    /**
+     * Sort the links by row, then column. Only supported while all the links are in memory.
+     */
+    void sort() {
+        if ( this.isSpilled() ) {
+            throw new IllegalStateException( "Cannot sort links that have been written to disk" );
+        }
+        GenericSorting.quickSort( 0, numInMemory, new IntComparator() {
+            @Override
+            public int compare( int a, int b ) {
+                int c = Integer.compare( rows[a], rows[b] );
+                if ( c != 0 ) {
+                    return c;
+                }
+                return Integer.compare( cols[a], cols[b] );
+            }
+        }, new Swapper() {
+            @Override
+            public void swap( int a, int b ) {
+                int t = rows[a];
+                rows[a] = rows[b];
+                rows[b] = t;
+                t = cols[a];
+                cols[a] = cols[b];
+                cols[b] = t;
+                float s = scores[a];
+                scores[a] = scores[b];
+                scores[b] = s;
+            }
+        } );
+    }
+
+    private void grow() {
+        int capacity = ( int ) Math.min( ( long ) spillThreshold, Math.max( 1L, 2L * rows.length ) );
+        int[] newRows = new int[capacity];
+        int[] newCols = new int[capacity];
+        float[] newScores = new float[capacity];
+        System.arraycopy( rows, 0, newRows, 0, numInMemory );
+        System.arraycopy( cols, 0, newCols, 0, numInMemory );
+        System.arraycopy( scores, 0, newScores, 0, numInMemory );
+        rows = newRows;
+        cols = newCols;
+        scores = newScores;
+    }
+
+    /**
+     * Append the links held in memory to the spill file, and empty the in-memory arrays.
+     */
+    private void spill() {
+        try {
+            if ( spillChannel == null ) {
+                spillFile = File.createTempFile( "gemma-links-", ".bin" );
+                spillFile.deleteOnExit();
+                spillChannel = new RandomAccessFile( spillFile, "rw" ).getChannel();
+                LinkBuffer.log.info( "More than " + spillThreshold + " links retained, writing them to " + spillFile );
+            }
+
+            ByteBuffer buf = ByteBuffer.allocateDirect( RECORD_SIZE * Math.min( numInMemory, 1 << 16 ) );
+            for ( int k = 0; k < numInMemory; k++ ) {
+                if ( buf.remaining() < RECORD_SIZE ) {
+                    this.write( buf );
+                }
+                buf.putInt( rows[k] ).putInt( cols[k] ).putFloat( scores[k] );
+            }
+            this.write( buf );
+        } catch ( IOException e ) {
+            throw new RuntimeException( "Could not write links to disk", e );
+        }
+        numSpilled += numInMemory;
+        numInMemory = 0;
+    }
+
+    private void write( ByteBuffer buf ) throws IOException {
+        buf.flip();
+        while ( buf.hasRemaining() ) {
+            spillChannel.write( buf );
+        }
+        buf.clear();
+    }
+
+    /**
+     * Cursor over the links in a {@link LinkBuffer}, without creating an object per link. Call {@link #next()} to
+     * advance, then read the current link with the getters.
+     */
+    public class LinkIterator {
+
+        private final long spilled = numSpilled;
+        private long position = -1;
+        private MappedByteBuffer mapped = null;
+        private long mappedStart = 0;
+        private int row;
+        private int col;
+        private float score;
+
+        /**
+         * @return false if there are no more links.
+         */
+        public boolean next() {
+            if ( position + 1 >= spilled + numInMemory ) {
+                return false;
+            }
+            position++;
+            if ( position < spilled ) {
+                this.readSpilled();
+            } else {
+                int k = ( int ) ( position - spilled );
+                row = rows[k];
+                col = cols[k];
+                score = scores[k];
+            }
+            return true;
+        }
+
+        public int getColumn() {
+            this.checkPosition();
+            return col;
+        }
+
+        public int getRow() {
+            this.checkPosition();
+            return row;
+        }
+
+        public double getScore() {
+            this.checkPosition();
+            return score;
+        }
+
+        private void checkPosition() {
+            if ( position < 0 ) {
+                throw new NoSuchElementException( "Call next() first" );
+            }
+        }
+
+        private void readSpilled() {
+            long offset = position * RECORD_SIZE;
+            if ( mapped == null || offset >= mappedStart + mapped.capacity() ) {
+                try {
+                    mappedStart = offset;
+                    long length = Math.min( MAX_MAPPED_BYTES, spilled * RECORD_SIZE - offset );
+                    mapped = spillChannel.map( FileChannel.MapMode.READ_ONLY, mappedStart, length );
+                } catch ( IOException e ) {
+                    throw new RuntimeException( "Could not read links from disk", e );
+                }
+            }
+            int p = ( int ) ( offset - mappedStart );
+            row = mapped.getInt( p );
+            col = mapped.getInt( p + 4 );
+            score = mapped.getFloat( p + 8 );
+        }
+    }
+}
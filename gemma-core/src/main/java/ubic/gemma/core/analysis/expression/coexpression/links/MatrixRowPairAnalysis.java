@@ -19,7 +19,6 @@
 package ubic.gemma.core.analysis.expression.coexpression.links;
 
 import cern.colt.list.DoubleArrayList;
-import cern.colt.list.ObjectArrayList;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataMatrixRowElement;
 import ubic.gemma.model.common.quantitationtype.QuantitationType;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
@@ -36,7 +35,7 @@ public interface MatrixRowPairAnalysis {
 
     void calculateMetrics();
     DoubleArrayList getHistogramArrayList();
-    ObjectArrayList getKeepers();
+    LinkBuffer getKeepers();
     QuantitationType getMetricType();
     CompositeSequence getProbeForRow( ExpressionDataMatrixRowElement rowEl );
     double getScoreInBin( int i );
@@ -49,6 +48,27 @@ public interface MatrixRowPairAnalysis {
     void setUpperTailThreshold( double k );
     void setUseAbsoluteValue( boolean k );
 
+    /**
+     * @param numThreads how many threads to use in {@link #calculateMetrics()}; the default of 1 means serial.
+     */
+    void setNumThreads( int numThreads );
+
+    /**
+     * Gather candidate links during the first pass so they can later be chosen without a second pass.
+     *
+     * @param fraction fraction of the correlations that will be kept (the cdf cut); values outside (0, 1) turn this off.
+     * @see #selectKeepersFromCandidates()
+     */
+    void setCandidateFraction( double fraction );
+
+    /**
+     * Alternative to a second call to {@link #calculateMetrics()} once the thresholds are set.
+     *
+     * @return true if the keepers could be chosen from the candidates gathered on the first pass; false if a second
+     * pass is still needed.
+     */
+    boolean selectKeepersFromCandidates();
+
     /**
      * Default is true; set to false to disable use of the pvalue threshold, in which case only the upper and lower tail
      * thresholds will be used.
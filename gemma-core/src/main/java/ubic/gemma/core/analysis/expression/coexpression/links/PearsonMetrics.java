@@ -18,7 +18,6 @@
  */
 package ubic.gemma.core.analysis.expression.coexpression.links;
 
-import cern.colt.list.ObjectArrayList;
 import org.apache.commons.lang3.time.StopWatch;
 import ubic.basecode.dataStructure.matrix.CompressedSparseDoubleMatrix;
 import ubic.basecode.math.Constants;
@@ -43,6 +42,7 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
 
     double[] rowMeans = null;
     double[] rowSumSquaresSqrt = null;
+    private boolean useStandardizedKernel = false;
 
     public PearsonMetrics( ExpressionDataDoubleMatrix dataMatrix ) {
         this( dataMatrix.rows() );
@@ -70,7 +70,7 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
         if ( size > 0 ) {
             results = new CompressedSparseDoubleMatrix<>( size, size );
         }
-        keepers = new ObjectArrayList();
+        keepers = new LinkBuffer();
     }
 
     /**
@@ -80,14 +80,18 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
     @Override
     public void calculateMetrics() {
 
+        if ( this.useStandardizedKernel ) {
+            this.calculateMetricsStandardized();
+            return;
+        }
+
         if ( this.numMissing == 0 ) {
             this.calculateMetricsFast();
             return;
         }
 
-        int numused;
         int numrows = this.dataMatrix.rows();
-        int numcols = this.dataMatrix.columns();
+        final int numcols = this.dataMatrix.columns();
 
         if ( numcols < this.minNumUsed ) {
             throw new IllegalArgumentException(
@@ -114,12 +118,30 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
             this.rowStatistics();
         }
 
+        if ( this.getNumThreads() > 1 ) {
+            final double[][] fData = data;
+            final boolean[][] fUsedB = usedB;
+            int skipped = this.computeMetricsParallel( numrows, numcols, docalcs, new PairComputation() {
+                @Override
+                public void compute( MetricsSink sink, int i, int j ) {
+                    if ( !hasMissing[i] && !hasMissing[j] ) {
+                        double correl = PearsonMetrics.this.correlFast( fData[i], fData[j], i, j );
+                        PearsonMetrics.this.setCorrel( sink, i, j, correl, numcols );
+                    } else {
+                        PearsonMetrics.this.correlWithMissing( sink, fData[i], fData[j], fUsedB[i], fUsedB[j], i, j );
+                    }
+                }
+            } );
+            AbstractMatrixRowPairAnalysis.log.info( skipped + " rows skipped, where probe lacks a gene annotation" );
+            this.finishMetrics();
+            return;
+        }
+
         /* for each vector, compare it to all other vectors */
         ExpressionDataMatrixRowElement itemA;
         StopWatch timer = new StopWatch();
         timer.start();
         double[] vectorA = new double[] {};
-        double syy, sxy, sxx, sx, sy, xj, yj;
         int skipped = 0;
         int numComputed = 0;
         for ( int i = 0; i < numrows; i++ ) { // first vector
@@ -154,39 +176,7 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
                 }
 
                 /* do it the old fashioned way */
-                numused = 0;
-                sxy = 0.0;
-                sxx = 0.0;
-                syy = 0.0;
-                sx = 0.0;
-                sy = 0.0;
-                for ( int k = 0; k < numcols; k++ ) {
-                    xj = vectorA[k];
-                    yj = vectorB[k];
-                    if ( usedB[i][k] && usedB[j][k] ) { /* this is a bit faster than calling Double.isNan */
-                        sx += xj;
-                        sy += yj;
-                        sxy += xj * yj;
-                        sxx += xj * xj;
-                        syy += yj * yj;
-                        numused++;
-                    }
-                }
-
-                // avoid -1 correlations or extremely noisy values (minNumUsed should be set high enough so that degrees
-                // of freedom isn't too low.
-                if ( numused < this.minNumUsed )
-                    this.setCorrel( i, j, Double.NaN, 0 );
-                else {
-                    double denom = this.correlationNorm( numused, sxx, sx, syy, sy );
-                    if ( denom <= 0.0 ) { // means variance is zero for one of the vectors.
-                        this.setCorrel( i, j, 0.0, numused );
-                    } else {
-                        double correl = ( sxy - sx * sy / numused ) / Math.sqrt( denom );
-
-                        this.setCorrel( i, j, correl, numused );
-                    }
-                }
+                this.correlWithMissing( directSink, vectorA, vectorB, usedB[i], usedB[j], i, j );
                 ++numComputed;
 
             }
@@ -196,6 +186,20 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
         this.finishMetrics();
     }
 
+    public boolean isUseStandardizedKernel() {
+        return useStandardizedKernel;
+    }
+
+    /**
+     * @param useStandardizedKernel if true, compute the correlations in single precision from rows that are
+     *                              standardized once up front (see {@link StandardizedRows}). This is usually
+     *                              faster, but values may differ from the default computation around the sixth decimal
+     *                              place.
+     */
+    public void setUseStandardizedKernel( boolean useStandardizedKernel ) {
+        this.useStandardizedKernel = useStandardizedKernel;
+    }
+
     @Override
     public QuantitationType getMetricType() {
         QuantitationType m = QuantitationType.Factory.newInstance();
@@ -248,6 +252,47 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
         return this.correlFast( ival, jval, ssi, ssj, mi, mj );
     }
 
+    /**
+     * Compute the correlation for a pair of rows where at least one has missing values, using only the mutually present
+     * values.
+     */
+    void correlWithMissing( MetricsSink sink, double[] vectorA, double[] vectorB, boolean[] usedA, boolean[] usedB,
+            int i, int j ) {
+        int numused = 0;
+        double sxy = 0.0;
+        double sxx = 0.0;
+        double syy = 0.0;
+        double sx = 0.0;
+        double sy = 0.0;
+        for ( int k = 0, numcols = vectorA.length; k < numcols; k++ ) {
+            double xj = vectorA[k];
+            double yj = vectorB[k];
+            if ( usedA[k] && usedB[k] ) { /* this is a bit faster than calling Double.isNan */
+                sx += xj;
+                sy += yj;
+                sxy += xj * yj;
+                sxx += xj * xj;
+                syy += yj * yj;
+                numused++;
+            }
+        }
+
+        // avoid -1 correlations or extremely noisy values (minNumUsed should be set high enough so that degrees
+        // of freedom isn't too low.
+        if ( numused < this.minNumUsed )
+            this.setCorrel( sink, i, j, Double.NaN, 0 );
+        else {
+            double denom = this.correlationNorm( numused, sxx, sx, syy, sy );
+            if ( denom <= 0.0 ) { // means variance is zero for one of the vectors.
+                this.setCorrel( sink, i, j, 0.0, numused );
+            } else {
+                double correl = ( sxy - sx * sy / numused ) / Math.sqrt( denom );
+
+                this.setCorrel( sink, i, j, correl, numused );
+            }
+        }
+    }
+
     double correlationNorm( int n, double sxx, double sx, double syy, double sy ) {
         return ( sxx - sx * sx / n ) * ( syy - sy * sy / n );
     }
@@ -284,6 +329,53 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
         return c;
     }
 
+    /**
+     * Compute the correlations using {@link StandardizedRows}. This always goes through
+     * {@link #computeMetricsParallel(int, int, boolean, PairComputation)}, which is also fine for a single thread.
+     */
+    private void calculateMetricsStandardized() {
+        int numrows = this.dataMatrix.rows();
+        final int numcols = this.dataMatrix.columns();
+
+        if ( this.numMissing > 0 && numcols < this.minNumUsed ) {
+            throw new IllegalArgumentException(
+                    "Sorry, correlations will not be computed unless there are at least " + this.minNumUsed
+                            + " mutually present data points per vector pair, current data has only " + numcols
+                            + " columns." );
+        }
+
+        boolean docalcs = this.needToCalculateMetrics();
+        StandardizedRows rows = null;
+        if ( docalcs ) {
+            StandardizedRows.checkSize( numrows, numcols ); // before we copy the data
+            double[][] data = new double[numrows][];
+            for ( int i = 0; i < numrows; i++ ) {
+                data[i] = this.dataMatrix.getRawRow( i );
+            }
+            rows = new StandardizedRows( data );
+        }
+
+        final StandardizedRows fRows = rows;
+        int skipped = this.computeMetricsParallel( numrows, numcols, docalcs, new PairComputation() {
+            @Override
+            public void compute( MetricsSink sink, int i, int j ) {
+                if ( !fRows.hasMissing( i ) && !fRows.hasMissing( j ) ) {
+                    PearsonMetrics.this.setCorrel( sink, i, j, fRows.correlation( i, j ), numcols );
+                    return;
+                }
+
+                int numused = fRows.countShared( i, j );
+                if ( numused < PearsonMetrics.this.minNumUsed ) {
+                    PearsonMetrics.this.setCorrel( sink, i, j, Double.NaN, 0 );
+                } else {
+                    PearsonMetrics.this.setCorrel( sink, i, j, fRows.correlationShared( i, j ), numused );
+                }
+            }
+        } );
+        AbstractMatrixRowPairAnalysis.log.info( skipped + " rows skipped, where probe lacks a gene annotation" );
+        this.finishMetrics();
+    }
+
     /**
      * Calculate a linear correlation matrix for a matrix. Use this if you know there are no missing values, or don't
      * care about NaNs. Rows that are not mapped to genes are skipped.
@@ -18,18 +18,20 @@
  */
 package ubic.gemma.core.analysis.expression.coexpression.links;
 
-import cern.colt.list.DoubleArrayList;
-import cern.colt.list.ObjectArrayList;
+import cern.colt.Sorting;
+import cern.colt.function.IntComparator;
 import org.apache.commons.lang3.time.StopWatch;
 import ubic.basecode.dataStructure.matrix.CompressedSparseDoubleMatrix;
 import ubic.basecode.math.CorrelationStats;
-import ubic.basecode.math.Rank;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataMatrixRowElement;
 import ubic.gemma.model.common.quantitationtype.*;
 import ubic.gemma.model.genome.Gene;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.*;
 
 /**
  * Subclass that computes correlations using ranks.
@@ -39,6 +41,11 @@ import java.util.Set;
 @SuppressWarnings({ "unused", "WeakerAccess" }) // Possible external use
 public class SpearmanMetrics extends PearsonMetrics {
 
+    /**
+     * How many rows each task ranks when ranking is done on several threads.
+     */
+    private static final int RANK_CHUNK_SIZE = 1000;
+
     double[][] rankTransformedData = null;
 
     public SpearmanMetrics( ExpressionDataDoubleMatrix dataMatrix ) {
@@ -65,7 +72,7 @@ public class SpearmanMetrics extends PearsonMetrics {
         if ( size > 0 ) {
             results = new CompressedSparseDoubleMatrix<>( size, size );
         }
-        keepers = new ObjectArrayList();
+        keepers = new LinkBuffer();
     }
 
     /**
@@ -81,7 +88,7 @@ public class SpearmanMetrics extends PearsonMetrics {
 
         // int numused;
         int numrows = this.dataMatrix.rows();
-        int numcols = this.dataMatrix.columns();
+        final int numcols = this.dataMatrix.columns();
 
         if ( numcols < this.minNumUsed ) {
             throw new IllegalArgumentException(
@@ -99,6 +106,26 @@ public class SpearmanMetrics extends PearsonMetrics {
             this.getRankTransformedData( usedB );
         }
 
+        if ( this.getNumThreads() > 1 ) {
+            final boolean[][] fUsedB = usedB;
+            int skipped = this.computeMetricsParallel( numrows, numcols, doCalcs, new PairComputation() {
+                @Override
+                public void compute( MetricsSink sink, int i, int j ) {
+                    double[] vectorA = rankTransformedData[i];
+                    double[] vectorB = rankTransformedData[j];
+                    if ( !hasMissing[i] && !hasMissing[j] ) {
+                        double correl = SpearmanMetrics.this.correlFast( vectorA, vectorB, i, j );
+                        SpearmanMetrics.this.setCorrel( sink, i, j, correl, numcols );
+                    } else {
+                        SpearmanMetrics.this.spearman( sink, vectorA, vectorB, fUsedB[i], fUsedB[j], i, j );
+                    }
+                }
+            } );
+            AbstractMatrixRowPairAnalysis.log.info( skipped + " rows skipped, due to no BLAT association" );
+            this.finishMetrics();
+            return;
+        }
+
         /* for each vector, compare it to all other vectors */
 
         ExpressionDataMatrixRowElement itemA;
@@ -230,6 +257,11 @@ public class SpearmanMetrics extends PearsonMetrics {
     }
 
     protected double spearman( double[] vectorA, double[] vectorB, boolean[] usedA, boolean[] usedB, int i, int j ) {
+        return this.spearman( directSink, vectorA, vectorB, usedA, usedB, i, j );
+    }
+
+    double spearman( MetricsSink sink, double[] vectorA, double[] vectorB, boolean[] usedA, boolean[] usedB, int i,
+            int j ) {
 
         /* because we assume there might be ties, we compute the correlation of the ranks. */
 
@@ -247,7 +279,7 @@ public class SpearmanMetrics extends PearsonMetrics {
         }
 
         if ( numused < minNumUsed ) {
-            this.setCorrel( i, j, Double.NaN, 0 );
+            this.setCorrel( sink, i, j, Double.NaN, 0 );
             return Double.NaN;
         }
 
@@ -272,8 +304,13 @@ public class SpearmanMetrics extends PearsonMetrics {
             /*
              * Retransform
              */
-            xjc = Rank.rankTransform( new DoubleArrayList( xjc ) ).elements();
-            yjc = Rank.rankTransform( new DoubleArrayList( yjc ) ).elements();
+            int[] index = new int[numused];
+            double[] xr = new double[numused];
+            double[] yr = new double[numused];
+            SpearmanMetrics.rankTransform( xjc, null, index, xr );
+            SpearmanMetrics.rankTransform( yjc, null, index, yr );
+            xjc = xr;
+            yjc = yr;
         }
 
         double correl;
@@ -296,7 +333,7 @@ public class SpearmanMetrics extends PearsonMetrics {
 
         double denom = this.correlationNorm( numused, sxx, sx, syy, sy );
         if ( denom <= 0.0 ) { // means variance is zero for one of the vectors.
-            this.setCorrel( i, j, 0.0, numused );
+            this.setCorrel( sink, i, j, 0.0, numused );
             return 0.0;
         }
 
@@ -311,7 +348,7 @@ public class SpearmanMetrics extends PearsonMetrics {
         else if ( correl > 1.0 )
             correl = 1.0;
 
-        this.setCorrel( i, j, correl, numused );
+        this.setCorrel( sink, i, j, correl, numused );
 
         return correl;
     }
@@ -341,42 +378,115 @@ public class SpearmanMetrics extends PearsonMetrics {
         this.finishMetrics();
     }
 
+    /**
+     * Rank transform a row without boxing, equivalent to Rank.rankTransform: ranks start at 1 and tied values get the
+     * average of their ranks. Missing values are left out of the ranking and get a rank of NaN.
+     *
+     * @param values  the row; not modified
+     * @param present which values are present, or null if they all are
+     * @param index   work space, at least as long as the row
+     * @param ranks   filled in with the ranks; at least as long as the row
+     */
+    static void rankTransform( final double[] values, boolean[] present, int[] index, double[] ranks ) {
+        int n = 0;
+        for ( int k = 0; k < values.length; k++ ) {
+            if ( present == null || present[k] ) {
+                index[n++] = k;
+            } else {
+                ranks[k] = Double.NaN;
+            }
+        }
+
+        Sorting.quickSort( index, 0, n, new IntComparator() {
+            @Override
+            public int compare( int a, int b ) {
+                return Double.compare( values[a], values[b] );
+            }
+        } );
+
+        for ( int start = 0; start < n; ) {
+            int end = start + 1;
+            while ( end < n && values[index[end]] == values[index[start]] ) {
+                end++;
+            }
+            // positions start..end-1 hold ranks start+1..end
+            double rank = ( start + 1 + end ) / 2.0;
+            for ( int k = start; k < end; k++ ) {
+                ranks[index[k]] = rank;
+            }
+            start = end;
+        }
+    }
+
     /**
      * @param usedB will be filled in, if not null. This also precomputes the row statistics (row means and sumsq
      *              deviations)
      */
-    private void getRankTransformedData( boolean[][] usedB ) {
+    private void getRankTransformedData( final boolean[][] usedB ) {
         int numRows = this.dataMatrix.rows();
         int numCols = this.dataMatrix.columns();
         rankTransformedData = new double[numRows][];
 
-        for ( int i = 0; i < numRows; i++ ) {
-
-            Double[] row = this.dataMatrix.getRow( i );
-
-            // make a copy.
-            double[] r = new double[row.length];
-            for ( int m = 0, v = row.length; m < v; m++ ) {
-                r[m] = row[m];
+        if ( usedB != null ) {
+            for ( int i = 0; i < numRows; i++ ) {
+                for ( int j = 0; j < numCols; j++ ) {
+                    usedB[i][j] = used.get( i, j ); // this is only needed if we use it below, speeds things up
+                    // slightly.
+                }
             }
+        }
 
-            DoubleArrayList ranksIA = Rank.rankTransform( new DoubleArrayList( r ) );
-            assert ranksIA != null;
-            double ri[] = new double[ranksIA.size()];
-            for ( int n = 0, w = ranksIA.size(); n < w; n++ ) {
-                ri[n] = ranksIA.get( n );
+        StopWatch timer = new StopWatch();
+        timer.start();
+        if ( this.getNumThreads() <= 1 || numRows <= SpearmanMetrics.RANK_CHUNK_SIZE ) {
+            this.rankRows( 0, numRows, usedB );
+        } else {
+            /*
+             * Rows are independent, and each task writes only its own rows.
+             */
+            List<Callable<Object>> tasks = new ArrayList<>();
+            for ( int from = 0; from < numRows; from += SpearmanMetrics.RANK_CHUNK_SIZE ) {
+                final int fFrom = from;
+                final int fTo = Math.min( numRows, from + SpearmanMetrics.RANK_CHUNK_SIZE );
+                tasks.add( new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        SpearmanMetrics.this.rankRows( fFrom, fTo, usedB );
+                        return null;
+                    }
+                } );
             }
 
-            rankTransformedData[i] = ri;
-
-            if ( usedB != null ) {
-                for ( int j = 0; j < numCols; j++ ) {
-                    usedB[i][j] = used.get( i, j ); // this is only needed if we use it below, speeds things up
-                    // slightly.
+            ForkJoinPool pool = new ForkJoinPool( this.getNumThreads() );
+            try {
+                for ( Future<Object> future : pool.invokeAll( tasks ) ) {
+                    future.get();
                 }
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException( "Interrupted while rank transforming the data", e );
+            } catch ( ExecutionException e ) {
+                throw new RuntimeException( e.getCause() );
+            } finally {
+                pool.shutdownNow();
             }
         }
+        if ( timer.getTime() > 1000 ) {
+            AbstractMatrixRowPairAnalysis.log
+                    .info( "Rank transformed " + numRows + " rows in " + timer.getTime() / 1000.0 + "s" );
+        }
 
         this.rowStatistics();
     }
+
+    private void rankRows( int from, int to, boolean[][] usedB ) {
+        int numCols = this.dataMatrix.columns();
+        int[] index = new int[numCols];
+        for ( int i = from; i < to; i++ ) {
+            double[] ranks = new double[numCols];
+            SpearmanMetrics.rankTransform( this.dataMatrix.getRawRow( i ), usedB == null ? null : usedB[i], index,
+                    ranks );
+            rankTransformedData[i] = ranks;
+        }
+    }
 }
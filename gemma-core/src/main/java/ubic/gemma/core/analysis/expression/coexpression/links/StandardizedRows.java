@@ -0,0 +1,232 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.coexpression.links;
+
+import ubic.basecode.math.Constants;
+
+/**
+ * The rows of a data matrix, prepared once so that the Pearson correlation of any pair of rows is cheap to compute.
+ * Values are held in a single row-major float array. Rows without missing values are z-scored (centered and divided by
+ * the root sum of squared deviations), so their correlation is just a dot product. Rows with missing values (NaN) are
+ * centered, with zeros in place of the missing values, and have a bit mask of the values that are present; correlations
+ * involving them are computed over the values present in both rows, as in
+ * {@link PearsonMetrics#correlWithMissing}. Since Pearson correlation is unaffected by shifting or scaling either row,
+ * the two representations can be mixed. Immutable after construction, so it can be shared between threads.
+ */
+class StandardizedRows {
+
+    /**
+     * The largest array the JVM will reliably allocate; the values are indexed with ints.
+     */
+    static final long MAX_VALUES = Integer.MAX_VALUE - 8;
+
+    private final int numcols;
+    private final int numWords;
+    private final float[] values;
+    /**
+     * For each row, a bit set of the values present, or null if there are no missing values.
+     */
+    private final long[][] present;
+    /**
+     * Rows without missing values whose variance is too small for a meaningful correlation.
+     */
+    private final boolean[] degenerate;
+
+    /**
+     * @param data rows of the matrix; NaN is taken as a missing value.
+     */
+    StandardizedRows( double[][] data ) {
+        int numrows = data.length;
+        this.numcols = numrows == 0 ? 0 : data[0].length;
+        this.numWords = ( numcols + 63 ) >>> 6;
+        StandardizedRows.checkSize( numrows, numcols );
+        this.values = new float[numrows * numcols];
+        this.present = new long[numrows][];
+        this.degenerate = new boolean[numrows];
+
+        for ( int i = 0; i < numrows; i++ ) {
+            double[] row = data[i];
+            int offset = i * numcols;
+            long[] mask = null;
+            double sum = 0.0;
+            int n = 0;
+            for ( int k = 0; k < numcols; k++ ) {
+                if ( Double.isNaN( row[k] ) ) {
+                    if ( mask == null ) {
+                        mask = new long[numWords];
+                        for ( int p = 0; p < numcols; p++ ) {
+                            mask[p >>> 6] |= 1L << p;
+                        }
+                    }
+                    mask[k >>> 6] &= ~( 1L << k );
+                } else {
+                    sum += row[k];
+                    n++;
+                }
+            }
+            present[i] = mask;
+
+            double mean = n == 0 ? 0.0 : sum / n;
+            double ssd = 0.0;
+            for ( int k = 0; k < numcols; k++ ) {
+                if ( !Double.isNaN( row[k] ) ) {
+                    double d = row[k] - mean;
+                    ssd += d * d;
+                }
+            }
+            double rootSsd = Math.sqrt( ssd );
+
+            // centered values are enough for the missing value computation, and for rows we won't correlate anyway.
+            double scale = 1.0;
+            if ( mask == null ) {
+                if ( rootSsd < Constants.SMALL ) {
+                    degenerate[i] = true;
+                } else {
+                    scale = 1.0 / rootSsd;
+                }
+            }
+            for ( int k = 0; k < numcols; k++ ) {
+                values[offset + k] = Double.isNaN( row[k] ) ? 0.0f : ( float ) ( ( row[k] - mean ) * scale );
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if a matrix of the given size has too many values to be held
+     */
+    static void checkSize( int numrows, int numcols ) {
+        long size = ( long ) numrows * numcols;
+        if ( size > StandardizedRows.MAX_VALUES ) {
+            throw new IllegalArgumentException(
+                    "Matrix is too large for the standardized kernel (" + numrows + " x " + numcols + " = " + size
+                            + " values, at most " + StandardizedRows.MAX_VALUES + " are supported)" );
+        }
+    }
+
+    /**
+     * @return true if the row has missing values, in which case {@link #correlation(int, int)} can't be used for it.
+     */
+    boolean hasMissing( int i ) {
+        return present[i] != null;
+    }
+
+    /**
+     * Correlation of two rows that have no missing values.
+     *
+     * @return the correlation, or NaN if either row has (nearly) no variance
+     */
+    double correlation( int i, int j ) {
+        if ( degenerate[i] || degenerate[j] ) {
+            return Double.NaN;
+        }
+
+        // independent accumulators let the loop be pipelined.
+        float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+        int a = i * numcols;
+        int b = j * numcols;
+        int k = 0;
+        for ( int limit = numcols - 3; k < limit; k += 4 ) {
+            s0 += values[a + k] * values[b + k];
+            s1 += values[a + k + 1] * values[b + k + 1];
+            s2 += values[a + k + 2] * values[b + k + 2];
+            s3 += values[a + k + 3] * values[b + k + 3];
+        }
+        for ( ; k < numcols; k++ ) {
+            s0 += values[a + k] * values[b + k];
+        }
+        double c = ( double ) s0 + s1 + s2 + s3;
+
+        // roundoff guard
+        if ( c < -1.0 ) {
+            c = -1.0;
+        } else if ( c > 1.0 ) {
+            c = 1.0;
+        }
+        return c;
+    }
+
+    /**
+     * @return how many values are present in both rows.
+     */
+    int countShared( int i, int j ) {
+        long[] mi = present[i];
+        long[] mj = present[j];
+        if ( mi == null && mj == null ) {
+            return numcols;
+        }
+        if ( mi == null || mj == null ) {
+            return this.count( mi == null ? mj : mi );
+        }
+        int n = 0;
+        for ( int w = 0; w < numWords; w++ ) {
+            n += Long.bitCount( mi[w] & mj[w] );
+        }
+        return n;
+    }
+
+    /**
+     * Correlation of two rows, at least one of which may have missing values, using only the values present in both.
+     * Callers should check {@link #countShared(int, int)} first.
+     *
+     * @return the correlation, or 0 if either row has no variance over the shared values.
+     */
+    double correlationShared( int i, int j ) {
+        long[] mi = present[i];
+        long[] mj = present[j];
+        int a = i * numcols;
+        int b = j * numcols;
+        double sx = 0.0, sy = 0.0, sxx = 0.0, syy = 0.0, sxy = 0.0;
+        int n = 0;
+        for ( int w = 0; w < numWords; w++ ) {
+            long bits = ( mi == null ? -1L : mi[w] ) & ( mj == null ? -1L : mj[w] );
+            if ( w == numWords - 1 && ( numcols & 63 ) != 0 ) {
+                bits &= ( 1L << ( numcols & 63 ) ) - 1;
+            }
+            while ( bits != 0 ) {
+                int k = ( w << 6 ) + Long.numberOfTrailingZeros( bits );
+                bits &= bits - 1;
+                double x = values[a + k];
+                double y = values[b + k];
+                sx += x;
+                sy += y;
+                sxx += x * x;
+                syy += y * y;
+                sxy += x * y;
+                n++;
+            }
+        }
+        if ( n == 0 ) {
+            return Double.NaN;
+        }
+
+        double denom = ( sxx - sx * sx / n ) * ( syy - sy * sy / n );
+        if ( denom <= 0.0 ) {
+            return 0.0;
+        }
+        return ( sxy - sx * sy / n ) / Math.sqrt( denom );
+    }
+
+    private int count( long[] mask ) {
+        int n = 0;
+        for ( long word : mask ) {
+            n += Long.bitCount( word );
+        }
+        return n;
+    }
+}
@@ -18,14 +18,6 @@
  */
 package ubic.gemma.core.analysis.expression.diff;
 
-import cern.colt.list.DoubleArrayList;
-import cern.colt.matrix.DoubleMatrix1D;
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix1D;
-import ubic.basecode.math.MultipleTestCorrection;
-import ubic.basecode.math.Rank;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
 import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
 import ubic.gemma.model.expression.experiment.BioAssaySet;
@@ -40,8 +32,6 @@ import java.util.Collection;
  */
 public abstract class AbstractDifferentialExpressionAnalyzer extends AbstractAnalyzer implements DiffExAnalyzer {
 
-    private final Log log = LogFactory.getLog( this.getClass() );
-
     @Override
     public abstract Collection<DifferentialExpressionAnalysis> run( ExpressionExperiment expressionExperiment,
             DifferentialExpressionAnalysisConfig config );
@@ -50,47 +40,6 @@ public abstract class AbstractDifferentialExpressionAnalyzer extends AbstractAna
     public abstract Collection<DifferentialExpressionAnalysis> run( ExpressionExperiment expressionExperiment,
             ExpressionDataDoubleMatrix dmatrix, DifferentialExpressionAnalysisConfig config );
 
-    /**
-     * @param pvalues pvalues
-     * @return normalized ranks of the pvalues, or null if they were invalid/unusable.
-     */
-    double[] computeRanks( double[] pvalues ) {
-        if ( pvalues == null ) {
-            log.error( "Null pvalues" );
-            return null;
-        }
-        if ( pvalues.length == 0 ) {
-            log.error( "Empty pvalues array" );
-            return null;
-        }
-
-        DoubleArrayList ranks = Rank.rankTransform( new DoubleArrayList( pvalues ) );
-
-        if ( ranks == null ) {
-            log.error( "Pvalue ranks could not be computed" );
-            return null;
-        }
-
-        double[] normalizedRanks = new double[ranks.size()];
-        for ( int i = 0; i < ranks.size(); i++ ) {
-            normalizedRanks[i] = ranks.get( i ) / ranks.size();
-        }
-        return normalizedRanks;
-    }
-
-    /**
-     * @param pvalues pvalues
-     * @return Qvalues, or null if they could not be computed.
-     */
-    double[] benjaminiHochberg( Double[] pvalues ) {
-        DoubleMatrix1D benjaminiHochberg = MultipleTestCorrection
-                .benjaminiHochberg( new DenseDoubleMatrix1D( ArrayUtils.toPrimitive( pvalues ) ) );
-        if ( benjaminiHochberg == null ) {
-            return null;
-        }
-        return benjaminiHochberg.toArray();
-    }
-
     DifferentialExpressionAnalysis initAnalysisEntity( BioAssaySet bioAssaySet,
             DifferentialExpressionAnalysisConfig config ) {
 
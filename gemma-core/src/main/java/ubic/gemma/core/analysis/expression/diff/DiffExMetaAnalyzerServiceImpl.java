@@ -25,7 +25,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import ubic.basecode.math.MultipleTestCorrection;
 import ubic.basecode.math.metaanalysis.MetaAnalysis;
 import ubic.gemma.model.analysis.expression.diff.*;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
@@ -364,10 +363,13 @@ public class DiffExMetaAnalyzerServiceImpl implements DiffExMetaAnalyzerService
 
         DiffExMetaAnalyzerServiceImpl.log.info( metaAnalysisResultsUp.size() + " initial meta-analysis results" );
 
-        DoubleArrayList qvaluesUp = MultipleTestCorrection.benjaminiHochberg( pvaluesUp );
+        pvaluesUp.trimToSize();
+        DoubleArrayList qvaluesUp = new DoubleArrayList( PvalueCorrection.benjaminiHochberg( pvaluesUp.elements() ) );
         assert qvaluesUp.size() == metaAnalysisResultsUp.size();
 
-        DoubleArrayList qvaluesDown = MultipleTestCorrection.benjaminiHochberg( pvaluesDown );
+        pvaluesDown.trimToSize();
+        DoubleArrayList qvaluesDown = new DoubleArrayList(
+                PvalueCorrection.benjaminiHochberg( pvaluesDown.elements() ) );
         assert qvaluesDown.size() == metaAnalysisResultsDown.size();
 
         return this
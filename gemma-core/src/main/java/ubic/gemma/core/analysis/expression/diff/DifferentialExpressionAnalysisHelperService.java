@@ -28,6 +28,15 @@ public interface DifferentialExpressionAnalysisHelperService {
 
     void addResults( DifferentialExpressionAnalysis entity, Collection<ExpressionAnalysisResultSet> resultSets );
 
+    /**
+     * Like {@link #addResults}, for (already persistent) result sets, but the results are written with multi-row JDBC
+     * inserts instead of through the session, if the database allows it. All of them are written in one transaction.
+     *
+     * @param entity     the analysis the result sets belong to
+     * @param resultSets result sets
+     */
+    void addResultsInBulk( DifferentialExpressionAnalysis entity, Collection<ExpressionAnalysisResultSet> resultSets );
+
     ExpressionAnalysisResultSet create( ExpressionAnalysisResultSet rs );
 
     DifferentialExpressionAnalysis persistStub( DifferentialExpressionAnalysis entity );
@@ -59,6 +59,19 @@ public class DifferentialExpressionAnalysisHelperServiceImpl implements Differen
         differentialExpressionAnalysisService.update( entity ); // could be sped up.
     }
 
+    @Override
+    @Transactional
+    public void addResultsInBulk( DifferentialExpressionAnalysis entity,
+            Collection<ExpressionAnalysisResultSet> resultSets ) {
+        if ( !this.expressionAnalysisResultSetDao.canCreateResultsInBulk() ) {
+            this.addResults( entity, resultSets );
+            return;
+        }
+        for ( ExpressionAnalysisResultSet rs : resultSets ) {
+            this.expressionAnalysisResultSetDao.createResults( rs );
+        }
+    }
+
     @Override
     @Transactional
     public ExpressionAnalysisResultSet create( ExpressionAnalysisResultSet rs ) {
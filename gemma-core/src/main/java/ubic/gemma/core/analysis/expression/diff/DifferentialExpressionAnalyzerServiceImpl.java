@@ -40,6 +40,7 @@ import ubic.gemma.persistence.service.analysis.expression.diff.DifferentialExpre
 import ubic.gemma.persistence.service.analysis.expression.diff.DifferentialExpressionResultService;
 import ubic.gemma.persistence.service.common.auditAndSecurity.AuditTrailService;
 import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentService;
+import ubic.gemma.persistence.util.Settings;
 
 import java.io.File;
 import java.io.IOException;
@@ -57,6 +58,12 @@ import java.util.*;
 public class DifferentialExpressionAnalyzerServiceImpl implements DifferentialExpressionAnalyzerService {
 
     private static final Log log = LogFactory.getLog( DifferentialExpressionAnalyzerServiceImpl.class );
+
+    /**
+     * Write analysis results with multi-row JDBC inserts instead of through Hibernate.
+     */
+    private boolean useBulkWrites = Settings.getBoolean( "gemma.analysis.diffex.bulkwrites", true );
+
     @Autowired
     private AnalysisSelectionAndExecutionService analysisSelectionAndExecutionService;
     @Autowired
@@ -238,7 +245,11 @@ public class DifferentialExpressionAnalyzerServiceImpl implements DifferentialEx
 
         // third transaction - add results.
         DifferentialExpressionAnalyzerServiceImpl.log.info( "Saving results" );
-        helperService.addResults( persistentAnalysis, resultSets );
+        if ( this.useBulkWrites ) {
+            helperService.addResultsInBulk( persistentAnalysis, resultSets );
+        } else {
+            helperService.addResults( persistentAnalysis, resultSets );
+        }
 
         // get a clean copy of the analysis object from the DB.
         analysis = differentialExpressionAnalysisService.load( analysis.getId() );
@@ -497,6 +508,13 @@ public class DifferentialExpressionAnalyzerServiceImpl implements DifferentialEx
 
     }
 
+    /**
+     * For tests: whether results are written in bulk or through Hibernate.
+     */
+    void setUseBulkWrites( boolean useBulkWrites ) {
+        this.useBulkWrites = useBulkWrites;
+    }
+
     private Collection<DifferentialExpressionAnalysis> redoWithoutSave( ExpressionExperiment ee,
             DifferentialExpressionAnalysis copyMe, DifferentialExpressionAnalysisConfig config ) {
 
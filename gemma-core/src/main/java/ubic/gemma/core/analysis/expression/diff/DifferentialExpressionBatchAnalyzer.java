@@ -0,0 +1,69 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.diff;
+
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+
+import java.util.Collection;
+
+/**
+ * Runs differential expression analyses for many experiments in one job: several experiments are analyzed at once, as
+ * many as fit in a memory budget, while the finished analyses are saved by a separate writer thread.
+ */
+public interface DifferentialExpressionBatchAnalyzer {
+
+    /**
+     * @param  numThreads how many experiments can be analyzed at the same time (memory permitting)
+     * @param  listener   told about each experiment when it is done
+     * @return a new batch, to which experiments can be submitted.
+     */
+    Batch start( int numThreads, BatchListener listener );
+
+    interface Batch {
+
+        /**
+         * Queue an experiment for analysis. Blocks until there is enough room in the memory budget for it.
+         *
+         * @param ee     the experiment, thawed
+         * @param config config; results are saved if {@link DifferentialExpressionAnalysisConfig#getPersist()},
+         *               otherwise written to files.
+         * @throws InterruptedException if interrupted while waiting for room
+         */
+        void submit( ExpressionExperiment ee, DifferentialExpressionAnalysisConfig config )
+                throws InterruptedException;
+
+        /**
+         * Wait for all the submitted experiments to be analyzed and saved; no more can be submitted after this.
+         *
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void awaitCompletion() throws InterruptedException;
+    }
+
+    /**
+     * Callbacks are made from the batch's threads, not the one that submitted the experiment.
+     */
+    interface BatchListener {
+
+        void analysisSucceeded( ExpressionExperiment ee, Collection<DifferentialExpressionAnalysis> analyses );
+
+        void analysisFailed( ExpressionExperiment ee, Exception e );
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.diff;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import ubic.gemma.core.analysis.service.ExpressionDataFileService;
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
+import ubic.gemma.model.common.auditAndSecurity.eventType.FailedDifferentialExpressionAnalysisEvent;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.persistence.service.common.auditAndSecurity.AuditTrailService;
+import ubic.gemma.persistence.util.Settings;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Analyses run on a fixed pool of threads; each experiment first takes its estimated share of the memory budget
+ * (<code>gemma.analysis.diffex.batch.memory</code>, in MB; by default half the heap) and gives it back once its results
+ * are saved, so the number of experiments in flight adapts to their size. Saving is done on a single writer thread, in
+ * the order the analyses finish, so the database sees the same sequence of transactions as a serial run.
+ */
+@Component
+public class DifferentialExpressionBatchAnalyzerImpl implements DifferentialExpressionBatchAnalyzer {
+
+    private static final Log log = LogFactory.getLog( DifferentialExpressionBatchAnalyzerImpl.class );
+
+    /**
+     * Copies of the data matrix alive during an analysis: the loaded matrix, its reordered and subset copies, the
+     * string-keyed copy and the fitted values and residuals.
+     */
+    private static final int MATRIX_COPIES = 6;
+
+    /**
+     * Rough size of the result objects for one element and one factor, including contrasts.
+     */
+    private static final int RESULT_BYTES_PER_ROW = 1000;
+
+    /**
+     * Used if the experiment does not know how many vectors it has.
+     */
+    private static final int DEFAULT_NUM_ROWS = 50000;
+
+    @Autowired
+    private AnalysisSelectionAndExecutionService analysisSelectionAndExecutionService;
+    @Autowired
+    private AuditTrailService auditTrailService;
+    @Autowired
+    private DifferentialExpressionAnalyzerService differentialExpressionAnalyzerService;
+    @Autowired
+    private ExpressionDataFileService expressionDataFileService;
+
+    @Override
+    public Batch start( int numThreads, BatchListener listener ) {
+        if ( numThreads < 1 ) {
+            throw new IllegalArgumentException( "Number of threads must be at least 1" );
+        }
+        long budget = Settings.getLong( "gemma.analysis.diffex.batch.memory", 0L );
+        if ( budget <= 0 ) {
+            budget = Runtime.getRuntime().maxMemory() / 2 / ( 1024 * 1024 );
+        }
+        DifferentialExpressionBatchAnalyzerImpl.log
+                .info( "Starting batch differential expression with " + numThreads + " threads and a memory budget of "
+                        + budget + "MB" );
+        return new BatchImpl( numThreads, ( int ) Math.min( budget, Integer.MAX_VALUE ), listener );
+    }
+
+    /**
+     * @return estimated memory needed to analyze the experiment, in MB.
+     */
+    private int estimateMegabytes( ExpressionExperiment ee, DifferentialExpressionAnalysisConfig config ) {
+        long rows = ee.getNumberOfDataVectors() == null || ee.getNumberOfDataVectors() == 0 ?
+                DifferentialExpressionBatchAnalyzerImpl.DEFAULT_NUM_ROWS :
+                ee.getNumberOfDataVectors();
+        long columns = ee.getBioAssays().size();
+        long resultSets = config.getFactorsToInclude().size() + config.getInteractionsToInclude().size();
+        long bytes = rows * columns * Double.SIZE / Byte.SIZE * DifferentialExpressionBatchAnalyzerImpl.MATRIX_COPIES
+                + rows * Math.max( 1, resultSets ) * DifferentialExpressionBatchAnalyzerImpl.RESULT_BYTES_PER_ROW;
+        return ( int ) Math.max( 1, Math.min( bytes / ( 1024 * 1024 ), Integer.MAX_VALUE ) );
+    }
+
+    private Collection<DifferentialExpressionAnalysis> save( ExpressionExperiment ee,
+            Collection<DifferentialExpressionAnalysis> analyses, DifferentialExpressionAnalysisConfig config )
+            throws Exception {
+        if ( !config.getPersist() ) {
+            for ( DifferentialExpressionAnalysis analysis : analyses ) {
+                expressionDataFileService.writeDiffExArchiveFile( ee, analysis, config );
+            }
+            return analyses;
+        }
+        Collection<DifferentialExpressionAnalysis> persistent = new ArrayList<>();
+        for ( DifferentialExpressionAnalysis analysis : analyses ) {
+            persistent.add( differentialExpressionAnalyzerService.persistAnalysis( ee, analysis, config ) );
+        }
+        return persistent;
+    }
+
+    private class BatchImpl implements Batch {
+
+        private final ExecutorService analysisExecutor;
+        private final int budget;
+        private final SecurityContext context = SecurityContextHolder.getContext();
+        private final AtomicInteger finished = new AtomicInteger( 0 );
+        private final BatchListener listener;
+        private final Semaphore memory;
+        private final StopWatch timer = new StopWatch();
+        private final ExecutorService writer;
+        private final AtomicInteger submitted = new AtomicInteger( 0 );
+
+        BatchImpl( int numThreads, int budget, BatchListener listener ) {
+            this.budget = budget;
+            this.memory = new Semaphore( budget, true );
+            this.listener = listener;
+            this.analysisExecutor = Executors.newFixedThreadPool( numThreads, new ThreadFactory() {
+                private int i = 0;
+
+                @Override
+                public synchronized Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "diffex-batch-" + ++i );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+            this.writer = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                @Override
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "diffex-batch-writer" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+            this.timer.start();
+        }
+
+        @Override
+        public void submit( final ExpressionExperiment ee, final DifferentialExpressionAnalysisConfig config )
+                throws InterruptedException {
+            // an experiment bigger than the whole budget still runs, but alone.
+            final int permits = Math.min( this.budget,
+                    DifferentialExpressionBatchAnalyzerImpl.this.estimateMegabytes( ee, config ) );
+            this.memory.acquire( permits );
+            this.submitted.incrementAndGet();
+
+            try {
+                this.analysisExecutor.submit( new Runnable() {
+                    @Override
+                    public void run() {
+                        SecurityContextHolder.setContext( BatchImpl.this.context );
+                        // once the writer has the results, it gives the permits back.
+                        boolean handedOver = false;
+                        try {
+                            final Collection<DifferentialExpressionAnalysis> analyses;
+                            analyses = analysisSelectionAndExecutionService.analyze( ee, config );
+                            BatchImpl.this.writer.submit( new Runnable() {
+                                @Override
+                                public void run() {
+                                    SecurityContextHolder.setContext( BatchImpl.this.context );
+                                    BatchImpl.this.save( ee, analyses, config, permits );
+                                }
+                            } );
+                            handedOver = true;
+                        } catch ( Throwable e ) {
+                            BatchImpl.this.failed( ee, e );
+                        } finally {
+                            if ( !handedOver ) {
+                                BatchImpl.this.done( permits );
+                            }
+                        }
+                    }
+                } );
+            } catch ( RejectedExecutionException e ) {
+                this.memory.release( permits );
+                throw e;
+            }
+        }
+
+        @Override
+        public void awaitCompletion() throws InterruptedException {
+            // analyses hand their results to the writer before they finish, so the writer can be stopped after them.
+            this.analysisExecutor.shutdown();
+            this.analysisExecutor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+            this.writer.shutdown();
+            this.writer.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+            DifferentialExpressionBatchAnalyzerImpl.log
+                    .info( String.format( "Batch done: %d experiments in %.1f minutes (%.1f experiments/hour)",
+                            this.finished.get(), this.timer.getTime() / 60000.0, this.throughput() ) );
+        }
+
+        private void done( int permits ) {
+            this.memory.release( permits );
+            int n = this.finished.incrementAndGet();
+            DifferentialExpressionBatchAnalyzerImpl.log
+                    .info( String.format( "Finished %d of %d submitted experiments; %.1f experiments/hour", n,
+                            this.submitted.get(), this.throughput() ) );
+        }
+
+        /**
+         * Never throws, so the caller can always go on to release the experiment's permits.
+         */
+        private void failed( ExpressionExperiment ee, Throwable e ) {
+            DifferentialExpressionBatchAnalyzerImpl.log
+                    .error( "Error during differential expression analysis of " + ee + ": " + e.getMessage(), e );
+            try {
+                auditTrailService
+                        .addUpdateEvent( ee, FailedDifferentialExpressionAnalysisEvent.Factory.newInstance(),
+                                ExceptionUtils.getStackTrace( e ) );
+            } catch ( Throwable e2 ) {
+                DifferentialExpressionBatchAnalyzerImpl.log.error( "Could not attach failure audit event" );
+            }
+            try {
+                this.listener
+                        .analysisFailed( ee, e instanceof Exception ? ( Exception ) e : new RuntimeException( e ) );
+            } catch ( Throwable e2 ) {
+                DifferentialExpressionBatchAnalyzerImpl.log
+                        .error( "Listener failed for " + ee + ": " + e2.getMessage(), e2 );
+            }
+        }
+
+        private void save( ExpressionExperiment ee, Collection<DifferentialExpressionAnalysis> analyses,
+                DifferentialExpressionAnalysisConfig config, int permits ) {
+            try {
+                Collection<DifferentialExpressionAnalysis> saved = DifferentialExpressionBatchAnalyzerImpl.this
+                        .save( ee, analyses, config );
+                this.listener.analysisSucceeded( ee, saved );
+            } catch ( Throwable e ) {
+                this.failed( ee, e );
+            } finally {
+                this.done( permits );
+            }
+        }
+
+        private double throughput() {
+            return this.finished.get() / Math.max( this.timer.getTime() / 3600000.0, 1e-9 );
+        }
+    }
+}
@@ -18,7 +18,9 @@
  */
 package ubic.gemma.core.analysis.expression.diff;
 
+import cern.colt.list.DoubleArrayList;
 import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.impl.DenseDoubleMatrix1D;
 import org.apache.commons.collections.Transformer;
 import org.apache.commons.collections.TransformerUtils;
@@ -49,6 +51,7 @@ import ubic.gemma.model.expression.biomaterial.BioMaterial;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
 import ubic.gemma.model.expression.experiment.*;
 import ubic.gemma.model.genome.Gene;
+import ubic.gemma.persistence.util.Settings;
 
 import java.io.File;
 import java.io.FileWriter;
@@ -78,6 +81,16 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
     private static final double[] qValueThresholdsForHitLists = new double[] { 0.001, 0.005, 0.01, 0.05, 0.1 };
     private static final Log log = LogFactory.getLog( LinearModelAnalyzer.class );
 
+    /**
+     * Threads used to fit the models to blocks of rows in parallel; with 1 the whole matrix is fitted at once.
+     */
+    private static final int FIT_THREADS = Math.max( 1, Settings.getInt( "gemma.analysis.diffex.threads", 1 ) );
+
+    /**
+     * Fewest rows worth fitting as a separate block.
+     */
+    private static final int MIN_ROWS_PER_BLOCK = 2000;
+
     /**
      * Factors that are always excluded from analysis
      */
@@ -426,8 +439,7 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
                         "Subset factor cannot also be included in the analysis [ Factor was: " + subsetFactor + "]" );
             }
 
-            Map<FactorValue, ExpressionDataDoubleMatrix> subsets = this
-                    .makeSubSets( config, dmatrix, samplesUsed, subsetFactor );
+            Map<FactorValue, List<BioMaterial>> subsets = this.makeSubSets( config, samplesUsed, subsetFactor );
 
             LinearModelAnalyzer.log.info( "Total number of subsets: " + subsets.size() );
 
@@ -454,8 +466,14 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
                     continue;
                 }
 
-                List<BioMaterial> bioMaterials = ExperimentalDesignUtils
-                        .getOrderedSamples( subsets.get( subsetFactorValue ), factors );
+                /*
+                 * Slice the subset out of the matrix only now, so just one subset's copy of the data is held at a time.
+                 */
+                List<BioMaterial> samplesInSubset = subsets.get( subsetFactorValue );
+                ExpressionDataDoubleMatrix subsetMatrix = new ExpressionDataDoubleMatrix( dmatrix, samplesInSubset,
+                        LinearModelAnalyzer.createBADMap( samplesInSubset ) );
+
+                List<BioMaterial> bioMaterials = ExperimentalDesignUtils.getOrderedSamples( subsetMatrix, factors );
 
                 /*
                  * make a EESubSet
@@ -470,7 +488,7 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
                 eeSubSet.getBioAssays().addAll( bioAssays );
 
                 Collection<ExperimentalFactor> subsetFactors = this
-                        .fixFactorsForSubset( subsets.get( subsetFactorValue ), eeSubSet, factors );
+                        .fixFactorsForSubset( subsetMatrix, eeSubSet, factors );
 
                 DifferentialExpressionAnalysisConfig subsetConfig = this
                         .fixConfigForSubset( factors, config, subsetFactorValue );
@@ -485,7 +503,7 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
                  * Run analysis on the subset.
                  */
                 DifferentialExpressionAnalysis analysis = this
-                        .doAnalysis( eeSubSet, subsetConfig, subsets.get( subsetFactorValue ), bioMaterials,
+                        .doAnalysis( eeSubSet, subsetConfig, subsetMatrix, bioMaterials,
                                 new ArrayList<>( subsetFactors ), subsetFactorValue );
 
                 if ( analysis == null ) {
@@ -717,17 +735,17 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
 
         // this used to be a Set, but a List is much faster.
         Map<String, List<DifferentialExpressionAnalysisResult>> resultLists = new HashMap<>();
-        Map<String, List<Double>> pvaluesForQvalue = new HashMap<>();
+        Map<String, DoubleArrayList> pvaluesForQvalue = new HashMap<>();
 
         for ( String factorName : label2Factors.keySet() ) {
             resultLists.put( factorName, new ArrayList<DifferentialExpressionAnalysisResult>() );
-            pvaluesForQvalue.put( factorName, new ArrayList<Double>() );
+            pvaluesForQvalue.put( factorName, new DoubleArrayList() );
         }
 
         for ( String[] fs : interactionFactorLists ) {
             String intF = StringUtils.join( fs, ":" );
             resultLists.put( intF, new ArrayList<DifferentialExpressionAnalysisResult>() );
-            pvaluesForQvalue.put( intF, new ArrayList<Double>() );
+            pvaluesForQvalue.put( intF, new DoubleArrayList() );
         }
 
         if ( pvaluesForQvalue.isEmpty() ) {
@@ -1013,51 +1031,18 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
      *
      * @param pvaluesForQvalue Map of factorName to results.
      */
-    private void getRanksAndQvalues(
-            Map<String, ? extends Collection<DifferentialExpressionAnalysisResult>> resultLists,
-            Map<String, List<Double>> pvaluesForQvalue ) {
+    private void getRanksAndQvalues( Map<String, List<DifferentialExpressionAnalysisResult>> resultLists,
+            Map<String, DoubleArrayList> pvaluesForQvalue ) {
         /*
          * qvalues and ranks, requires second pass over the result objects.
          */
+        Map<String, double[]> pvalues = new HashMap<>();
         for ( String fName : pvaluesForQvalue.keySet() ) {
-            Collection<Double> pvals = pvaluesForQvalue.get( fName );
-
-            if ( pvals.isEmpty() ) {
-                LinearModelAnalyzer.log.warn( "No pvalues for " + fName + ", ignoring." );
-                continue;
-            }
-            LinearModelAnalyzer.log.info( pvals.size() + " pvalues for " + fName );
-
-            Double[] pvalArray = pvals.toArray( new Double[] {} );
-            for ( Double aPvalArray : pvalArray ) {
-
-                assert aPvalArray != null;
-                assert !Double.isNaN( aPvalArray );
-
-            }
-
-            double[] ranks = super.computeRanks( ArrayUtils.toPrimitive( pvalArray ) );
-
-            if ( ranks == null ) {
-                LinearModelAnalyzer.log.error( "Ranks could not be computed " + fName );
-                continue;
-            }
-
-            assert pvalArray.length == resultLists.get( fName ).size() : pvalArray.length + " != " + resultLists.get( fName ).size();
-
-            assert pvalArray.length == ranks.length;
-
-            double[] qvalues = super.benjaminiHochberg( pvalArray );
-
-            assert qvalues.length == resultLists.get( fName ).size();
-
-            int i = 0;
-            for ( DifferentialExpressionAnalysisResult pr : resultLists.get( fName ) ) {
-                pr.setCorrectedPvalue( this.nan2Null( qvalues[i] ) );
-                pr.setRank( this.nan2Null( ranks[i] ) );
-                i++;
-            }
+            DoubleArrayList pvals = pvaluesForQvalue.get( fName );
+            pvals.trimToSize();
+            pvalues.put( fName, pvals.elements() );
         }
+        PvalueCorrection.correct( resultLists, pvalues, true );
     }
 
     private Map<String, Collection<ExperimentalFactor>> getRNames( List<ExperimentalFactor> factors ) {
@@ -1292,8 +1277,12 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
         return resultSets;
     }
 
-    private Map<FactorValue, ExpressionDataDoubleMatrix> makeSubSets( DifferentialExpressionAnalysisConfig config,
-            ExpressionDataDoubleMatrix dmatrix, List<BioMaterial> samplesUsed, ExperimentalFactor subsetFactor ) {
+    /**
+     * @return the samples in each subset, ordered by the experimental design; the data are sliced later, one subset at
+     *         a time.
+     */
+    private Map<FactorValue, List<BioMaterial>> makeSubSets( DifferentialExpressionAnalysisConfig config,
+            List<BioMaterial> samplesUsed, ExperimentalFactor subsetFactor ) {
         if ( subsetFactor.getType().equals( FactorType.CONTINUOUS ) ) {
             throw new IllegalArgumentException( "You cannot subset on a continuous factor (has a Measurement)" );
         }
@@ -1325,7 +1314,7 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
             }
         }
 
-        Map<FactorValue, ExpressionDataDoubleMatrix> subMatrices = new HashMap<>();
+        Map<FactorValue, List<BioMaterial>> subsets = new HashMap<>();
         for ( FactorValue fv : subSetSamples.keySet() ) {
             List<BioMaterial> samplesInSubset = subSetSamples.get( fv );
 
@@ -1334,14 +1323,11 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
             }
             assert samplesInSubset.size() < samplesUsed.size();
 
-            samplesInSubset = ExpressionDataMatrixColumnSort
-                    .orderByExperimentalDesign( samplesInSubset, config.getFactorsToInclude() );
-            ExpressionDataDoubleMatrix subMatrix = new ExpressionDataDoubleMatrix( dmatrix, samplesInSubset,
-                    LinearModelAnalyzer.createBADMap( samplesInSubset ) );
-            subMatrices.put( fv, subMatrix );
+            subsets.put( fv, ExpressionDataMatrixColumnSort
+                    .orderByExperimentalDesign( samplesInSubset, config.getFactorsToInclude() ) );
         }
 
-        return subMatrices;
+        return subsets;
 
     }
 
@@ -1360,32 +1346,34 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
 
         StopWatch timer = new StopWatch();
         timer.start();
-        long lastTime = 0;
 
         // this analysis should take just 10 or 20 seconds for most data sets.
-        double MAX_ANALYSIS_TIME = 60 * 1000 * 30; // 30 minutes.
-        double updateIntervalMillis = 60 * 1000;// 1 minute
-        while ( !f.isDone() ) {
-            try {
-                Thread.sleep( 1000 );
-
-                if ( timer.getTime() - lastTime > updateIntervalMillis ) {
+        long MAX_ANALYSIS_TIME = 60 * 1000 * 30; // 30 minutes.
+        long updateIntervalMillis = 60 * 1000;// 1 minute
+        try {
+            while ( true ) {
+                try {
+                    f.get( Math.min( updateIntervalMillis, Math.max( 1, MAX_ANALYSIS_TIME - timer.getTime() ) ),
+                            TimeUnit.MILLISECONDS );
+                    break;
+                } catch ( TimeoutException e ) {
+                    if ( timer.getTime() >= MAX_ANALYSIS_TIME ) {
+                        LinearModelAnalyzer.log
+                                .error( "Analysis is taking too long, something bad must have happened; cancelling" );
+                        f.cancel( true );
+                        throw new RuntimeException( "Analysis was taking too long, it was cancelled" );
+                    }
                     LinearModelAnalyzer.log.info( String
                             .format( "Analysis running, %.1f minutes elapsed ...", timer.getTime() / 60000.00 ) );
-                    lastTime = timer.getTime();
                 }
-
-            } catch ( InterruptedException e ) {
-                LinearModelAnalyzer.log.warn( "Analysis interrupted!" );
-                return rawResults;
-            }
-
-            if ( timer.getTime() > MAX_ANALYSIS_TIME ) {
-                LinearModelAnalyzer.log
-                        .error( "Analysis is taking too long, something bad must have happened; cancelling" );
-                f.cancel( true );
-                throw new RuntimeException( "Analysis was taking too long, it was cancelled" );
             }
+        } catch ( InterruptedException e ) {
+            LinearModelAnalyzer.log.warn( "Analysis interrupted!" );
+            f.cancel( true );
+            Thread.currentThread().interrupt();
+            return rawResults;
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( e );
         }
 
         if ( timer.getTime() > updateIntervalMillis ) {
@@ -1393,15 +1381,6 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
                     .info( String.format( "Analysis finished in %.1f minutes.", timer.getTime() / 60000.00 ) );
         }
 
-        try {
-            f.get();
-        } catch ( InterruptedException e ) {
-            LinearModelAnalyzer.log.warn( "Job was interrupted" );
-            return rawResults;
-        } catch ( ExecutionException e ) {
-            throw new RuntimeException( e );
-        }
-
         assert rawResults.size() == namedMatrix.rows() : "expected " + namedMatrix.rows() + " results, got " + rawResults.size();
         return rawResults;
     }
@@ -1417,46 +1396,267 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
         Future<?> f = service.submit( new Runnable() {
             @Override
             public void run() {
-                StopWatch timer = new StopWatch();
-                timer.start();
-                LeastSquaresFit fit;
-                if ( config.getUseWeights() ) {
-                    MeanVarianceEstimator mv = new MeanVarianceEstimator( designMatrix, data, librarySize );
-                    LinearModelAnalyzer.log.info( "Model weights from mean-variance model: " + timer.getTime() + "ms" );
-                    timer.reset();
-                    timer.start();
-                    fit = new LeastSquaresFit( designMatrix, data, mv.getWeights() );
+                int numBlocks = Math
+                        .min( LinearModelAnalyzer.FIT_THREADS, data.rows() / LinearModelAnalyzer.MIN_ROWS_PER_BLOCK );
+                Map<String, LinearModelSummary> res;
+                if ( numBlocks > 1 ) {
+                    res = LinearModelAnalyzer.fitInBlocks( designMatrix, data, librarySize, config, numBlocks );
                 } else {
-                    fit = new LeastSquaresFit( designMatrix, data );
+                    res = LinearModelAnalyzer.fit( designMatrix, data, librarySize, config );
                 }
-                LinearModelAnalyzer.log
-                        .info( "Model fit data matrix " + data.rows() + " x " + data.columns() + ": " + timer.getTime()
-                                + "ms" );
-                timer.reset();
+                rawResults.putAll( res );
+                LinearModelAnalyzer.log.info( "Analysis phase done ..." );
+            }
+        } );
+
+        service.shutdown();
+        return f;
+    }
+
+    /**
+     * Fit the models to all the rows at once.
+     *
+     * @return summaries keyed by row name
+     */
+    static Map<String, LinearModelSummary> fit( DesignMatrix designMatrix, DoubleMatrix<String, String> data,
+            DoubleMatrix1D librarySize, DifferentialExpressionAnalysisConfig config ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+        LeastSquaresFit fit;
+        if ( config.getUseWeights() ) {
+            MeanVarianceEstimator mv = new MeanVarianceEstimator( designMatrix, data, librarySize );
+            LinearModelAnalyzer.log.info( "Model weights from mean-variance model: " + timer.getTime() + "ms" );
+            timer.reset();
+            timer.start();
+            fit = new LeastSquaresFit( designMatrix, data, mv.getWeights() );
+        } else {
+            fit = new LeastSquaresFit( designMatrix, data );
+        }
+        LinearModelAnalyzer.log
+                .info( "Model fit data matrix " + data.rows() + " x " + data.columns() + ": " + timer.getTime()
+                        + "ms" );
+        timer.reset();
+
+        timer.start();
+        if ( config.getModerateStatistics() ) {
+            if ( fit.isHasMissing() ) {
+                // not implemented yet.
+                throw new UnsupportedOperationException(
+                        "Ebayes cannot be run as there are missing values in the data" );
+            }
+            ModeratedTstat.ebayes( fit );
+            LinearModelAnalyzer.log.info( "Moderate test statistics: " + timer.getTime() + "ms" );
+
+        }
 
+        timer.reset();
+
+        timer.start();
+        Map<String, LinearModelSummary> res = fit.summarizeByKeys( true );
+        LinearModelAnalyzer.log.info( "Model summarize/ANOVA: " + timer.getTime() + "ms" );
+        return res;
+    }
+
+    /**
+     * Fit the models to contiguous blocks of rows in parallel. Rows are fitted independently, so this gives the same
+     * results as {@link #fit}, except for the parts that pool information across rows: the mean-variance weights are
+     * still estimated from all the rows, and when the statistics are moderated the residual variances and degrees of
+     * freedom of all the blocks are pooled to fit the variance prior once, which is then handed to each block before
+     * it is summarized.
+     *
+     * @param  numBlocks how many blocks to split the rows into; this is also the number of threads used.
+     * @return summaries keyed by row name
+     */
+    static Map<String, LinearModelSummary> fitInBlocks( final DesignMatrix designMatrix,
+            final DoubleMatrix<String, String> data, DoubleMatrix1D librarySize,
+            final DifferentialExpressionAnalysisConfig config, int numBlocks ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        final DoubleMatrix2D weights;
+        if ( config.getUseWeights() ) {
+            weights = new MeanVarianceEstimator( designMatrix, data, librarySize ).getWeights();
+            LinearModelAnalyzer.log.info( "Model weights from mean-variance model: " + timer.getTime() + "ms" );
+        } else {
+            weights = null;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool( numBlocks );
+        try {
+            int blockSize = ( int ) Math.ceil( data.rows() / ( double ) numBlocks );
+            List<Callable<BlockFit>> fitTasks = new ArrayList<>();
+            for ( int start = 0; start < data.rows(); start += blockSize ) {
+                final int blockStart = start;
+                final int blockEnd = Math.min( start + blockSize, data.rows() );
+                fitTasks.add( new Callable<BlockFit>() {
+                    @Override
+                    public BlockFit call() {
+                        return LinearModelAnalyzer
+                                .fitBlock( designMatrix, data, weights, blockStart, blockEnd );
+                    }
+                } );
+            }
+
+            final List<BlockFit> fits = new ArrayList<>();
+            for ( Future<BlockFit> f : pool.invokeAll( fitTasks ) ) {
+                fits.add( f.get() );
+            }
+            LinearModelAnalyzer.log
+                    .info( "Model fit data matrix " + data.rows() + " x " + data.columns() + " in " + fits.size()
+                            + " blocks: " + timer.getTime() + "ms" );
+            timer.reset();
+            timer.start();
+
+            if ( config.getModerateStatistics() ) {
+                LinearModelAnalyzer.moderate( fits, data.rows(), pool );
+                LinearModelAnalyzer.log.info( "Moderate test statistics: " + timer.getTime() + "ms" );
+                timer.reset();
                 timer.start();
-                if ( config.getModerateStatistics() ) {
-                    if ( fit.isHasMissing() ) {
-                        // not implemented yet.
-                        throw new UnsupportedOperationException(
-                                "Ebayes cannot be run as there are missing values in the data" );
+            }
+
+            List<Callable<Map<String, LinearModelSummary>>> summarizeTasks = new ArrayList<>();
+            for ( final BlockFit fit : fits ) {
+                summarizeTasks.add( new Callable<Map<String, LinearModelSummary>>() {
+                    @Override
+                    public Map<String, LinearModelSummary> call() {
+                        return fit.summarizeByKeys( true );
                     }
-                    ModeratedTstat.ebayes( fit );
-                    LinearModelAnalyzer.log.info( "Moderate test statistics: " + timer.getTime() + "ms" );
+                } );
+            }
+
+            Map<String, LinearModelSummary> res = new HashMap<>();
+            for ( Future<Map<String, LinearModelSummary>> f : pool.invokeAll( summarizeTasks ) ) {
+                res.putAll( f.get() );
+            }
+            LinearModelAnalyzer.log.info( "Model summarize/ANOVA: " + timer.getTime() + "ms" );
+            return res;
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
+    /**
+     * Does what {@link ModeratedTstat#ebayes(LeastSquaresFit)} does for a single fit across the blocks: the residual
+     * variances and degrees of freedom of the rows of all the blocks are gathered (in parallel) and the variance prior
+     * is fitted to them once, then each block gets its part of the posterior variances.
+     *
+     * @param fits    the blocks, in row order
+     * @param numRows  total rows in the blocks
+     */
+    private static void moderate( List<BlockFit> fits, int numRows, ForkJoinPool pool )
+            throws InterruptedException, ExecutionException {
+        for ( BlockFit fit : fits ) {
+            if ( fit.isHasMissing() ) {
+                // not implemented yet.
+                throw new UnsupportedOperationException(
+                        "Ebayes cannot be run as there are missing values in the data" );
+            }
+        }
+
+        final DoubleMatrix1D variances = new DenseDoubleMatrix1D( numRows );
+        final DoubleMatrix1D dofs = new DenseDoubleMatrix1D( numRows );
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for ( final BlockFit fit : fits ) {
+            tasks.add( new Callable<Object>() {
+                @Override
+                public Object call() {
+                    fit.getVariances( variances, dofs );
+                    return null;
                 }
+            } );
+        }
+        for ( Future<Object> f : pool.invokeAll( tasks ) ) {
+            f.get();
+        }
 
-                timer.reset();
+        double[] prior = ModeratedTstat.fitFDist( variances, dofs );
+        double varPrior = prior[0];
+        double dfPrior = prior[1];
+        DoubleMatrix1D varPost = ModeratedTstat.squeezeVar( variances, dofs, varPrior, dfPrior );
+        for ( BlockFit fit : fits ) {
+            fit.usePrior( dfPrior, varPrior, varPost );
+        }
+    }
 
-                timer.start();
-                Map<String, LinearModelSummary> res = fit.summarizeByKeys( true );
-                LinearModelAnalyzer.log.info( "Model summarize/ANOVA: " + timer.getTime() + "ms" );
-                rawResults.putAll( res );
-                LinearModelAnalyzer.log.info( "Analysis phase done ..." );
+    /**
+     * @param  weights can be null
+     * @return fit of rows <code>start</code> (inclusive) to <code>end</code> (exclusive)
+     */
+    private static BlockFit fitBlock( DesignMatrix designMatrix, DoubleMatrix<String, String> data,
+            DoubleMatrix2D weights, int start, int end ) {
+        double[][] rows = new double[end - start][];
+        for ( int i = start; i < end; i++ ) {
+            rows[i - start] = data.getRow( i );
+        }
+        DoubleMatrix<String, String> block = new DenseDoubleMatrix<>( rows );
+        for ( int i = start; i < end; i++ ) {
+            block.addRowName( data.getRowName( i ) );
+        }
+        block.setColumnNames( data.getColNames() );
+
+        if ( weights == null ) {
+            return new BlockFit( designMatrix, block, start );
+        }
+        return new BlockFit( designMatrix, block, weights.viewPart( start, 0, end - start, weights.columns() ).copy(),
+                start );
+    }
+
+    /**
+     * Fit of a block of rows from a larger data matrix, which can take its ebayes variance prior from the rows of all
+     * the blocks.
+     */
+    private static class BlockFit extends LeastSquaresFit {
+
+        /**
+         * Index of the first row of the block in the whole matrix.
+         */
+        private final int start;
+        private final int numRows;
+
+        BlockFit( DesignMatrix designMatrix, DoubleMatrix<String, String> data, int start ) {
+            super( designMatrix, data );
+            this.start = start;
+            this.numRows = data.rows();
+        }
+
+        BlockFit( DesignMatrix designMatrix, DoubleMatrix<String, String> data, DoubleMatrix2D weights, int start ) {
+            super( designMatrix, data, weights );
+            this.start = start;
+            this.numRows = data.rows();
+        }
+
+        /**
+         * Fill in the residual variances and degrees of freedom of the block's rows, at their places in the whole
+         * matrix. Rows without a residual variance get NaN, as in {@link ModeratedTstat#ebayes(LeastSquaresFit)}.
+         */
+        void getVariances( DoubleMatrix1D variances, DoubleMatrix1D dofs ) {
+            List<LinearModelSummary> summaries = this.summarize();
+            assert summaries.size() == this.numRows;
+            for ( int i = 0; i < summaries.size(); i++ ) {
+                LinearModelSummary lms = summaries.get( i );
+                if ( lms.getSigma() == null ) {
+                    variances.set( this.start + i, Double.NaN );
+                    dofs.set( this.start + i, Double.NaN );
+                } else {
+                    variances.set( this.start + i, lms.getSigma() * lms.getSigma() );
+                    dofs.set( this.start + i, lms.getResidualDof() );
+                }
             }
-        } );
+        }
 
-        service.shutdown();
-        return f;
+        /**
+         * @param varPost posterior variances of the rows of the whole matrix
+         */
+        void usePrior( double dfPrior, double varPrior, DoubleMatrix1D varPost ) {
+            this.ebayesUpdate( dfPrior, varPrior, varPost.viewPart( this.start, this.numRows ).copy() );
+        }
     }
 }
@@ -0,0 +1,170 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.diff;
+
+import cern.colt.Sorting;
+import cern.colt.function.IntComparator;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysisResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Benjamini-Hochberg q-values and normalized ranks of p-values, computed on primitive arrays from a single sort. The
+ * values are the same as those of <code>MultipleTestCorrection.benjaminiHochberg</code> and of
+ * <code>Rank.rankTransform</code> divided by the number of p-values (tied p-values get the average of their ranks).
+ * Missing (NaN) p-values are left out: they do not count towards the number of tests, and get NaN for both.
+ */
+public class PvalueCorrection {
+
+    private static final Log log = LogFactory.getLog( PvalueCorrection.class );
+
+    /**
+     * @param  pvalues p-values; not modified
+     * @return the q-values, in the same order
+     */
+    public static double[] benjaminiHochberg( double[] pvalues ) {
+        double[] qvalues = new double[pvalues.length];
+        PvalueCorrection.correct( pvalues, qvalues, null );
+        return qvalues;
+    }
+
+    /**
+     * Compute the q-values and ranks of the p-values, sorting them only once.
+     *
+     * @param pvalues p-values; not modified
+     * @param qvalues filled in with the q-values; can be null if not needed
+     * @param ranks   filled in with the ranks, divided by the number of p-values; can be null if not needed
+     */
+    public static void correct( final double[] pvalues, double[] qvalues, double[] ranks ) {
+        int[] order = new int[pvalues.length];
+        int n = 0;
+        for ( int i = 0; i < pvalues.length; i++ ) {
+            if ( Double.isNaN( pvalues[i] ) ) {
+                if ( qvalues != null )
+                    qvalues[i] = Double.NaN;
+                if ( ranks != null )
+                    ranks[i] = Double.NaN;
+            } else {
+                order[n++] = i;
+            }
+        }
+
+        Sorting.quickSort( order, 0, n, new IntComparator() {
+            @Override
+            public int compare( int a, int b ) {
+                return Double.compare( pvalues[a], pvalues[b] );
+            }
+        } );
+
+        if ( qvalues != null ) {
+            // from the largest p-value down, keeping the running minimum of p * n / k.
+            double min = 1.0;
+            for ( int k = n; k > 0; k-- ) {
+                int i = order[k - 1];
+                min = Math.min( min, pvalues[i] * n / k );
+                qvalues[i] = min;
+            }
+        }
+
+        if ( ranks != null ) {
+            for ( int start = 0; start < n; ) {
+                int end = start + 1;
+                while ( end < n && pvalues[order[end]] == pvalues[order[start]] ) {
+                    end++;
+                }
+                // positions start..end-1 hold ranks start+1..end
+                double rank = ( start + 1 + end ) / 2.0 / n;
+                for ( int k = start; k < end; k++ ) {
+                    ranks[order[k]] = rank;
+                }
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * Set the corrected p-values and ranks of the results, for each factor (or interaction) at the same time.
+     *
+     * @param results  results for each factor, in the same order as their p-values
+     * @param pvalues  p-values for each factor
+     * @param nan2Null if true, NaN q-values and ranks are stored as null
+     */
+    public static void correct( Map<String, ? extends List<DifferentialExpressionAnalysisResult>> results,
+            Map<String, double[]> pvalues, final boolean nan2Null ) {
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for ( final String key : pvalues.keySet() ) {
+            final double[] pvals = pvalues.get( key );
+            final List<DifferentialExpressionAnalysisResult> res = results.get( key );
+            if ( pvals.length == 0 ) {
+                PvalueCorrection.log.warn( "No pvalues for " + key + ", ignoring." );
+                continue;
+            }
+            if ( res.size() != pvals.length ) {
+                throw new IllegalArgumentException(
+                        pvals.length + " pvalues but " + res.size() + " results for " + key );
+            }
+            PvalueCorrection.log.info( pvals.length + " pvalues for " + key );
+
+            tasks.add( new Callable<Object>() {
+                @Override
+                public Object call() {
+                    double[] qvalues = new double[pvals.length];
+                    double[] ranks = new double[pvals.length];
+                    PvalueCorrection.correct( pvals, qvalues, ranks );
+                    int i = 0;
+                    for ( DifferentialExpressionAnalysisResult r : res ) {
+                        r.setCorrectedPvalue( nan2Null && Double.isNaN( qvalues[i] ) ? null : qvalues[i] );
+                        r.setRank( nan2Null && Double.isNaN( ranks[i] ) ? null : ranks[i] );
+                        i++;
+                    }
+                    return null;
+                }
+            } );
+        }
+
+        if ( tasks.size() == 1 ) {
+            try {
+                tasks.get( 0 ).call();
+            } catch ( Exception e ) {
+                throw new RuntimeException( e );
+            }
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool( Math.max( 1, Math.min( tasks.size(),
+                Runtime.getRuntime().availableProcessors() ) ) );
+        try {
+            for ( Future<Object> f : pool.invokeAll( tasks ) ) {
+                f.get();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -24,6 +24,7 @@ import ubic.basecode.io.ByteArrayConverter;
 import ubic.basecode.math.linearmodels.MeanVarianceEstimator;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrixUtil;
+import ubic.gemma.core.visualization.QCImageCache;
 import ubic.gemma.model.common.quantitationtype.QuantitationType;
 import ubic.gemma.model.expression.bioAssayData.MeanVarianceRelation;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
@@ -47,6 +48,9 @@ public class MeanVarianceServiceImpl implements MeanVarianceService {
     @Autowired
     private ExpressionExperimentService expressionExperimentService;
 
+    @Autowired
+    private QCImageCache qcImageCache;
+
     /**
      * @param  matrix on which mean variance relation is computed with
      * @param  mvr    object, if null, a new object is created
@@ -122,6 +126,7 @@ public class MeanVarianceServiceImpl implements MeanVarianceService {
         MeanVarianceRelation mvr = calculateMeanVariance( intensities, null );
 
         meanVarianceServiceHelper.createMeanVariance( ee, mvr );
+        qcImageCache.clearCache( ee.getId() );
         log.info( "Mean-variance computation is complete" );
 
         return mvr;
@@ -42,6 +42,7 @@ import ubic.basecode.math.DescriptiveWithMissing;
 import ubic.basecode.math.distribution.Histogram;
 import ubic.basecode.math.linearmodels.DesignMatrix;
 import ubic.basecode.math.linearmodels.LeastSquaresFit;
+import ubic.gemma.persistence.util.Settings;
 
 import java.awt.*;
 import java.io.File;
@@ -49,9 +50,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 
 /**
@@ -61,6 +62,12 @@ import java.util.concurrent.Future;
  * Johnson, WE, Rabinovic, A, and Li, C (2007). Adjusting batch effects in microarray expression data using Empirical
  * Bayes methods. Biostatistics 8(1):118-127.
  * </p>
+ * <p>
+ * The empirical Bayes estimates are computed for each batch in chunks of genes, in parallel (see
+ * {@link #setThreadPool(ForkJoinPool)}). For the parametric method, convergence is checked per chunk, so every gene meets
+ * the same tolerance but genes in chunks that converge early do fewer iterations than if all genes were iterated
+ * together.
+ * </p>
  */
 @SuppressWarnings({ "unused", "WeakerAccess" }) // Possible external use
 public class ComBat<R, C> {
@@ -68,6 +75,16 @@ public class ComBat<R, C> {
     private static final String BATCH_COLUMN_NAME = "batch";
     private static final Log log = LogFactory.getLog( ComBat.class );
 
+    /**
+     * How many genes of one batch are estimated in a single task.
+     */
+    private static final int ROWS_PER_TASK = 1000;
+
+    /**
+     * Threads used when no pool is given; 0 means one per processor.
+     */
+    private static final int NUM_THREADS = Settings.getInt( "gemma.analysis.combat.threads", 0 );
+
     private final ObjectMatrix<C, String, ?> sampleInfo;
     private final DoubleMatrix<R, C> data;
 
@@ -88,6 +105,8 @@ public class ComBat<R, C> {
     private DoubleArrayList bPrior = null;
     private DoubleArrayList t2 = null;
 
+    private ForkJoinPool threadPool = null;
+
     /**
      * Prior distribution
      */
@@ -123,6 +142,14 @@ public class ComBat<R, C> {
         return this.x;
     }
 
+    /**
+     * @param threadPool pool to run the estimation on, so ComBat can share threads with other work; it is not shut down
+     *                   here. If not set, a pool with gemma.analysis.combat.threads threads is made for each run.
+     */
+    public void setThreadPool( ForkJoinPool threadPool ) {
+        this.threadPool = threadPool;
+    }
+
     /**
      * Make diagnostic plots.
      * FIXME: As in the original ComBat, this only graphs the first batch's statistics. In principle we can (and perhaps
@@ -250,11 +277,7 @@ public class ComBat<R, C> {
         DoubleMatrix2D gammastar = new DenseDoubleMatrix2D( numBatches, numProbes );
         DoubleMatrix2D deltastar = new DenseDoubleMatrix2D( numBatches, numProbes );
 
-        if ( !parametric ) {
-            this.runNonParametric( sdata, gammastar, deltastar );
-        } else {
-            this.runParametric( sdata, gammastar, deltastar );
-        }
+        this.estimate( sdata, gammastar, deltastar, parametric );
 
         DoubleMatrix2D adjustedData = this.rawAdjust( sdata, gammastar, deltastar );
 
@@ -368,85 +391,68 @@ public class ComBat<R, C> {
         }
     }
 
-    private void runParametric( final DoubleMatrix2D sdata, DoubleMatrix2D gammastar, DoubleMatrix2D deltastar ) {
+    /**
+     * Fill in the empirical Bayes estimates for each batch and gene, splitting the work into tasks of up to
+     * ROWS_PER_TASK genes of one batch. The rows of each task are independent of the other tasks, apart from reading
+     * gammaHat and deltaHat; each task writes only its own cells of gammastar and deltastar.
+     */
+    private void estimate( final DoubleMatrix2D sdata, final DoubleMatrix2D gammastar, final DoubleMatrix2D deltastar,
+            final boolean parametric ) {
+        List<Callable<Void>> tasks = new ArrayList<>();
         int batchIndex = 0;
         for ( String batchId : batches.keySet() ) {
-
-            DoubleMatrix2D batchData = this.getBatchData( sdata, batchId );
-
-            DoubleMatrix1D[] batchResults;
-
-            batchResults = this.itSol( batchData, gammaHat.viewRow( batchIndex ), deltaHat.viewRow( batchIndex ),
-                    gammaBar.get( batchIndex ), t2.get( batchIndex ), aPrior.get( batchIndex ),
-                    bPrior.get( batchIndex ) );
-
-            for ( int j = 0; j < batchResults[0].size(); j++ ) {
-                gammastar.set( batchIndex, j, batchResults[0].get( j ) );
-            }
-            for ( int j = 0; j < batchResults[1].size(); j++ ) {
-                deltastar.set( batchIndex, j, batchResults[1].get( j ) );
+            final int b = batchIndex++;
+            final DoubleMatrix2D batchData = this.getBatchData( sdata, batchId );
+            for ( int start = 0; start < numProbes; start += ComBat.ROWS_PER_TASK ) {
+                final int first = start;
+                final int numRows = Math.min( ComBat.ROWS_PER_TASK, numProbes - start );
+                tasks.add( new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        DoubleMatrix1D[] results;
+                        if ( parametric ) {
+                            results = ComBat.this
+                                    .itSol( batchData.viewPart( first, 0, numRows, batchData.columns() ),
+                                            gammaHat.viewRow( b ).viewPart( first, numRows ),
+                                            deltaHat.viewRow( b ).viewPart( first, numRows ), gammaBar.get( b ),
+                                            t2.get( b ), aPrior.get( b ), bPrior.get( b ) );
+                        } else {
+                            // every gene is compared to all the others in the batch, so only the rows are split.
+                            results = ComBat.this.nonParametricFit( batchData, first, numRows, gammaHat.viewRow( b ),
+                                    deltaHat.viewRow( b ) );
+                        }
+                        for ( int j = 0; j < numRows; j++ ) {
+                            gammastar.setQuick( b, first + j, results[0].getQuick( j ) );
+                            deltastar.setQuick( b, first + j, results[1].getQuick( j ) );
+                        }
+                        return null;
+                    }
+                } );
             }
-            batchIndex++;
         }
-    }
-
-    private void runNonParametric( final DoubleMatrix2D sdata, DoubleMatrix2D gammastar, DoubleMatrix2D deltastar ) {
-        final ConcurrentHashMap<String, DoubleMatrix1D[]> results = new ConcurrentHashMap<>();
-        int numThreads = Math.min( batches.size(), Runtime.getRuntime().availableProcessors() );
-
-        ComBat.log.info( "Runing nonparametric estimation on " + numThreads + " threads" );
-
-        Future<?>[] futures = new Future[numThreads];
-        ExecutorService service = Executors.newCachedThreadPool();
-
-        /*
-         * Divvy up batches over threads.
-         */
-
-        int batchesPerThread = batches.size() / numThreads;
-
-        final String[] batchIds = batches.keySet().toArray( new String[] {} );
-
-        for ( int i = 0; i < numThreads; i++ ) {
-
-            final int firstBatch = i * batchesPerThread;
-            final int lastBatch = i == ( numThreads - 1 ) ? batches.size() : firstBatch + batchesPerThread;
 
-            futures[i] = service.submit( new Runnable() {
-                @Override
-                public void run() {
-                    for ( int k = firstBatch; k < lastBatch; k++ ) {
-                        String batchId = batchIds[k];
-                        DoubleMatrix2D batchData = ComBat.this.getBatchData( sdata, batchId );
-                        DoubleMatrix1D[] batchResults = ComBat.this
-                                .nonParametricFit( batchData, gammaHat.viewRow( k ), deltaHat.viewRow( k ) );
-                        results.put( batchId, batchResults );
-                    }
-                }
-            } );
+        ForkJoinPool pool = this.threadPool;
+        if ( pool == null ) {
+            int numThreads = ComBat.NUM_THREADS > 0 ? ComBat.NUM_THREADS : Runtime.getRuntime().availableProcessors();
+            pool = new ForkJoinPool( Math.max( 1, Math.min( numThreads, tasks.size() ) ) );
         }
-
-        service.shutdown();
-
-        boolean allDone = false;
-        do {
-            for ( Future<?> f : futures ) {
-                allDone = true;
-                if ( !f.isDone() && !f.isCancelled() ) {
-                    allDone = false;
-                    break;
-                }
+        ComBat.log.info( "Running " + ( parametric ? "parametric" : "nonparametric" ) + " estimation as "
+                + tasks.size() + " tasks on " + pool.getParallelism() + " threads" );
+        try {
+            for ( Future<Void> f : pool.invokeAll( tasks ) ) {
+                f.get();
             }
-        } while ( !allDone );
-
-        for ( int i = 0; i < batchIds.length; i++ ) {
-            String batchId = batchIds[i];
-            DoubleMatrix1D[] batchResults = results.get( batchId );
-            for ( int j = 0; j < batchResults[0].size(); j++ ) {
-                gammastar.set( i, j, batchResults[0].get( j ) );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
             }
-            for ( int j = 0; j < batchResults[1].size(); j++ ) {
-                deltastar.set( i, j, batchResults[1].get( j ) );
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            if ( pool != this.threadPool ) {
+                pool.shutdownNow();
             }
         }
     }
@@ -693,9 +699,16 @@ public class ComBat<R, C> {
         return new DoubleMatrix1D[] { gold, dold };
     }
 
-    private DoubleMatrix1D[] nonParametricFit( DoubleMatrix2D matrix, DoubleMatrix1D gHat, DoubleMatrix1D dHat ) {
-        DoubleMatrix1D gstar = new DenseDoubleMatrix1D( matrix.rows() );
-        DoubleMatrix1D dstar = new DenseDoubleMatrix1D( matrix.rows() );
+    /**
+     * @param matrix   the data for one batch
+     * @param firstRow first row to compute the estimates for
+     * @param numRows  how many rows to compute the estimates for
+     * @return estimates for rows firstRow to firstRow + numRows - 1
+     */
+    private DoubleMatrix1D[] nonParametricFit( DoubleMatrix2D matrix, int firstRow, int numRows, DoubleMatrix1D gHat,
+            DoubleMatrix1D dHat ) {
+        DoubleMatrix1D gstar = new DenseDoubleMatrix1D( numRows );
+        DoubleMatrix1D dstar = new DenseDoubleMatrix1D( numRows );
         double twopi = 2.0 * Math.PI;
 
         StopWatch timer = new StopWatch();
@@ -707,7 +720,7 @@ public class ComBat<R, C> {
          * has to be done for each batch. It's O( M*N^2 )
          */
         int c = 1;
-        for ( int i = 0; i < matrix.rows(); i++ ) {
+        for ( int i = firstRow; i < firstRow + numRows; i++ ) {
 
             double[] x = MatrixUtil.removeMissing( matrix.viewRow( i ) ).toArray();
             int n = x.length;
@@ -745,8 +758,8 @@ public class ComBat<R, C> {
                 sumdLH += dLH;
             }
 
-            gstar.set( i, sumgLH / sumLH );
-            dstar.set( i, sumdLH / sumLH );
+            gstar.set( i - firstRow, sumgLH / sumLH );
+            dstar.set( i - firstRow, sumdLH / sumLH );
 
             if ( c++ % 1000 == 0 ) {
                 ComBat.log.info( i + String.format( " rows done, %.1fs elapsed", timer.getTime() / 1000.00 ) );
@@ -94,12 +94,13 @@ public class RowMissingValueFilter implements Filter<ExpressionDataDoubleMatrix>
                     absentPresentCalls == null ? -1 : absentPresentCalls.getRowIndex( designElementForRow );
 
             int presentCount = 0;
+            double[] row = data.getRawRow( i );
             for ( int j = 0; j < numCols; j++ ) {
                 boolean callIsPresent = true;
                 if ( absentPresentRow >= 0 ) {
                     callIsPresent = absentPresentCalls.get( absentPresentRow, j );
                 }
-                if ( !Double.isNaN( data.get( i, j ) ) && callIsPresent ) {
+                if ( !Double.isNaN( row[j] ) && callIsPresent ) {
                     presentCount++;
                 }
             }
@@ -24,6 +24,7 @@ import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.impl.DenseDoubleMatrix1D;
 import cern.colt.matrix.impl.DenseDoubleMatrix2D;
 import cern.colt.matrix.linalg.Algebra;
+import cern.colt.matrix.linalg.EigenvalueDecomposition;
 import org.apache.commons.lang3.StringUtils;
 import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
@@ -50,6 +51,13 @@ import java.util.List;
  * V matrix columns are the <em>eigengenes</em>. See also http://genome-www.stanford.edu/SVD/.
  * Because SVD can't be done on a matrix with missing values, values are imputed. Rows with no variance are removed, and
  * rows with too many missing values are also removed (MIN_PRESENT_FRACTION_FOR_ROW)
+ * <p>
+ * If only the first few components are needed, a truncated decomposition can be asked for. It is computed from the
+ * eigendecomposition of the samples x samples matrix E'E, so it costs one pass over the data plus work that depends
+ * only on the number of samples, and only the requested columns of U and V are kept. All the singular values are still
+ * available, so the variance fractions are computed over the full spectrum as for the full decomposition; only the
+ * smallest singular values lose precision (they are obtained from their squares).
+ * </p>
  *
  * @author paul
  */
@@ -58,9 +66,13 @@ public class ExpressionDataSVD {
 
     private static final double MIN_PRESENT_FRACTION_FOR_ROW = 0.75;
     DenseDoubleMatrix2D missingValueInfo;
-    SingularValueDecomposition<CompositeSequence, BioMaterial> svd;
     private ExpressionDataDoubleMatrix expressionData;
     private boolean normalized = false;
+    private DoubleMatrix<Integer, Integer> s;
+    private double[] singularValues;
+    private boolean truncated = false;
+    private DoubleMatrix<CompositeSequence, Integer> u;
+    private DoubleMatrix<Integer, BioMaterial> v;
 
     /**
      * Does normalization.
@@ -77,6 +89,21 @@ public class ExpressionDataSVD {
      *                        rows and columns ("double-standardized")
      */
     public ExpressionDataSVD( ExpressionDataDoubleMatrix expressionData, boolean normalizeMatrix ) {
+        this( expressionData, normalizeMatrix, 0 );
+    }
+
+    /**
+     * @param expressionData  Note that this may be modified!
+     * @param normalizeMatrix If true, the data matrix will be rescaled and centred to mean zero, variance one, for both
+     *                        rows and columns ("double-standardized")
+     * @param numComponents   how many components to compute; if zero, or at least the number of samples, the full
+     *                        decomposition is done. Otherwise only the first numComponents columns of U and V are
+     *                        computed, and the methods that reconstruct or transform the data cannot be used.
+     */
+    public ExpressionDataSVD( ExpressionDataDoubleMatrix expressionData, boolean normalizeMatrix, int numComponents ) {
+        if ( numComponents < 0 ) {
+            throw new IllegalArgumentException( "Number of components cannot be negative" );
+        }
         this.expressionData = expressionData;
 
         ArrayDesign arrayDesign = expressionData.getRowElement( 0 ).getDesignElement().getArrayDesign();
@@ -135,7 +162,16 @@ public class ExpressionDataSVD {
             matrix = MatrixStats.doubleStandardize( matrix );
         }
 
-        this.svd = new SingularValueDecomposition<>( matrix );
+        if ( numComponents > 0 && numComponents < matrix.columns() ) {
+            this.truncated = true;
+            this.decomposeTruncated( matrix, numComponents );
+        } else {
+            SingularValueDecomposition<CompositeSequence, BioMaterial> svd = new SingularValueDecomposition<>( matrix );
+            this.u = svd.getU();
+            this.s = svd.getS();
+            this.v = svd.getV();
+            this.singularValues = svd.getSingularValues();
+        }
     }
 
     /**
@@ -145,15 +181,16 @@ public class ExpressionDataSVD {
      * @return the reconstructed matrix; values that were missing before are re-masked.
      */
     public ExpressionDataDoubleMatrix equalize() {
-        DoubleMatrix<Integer, Integer> copy = svd.getS().copy();
+        this.checkNotTruncated();
+        DoubleMatrix<Integer, Integer> copy = this.s.copy();
 
         for ( int i = 0; i < copy.columns(); i++ ) {
             copy.set( i, i, 1.0 );
         }
 
-        double[][] rawU = svd.getU().getRawMatrix();
+        double[][] rawU = this.u.getRawMatrix();
         double[][] rawS = copy.getRawMatrix();
-        double[][] rawV = svd.getV().getRawMatrix();
+        double[][] rawV = this.v.getRawMatrix();
 
         DoubleMatrix2D u = new DenseDoubleMatrix2D( rawU );
         DoubleMatrix2D s = new DenseDoubleMatrix2D( rawS );
@@ -211,7 +248,7 @@ public class ExpressionDataSVD {
      * @return how many rows the U matrix has.
      */
     public int getNumVariables() {
-        return this.svd.getU().rows();
+        return this.u.rows();
     }
 
     /**
@@ -219,18 +256,28 @@ public class ExpressionDataSVD {
      *         from 0).
      */
     public DoubleMatrix<Integer, Integer> getS() {
-        return svd.getS();
+        return this.s;
     }
 
+    /**
+     * @return all the singular values, in decreasing order, even if the decomposition is truncated.
+     */
     public double[] getSingularValues() {
-        return this.svd.getSingularValues();
+        return this.singularValues;
+    }
+
+    /**
+     * @return how many components (columns of U and V) were computed.
+     */
+    public int getNumComponents() {
+        return this.v.columns();
     }
 
     /**
      * @return the left singular vectors. The column indices are of the eigenarrays (starting from 0).
      */
     public DoubleMatrix<CompositeSequence, Integer> getU() {
-        return svd.getU();
+        return this.u;
     }
 
     /**
@@ -238,14 +285,14 @@ public class ExpressionDataSVD {
      *         are of the original samples in the given ExpressionDataDoubleMatrix.
      */
     public DoubleMatrix<Integer, BioMaterial> getV() {
-        return svd.getV();
+        return this.v;
     }
 
     /**
      * @return fractions of the variance for each singular vector.
      */
     public Double[] getVarianceFractions() {
-        double[] singularValues = svd.getSingularValues();
+        double[] singularValues = this.getSingularValues();
         // d should be be square roots of the eigenvalues scaled by number of variables: check
 
         int numVariables = this.getNumVariables();
@@ -263,6 +310,13 @@ public class ExpressionDataSVD {
         return answer;
     }
 
+    /**
+     * @return true if only the first few components were computed.
+     */
+    public boolean isTruncated() {
+        return this.truncated;
+    }
+
     /**
      * Provide a reconstructed matrix removing the first N components (the most significant ones). If the matrix was
      * normalized first, removing the first component replicates the normalization approach taken by Nielsen et al.
@@ -273,15 +327,16 @@ public class ExpressionDataSVD {
      * @return                       the reconstructed matrix; values that were missing before are re-masked.
      */
     public ExpressionDataDoubleMatrix removeHighestComponents( int numComponentsToRemove ) {
-        DoubleMatrix<Integer, Integer> copy = svd.getS().copy();
+        this.checkNotTruncated();
+        DoubleMatrix<Integer, Integer> copy = this.s.copy();
 
         for ( int i = 0; i < numComponentsToRemove; i++ ) {
             copy.set( i, i, 0.0 );
         }
 
-        double[][] rawU = svd.getU().getRawMatrix();
+        double[][] rawU = this.u.getRawMatrix();
         double[][] rawS = copy.getRawMatrix();
-        double[][] rawV = svd.getV().getRawMatrix();
+        double[][] rawV = this.v.getRawMatrix();
 
         DoubleMatrix2D u = new DenseDoubleMatrix2D( rawU );
         DoubleMatrix2D s = new DenseDoubleMatrix2D( rawS );
@@ -321,8 +376,9 @@ public class ExpressionDataSVD {
         if ( !normalized ) {
             throw new IllegalStateException( "You must do SVD on the normalized matrix" );
         }
+        this.checkNotTruncated();
 
-        DoubleMatrix<CompositeSequence, Integer> rawUMatrix = svd.getU();
+        DoubleMatrix<CompositeSequence, Integer> rawUMatrix = this.u;
 
         DoubleMatrix<CompositeSequence, BioMaterial> result = new DenseDoubleMatrix<>( rawUMatrix.rows(),
                 rawUMatrix.columns() );
@@ -333,7 +389,7 @@ public class ExpressionDataSVD {
                 result.set( i, j, Math.abs( rawUMatrix.get( i, j ) ) );
             }
         }
-        List<BioMaterial> colNames = svd.getV().getColNames();
+        List<BioMaterial> colNames = this.v.getColNames();
 
         result.setColumnNames( colNames );
         result.setRowNames( rawUMatrix.getRowNames() );
@@ -354,6 +410,7 @@ public class ExpressionDataSVD {
         if ( thresholdQuantile <= 0 || thresholdQuantile >= 1 ) {
             throw new IllegalArgumentException( "Threshold quantile should be a value between 0 and 1 exclusive" );
         }
+        this.checkNotTruncated();
 
         class NormCmp implements Comparable<NormCmp> {
             private Double norm;
@@ -426,6 +483,84 @@ public class ExpressionDataSVD {
 
     }
 
+    private void checkNotTruncated() {
+        if ( this.truncated ) {
+            throw new IllegalStateException( "This requires the full decomposition, but only " + this.getNumComponents()
+                    + " components were computed" );
+        }
+    }
+
+    /**
+     * Computes the first numComponents components from the eigendecomposition of E'E = V S^2 V', then U = E V S^-1.
+     * Only E'E (samples x samples) and the requested columns of U and V are held in memory.
+     */
+    private void decomposeTruncated( DoubleMatrix<CompositeSequence, BioMaterial> matrix, int numComponents ) {
+        int m = matrix.rows();
+        int n = matrix.columns();
+
+        // E'E: fill in the lower triangle one row of E at a time, then copy it to the upper triangle.
+        double[][] gram = new double[n][n];
+        for ( int r = 0; r < m; r++ ) {
+            double[] row = matrix.getRow( r );
+            for ( int i = 0; i < n; i++ ) {
+                double x = row[i];
+                double[] g = gram[i];
+                for ( int j = 0; j <= i; j++ ) {
+                    g[j] += x * row[j];
+                }
+            }
+        }
+        for ( int i = 0; i < n; i++ ) {
+            for ( int j = 0; j < i; j++ ) {
+                gram[j][i] = gram[i][j];
+            }
+        }
+
+        // for a symmetric matrix the eigenvalues come back in increasing order.
+        EigenvalueDecomposition eig = new EigenvalueDecomposition( new DenseDoubleMatrix2D( gram ) );
+        DoubleMatrix1D eigenvalues = eig.getRealEigenvalues();
+        DoubleMatrix2D eigenvectors = eig.getV();
+
+        this.singularValues = new double[n];
+        for ( int i = 0; i < n; i++ ) {
+            // rounding can make the smallest ones slightly negative.
+            this.singularValues[i] = Math.sqrt( Math.max( 0.0, eigenvalues.get( n - 1 - i ) ) );
+        }
+
+        List<Integer> componentNames = new ArrayList<>( numComponents );
+        double[][] rawV = new double[n][numComponents];
+        this.s = new DenseDoubleMatrix<>( numComponents, numComponents );
+        for ( int c = 0; c < numComponents; c++ ) {
+            componentNames.add( c );
+            this.s.set( c, c, this.singularValues[c] );
+            for ( int j = 0; j < n; j++ ) {
+                rawV[j][c] = eigenvectors.get( j, n - 1 - c );
+            }
+        }
+        this.s.setRowNames( componentNames );
+        this.s.setColumnNames( componentNames );
+        this.v = new DenseDoubleMatrix<>( rawV );
+
+        // components with (numerically) zero singular values have no defined left singular vector; leave them zero.
+        double tolerance = this.singularValues[0] * 1e-10;
+        this.u = new DenseDoubleMatrix<>( m, numComponents );
+        for ( int r = 0; r < m; r++ ) {
+            double[] row = matrix.getRow( r );
+            for ( int c = 0; c < numComponents; c++ ) {
+                if ( this.singularValues[c] <= tolerance ) {
+                    continue;
+                }
+                double d = 0.0;
+                for ( int j = 0; j < n; j++ ) {
+                    d += row[j] * rawV[j][c];
+                }
+                this.u.set( r, c, d / this.singularValues[c] );
+            }
+        }
+        this.u.setRowNames( matrix.getRowNames() );
+        this.u.setColumnNames( componentNames );
+    }
+
     /**
      * Simple imputation method. Generally (but not always), missing values correspond to "low expression". Therefore
      * imputed values of zero are defensible. However, because at this point the matrix has probably already been
@@ -32,6 +32,13 @@ public interface SVDService {
 
     SVDValueObject svd( Long eeId );
 
+    /**
+     * @param eeId          experiment id
+     * @param numComponents how many components to compute; 0 for the full decomposition.
+     * @return SVD VO
+     */
+    SVDValueObject svd( Long eeId, int numComponents );
+
     SVDValueObject getSvdFactorAnalysis( Long eeId );
 
 }
@@ -43,6 +43,14 @@ public interface SVDServiceHelper {
     @Secured({ "GROUP_USER", "ACL_SECURABLE_EDIT" })
     SVDValueObject svd( ExpressionExperiment ee );
 
+    /**
+     * @param ee            experiment
+     * @param numComponents how many components to compute; 0 for the full decomposition.
+     * @return SVD VO
+     */
+    @Secured({ "GROUP_USER", "ACL_SECURABLE_EDIT" })
+    SVDValueObject svd( ExpressionExperiment ee, int numComponents );
+
     @Secured({ "IS_AUTHENTICATED_ANONYMOUSLY", "ACL_SECURABLE_READ" })
     Map<ProbeLoading, DoubleVectorValueObject> getTopLoadedVectors( ExpressionExperiment ee, int component, int count );
 
@@ -27,6 +27,7 @@ import ubic.basecode.math.Distance;
 import ubic.basecode.math.KruskalWallis;
 import ubic.gemma.core.analysis.util.ExperimentalDesignUtils;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
+import ubic.gemma.core.visualization.QCImageCache;
 import ubic.gemma.model.analysis.expression.pca.PrincipalComponentAnalysis;
 import ubic.gemma.model.analysis.expression.pca.ProbeLoading;
 import ubic.gemma.model.common.auditAndSecurity.eventType.PCAAnalysisEvent;
@@ -45,6 +46,7 @@ import ubic.gemma.persistence.service.common.auditAndSecurity.AuditTrailService;
 import ubic.gemma.persistence.service.expression.bioAssayData.ProcessedExpressionDataVectorService;
 import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentService;
 import ubic.gemma.persistence.util.EntityUtils;
+import ubic.gemma.persistence.util.Settings;
 
 import java.util.*;
 
@@ -71,6 +73,11 @@ public class SVDServiceHelperImpl implements SVDServiceHelper {
 
     private static final int MAX_EIGEN_GENES_TO_TEST = 5;
 
+    /**
+     * How many components to compute when none are asked for; 0 means the full decomposition.
+     */
+    private static final int DEFAULT_NUM_COMPONENTS = Math.max( 0, Settings.getInt( "gemma.svd.components", 0 ) );
+
     private static final Log log = LogFactory.getLog( SVDServiceHelperImpl.class );
 
     @Autowired
@@ -85,6 +92,9 @@ public class SVDServiceHelperImpl implements SVDServiceHelper {
     @Autowired
     private ExpressionExperimentService expressionExperimentService;
 
+    @Autowired
+    private QCImageCache qcImageCache;
+
     public static void populateBMFMap( Map<ExperimentalFactor, Map<Long, Double>> bioMaterialFactorMap,
             BioMaterial bm ) {
         for ( FactorValue fv : bm.getFactorValues() ) {
@@ -142,6 +152,11 @@ public class SVDServiceHelperImpl implements SVDServiceHelper {
 
     @Override
     public SVDValueObject svd( ExpressionExperiment ee ) {
+        return this.svd( ee, SVDServiceHelperImpl.DEFAULT_NUM_COMPONENTS );
+    }
+
+    @Override
+    public SVDValueObject svd( ExpressionExperiment ee, int numComponents ) {
         assert ee != null;
 
         Collection<ProcessedExpressionDataVector> vectors = processedExpressionDataVectorService
@@ -155,7 +170,11 @@ public class SVDServiceHelperImpl implements SVDServiceHelper {
         ExpressionDataDoubleMatrix mat = new ExpressionDataDoubleMatrix( vectors );
 
         SVDServiceHelperImpl.log.info( "Starting SVD" );
-        ExpressionDataSVD svd = new ExpressionDataSVD( mat );
+        ExpressionDataSVD svd = new ExpressionDataSVD( mat, true, numComponents );
+
+        if ( svd.isTruncated() ) {
+            this.logTruncatedVariance( svd );
+        }
 
         SVDServiceHelperImpl.log.info( "SVD done, postprocessing and storing results." );
 
@@ -573,6 +592,27 @@ public class SVDServiceHelperImpl implements SVDServiceHelper {
 
     }
 
+    /**
+     * The variance fractions of a truncated decomposition are computed over all the singular values, exactly as for
+     * the full one, so the stored fractions agree with a full decomposition up to rounding. What is lost is the
+     * vectors for the components that were not computed; report how much of the variance they account for.
+     */
+    private void logTruncatedVariance( ExpressionDataSVD svd ) {
+        Double[] varianceFractions = svd.getVarianceFractions();
+        double explained = 0.0;
+        for ( int i = 0; i < svd.getNumComponents(); i++ ) {
+            explained += varianceFractions[i];
+        }
+        SVDServiceHelperImpl.log.info( String.format(
+                "Truncated SVD: computed %d of %d components; they explain %.4f of the variance, "
+                        + "%.4f is in components with no stored eigenvector", svd.getNumComponents(),
+                varianceFractions.length, explained, 1.0 - explained ) );
+        if ( svd.getNumComponents() < SVDServiceHelperImpl.MAX_NUM_COMPONENTS_TO_PERSIST ) {
+            SVDServiceHelperImpl.log.warn( "Only " + svd.getNumComponents() + " components computed, loadings for "
+                    + SVDServiceHelperImpl.MAX_NUM_COMPONENTS_TO_PERSIST + " are normally stored" );
+        }
+    }
+
     private PrincipalComponentAnalysis updatePca( ExpressionExperiment ee, ExpressionDataSVD svd,
             DoubleMatrix<Integer, BioMaterial> v, BioAssayDimension b ) {
         principalComponentAnalysisService.removeForExperiment( ee );
@@ -582,6 +622,7 @@ public class SVDServiceHelperImpl implements SVDServiceHelper {
 
         ee = expressionExperimentService.thawLite( ee ); // I wish this wasn't needed.
         auditTrailService.addUpdateEvent( ee, PCAAnalysisEvent.class, "SVD computation", null );
+        qcImageCache.clearCache( ee.getId() );
         return pca;
     }
 
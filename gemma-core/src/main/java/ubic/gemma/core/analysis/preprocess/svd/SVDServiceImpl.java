@@ -81,4 +81,12 @@ public class SVDServiceImpl implements SVDService {
         return svdServiceHelper.svd( ee );
     }
 
+    @Override
+    public SVDValueObject svd( Long eeId, int numComponents ) {
+
+        ExpressionExperiment ee = expressionExperimentService.load( eeId );
+
+        return svdServiceHelper.svd( ee, numComponents );
+    }
+
 }
@@ -23,6 +23,7 @@ import ubic.gemma.model.expression.experiment.ExpressionExperiment;
 import ubic.gemma.model.expression.experiment.ExpressionExperimentDetailsValueObject;
 
 import java.util.Collection;
+import java.util.Date;
 
 /**
  * Methods for reading and creating reports on ExpressinExperiments. Reports are typically updated either on demand or
@@ -54,6 +55,22 @@ public interface ExpressionExperimentReportService {
     @Secured({ "GROUP_AGENT" })
     void generateSummaryObjects();
 
+    /**
+     * Regenerates the reports for experiments that were updated since the given date.
+     *
+     * @param since date; only the day is used.
+     */
+    @Secured({ "GROUP_AGENT" })
+    void generateSummaryObjectsUpdatedSince( Date since );
+
+    /**
+     * Regenerates the reports for experiments that were updated since the last time reports were generated for all
+     * experiments or refreshed; if there was no such run, for all of them.
+     * The time of the last run is only kept in memory, so the first refresh after a restart regenerates all of them.
+     */
+    @Secured({ "GROUP_AGENT" })
+    void refreshSummaryObjects();
+
     void getAnnotationInformation( Collection<ExpressionExperimentDetailsValueObject> vos );
 
     void populateEventInformation( Collection<ExpressionExperimentDetailsValueObject> vos );
@@ -69,7 +86,7 @@ public interface ExpressionExperimentReportService {
      * retrieves a collection of cached value objects containing summary information
      *
      * @param ids the ids of ees for which the summary objects should be retrieved.
-     * @return a collection of cached value objects
+     * @return copies of the cached value objects, with the current user's permissions
      */
     @SuppressWarnings("unused")
     // Possible external use
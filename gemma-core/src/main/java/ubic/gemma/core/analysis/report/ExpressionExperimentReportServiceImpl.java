@@ -18,15 +18,19 @@
  */
 package ubic.gemma.core.analysis.report;
 
+import gemma.gsec.SecurityService;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
+import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.access.annotation.Secured;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 import ubic.gemma.core.visualization.ExperimentalDesignVisualizationService;
 import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysisValueObject;
@@ -45,7 +49,13 @@ import ubic.gemma.persistence.util.CacheUtils;
 import ubic.gemma.persistence.util.EntityUtils;
 import ubic.gemma.persistence.util.Settings;
 
+import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handles creation, serialization and/or marshaling of reports about expression experiments. Reports are stored in
@@ -61,6 +71,11 @@ public class ExpressionExperimentReportServiceImpl implements ExpressionExperime
     private static final String NOTE_UPDATED_CONFOUND = "Updated batch confound";
     private static final String NOTE_UPDATED_EFFECT = "Updated batch effect";
     private static final String EESTATS_CACHE_NAME = "ExpressionExperimentReportsCache";
+    /**
+     * How many reports to build at once; each batch takes the same few queries regardless of its size.
+     */
+    private static final int REPORT_BATCH_SIZE = 500;
+    private static final int REPORT_THREADS = Math.max( 1, Settings.getInt( "gemma.reports.threads", 2 ) );
     private final Log log = LogFactory.getLog( this.getClass() );
     /**
      * Batch of classes we can get events for all at once.
@@ -84,12 +99,23 @@ public class ExpressionExperimentReportServiceImpl implements ExpressionExperime
     private ExpressionExperimentService expressionExperimentService;
     @Autowired
     private ProcessedDataVectorCache processedDataVectorCache;
+    @Autowired
+    private SecurityService securityService;
 
     /**
-     * Cache to hold stats in memory. This is used to avoid hittinig the disk for reports too often.
+     * Cache to hold stats in memory. This is used to avoid hittinig the disk for reports too often. The reports are
+     * shared by all users, so they are cached without the current user's permissions, which are filled in on copies
+     * when reports are handed out.
      */
     private Cache statsCache;
 
+    /**
+     * When the last run over all or updated experiments started, for incremental refreshes. Only kept in memory: after
+     * a restart the reports cache is empty (unless it is disk persistent) anyway, so the first refresh regenerates the
+     * reports for all experiments.
+     */
+    private volatile Date lastSummaryRun = null;
+
     @Override
     public void afterPropertiesSet() {
         boolean terracottaEnabled = Settings.getBoolean( "gemma.cache.clustered", false );
@@ -116,7 +142,7 @@ public class ExpressionExperimentReportServiceImpl implements ExpressionExperime
         Collection<Long> ids = Collections.singletonList( id );
         Collection<ExpressionExperimentDetailsValueObject> results = this.generateSummaryObjects( ids );
         if ( results.size() > 0 ) {
-            return results.iterator().next();
+            return this.forCurrentUser( results ).iterator().next();
         }
         return null;
     }
@@ -124,10 +150,32 @@ public class ExpressionExperimentReportServiceImpl implements ExpressionExperime
     @Override
     @Secured({ "GROUP_AGENT" })
     public void generateSummaryObjects() {
+        Date started = new Date();
         Collection<Long> ids = EntityUtils.getIds( expressionExperimentService.loadAll() );
-        Collection<ExpressionExperimentDetailsValueObject> vos = expressionExperimentService
-                .loadDetailsValueObjects( null, false, ids, null, 0, 0 );
-        this.getStats( vos );
+        this.generateSummaryObjectsInBatches( ids );
+        this.lastSummaryRun = started;
+    }
+
+    @Override
+    @Secured({ "GROUP_AGENT" })
+    public void generateSummaryObjectsUpdatedSince( Date since ) {
+        Collection<Long> ids = EntityUtils.getIds( expressionExperimentService.findUpdatedAfter( since ) );
+        log.info( ids.size() + " experiments were updated since " + since );
+        this.generateSummaryObjectsInBatches( ids );
+    }
+
+    @Override
+    @Secured({ "GROUP_AGENT" })
+    public void refreshSummaryObjects() {
+        Date since = this.lastSummaryRun;
+        if ( since == null ) {
+            log.info( "No earlier report generation, generating reports for all experiments" );
+            this.generateSummaryObjects();
+            return;
+        }
+        Date started = new Date();
+        this.generateSummaryObjectsUpdatedSince( since );
+        this.lastSummaryRun = started;
     }
 
     /**
@@ -291,7 +339,8 @@ public class ExpressionExperimentReportServiceImpl implements ExpressionExperime
             ids.add( vo.getId() );
         }
 
-        Collection<ExpressionExperimentDetailsValueObject> cachedVos = this.retrieveSummaryObjects( ids );
+        // only the user-independent parts of the reports are used.
+        Collection<ExpressionExperimentDetailsValueObject> cachedVos = this.retrieveCachedSummaryObjects( ids );
         Map<Long, ExpressionExperimentDetailsValueObject> id2cachedVo = EntityUtils.getIdMap( cachedVos );
 
         for ( ExpressionExperimentDetailsValueObject eeVo : vos ) {
@@ -315,10 +364,19 @@ public class ExpressionExperimentReportServiceImpl implements ExpressionExperime
 
     @Override
     public Collection<ExpressionExperimentDetailsValueObject> retrieveSummaryObjects( Collection<Long> ids ) {
+        return this.forCurrentUser( this.retrieveCachedSummaryObjects( ids ) );
+    }
+
+    /**
+     * @return the cached reports (generating missing ones), which must not be modified: they are shared by all users
+     * and don't have the current user's permissions.
+     */
+    private Collection<ExpressionExperimentDetailsValueObject> retrieveCachedSummaryObjects( Collection<Long> ids ) {
         Collection<ExpressionExperimentDetailsValueObject> eeValueObjects = new ArrayList<>();
         Collection<Long> filteredIds = this.securityFilterExpressionExperimentIds( ids );
 
         int incache = 0;
+        Collection<Long> missing = new ArrayList<>();
         for ( Long id : filteredIds ) {
 
             Element cachedElement = this.statsCache.get( id );
@@ -331,8 +389,10 @@ public class ExpressionExperimentReportServiceImpl implements ExpressionExperime
                 continue;
             }
 
-            ExpressionExperimentDetailsValueObject valueObject = this.generateSummary( id );
-            eeValueObjects.add( valueObject );
+            missing.add( id );
+        }
+        if ( !missing.isEmpty() ) {
+            eeValueObjects.addAll( this.generateSummaryObjects( missing ) );
         }
         if ( ids.size() > 1 ) {
             log.info( incache + "/" + ids.size() + " reports were found in the cache" );
@@ -403,18 +463,121 @@ public class ExpressionExperimentReportServiceImpl implements ExpressionExperime
     }
 
     private Collection<ExpressionExperimentDetailsValueObject> generateSummaryObjects( Collection<Long> ids ) {
+        for ( Long id : ids ) {
+            this.evictFromCache( id );
+        }
+        return this.generateSummaryObjectsInBatches( ids );
+    }
+
+    /**
+     * Build the reports for the given experiments and put them in the cache. Large requests are split into batches of
+     * REPORT_BATCH_SIZE that are built on REPORT_THREADS threads.
+     */
+    private Collection<ExpressionExperimentDetailsValueObject> generateSummaryObjectsInBatches(
+            Collection<Long> ids ) {
+        final List<Long> idList = new ArrayList<>( ids );
+        if ( idList.size() <= ExpressionExperimentReportServiceImpl.REPORT_BATCH_SIZE ) {
+            return this.generateSummaryBatch( idList );
+        }
+
+        final int total = idList.size();
+        final StopWatch timer = new StopWatch();
+        timer.start();
+        final AtomicInteger done = new AtomicInteger( 0 );
+        final SecurityContext context = SecurityContextHolder.getContext();
+        List<Callable<Collection<ExpressionExperimentDetailsValueObject>>> tasks = new ArrayList<>();
+        int batchSize = ExpressionExperimentReportServiceImpl.REPORT_BATCH_SIZE;
+        for ( int start = 0; start < total; start += batchSize ) {
+            final List<Long> batch = idList.subList( start, Math.min( total, start + batchSize ) );
+            tasks.add( new Callable<Collection<ExpressionExperimentDetailsValueObject>>() {
+                @Override
+                public Collection<ExpressionExperimentDetailsValueObject> call() {
+                    SecurityContextHolder.setContext( context );
+                    try {
+                        Collection<ExpressionExperimentDetailsValueObject> vos = ExpressionExperimentReportServiceImpl
+                                .this.generateSummaryBatch( batch );
+                        int n = done.addAndGet( batch.size() );
+                        long elapsed = timer.getTime();
+                        log.info( String.format( "Generated reports for %d/%d experiments in %.1fs, about %.0fs to go",
+                                n, total, elapsed / 1000.0, elapsed * ( double ) ( total - n ) / n / 1000.0 ) );
+                        return vos;
+                    } finally {
+                        SecurityContextHolder.clearContext();
+                    }
+                }
+            } );
+        }
+
+        Collection<ExpressionExperimentDetailsValueObject> result = new ArrayList<>( total );
+        ForkJoinPool pool = new ForkJoinPool(
+                Math.min( ExpressionExperimentReportServiceImpl.REPORT_THREADS, tasks.size() ) );
+        try {
+            for ( Future<Collection<ExpressionExperimentDetailsValueObject>> f : pool.invokeAll( tasks ) ) {
+                result.addAll( f.get() );
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
 
+        log.info( result.size() + " experiment reports generated in " + timer.getTime() + "ms" );
+        return result;
+    }
+
+    /**
+     * Build and cache the reports for a batch of experiments, with a fixed number of queries.
+     */
+    private Collection<ExpressionExperimentDetailsValueObject> generateSummaryBatch( Collection<Long> ids ) {
+        if ( ids.isEmpty() ) {
+            return new ArrayList<>();
+        }
         Collection<ExpressionExperimentDetailsValueObject> vos = expressionExperimentService
                 .loadDetailsValueObjects( null, false, ids, null, 0, 0 );
         this.getStats( vos );
 
+        List<Element> elements = new ArrayList<>( vos.size() );
         for ( ExpressionExperimentValueObject vo : vos ) {
-            this.evictFromCache( vo.getId() );
-            statsCache.put( new Element( vo.getId(), vo ) );
+            // these are for whoever happened to generate the report.
+            vo.setUserCanWrite( false );
+            vo.setUserOwned( false );
+            elements.add( new Element( vo.getId(), vo ) );
         }
+        statsCache.putAll( elements );
         return vos;
     }
 
+    /**
+     * @return copies of the cached reports, with the current user's permissions on the experiments.
+     */
+    private Collection<ExpressionExperimentDetailsValueObject> forCurrentUser(
+            Collection<ExpressionExperimentDetailsValueObject> cached ) {
+        if ( cached.isEmpty() ) {
+            return new ArrayList<>();
+        }
+        Map<Long, ExpressionExperiment> ees = EntityUtils
+                .getIdMap( expressionExperimentService.load( EntityUtils.getIds( cached ) ) );
+        Collection<ExpressionExperimentDetailsValueObject> result = new ArrayList<>( cached.size() );
+        for ( ExpressionExperimentDetailsValueObject vo : cached ) {
+            ExpressionExperiment ee = ees.get( vo.getId() );
+            if ( ee == null ) {
+                continue;
+            }
+            ExpressionExperimentDetailsValueObject copy = ( ExpressionExperimentDetailsValueObject ) SerializationUtils
+                    .clone( ( Serializable ) vo );
+            copy.setUserCanWrite( securityService.isEditable( ee ) );
+            copy.setUserOwned( securityService.isOwnedByCurrentUser( ee ) );
+            result.add( copy );
+        }
+        return result;
+    }
+
     private Map<Class<? extends AuditEventType>, Map<Auditable, AuditEvent>> getEvents(
             Collection<ExpressionExperiment> ees, Collection<Class<? extends AuditEventType>> types ) {
 
@@ -433,38 +596,34 @@ public class ExpressionExperimentReportServiceImpl implements ExpressionExperime
     }
 
     /**
-     * Compute statistics for EEs, that aren't immediately part of the value object.
+     * Compute statistics for EEs, that aren't immediately part of the value object. The analyses for all of them are
+     * fetched at once.
      */
     private void getStats( Collection<ExpressionExperimentDetailsValueObject> vos ) {
+        if ( vos.isEmpty() ) {
+            return;
+        }
         log.debug( "Getting stats for " + vos.size() + " value objects." );
-        int count = 0;
-        for ( ExpressionExperimentDetailsValueObject object : vos ) {
-            this.getStats( object );
 
-            if ( ++count % 10 == 0 ) {
-                log.debug( "Processed " + count + " reports." );
+        Map<ExpressionExperimentDetailsValueObject, Collection<DifferentialExpressionAnalysisValueObject>> analyses = differentialExpressionAnalysisService
+                .getAnalysesByExperiment( EntityUtils.getIds( vos ) );
+        Map<Long, Collection<DifferentialExpressionAnalysisValueObject>> analysesById = new HashMap<>();
+        if ( analyses != null ) {
+            for ( ExpressionExperimentDetailsValueObject analyzed : analyses.keySet() ) {
+                analysesById.put( analyzed.getId(), analyses.get( analyzed ) );
             }
         }
-        log.debug( "Done, processed " + count + " reports" );
-    }
-
-    /**
-     * Get the stats report for one EE
-     */
-    private void getStats( ExpressionExperimentDetailsValueObject eeVo ) {
-        Long id = eeVo.getId();
-        assert id != null;
-
-        Map<ExpressionExperimentDetailsValueObject, Collection<DifferentialExpressionAnalysisValueObject>> analysis = differentialExpressionAnalysisService
-                .getAnalysesByExperiment( Collections.singleton( id ) );
-        if ( analysis != null && analysis.containsKey( eeVo ) ) {
-            eeVo.setDifferentialExpressionAnalyses( analysis.get( eeVo ) );
-        }
 
         Date timestamp = new Date( System.currentTimeMillis() );
-        eeVo.setDateCached( timestamp );
-        assert eeVo.getLastUpdated() != null;
-
+        for ( ExpressionExperimentDetailsValueObject eeVo : vos ) {
+            assert eeVo.getId() != null;
+            if ( analysesById.containsKey( eeVo.getId() ) ) {
+                eeVo.setDifferentialExpressionAnalyses( analysesById.get( eeVo.getId() ) );
+            }
+            eeVo.setDateCached( timestamp );
+            assert eeVo.getLastUpdated() != null;
+        }
+        log.debug( "Done, processed " + vos.size() + " reports" );
     }
 
     private Collection<Long> securityFilterExpressionExperimentIds( Collection<Long> ids ) {
@@ -26,6 +26,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import ubic.gemma.core.analysis.expression.diff.DifferentialExpressionAnalysisConfig;
 import ubic.gemma.core.analysis.expression.diff.DifferentialExpressionAnalyzerService;
+import ubic.gemma.core.analysis.expression.diff.DifferentialExpressionBatchAnalyzer;
 import ubic.gemma.core.analysis.expression.diff.DifferentialExpressionAnalyzerServiceImpl.AnalysisType;
 import ubic.gemma.core.analysis.preprocess.batcheffects.BatchInfoPopulationServiceImpl;
 import ubic.gemma.core.analysis.service.ExpressionDataFileService;
@@ -77,6 +78,11 @@ public class DifferentialExpressionAnalysisCli extends ExpressionExperimentManip
 
     private boolean persist = true;
 
+    /**
+     * Used when processing several experiments with more than one thread.
+     */
+    private DifferentialExpressionBatchAnalyzer.Batch batch = null;
+
     @Override
     public String getCommandName() {
         return "diffExAnalyze";
@@ -86,6 +92,23 @@ public class DifferentialExpressionAnalysisCli extends ExpressionExperimentManip
     protected void doWork() throws Exception {
         SecurityService securityService = this.getBean( SecurityService.class );
 
+        if ( this.numThreads > 1 && expressionExperiments.size() > 1 ) {
+            this.batch = this.getBean( DifferentialExpressionBatchAnalyzer.class )
+                    .start( this.numThreads, new DifferentialExpressionBatchAnalyzer.BatchListener() {
+                        @Override
+                        public void analysisSucceeded( ExpressionExperiment ee,
+                                Collection<DifferentialExpressionAnalysis> analyses ) {
+                            addSuccessObject( ee, "Successfully processed " + ee.getShortName() );
+                        }
+
+                        @Override
+                        public void analysisFailed( ExpressionExperiment ee, Exception e ) {
+                            ExceptionUtils.printRootCauseStackTrace( e );
+                            addErrorObject( ee, e.getMessage(), e );
+                        }
+                    } );
+        }
+
         for ( BioAssaySet ee : expressionExperiments ) {
             if ( !( ee instanceof ExpressionExperiment ) ) {
                 continue;
@@ -107,6 +130,10 @@ public class DifferentialExpressionAnalysisCli extends ExpressionExperimentManip
 
             this.processExperiment( ( ExpressionExperiment ) ee );
         }
+
+        if ( this.batch != null ) {
+            this.batch.awaitCompletion();
+        }
     }
 
     @Override
@@ -172,6 +199,8 @@ public class DifferentialExpressionAnalysisCli extends ExpressionExperimentManip
         options.addOption( "ebayes", "Use empirical-Bayes moderated statistics. Default: "
                 + DifferentialExpressionAnalysisConfig.DEFAULT_EBAYES );
 
+        this.addThreadsOption( options );
+
     }
 
     @Override
@@ -230,6 +259,10 @@ public class DifferentialExpressionAnalysisCli extends ExpressionExperimentManip
             this.persist = false;
         }
 
+        if ( commandLine.hasOption( AbstractCLI.THREADS_OPTION ) ) {
+            this.numThreads = this.getIntegerOptionValue( commandLine, AbstractCLI.THREADS_OPTION );
+        }
+
         this.tryToCopyOld = commandLine.hasOption( "redo" );
 
         if ( commandLine.hasOption( "factors" ) ) {
@@ -324,6 +357,10 @@ public class DifferentialExpressionAnalysisCli extends ExpressionExperimentManip
                     config.getInteractionsToInclude().add( factors );
                 }
 
+                if ( this.batch != null ) {
+                    this.batch.submit( ee, config );
+                    return;
+                }
                 results = this.differentialExpressionAnalyzerService.runDifferentialExpressionAnalyses( ee, config );
 
             } else {
@@ -374,6 +411,10 @@ public class DifferentialExpressionAnalysisCli extends ExpressionExperimentManip
                     boolean rnaSeq = super.eeService.isRNASeq( ee );
                     config.setUseWeights( rnaSeq );
 
+                    if ( this.batch != null ) {
+                        this.batch.submit( ee, config );
+                        return;
+                    }
                     results = this.differentialExpressionAnalyzerService
                             .runDifferentialExpressionAnalyses( ee, config );
                 }
@@ -289,6 +289,16 @@ public class LinkAnalysisCli extends ExpressionExperimentManipulatingCLI {
                 .build();
         options.addOption( chooseCutOption );
 
+        Option singlePassOption = Option.builder( "singlepass" ).desc(
+                "With -choosecut cdfCut, select links while computing the distribution, avoiding a second pass over the data where possible" )
+                .build();
+        options.addOption( singlePassOption );
+
+        Option floatKernelOption = Option.builder( "floatkernel" ).desc(
+                "Compute Pearson correlations in single precision from pre-standardized rows; faster, values may differ slightly" )
+                .build();
+        options.addOption( floatKernelOption );
+
         // finer-grained control is possible, of course.
         Option skipQC = Option.builder( "noqc" )
                 .desc( "Skip strict QC for outliers, batch effects and correlation distribution" )
@@ -302,6 +312,7 @@ public class LinkAnalysisCli extends ExpressionExperimentManipulatingCLI {
 
         this.addForceOption( options );
         this.addAutoOption( options );
+        this.addThreadsOption( options );
     }
 
     @Override
@@ -416,13 +427,27 @@ public class LinkAnalysisCli extends ExpressionExperimentManipulatingCLI {
             if ( singularThreshold.equals( "fwe" ) || singularThreshold.equals( "cdfCut" ) || singularThreshold
                     .equals( "none" ) ) {
                 AbstractCLI.log.info( "Singular correlation threshold chosen" );
-                this.linkAnalysisConfig.setSingularThreshold( SingularThreshold.valueOf( singularThreshold ) );
+                this.linkAnalysisConfig
+                        .setSingularThreshold( SingularThreshold.valueOf( singularThreshold.toLowerCase() ) );
             } else {
                 AbstractCLI.log
                         .error( "Must choose 'fwe', 'cdfCut', or 'none' as the singular correlation threshold, defaulting to 'none'" );
             }
         }
 
+        if ( commandLine.hasOption( "singlepass" ) ) {
+            this.linkAnalysisConfig.setSinglePass( true );
+        }
+
+        if ( commandLine.hasOption( "floatkernel" ) ) {
+            this.linkAnalysisConfig.setUseStandardizedKernel( true );
+        }
+
+        if ( commandLine.hasOption( AbstractCLI.THREADS_OPTION ) ) {
+            this.linkAnalysisConfig
+                    .setNumThreads( this.getIntegerOptionValue( commandLine, AbstractCLI.THREADS_OPTION ) );
+        }
+
         if ( commandLine.hasOption( "probeDegreeLim" ) ) {
             this.linkAnalysisConfig.setProbeDegreeThreshold( this.getIntegerOptionValue( commandLine, "probeDegreeLim" ) );
         }
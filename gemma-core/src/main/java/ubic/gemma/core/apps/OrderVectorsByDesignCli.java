@@ -49,6 +49,7 @@ public class OrderVectorsByDesignCli extends ExpressionExperimentManipulatingCLI
             }
             ee = this.eeService.thawLite( ( ExpressionExperiment ) ee );
             processedExpressionDataVectorService.reorderByDesign( ee.getId() );
+            processedExpressionDataVectorService.updateDataStore( ( ExpressionExperiment ) ee );
         }
     }
 
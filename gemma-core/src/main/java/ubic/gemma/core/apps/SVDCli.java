@@ -20,6 +20,7 @@
 package ubic.gemma.core.apps;
 
 import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import ubic.gemma.core.analysis.preprocess.svd.SVDService;
 import ubic.gemma.core.apps.GemmaCLI.CommandGroup;
@@ -33,6 +34,11 @@ import ubic.gemma.model.expression.experiment.ExpressionExperiment;
  */
 public class SVDCli extends ExpressionExperimentManipulatingCLI {
 
+    /**
+     * Null to use the configured default.
+     */
+    private Integer numComponents = null;
+
     @Override
     public String getShortDesc() {
         return "Run PCA (using SVD) on data sets";
@@ -47,6 +53,20 @@ public class SVDCli extends ExpressionExperimentManipulatingCLI {
     protected void buildOptions( Options options ) {
         super.buildOptions( options );
         super.addForceOption( options );
+        options.addOption( Option.builder( "components" ).hasArg().argName( "number" ).desc(
+                "Number of components to compute; 0 for all of them. A few are much faster for data sets with many "
+                        + "samples. Default is gemma.svd.components" ).build() );
+    }
+
+    @Override
+    protected void processOptions( CommandLine commandLine ) {
+        super.processOptions( commandLine );
+        if ( commandLine.hasOption( "components" ) ) {
+            this.numComponents = this.getIntegerOptionValue( commandLine, "components" );
+            if ( this.numComponents < 0 ) {
+                throw new IllegalArgumentException( "Number of components cannot be negative" );
+            }
+        }
     }
 
     @Override
@@ -69,7 +89,11 @@ public class SVDCli extends ExpressionExperimentManipulatingCLI {
                 AbstractCLI.log.info( "Processing: " + bas );
                 ExpressionExperiment ee = ( ExpressionExperiment ) bas;
 
-                svdService.svd( ee.getId() );
+                if ( this.numComponents == null ) {
+                    svdService.svd( ee.getId() );
+                } else {
+                    svdService.svd( ee.getId(), this.numComponents );
+                }
 
                 addSuccessObject( bas, "Successfully processed " + bas );
             } catch ( Exception e ) {
@@ -295,7 +295,8 @@ abstract public class BaseExpressionDataMatrix<T> implements ExpressionDataMatri
         assert this.bioAssayDimensions != null && this.bioAssayDimensions.size() > 0 : "No bioAssayDimensions defined";
 
         Map<BioMaterial, Collection<BioAssay>> bioMaterialMap = new LinkedHashMap<>();
-        for ( BioAssayDimension dimension : this.bioAssayDimensions.values() ) {
+        // there is usually just one dimension for all the rows.
+        for ( BioAssayDimension dimension : new LinkedHashSet<>( this.bioAssayDimensions.values() ) ) {
             List<BioAssay> bioAssays = dimension.getBioAssays();
             BaseExpressionDataMatrix.log.debug( "Processing: " + dimension + " with " + bioAssays.size() + " assays" );
             this.getBioMaterialGroupsForAssays( bioMaterialMap, bioAssays );
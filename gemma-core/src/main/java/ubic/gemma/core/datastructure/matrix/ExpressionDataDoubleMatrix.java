@@ -140,26 +140,23 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
         this.columnBioMaterialMap = sourceMatrix.columnBioMaterialMap;
         this.columnBioMaterialMapByInteger = sourceMatrix.columnBioMaterialMapByInteger;
         this.quantitationTypes = sourceMatrix.getQuantitationTypes();
-        this.matrix = new DenseDoubleMatrix<>( rowsToUse.size(), sourceMatrix.columns() );
-        this.matrix.setColumnNames( sourceMatrix.getMatrix().getColNames() );
 
         ExpressionDataDoubleMatrix.log
                 .debug( "Creating a filtered matrix " + rowsToUse.size() + " x " + sourceMatrix.columns() );
 
+        double[][] data = new double[rowsToUse.size()][];
         int i = 0;
         for ( CompositeSequence element : rowsToUse ) {
             super.addToRowMaps( i, element );
-            Double[] rowVals = sourceMatrix.getRow( element );
-            assert rowVals != null : "Source matrix does not have row for " + element;
-
-            this.matrix.addRowName( element );
-
-            for ( int j = 0; j < rowVals.length; j++ ) {
-                Double val = rowVals[j];
-                this.set( i, j, val );
-            }
+            int sourceRow = sourceMatrix.getRowIndex( element );
+            assert sourceRow >= 0 : "Source matrix does not have row for " + element;
+            data[i] = sourceMatrix.getRawRow( sourceRow );
             i++;
         }
+
+        this.matrix = ExpressionDataDoubleMatrix.createMatrix( data, sourceMatrix.columns() );
+        this.matrix.setRowNames( rowsToUse );
+        this.matrix.setColumnNames( sourceMatrix.getMatrix().getColNames() );
     }
 
     /**
@@ -242,38 +239,41 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
         this.init();
         this.expressionExperiment = sourceMatrix.expressionExperiment;
 
-        this.matrix = new DenseDoubleMatrix<>( sourceMatrix.rows(), columnsToUse.size() );
-        this.matrix.setRowNames( sourceMatrix.getMatrix().getRowNames() );
-        this.matrix.setColumnNames( columnsToUse );
-
         this.ranks = sourceMatrix.ranks; // not strictly correct if we are using subcolumns
 
         this.getQuantitationTypes().addAll( sourceMatrix.getQuantitationTypes() );
 
-        List<Integer> originalBioMaterialIndices = new ArrayList<>();
+        int[] originalBioMaterialIndices = new int[columnsToUse.size()];
+        int j = 0;
         for ( BioMaterial bm : columnsToUse ) {
-            originalBioMaterialIndices.add( sourceMatrix.getColumnIndex( bm ) );
+            originalBioMaterialIndices[j++] = sourceMatrix.getColumnIndex( bm );
         }
 
         this.bioAssayDimensions.clear();
 
+        double[][] data = new double[sourceMatrix.rows()][];
         int i = 0;
         for ( ExpressionDataMatrixRowElement element : sourceMatrix.getRowElements() ) {
             CompositeSequence designElement = element.getDesignElement();
             super.addToRowMaps( i, designElement );
 
-            Double[] sourceRow = sourceMatrix.getRow( designElement );
-
-            assert sourceRow != null : "Source matrix does not have row for " + designElement;
+            int sourceRowIndex = sourceMatrix.getRowIndex( designElement );
+            assert sourceRowIndex >= 0 : "Source matrix does not have row for " + designElement;
+            double[] sourceRow = sourceMatrix.getRawRow( sourceRowIndex );
             bioAssayDimensions.put( designElement, reorderedDim );
 
-            for ( int j = 0; j < originalBioMaterialIndices.size(); j++ ) {
-                Double val = sourceRow[originalBioMaterialIndices.get( j )];
-                this.set( i, j, val );
+            double[] row = new double[originalBioMaterialIndices.length];
+            for ( j = 0; j < originalBioMaterialIndices.length; j++ ) {
+                row[j] = sourceRow[originalBioMaterialIndices[j]];
             }
+            data[i] = row;
             i++;
         }
 
+        this.matrix = ExpressionDataDoubleMatrix.createMatrix( data, columnsToUse.size() );
+        this.matrix.setRowNames( sourceMatrix.getMatrix().getRowNames() );
+        this.matrix.setColumnNames( columnsToUse );
+
         super.setUpColumnElements();
     }
 
@@ -298,6 +298,15 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
         return matrix.get( row, column );
     }
 
+    /**
+     * @param  row    row
+     * @param  column column
+     * @return        the value, as a primitive; missing values are NaN.
+     */
+    public double getAsDouble( int row, int column ) {
+        return matrix.get( row, column );
+    }
+
     @Override
     public Double[][] get( List<CompositeSequence> designElements, List<BioAssay> bioAssays ) {
         throw new UnsupportedOperationException( "Sorry, not implemented yet" );
@@ -321,6 +330,14 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
         return result;
     }
 
+    /**
+     * @param  index column
+     * @return       a copy of the column, as primitives.
+     */
+    public double[] getRawColumn( int index ) {
+        return this.matrix.getColumn( index );
+    }
+
     @Override
     public Double[][] getColumns( List<BioAssay> bioAssays ) {
         throw new UnsupportedOperationException( "Sorry, not implemented yet" );
@@ -371,8 +388,8 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
     @Override
     public boolean hasMissingValues() {
         for ( int i = 0; i < matrix.rows(); i++ ) {
-            for ( int j = 0; j < matrix.columns(); j++ ) {
-                if ( Double.isNaN( matrix.get( i, j ) ) )
+            for ( double v : matrix.getRow( i ) ) {
+                if ( Double.isNaN( v ) )
                     return true;
             }
         }
@@ -407,7 +424,7 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
 
         for ( int i = 0; i < this.rows(); i++ ) {
 
-            Double[] data = this.getRow( i );
+            double[] data = this.getRawRow( i );
 
             ProcessedExpressionDataVector v = ProcessedExpressionDataVector.Factory.newInstance();
             v.setBioAssayDimension( this.getBestBioAssayDimension() );
@@ -439,7 +456,7 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
 
         for ( int i = 0; i < this.rows(); i++ ) {
 
-            Double[] data = this.getRow( i );
+            double[] data = this.getRawRow( i );
 
             RawExpressionDataVector v = RawExpressionDataVector.Factory.newInstance();
             v.setBioAssayDimension( this.getBestBioAssayDimension() );
@@ -469,10 +486,25 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
         return this.ranks;
     }
 
-    public double[] getRawRow( Integer index ) {
+    /**
+     * @param  index row
+     * @return       a copy of the row, as primitives; this is much cheaper than {@link #getRow(Integer)}.
+     */
+    public double[] getRawRow( int index ) {
         return matrix.getRow( index );
     }
 
+    /**
+     * @return a copy of the data, as rows of primitives.
+     */
+    public double[][] getRawRows() {
+        double[][] result = new double[matrix.rows()][];
+        for ( int i = 0; i < result.length; i++ ) {
+            result[i] = matrix.getRow( i );
+        }
+        return result;
+    }
+
     public List<CompositeSequence> getRowNames() {
         return this.getMatrix().getRowNames();
     }
@@ -570,6 +602,18 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
 
     }
 
+    /**
+     * @param  data       rows, which must all have the given number of columns
+     * @param  numColumns number of columns, needed in case there are no rows.
+     * @return            a matrix holding a copy of the data, without row or column names.
+     */
+    private static DoubleMatrix<CompositeSequence, BioMaterial> createMatrix( double[][] data, int numColumns ) {
+        if ( data.length == 0 ) {
+            return new DenseDoubleMatrix<>( 0, numColumns );
+        }
+        return new DenseDoubleMatrix<>( data );
+    }
+
     /**
      * Fill in the data
      *
@@ -580,21 +624,16 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
 
         int numRows = this.rowDesignElementMapByInteger.keySet().size();
 
-        DoubleMatrix<CompositeSequence, BioMaterial> mat = new DenseDoubleMatrix<>( numRows, maxSize );
-
-        for ( int j = 0; j < mat.columns(); j++ ) {
-            mat.addColumnName( this.getBioMaterialForColumn( j ) );
-        }
-
-        // initialize the matrix to -Infinity; this marks values that are not yet initialized.
-        for ( int i = 0; i < mat.rows(); i++ ) {
-            for ( int j = 0; j < mat.columns(); j++ ) {
-                mat.set( i, j, Double.NEGATIVE_INFINITY );
-            }
+        // -Infinity marks values that are not yet initialized.
+        double[][] data = new double[numRows][maxSize];
+        for ( double[] row : data ) {
+            Arrays.fill( row, Double.NEGATIVE_INFINITY );
         }
 
         ByteArrayConverter bac = new ByteArrayConverter();
 
+        // where the values of each dimension go.
+        Map<BioAssayDimension, int[]> columnsForDimension = new HashMap<>();
         Map<Integer, CompositeSequence> rowNames = new TreeMap<>();
         for ( DesignElementDataVector vector : vectors ) {
             BioAssayDimension dimension = vector.getBioAssayDimension();
@@ -616,9 +655,37 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
                         "Mismatch: " + vals.length + " values in vector ( " + bytes.length + " bytes) for "
                                 + designElement + " got " + bioAssays.size() + " bioassays in the bioAssayDimension" );
 
-            Iterator<BioAssay> it = bioAssays.iterator();
+            int[] columns = columnsForDimension.get( dimension );
+            if ( columns == null ) {
+                columns = new int[bioAssays.size()];
+                int j = 0;
+                for ( BioAssay bioAssay : bioAssays ) {
+                    Integer column = this.columnAssayMap.get( bioAssay );
+                    assert column != null;
+                    columns[j++] = column;
+                }
+                columnsForDimension.put( dimension, columns );
+            }
+
+            double[] row = data[rowIndex];
+            for ( int j = 0; j < columns.length; j++ ) {
+                row[columns[j]] = vals[j];
+            }
+        }
 
-            this.setMatBioAssayValues( mat, rowIndex, ArrayUtils.toObject( vals ), bioAssays, it );
+        // fill in remaining missing values.
+        for ( double[] row : data ) {
+            for ( int j = 0; j < row.length; j++ ) {
+                if ( row[j] == Double.NEGATIVE_INFINITY ) {
+                    row[j] = Double.NaN;
+                }
+            }
+        }
+
+        DoubleMatrix<CompositeSequence, BioMaterial> mat = ExpressionDataDoubleMatrix.createMatrix( data, maxSize );
+
+        for ( int j = 0; j < mat.columns(); j++ ) {
+            mat.addColumnName( this.getBioMaterialForColumn( j ) );
         }
 
         /*
@@ -629,15 +696,6 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
         }
         assert mat.getRowNames().size() == mat.rows();
 
-        // fill in remaining missing values.
-        for ( int i = 0; i < mat.rows(); i++ ) {
-            for ( int j = 0; j < mat.columns(); j++ ) {
-                if ( mat.get( i, j ) == Double.NEGATIVE_INFINITY ) {
-                    // log.debug( "Missing value at " + i + " " + j );
-                    mat.set( i, j, Double.NaN );
-                }
-            }
-        }
         ExpressionDataDoubleMatrix.log.debug( "Created a " + mat.rows() + " x " + mat.columns() + " matrix" );
         return mat;
     }
@@ -87,6 +87,7 @@ public class MatrixWriter {
             this.writeHeader( orderedBioMaterials, matrix, geneAnnotations, writeSequence, writeGeneInfo, buf );
         }
 
+        int[] columns = this.getColumnIndices( matrix, orderedBioMaterials );
         for ( int j = 0; j < rows; j++ ) {
             CompositeSequence probeForRow = matrix.getDesignElementForRow( j );
             buf.append( probeForRow.getName() ).append( "\t" );
@@ -96,17 +97,16 @@ public class MatrixWriter {
                 this.addGeneInfoFromStrings( buf, probeForRow, geneAnnotations );
             }
 
-            int orderedBioMLastIndex = orderedBioMaterials.size() - 1;
-
-            for ( BioMaterial bioMaterial : orderedBioMaterials ) {
-                int i = matrix.getColumnIndex( bioMaterial );
-                Object val = matrix.get( j, i );
-
+            double[] doubleRow = this.getRawRow( matrix, j );
+            for ( int k = 0; k < columns.length; k++ ) {
                 // Don't want line to contain a trailing unnecessary tab
-                if ( orderedBioMaterials.indexOf( bioMaterial ) == orderedBioMLastIndex ) {
-                    buf.append( val );
+                if ( k > 0 ) {
+                    buf.append( "\t" );
+                }
+                if ( doubleRow != null ) {
+                    buf.append( doubleRow[columns[k]] );
                 } else {
-                    buf.append( val ).append( "\t" );
+                    buf.append( matrix.get( j, columns[k] ) );
                 }
             }
 
@@ -144,6 +144,7 @@ public class MatrixWriter {
             this.writeHeader( bioMaterials, matrix, geneAnnotations, writeSequence, writeGeneInfo, buf );
         }
 
+        int[] columns = this.getColumnIndices( matrix, bioMaterials );
         for ( int j = 0; j < rows; j++ ) {
             CompositeSequence probeForRow = matrix.getDesignElementForRow( j );
             buf.append( probeForRow.getName() ).append( "\t" );
@@ -154,10 +155,17 @@ public class MatrixWriter {
             }
 
             // print the data.
-            for ( BioMaterial bioMaterial : bioMaterials ) {
+            double[] doubleRow = this.getRawRow( matrix, j );
+            for ( int i : columns ) {
                 buf.append( "\t" );
 
-                int i = matrix.getColumnIndex( bioMaterial );
+                if ( doubleRow != null ) {
+                    if ( !Double.isNaN( doubleRow[i] ) ) {
+                        buf.append( String.format( "%.3g", doubleRow[i] ) );
+                    }
+                    continue;
+                }
+
                 Object val = matrix.get( j, i );
                 if ( val == null || ( val instanceof Double && Double.isNaN( ( Double ) val ) ) ) {
                     //noinspection RedundantStringOperation // being explicit
@@ -198,11 +206,15 @@ public class MatrixWriter {
                 buf.append( ", 'sequence' : \"" ).append( biologicalCharacteristic.getName() ).append( "\"" );
 
             buf.append( ", 'data' : [" );
+            double[] doubleRow = this.getRawRow( matrix, j );
             for ( int i = 0; i < columns; i++ ) {
-                Object val = matrix.get( j, i );
                 if ( i > 0 )
                     buf.append( "," );
-                buf.append( val );
+                if ( doubleRow != null ) {
+                    buf.append( doubleRow[i] );
+                } else {
+                    buf.append( matrix.get( j, i ) );
+                }
             }
 
             buf.append( "]}\n" );
@@ -212,6 +224,25 @@ public class MatrixWriter {
         writer.write( buf.toString() );
     }
 
+    private int[] getColumnIndices( ExpressionDataMatrix<?> matrix, List<BioMaterial> bioMaterials ) {
+        int[] columns = new int[bioMaterials.size()];
+        int k = 0;
+        for ( BioMaterial bioMaterial : bioMaterials ) {
+            columns[k++] = matrix.getColumnIndex( bioMaterial );
+        }
+        return columns;
+    }
+
+    /**
+     * @return the row as primitives if this is a matrix of doubles (to avoid boxing each value), otherwise null.
+     */
+    private double[] getRawRow( ExpressionDataMatrix<?> matrix, int row ) {
+        if ( matrix instanceof ExpressionDataDoubleMatrix ) {
+            return ( ( ExpressionDataDoubleMatrix ) matrix ).getRawRow( row );
+        }
+        return null;
+    }
+
     private List<BioMaterial> getBioMaterialsInRequestedOrder( ExpressionDataMatrix<?> matrix, boolean orderByDesign ) {
         List<BioMaterial> bioMaterials = new ArrayList<>();
         if ( orderByDesign ) {
@@ -0,0 +1,242 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.externalDb;
+
+import java.util.*;
+
+/**
+ * Static per-chromosome interval index for genome annotation tracks. Intervals are added with {@link #add}, then
+ * {@link #build()} sorts them and lays each chromosome out as an implicit augmented binary tree (the layout used by
+ * cgranges): the intervals sorted by start are the in-order traversal of a complete binary tree, and each node
+ * records the largest end in its subtree, so overlap queries take O(log n + hits) without any per-node objects.
+ * Once built the index is read-only and can be queried from several threads.
+ * Coordinates are half-open, <code>[start, end)</code>.
+ *
+ * @param <T> the annotation attached to each interval
+ */
+public class GenomeIntervalIndex<T> {
+
+    /**
+     * Subtrees at this level or below are scanned linearly.
+     */
+    private static final int MIN_TREE_LEVEL = 3;
+
+    private final Map<String, List<Interval<T>>> pending = new HashMap<>();
+    private final Map<String, IntervalTree<T>> trees = new HashMap<>();
+    private int size = 0;
+
+    /**
+     * @param chromosome chromosome name, used as given
+     * @param start      start of the interval
+     * @param end        end of the interval (exclusive)
+     * @param strand     '+' or '-', or null if the interval has no strand
+     * @param value      annotation
+     */
+    public void add( String chromosome, int start, int end, String strand, T value ) {
+        if ( !this.trees.isEmpty() ) {
+            throw new IllegalStateException( "Index was already built" );
+        }
+        if ( end < start ) {
+            throw new IllegalArgumentException( "End must not be less than start" );
+        }
+        if ( !this.pending.containsKey( chromosome ) ) {
+            this.pending.put( chromosome, new ArrayList<Interval<T>>() );
+        }
+        this.pending.get( chromosome ).add( new Interval<>( start, end, GenomeIntervalIndex.toStrand( strand ), value ) );
+        this.size++;
+    }
+
+    /**
+     * Build the index; after this no more intervals can be added.
+     *
+     * @return this
+     */
+    public GenomeIntervalIndex<T> build() {
+        for ( Map.Entry<String, List<Interval<T>>> e : this.pending.entrySet() ) {
+            this.trees.put( e.getKey(), new IntervalTree<>( e.getValue() ) );
+        }
+        this.pending.clear();
+        return this;
+    }
+
+    /**
+     * @param chromosome chromosome name
+     * @param start      start of the query region
+     * @param end        end of the query region (exclusive)
+     * @param strand     '+' or '-' to only return intervals on that strand, or null for both strands
+     * @return annotations of the intervals overlapping the region by at least one base; empty if there are none or
+     *         the chromosome is not in the index.
+     */
+    public List<T> findOverlapping( String chromosome, int start, int end, String strand ) {
+        if ( !this.pending.isEmpty() ) {
+            throw new IllegalStateException( "Index was not built" );
+        }
+        List<T> results = new ArrayList<>();
+        IntervalTree<T> tree = this.trees.get( chromosome );
+        if ( tree != null ) {
+            tree.findOverlapping( start, end, GenomeIntervalIndex.toStrand( strand ), results );
+        }
+        return results;
+    }
+
+    /**
+     * @return the number of intervals
+     */
+    public int size() {
+        return this.size;
+    }
+
+    private static char toStrand( String strand ) {
+        return strand == null || strand.isEmpty() ? 0 : strand.charAt( 0 );
+    }
+
+    private static class Interval<T> {
+        private final int start;
+        private final int end;
+        private final char strand;
+        private final T value;
+
+        private Interval( int start, int end, char strand, T value ) {
+            this.start = start;
+            this.end = end;
+            this.strand = strand;
+            this.value = value;
+        }
+    }
+
+    private static class IntervalTree<T> {
+        private final int[] starts;
+        private final int[] ends;
+        private final int[] maxEnds;
+        private final char[] strands;
+        private final Object[] values;
+        private final int maxLevel;
+
+        private IntervalTree( List<Interval<T>> intervals ) {
+            Collections.sort( intervals, new Comparator<Interval<T>>() {
+                @Override
+                public int compare( Interval<T> o1, Interval<T> o2 ) {
+                    return Integer.compare( o1.start, o2.start );
+                }
+            } );
+
+            int n = intervals.size();
+            this.starts = new int[n];
+            this.ends = new int[n];
+            this.maxEnds = new int[n];
+            this.strands = new char[n];
+            this.values = new Object[n];
+            for ( int i = 0; i < n; i++ ) {
+                Interval<T> interval = intervals.get( i );
+                this.starts[i] = interval.start;
+                this.ends[i] = interval.end;
+                this.strands[i] = interval.strand;
+                this.values[i] = interval.value;
+            }
+            this.maxLevel = this.index();
+        }
+
+        /**
+         * Fill in the largest end of each subtree, bottom up. Nodes whose right subtree lies (partly) past the end of
+         * the array take the largest end seen so far on the rightmost path instead.
+         *
+         * @return the level of the root
+         */
+        private int index() {
+            int n = this.starts.length;
+            if ( n == 0 ) {
+                return -1;
+            }
+
+            int lastI = 0;
+            int last = 0;
+            for ( int i = 0; i < n; i += 2 ) {
+                lastI = i;
+                last = this.maxEnds[i] = this.ends[i];
+            }
+
+            int k;
+            for ( k = 1; 1 << k <= n; k++ ) {
+                int x = 1 << ( k - 1 );
+                int step = x << 2;
+                for ( int i = ( x << 1 ) - 1; i < n; i += step ) {
+                    int endLeft = this.maxEnds[i - x];
+                    int endRight = i + x < n ? this.maxEnds[i + x] : last;
+                    this.maxEnds[i] = Math.max( this.ends[i], Math.max( endLeft, endRight ) );
+                }
+                lastI = ( ( lastI >> k ) & 1 ) != 0 ? lastI - x : lastI + x;
+                if ( lastI < n && this.maxEnds[lastI] > last ) {
+                    last = this.maxEnds[lastI];
+                }
+            }
+            return k - 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void findOverlapping( int start, int end, char strand, Collection<T> results ) {
+            int n = this.starts.length;
+            if ( n == 0 ) {
+                return;
+            }
+
+            // explicit stack of (node, level, left subtree done); it never gets deeper than about twice the height.
+            int[] stackNodes = new int[2 * ( this.maxLevel + 2 )];
+            int[] stackLevels = new int[stackNodes.length];
+            boolean[] stackLeftDone = new boolean[stackNodes.length];
+            int t = 0;
+            stackNodes[t] = ( 1 << this.maxLevel ) - 1;
+            stackLevels[t] = this.maxLevel;
+            stackLeftDone[t++] = false;
+
+            while ( t > 0 ) {
+                t--;
+                int x = stackNodes[t];
+                int k = stackLevels[t];
+                if ( k <= GenomeIntervalIndex.MIN_TREE_LEVEL ) {
+                    int i0 = x >> k << k;
+                    int i1 = Math.min( i0 + ( 1 << ( k + 1 ) ) - 1, n );
+                    for ( int i = i0; i < i1 && this.starts[i] < end; i++ ) {
+                        if ( start < this.ends[i] && this.strandMatches( i, strand ) ) {
+                            results.add( ( T ) this.values[i] );
+                        }
+                    }
+                } else if ( !stackLeftDone[t] ) {
+                    int y = x - ( 1 << ( k - 1 ) );
+                    stackLeftDone[t++] = true;
+                    if ( y >= n || this.maxEnds[y] > start ) {
+                        stackNodes[t] = y;
+                        stackLevels[t] = k - 1;
+                        stackLeftDone[t++] = false;
+                    }
+                } else if ( x < n && this.starts[x] < end ) {
+                    if ( start < this.ends[x] && this.strandMatches( x, strand ) ) {
+                        results.add( ( T ) this.values[x] );
+                    }
+                    stackNodes[t] = x + ( 1 << ( k - 1 ) );
+                    stackLevels[t] = k - 1;
+                    stackLeftDone[t++] = false;
+                }
+            }
+        }
+
+        private boolean strandMatches( int i, char strand ) {
+            return strand == 0 || this.strands[i] == strand;
+        }
+    }
+}
@@ -20,8 +20,11 @@ package ubic.gemma.core.externalDb;
 
 import org.apache.commons.collections.map.LRUMap;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.StopWatch;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import ubic.basecode.util.SQLUtils;
 import ubic.gemma.core.analysis.sequence.ProbeMapperConfig;
 import ubic.gemma.core.analysis.sequence.SequenceManipulation;
@@ -42,9 +45,7 @@ import ubic.gemma.persistence.util.SequenceBinUtils;
 import java.sql.Blob;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 /**
  * Using the Goldenpath databases for comparing sequence alignments to gene locations.
@@ -65,6 +66,38 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
      */
     private final LRUMap cache = new LRUMap( 2000 );
 
+    /*
+     * Queries to load whole tracks for the in-memory index. The gene tracks select the same columns as the location
+     * queries below, followed by the chromosome, start, end and strand to index them by; the alignment tracks add the
+     * chromosome.
+     */
+    private static final String REFGENE_TRACK_QUERY = "SELECT r.name, r.geneName, r.txStart, r.txEnd, r.strand, r.exonStarts, r.exonEnds, CONCAT('Refseq gene: ', kgXref.description), "
+            + " r.chrom, r.txStart, r.txEnd, r.strand FROM refFlat as r left outer join kgXref on r.geneName = kgXref.geneSymbol";
+    private static final String KNOWN_TO_REFSEQ_TRACK_QUERY = "SELECT r.name, r.geneName, r.txStart, r.txEnd, r.strand, r.exonStarts, r.exonEnds, CONCAT('Refseq gene: ', kgr.description), "
+            + " kg.chrom, kg.txStart, kg.txEnd, kg.strand FROM knownGene as kg INNER JOIN knownToRefSeq kr on kr.name=kg.name inner join kgXref kgr on kgr.kgID=kg.name "
+            + " INNER JOIN refFlat r ON r.name=kr.value";
+    private static final String KNOWN_GENE_TRACK_QUERY = "SELECT kgxr.mRNA, kgxr.geneSymbol, kg.txStart, kg.txEnd, kg.strand, kg.exonStarts, kg.exonEnds, CONCAT('Known gene: ', kgxr.description), "
+            + " kg.chrom, kg.txStart, kg.txEnd, kg.strand FROM knownGene as kg INNER JOIN"
+            + " kgXref AS kgxr ON kg.name=kgxr.kgID LEFT OUTER JOIN knownToRefSeq kr on kr.name=kg.name WHERE kr.value IS NULL";
+    private static final String MRNA_TRACK_QUERY = "SELECT mrna.qName, mrna.qName, mrna.tStart, mrna.tEnd, mrna.strand, mrna.blockSizes, mrna.tStarts, mrna.tName "
+            + " FROM all_mrna as mrna";
+    private static final String EST_TRACK_QUERY = "SELECT est.qName, est.qName, est.tStart, est.tEnd, est.strand, est.blockSizes, est.tStarts, est.tName "
+            + " FROM all_est as est";
+
+    /*
+     * In-memory copies of the annotation tracks, if they were loaded with loadIndex; otherwise (or for a track that
+     * was not loaded) the database is queried.
+     */
+    private GenomeIntervalIndex<TrackEntry> refGeneIndex;
+    private GenomeIntervalIndex<TrackEntry> knownGeneIndex;
+    private GenomeIntervalIndex<TrackEntry> mrnaIndex;
+    private GenomeIntervalIndex<TrackEntry> estIndex;
+
+    /**
+     * RefSeq accession to gene symbol, loaded along with the mRNA track.
+     */
+    private Map<String, String> refGeneSymbols;
+
     public GoldenPathSequenceAnalysis( int port, String databaseName, String host, String user, String password ) {
         super( port, databaseName, host, user, password );
     }
@@ -77,6 +110,44 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
         super( taxon );
     }
 
+    /**
+     * Load the annotation tracks used by the given configuration into memory, so overlaps are computed without
+     * querying the database. Once loaded, this can be used from several threads.
+     *
+     * @param config determines which tracks are loaded. The EST track is very large and is only loaded if ESTs are
+     *        used.
+     */
+    public void loadIndex( ProbeMapperConfig config ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+        if ( config.isUseRefGene() ) {
+            this.refGeneIndex = this.loadTrack( true, GoldenPathSequenceAnalysis.REFGENE_TRACK_QUERY );
+        }
+        if ( config.isUseKnownGene() ) {
+            this.knownGeneIndex = this.loadTrack( true, GoldenPathSequenceAnalysis.KNOWN_TO_REFSEQ_TRACK_QUERY,
+                    GoldenPathSequenceAnalysis.KNOWN_GENE_TRACK_QUERY );
+        }
+        if ( config.isUseMrnas() ) {
+            this.refGeneSymbols = this.loadRefGeneSymbols();
+            this.mrnaIndex = this.loadTrack( false, GoldenPathSequenceAnalysis.MRNA_TRACK_QUERY );
+        }
+        if ( config.isUseEsts() ) {
+            this.estIndex = this.loadTrack( false, GoldenPathSequenceAnalysis.EST_TRACK_QUERY );
+        }
+        GoldenPath.log.info( "Loaded annotation tracks from " + this.getDatabaseName() + " in " + timer.getTime()
+                + "ms: refGene=" + this.trackSize( this.refGeneIndex ) + ", knownGene=" + this
+                .trackSize( this.knownGeneIndex ) + ", mRNA=" + this.trackSize( this.mrnaIndex ) + ", EST=" + this
+                .trackSize( this.estIndex ) );
+    }
+
+    /**
+     * @return true if any annotation track was loaded into memory with {@link #loadIndex(ProbeMapperConfig)}.
+     */
+    public boolean isIndexLoaded() {
+        return this.refGeneIndex != null || this.knownGeneIndex != null || this.mrnaIndex != null
+                || this.estIndex != null;
+    }
+
     /**
      * Given a physical location, identify overlapping genes or predicted genes.
      *
@@ -210,6 +281,10 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
      */
     public Collection<Gene> findESTs( final String chromosome, Long regionStart, Long regionEnd, String strand ) {
 
+        if ( this.estIndex != null ) {
+            return this.findAlignments( this.estIndex, chromosome, regionStart, regionEnd, strand );
+        }
+
         String searchChrom = SequenceManipulation.blatFormatChromosomeName( chromosome );
         String query = "SELECT est.qName, est.qName, est.tStart, est.tEnd, est.strand, est.blockSizes, est.tStarts  "
                 + " FROM all_est as est  WHERE "
@@ -246,6 +321,10 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
      * @return This is a collection of transient instances, not from Gemma's database.
      */
     public Collection<GeneProduct> findKnownGenesByLocation( String chromosome, Long start, Long end, String strand ) {
+        if ( this.knownGeneIndex != null ) {
+            return this.findGeneProducts( this.knownGeneIndex, chromosome, start, end, strand );
+        }
+
         String searchChrom = SequenceManipulation.blatFormatChromosomeName( chromosome );
 
         /*
@@ -298,6 +377,10 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
      * @return This is a collection of transient instances, not from Gemma's database.
      */
     public Collection<GeneProduct> findRefGenesByLocation( String chromosome, Long start, Long end, String strand ) {
+        if ( this.refGeneIndex != null ) {
+            return this.findGeneProducts( this.refGeneIndex, chromosome, start, end, strand );
+        }
+
         String searchChrom = SequenceManipulation.blatFormatChromosomeName( chromosome );
 
         /*
@@ -326,6 +409,10 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
      */
     public Collection<Gene> findRNAs( final String chromosome, Long regionStart, Long regionEnd, String strand ) {
 
+        if ( this.mrnaIndex != null ) {
+            return this.findAlignments( this.mrnaIndex, chromosome, regionStart, regionEnd, strand );
+        }
+
         String searchChrom = SequenceManipulation.blatFormatChromosomeName( chromosome );
         String query = "SELECT mrna.qName, mrna.qName, mrna.tStart, mrna.tEnd, mrna.strand, mrna.blockSizes, mrna.tStarts  "
                 + " FROM all_mrna as mrna  WHERE "
@@ -415,54 +502,14 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
 
                 Collection<Gene> r = new HashSet<>();
                 while ( rs.next() ) {
-
-                    Gene gene = Gene.Factory.newInstance();
-
-                    gene.setNcbiGeneId( Integer.parseInt( rs.getString( 1 ) ) );
-                    gene.setOfficialSymbol( rs.getString( 2 ) );
-                    gene.setName( gene.getOfficialSymbol() );
-
-                    PhysicalLocation pl = PhysicalLocation.Factory.newInstance();
-                    pl.setNucleotide( rs.getLong( 3 ) );
-                    pl.setNucleotideLength( rs.getInt( 4 ) - rs.getInt( 3 ) );
-                    pl.setStrand( rs.getString( 5 ) );
-                    pl.setBin( SequenceBinUtils.binFromRange( ( int ) rs.getLong( 3 ), rs.getInt( 4 ) ) );
-
-                    Chromosome c = new Chromosome( SequenceManipulation.deBlatFormatChromosomeName( chromosome ),
-                            GoldenPathSequenceAnalysis.this.getTaxon() );
-                    pl.setChromosome( c );
-
-                    // note that we aren't setting the chromosome here; we already know that.
-                    gene.setPhysicalLocation( pl );
-                    r.add( gene );
-
-                    Blob blockSizes = rs.getBlob( 6 );
-                    Blob blockStarts = rs.getBlob( 7 );
-
-                    GoldenPathSequenceAnalysis.this.setBlocks( gene, blockSizes, blockStarts );
-
+                    r.add( GoldenPathSequenceAnalysis.this
+                            .toGene( chromosome, GoldenPathSequenceAnalysis.this.readAlignmentEntry( rs ) ) );
                 }
                 return r;
             }
         } );
     }
 
-    private Collection<PhysicalLocation> blocksToPhysicalLocations( int[] blockSizes, int[] blockStarts,
-            Chromosome chromosome ) {
-        Collection<PhysicalLocation> blocks = new HashSet<>();
-        for ( int i = 0; i < blockSizes.length; i++ ) {
-            long exonStart = blockStarts[i];
-            int exonSize = blockSizes[i];
-            PhysicalLocation block = PhysicalLocation.Factory.newInstance();
-            block.setChromosome( chromosome );
-            block.setNucleotide( exonStart );
-            block.setNucleotideLength( exonSize );
-            block.setBin( SequenceBinUtils.binFromRange( ( int ) exonStart, ( int ) ( exonStart + exonSize ) ) );
-            blocks.add( block );
-        }
-        return blocks;
-    }
-
     /**
      * Recompute the exonOverlap looking at EST evidence. This lets us be a much less conservative about how we compute
      * exon overlaps.
@@ -483,7 +530,9 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
         String key = "EST " + chromosome + "||" + queryStart.toString() + "||" + queryEnd.toString() + strand;
 
         Collection<Gene> ests;
-        if ( cache.containsKey( key ) ) {
+        if ( this.estIndex != null ) {
+            ests = this.findESTs( chromosome, queryStart, queryEnd, strand );
+        } else if ( cache.containsKey( key ) ) {
             ests = ( Collection<Gene> ) cache.get( key );
         } else {
             ests = this.findESTs( chromosome, queryStart, queryEnd, strand );
@@ -500,7 +549,7 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
             for ( Gene est : ests ) {
                 int overlap = SequenceManipulation.getGeneExonOverlaps( chromosome, starts, sizes, null, est );
                 if ( GoldenPath.log.isDebugEnabled() )
-                    GoldenPath.log.debug( "overlap with " + est.getNcbiGeneId() + "=" + overlap );
+                    GoldenPath.log.debug( "overlap with " + est.getOfficialSymbol() + "=" + overlap );
                 if ( overlap > maxOverlap ) {
                     if ( GoldenPath.log.isDebugEnabled() )
                         GoldenPath.log.debug( "Best EST overlap=" + overlap );
@@ -537,7 +586,9 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
         String key = "MRNA " + chromosome + "||" + queryStart.toString() + "||" + queryEnd.toString() + strand;
 
         Collection<Gene> mRNAs;
-        if ( cache.containsKey( key ) ) {
+        if ( this.mrnaIndex != null ) {
+            mRNAs = this.findRNAs( chromosome, queryStart, queryEnd, strand );
+        } else if ( cache.containsKey( key ) ) {
             mRNAs = ( Collection<Gene> ) cache.get( key );
         } else {
             mRNAs = this.findRNAs( chromosome, queryStart, queryEnd, strand );
@@ -560,7 +611,7 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
 
                 int overlap = SequenceManipulation.getGeneExonOverlaps( chromosome, starts, sizes, null, mRNA );
                 if ( GoldenPath.log.isDebugEnabled() )
-                    GoldenPath.log.debug( "overlap with " + mRNA.getNcbiGeneId() + "=" + overlap );
+                    GoldenPath.log.debug( "overlap with " + mRNA.getOfficialSymbol() + "=" + overlap );
                 if ( overlap > maxOverlap ) {
                     if ( GoldenPath.log.isDebugEnabled() )
                         GoldenPath.log.debug( "Best mRNA overlap=" + overlap );
@@ -700,82 +751,16 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
             public Collection<GeneProduct> extractData( ResultSet rs ) throws SQLException, DataAccessException {
                 Collection<GeneProduct> r = new HashSet<>();
                 while ( rs.next() ) {
-
-                    GeneProduct product = GeneProduct.Factory.newInstance();
-
-                    String name = rs.getString( 1 );
+                    TrackEntry entry = GoldenPathSequenceAnalysis.this.readGeneEntry( rs );
 
                     /*
                      * This happens for a very few cases in kgXref, where the gene is 'abParts'. We have to skip these.
                      */
-                    if ( StringUtils.isBlank( name ) ) {
+                    if ( entry == null ) {
                         continue;
                     }
 
-                    /*
-                     * The name is our database identifier (either genbank or ensembl)
-                     */
-                    DatabaseEntry accession = DatabaseEntry.Factory.newInstance();
-                    accession.setAccession( name );
-                    if ( name.startsWith( "ENST" ) ) {
-                        accession.setExternalDatabase( NcbiGeneConverter.getEnsembl() );
-                    } else {
-                        accession.setExternalDatabase( NcbiGeneConverter.getGenbank() );
-                    }
-
-                    product.getAccessions().add( accession );
-
-                    Gene gene = Gene.Factory.newInstance();
-                    gene.setOfficialSymbol( rs.getString( 2 ) );
-                    gene.setName( gene.getOfficialSymbol() );
-                    Taxon taxon = GoldenPathSequenceAnalysis.this.getTaxon();
-
-                    assert taxon != null;
-                    gene.setTaxon( taxon );
-
-                    PhysicalLocation pl = PhysicalLocation.Factory.newInstance();
-                    pl.setNucleotide( rs.getLong( 3 ) );
-                    pl.setNucleotideLength( rs.getInt( 4 ) - rs.getInt( 3 ) );
-                    pl.setStrand( rs.getString( 5 ) );
-                    pl.setBin( SequenceBinUtils.binFromRange( ( int ) rs.getLong( 3 ), rs.getInt( 4 ) ) );
-                    PhysicalLocation genePl = PhysicalLocation.Factory.newInstance();
-                    genePl.setStrand( pl.getStrand() );
-
-                    Chromosome c = new Chromosome( SequenceManipulation.deBlatFormatChromosomeName( chromosome ),
-                            taxon );
-                    pl.setChromosome( c );
-                    genePl.setChromosome( c );
-
-                    /*
-                     * this only contains the chromosome and strand: the nucleotide positions are only valid for the
-                     * gene product
-                     */
-                    gene.setPhysicalLocation( genePl );
-
-                    product.setName( name );
-
-                    String descriptionFromGP = rs.getString( 8 );
-                    if ( StringUtils.isBlank( descriptionFromGP ) ) {
-                        product.setDescription( "Imported from GoldenPath" );
-                    } else {
-                        product.setDescription( "Imported from Golden Path: " + descriptionFromGP );
-                    }
-                    product.setPhysicalLocation( pl );
-                    product.setGene( gene );
-
-                    Blob exonStarts = rs.getBlob( 6 );
-                    Blob exonEnds = rs.getBlob( 7 );
-                    product.setExons( GoldenPathSequenceAnalysis.this.getExons( c, exonStarts, exonEnds ) );
-
-                    /*
-                     * For microRNAs, we don't get exons, so we just use the whole length for now.
-                     */
-                    if ( product.getExons().size() == 0 ) {
-                        product.getExons().add( pl );
-                    }
-
-                    r.add( product );
-
+                    r.add( GoldenPathSequenceAnalysis.this.toGeneProduct( chromosome, entry ) );
                 }
                 return r;
             }
@@ -844,32 +829,22 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
     }
 
     /**
-     * Fill in the exon information for a gene, given the raw blobs from the GoldenPath database.
-     * Be sure to pass the right Blob arguments!
-     *
      * @param exonStarts starts
      * @param exonEnds ends
-     * @throws SQLException sql problem
+     * @return the exons, on the given chromosome
      */
-    private Collection<PhysicalLocation> getExons( Chromosome chrom, Blob exonStarts, Blob exonEnds )
-            throws SQLException {
+    private Collection<PhysicalLocation> getExons( Chromosome chrom, int[] exonStarts, int[] exonEnds ) {
 
         Collection<PhysicalLocation> exons = new HashSet<>();
         if ( exonStarts == null || exonEnds == null ) {
             return exons;
         }
 
-        String exonStartLocations = SQLUtils.blobToString( exonStarts );
-        String exonEndLocations = SQLUtils.blobToString( exonEnds );
-
-        int[] exonStartsInts = SequenceManipulation.blatLocationsToIntArray( exonStartLocations );
-        int[] exonEndsInts = SequenceManipulation.blatLocationsToIntArray( exonEndLocations );
+        assert exonStarts.length == exonEnds.length;
 
-        assert exonStartsInts.length == exonEndsInts.length;
-
-        for ( int i = 0; i < exonEndsInts.length; i++ ) {
-            int exonStart = exonStartsInts[i];
-            int exonEnd = exonEndsInts[i];
+        for ( int i = 0; i < exonEnds.length; i++ ) {
+            int exonStart = exonStarts[i];
+            int exonEnd = exonEnds[i];
             PhysicalLocation exon = PhysicalLocation.Factory.newInstance();
 
             exon.setChromosome( chrom );
@@ -892,6 +867,10 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
      */
     private String getGeneForMessage( String ncbiId ) {
 
+        if ( this.refGeneSymbols != null ) {
+            return this.refGeneSymbols.get( ncbiId );
+        }
+
         return this.getJdbcTemplate()
                 .query( "SELECT rg.name2 FROM all_mrna m INNER JOIN refGene rg ON m.qName = rg.name WHERE m.qName = ? ",
                         new Object[] { ncbiId }, new ResultSetExtractor<String>() {
@@ -910,36 +889,267 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
     }
 
     /**
-     * Handle the format used by the all_mrna and other GoldenPath tables, which go by sizes of blocks and their starts,
-     * not the starts and ends.
-     * Be sure to pass the right Blob arguments!
+     * Read the first eight columns of a gene track query: name, symbol, txStart, txEnd, strand, exonStarts, exonEnds
+     * and description. Be sure the query has the right form!
      *
-     * @param gene gene
-     * @param blockSizes sizes
-     * @param blockStarts starts
+     * @return the entry, or null if it has no name.
+     */
+    private TrackEntry readGeneEntry( ResultSet rs ) throws SQLException {
+        String name = rs.getString( 1 );
+        if ( StringUtils.isBlank( name ) ) {
+            return null;
+        }
+
+        int[] exonStarts = null;
+        int[] exonEnds = null;
+        Blob exonStartsBlob = rs.getBlob( 6 );
+        Blob exonEndsBlob = rs.getBlob( 7 );
+        if ( exonStartsBlob != null && exonEndsBlob != null ) {
+            exonStarts = SequenceManipulation.blatLocationsToIntArray( SQLUtils.blobToString( exonStartsBlob ) );
+            exonEnds = SequenceManipulation.blatLocationsToIntArray( SQLUtils.blobToString( exonEndsBlob ) );
+        }
+
+        return new TrackEntry( name, rs.getString( 2 ), rs.getLong( 3 ), rs.getLong( 4 ), rs.getString( 5 ),
+                exonStarts, exonEnds, rs.getString( 8 ) );
+    }
+
+    /**
+     * Read the first seven columns of an all_mrna or all_est query: qName (twice), tStart, tEnd, strand, blockSizes and
+     * tStarts. These tables go by sizes of blocks and their starts, not the starts and ends.
+     * Be sure the query has the right form!
+     */
+    private TrackEntry readAlignmentEntry( ResultSet rs ) throws SQLException {
+        int[] blockStarts = null;
+        int[] blockEnds = null;
+        Blob blockSizesBlob = rs.getBlob( 6 );
+        Blob blockStartsBlob = rs.getBlob( 7 );
+        if ( blockSizesBlob != null && blockStartsBlob != null ) {
+            int[] blockSizes = SequenceManipulation.blatLocationsToIntArray( SQLUtils.blobToString( blockSizesBlob ) );
+            blockStarts = SequenceManipulation.blatLocationsToIntArray( SQLUtils.blobToString( blockStartsBlob ) );
+            assert blockSizes.length == blockStarts.length;
+            blockEnds = new int[blockStarts.length];
+            for ( int i = 0; i < blockStarts.length; i++ ) {
+                blockEnds[i] = blockStarts[i] + blockSizes[i];
+            }
+        }
+
+        return new TrackEntry( rs.getString( 1 ), rs.getString( 2 ), rs.getLong( 3 ), rs.getLong( 4 ),
+                rs.getString( 5 ), blockStarts, blockEnds, null );
+    }
+
+    /**
+     * @param chromosome the chromosome that was searched
+     * @return a transient gene product for a refGene or knownGene transcript
+     */
+    private GeneProduct toGeneProduct( String chromosome, TrackEntry entry ) {
+        GeneProduct product = GeneProduct.Factory.newInstance();
+
+        /*
+         * The name is our database identifier (either genbank or ensembl)
+         */
+        DatabaseEntry accession = DatabaseEntry.Factory.newInstance();
+        accession.setAccession( entry.name );
+        if ( entry.name.startsWith( "ENST" ) ) {
+            accession.setExternalDatabase( NcbiGeneConverter.getEnsembl() );
+        } else {
+            accession.setExternalDatabase( NcbiGeneConverter.getGenbank() );
+        }
+
+        product.getAccessions().add( accession );
+
+        Gene gene = Gene.Factory.newInstance();
+        gene.setOfficialSymbol( entry.symbol );
+        gene.setName( gene.getOfficialSymbol() );
+        Taxon taxon = this.getTaxon();
+
+        assert taxon != null;
+        gene.setTaxon( taxon );
+
+        PhysicalLocation pl = this.toPhysicalLocation( entry );
+        PhysicalLocation genePl = PhysicalLocation.Factory.newInstance();
+        genePl.setStrand( pl.getStrand() );
+
+        Chromosome c = new Chromosome( SequenceManipulation.deBlatFormatChromosomeName( chromosome ), taxon );
+        pl.setChromosome( c );
+        genePl.setChromosome( c );
+
+        /*
+         * this only contains the chromosome and strand: the nucleotide positions are only valid for the gene product
+         */
+        gene.setPhysicalLocation( genePl );
+
+        product.setName( entry.name );
+
+        if ( StringUtils.isBlank( entry.description ) ) {
+            product.setDescription( "Imported from GoldenPath" );
+        } else {
+            product.setDescription( "Imported from Golden Path: " + entry.description );
+        }
+        product.setPhysicalLocation( pl );
+        product.setGene( gene );
+
+        product.setExons( this.getExons( c, entry.blockStarts, entry.blockEnds ) );
+
+        /*
+         * For microRNAs, we don't get exons, so we just use the whole length for now.
+         */
+        if ( product.getExons().size() == 0 ) {
+            product.getExons().add( pl );
+        }
+
+        return product;
+    }
+
+    /**
+     * We provisionally promote mRNAs and ESTs to the status of genes, named by their accession, with a single product
+     * holding the aligned blocks as exons.
+     *
+     * @param chromosome the chromosome that was searched
+     * @return a transient gene for an all_mrna or all_est alignment
      */
-    private void setBlocks( Gene gene, Blob blockSizes, Blob blockStarts ) throws SQLException {
-        if ( blockSizes == null || blockStarts == null )
-            return;
-
-        String exonSizes = SQLUtils.blobToString( blockSizes );
-        String exonStarts = SQLUtils.blobToString( blockStarts );
-
-        int[] exonSizeInts = SequenceManipulation.blatLocationsToIntArray( exonSizes );
-        int[] exonStartInts = SequenceManipulation.blatLocationsToIntArray( exonStarts );
-
-        assert exonSizeInts.length == exonStartInts.length;
-
-        GeneProduct gp = GeneProduct.Factory.newInstance();
-        Chromosome chromosome = null;
-        if ( gene.getPhysicalLocation() != null )
-            chromosome = gene.getPhysicalLocation().getChromosome();
-        Collection<PhysicalLocation> exons = this.blocksToPhysicalLocations( exonSizeInts, exonStartInts, chromosome );
-        gp.setExons( exons );
-        gp.setName( gene.getNcbiGeneId().toString() ); // this isn't right?
-        Collection<GeneProduct> products = new HashSet<>();
-        products.add( gp );
-        gene.setProducts( products );
+    private Gene toGene( String chromosome, TrackEntry entry ) {
+        Gene gene = Gene.Factory.newInstance();
+        gene.setOfficialSymbol( entry.symbol );
+        gene.setName( gene.getOfficialSymbol() );
+
+        PhysicalLocation pl = this.toPhysicalLocation( entry );
+        Chromosome c = new Chromosome( SequenceManipulation.deBlatFormatChromosomeName( chromosome ), this.getTaxon() );
+        pl.setChromosome( c );
+        gene.setPhysicalLocation( pl );
+
+        if ( entry.blockStarts != null ) {
+            GeneProduct gp = GeneProduct.Factory.newInstance();
+            gp.setExons( this.getExons( c, entry.blockStarts, entry.blockEnds ) );
+            gp.setName( entry.name );
+            Collection<GeneProduct> products = new HashSet<>();
+            products.add( gp );
+            gene.setProducts( products );
+        }
+        return gene;
+    }
+
+    private PhysicalLocation toPhysicalLocation( TrackEntry entry ) {
+        PhysicalLocation pl = PhysicalLocation.Factory.newInstance();
+        pl.setNucleotide( entry.start );
+        pl.setNucleotideLength( ( int ) ( entry.end - entry.start ) );
+        pl.setStrand( entry.strand );
+        pl.setBin( SequenceBinUtils.binFromRange( ( int ) entry.start, ( int ) entry.end ) );
+        return pl;
+    }
+
+    /**
+     * Gene tracks are matched including the end points, like the location queries.
+     */
+    private Collection<GeneProduct> findGeneProducts( GenomeIntervalIndex<TrackEntry> index, String chromosome,
+            Long start, Long end, String strand ) {
+        String searchChrom = SequenceManipulation.blatFormatChromosomeName( chromosome );
+        Collection<GeneProduct> result = new HashSet<>();
+        for ( TrackEntry entry : index
+                .findOverlapping( searchChrom, start.intValue() - 1, end.intValue() + 1, strand ) ) {
+            result.add( this.toGeneProduct( searchChrom, entry ) );
+        }
+        return result;
+    }
+
+    /**
+     * mRNA and EST alignments must overlap the region by at least one base.
+     */
+    private Collection<Gene> findAlignments( GenomeIntervalIndex<TrackEntry> index, String chromosome,
+            Long regionStart, Long regionEnd, String strand ) {
+        String searchChrom = SequenceManipulation.blatFormatChromosomeName( chromosome );
+        Collection<Gene> result = new HashSet<>();
+        for ( TrackEntry entry : index
+                .findOverlapping( searchChrom, regionStart.intValue(), regionEnd.intValue(), strand ) ) {
+            result.add( this.toGene( chromosome, entry ) );
+        }
+        return result;
+    }
+
+    /**
+     * Read a whole track into an index, streaming the rows.
+     *
+     * @param geneTrack true for refGene/knownGene queries, false for all_mrna/all_est queries.
+     */
+    private GenomeIntervalIndex<TrackEntry> loadTrack( final boolean geneTrack, String... queries ) {
+        JdbcTemplate streamingTemplate = new JdbcTemplate( this.getJdbcTemplate().getDataSource() );
+        // MySQL only streams results with this fetch size; otherwise the whole table is buffered by the driver.
+        streamingTemplate.setFetchSize( Integer.MIN_VALUE );
+
+        final GenomeIntervalIndex<TrackEntry> index = new GenomeIntervalIndex<>();
+        final Set<String> seen = new HashSet<>();
+        for ( String query : queries ) {
+            streamingTemplate.query( query, new RowCallbackHandler() {
+                @Override
+                public void processRow( ResultSet rs ) throws SQLException {
+                    if ( geneTrack ) {
+                        TrackEntry entry = GoldenPathSequenceAnalysis.this.readGeneEntry( rs );
+                        if ( entry == null ) {
+                            return;
+                        }
+                        String chrom = rs.getString( 9 );
+                        int start = rs.getInt( 10 );
+                        int end = rs.getInt( 11 );
+                        String strand = rs.getString( 12 );
+
+                        // the join to kgXref for the description can repeat transcripts.
+                        if ( !seen.add( entry.name + "|" + entry.symbol + "|" + chrom + "|" + start + "|" + end + "|"
+                                + entry.start ) ) {
+                            return;
+                        }
+                        index.add( chrom, start, end, strand, entry );
+                    } else {
+                        TrackEntry entry = GoldenPathSequenceAnalysis.this.readAlignmentEntry( rs );
+                        index.add( rs.getString( 8 ), ( int ) entry.start, ( int ) entry.end, entry.strand, entry );
+                    }
+                }
+            } );
+        }
+        return index.build();
+    }
+
+    private Map<String, String> loadRefGeneSymbols() {
+        final Map<String, String> result = new HashMap<>();
+        this.getJdbcTemplate().query( "SELECT rg.name, rg.name2 FROM refGene rg", new RowCallbackHandler() {
+            @Override
+            public void processRow( ResultSet rs ) throws SQLException {
+                String symbol = rs.getString( 2 );
+                if ( StringUtils.isNotBlank( symbol ) && !result.containsKey( rs.getString( 1 ) ) ) {
+                    result.put( rs.getString( 1 ), symbol );
+                }
+            }
+        } );
+        return result;
+    }
+
+    private int trackSize( GenomeIntervalIndex<TrackEntry> index ) {
+        return index == null ? 0 : index.size();
+    }
+
+    /**
+     * One row of an annotation track: a refGene or knownGene transcript with its exons, or an mRNA or EST alignment
+     * with its blocks.
+     */
+    private static class TrackEntry {
+        private final String name;
+        private final String symbol;
+        private final long start;
+        private final long end;
+        private final String strand;
+        private final int[] blockStarts;
+        private final int[] blockEnds;
+        private final String description;
+
+        private TrackEntry( String name, String symbol, long start, long end, String strand, int[] blockStarts,
+                int[] blockEnds, String description ) {
+            this.name = name;
+            this.symbol = symbol;
+            this.start = start;
+            this.end = end;
+            this.strand = strand;
+            this.blockStarts = blockStarts;
+            this.blockEnds = blockEnds;
+            this.description = description;
+        }
     }
 
 }
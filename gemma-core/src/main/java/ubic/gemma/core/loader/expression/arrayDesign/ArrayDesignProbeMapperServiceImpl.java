@@ -55,18 +55,16 @@ import ubic.gemma.persistence.service.genome.biosequence.BioSequenceService;
 import ubic.gemma.persistence.service.genome.gene.GeneProductService;
 import ubic.gemma.persistence.service.genome.sequenceAnalysis.AnnotationAssociationService;
 import ubic.gemma.persistence.service.genome.sequenceAnalysis.BlatResultService;
+import ubic.gemma.persistence.util.Settings;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.StringTokenizer;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * For an array design, generate gene product mappings for the sequences.
@@ -77,6 +75,22 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class ArrayDesignProbeMapperServiceImpl implements ArrayDesignProbeMapperService {
 
     private static final int QUEUE_SIZE = 20000;
+
+    /**
+     * Whether to load the GoldenPath annotation tracks into memory instead of querying them for each alignment.
+     */
+    private static final boolean USE_INDEX = Settings.getBoolean( "gemma.probemapper.index", true );
+
+    /**
+     * Platforms with fewer probes than this are mapped by querying the tracks, which is quicker than loading them.
+     */
+    private static final int INDEX_MIN_PROBES = Settings.getInt( "gemma.probemapper.index.minprobes", 2000 );
+
+    /**
+     * Threads and number of probes per task for mapping, when the annotation tracks are in memory.
+     */
+    private static final int NUM_THREADS = Settings.getInt( "gemma.probemapper.threads", 4 );
+    private static final int CHUNK_SIZE = Settings.getInt( "gemma.probemapper.chunksize", 500 );
     private static final Log log = LogFactory.getLog( ArrayDesignProbeMapperServiceImpl.class.getName() );
 
     private final AnnotationAssociationService annotationAssociationService;
@@ -144,7 +158,13 @@ public class ArrayDesignProbeMapperServiceImpl implements ArrayDesignProbeMapper
                     "Array design has sequence from multiple taxa and has no primary taxon set: " + arrayDesign );
         }
 
+        List<CompositeSequence> compositeSequences = new ArrayList<>( arrayDesign.getCompositeSequences() );
+
         GoldenPathSequenceAnalysis goldenPathDb = new GoldenPathSequenceAnalysis( taxon );
+        if ( ArrayDesignProbeMapperServiceImpl.USE_INDEX
+                && compositeSequences.size() >= ArrayDesignProbeMapperServiceImpl.INDEX_MIN_PROBES ) {
+            goldenPathDb.loadIndex( config );
+        }
 
         BlockingQueue<BACS> persistingQueue = new ArrayBlockingQueue<>( ArrayDesignProbeMapperServiceImpl.QUEUE_SIZE );
         AtomicBoolean generatorDone = new AtomicBoolean( false );
@@ -157,40 +177,24 @@ public class ArrayDesignProbeMapperServiceImpl implements ArrayDesignProbeMapper
             arrayDesignService.deleteGeneProductAssociations( arrayDesign );
         }
 
-        int count = 0;
-        int hits = 0;
-        int numWithNoResults = 0;
-        ArrayDesignProbeMapperServiceImpl.log
-                .info( "Start processing " + arrayDesign.getCompositeSequences().size() + " probes ..." );
-        for ( CompositeSequence compositeSequence : arrayDesign.getCompositeSequences() ) {
-
-            Map<String, Collection<BlatAssociation>> results = this
-                    .processCompositeSequence( config, taxon, goldenPathDb, compositeSequence );
-
-            if ( results == null ) {
-                numWithNoResults++;
-                continue;
-            }
-
-            for ( Collection<BlatAssociation> col : results.values() ) {
-                for ( BlatAssociation association : col ) {
-                    if ( ArrayDesignProbeMapperServiceImpl.log.isDebugEnabled() )
-                        ArrayDesignProbeMapperServiceImpl.log.debug( association );
-                    persistingQueue.add( new BACS( compositeSequence, association ) );
-
-                }
-                ++hits;
-            }
-
-            if ( ++count % 200 == 0 ) {
-                ArrayDesignProbeMapperServiceImpl.log
-                        .info( "Processed " + count + " composite sequences" + " with blat results; " + hits
-                                + " mappings found." );
+        MappingProgress progress = new MappingProgress();
+        ArrayDesignProbeMapperServiceImpl.log.info( "Start processing " + compositeSequences.size() + " probes ..." );
+        try {
+            /*
+             * Without the in-memory tracks, lookups go through a cache that is not thread-safe, and running in
+             * parallel would only load the database more.
+             */
+            if ( goldenPathDb.isIndexLoaded() && ArrayDesignProbeMapperServiceImpl.NUM_THREADS > 1 ) {
+                this.processCompositeSequencesInParallel( compositeSequences, config, taxon, goldenPathDb,
+                        persistingQueue, loaderDone, progress );
+            } else {
+                this.processCompositeSequences( compositeSequences, config, taxon, goldenPathDb, persistingQueue,
+                        loaderDone, progress );
             }
+        } finally {
+            generatorDone.set( true );
         }
 
-        generatorDone.set( true );
-
         ArrayDesignProbeMapperServiceImpl.log.info( "Waiting for loading to complete ..." );
         while ( !loaderDone.get() ) {
             try {
@@ -200,6 +204,9 @@ public class ArrayDesignProbeMapperServiceImpl implements ArrayDesignProbeMapper
             }
         }
 
+        int count = progress.count.get();
+        int hits = progress.hits.get();
+        int numWithNoResults = progress.numWithNoResults.get();
         ArrayDesignProbeMapperServiceImpl.log
                 .info( "Processed " + count + " composite sequences with blat results; " + hits + " mappings found." );
 
@@ -407,6 +414,106 @@ public class ArrayDesignProbeMapperServiceImpl implements ArrayDesignProbeMapper
         return probeMapper.processBlatResults( db, blatResults, config );
     }
 
+    private void processCompositeSequences( List<CompositeSequence> compositeSequences, ProbeMapperConfig config,
+            Taxon taxon, GoldenPathSequenceAnalysis goldenPathDb, BlockingQueue<BACS> persistingQueue,
+            AtomicBoolean loaderDone, MappingProgress progress ) {
+        for ( CompositeSequence compositeSequence : compositeSequences ) {
+
+            Map<String, Collection<BlatAssociation>> results = this
+                    .processCompositeSequence( config, taxon, goldenPathDb, compositeSequence );
+
+            if ( results == null ) {
+                progress.numWithNoResults.incrementAndGet();
+                continue;
+            }
+
+            for ( Collection<BlatAssociation> col : results.values() ) {
+                for ( BlatAssociation association : col ) {
+                    if ( ArrayDesignProbeMapperServiceImpl.log.isDebugEnabled() )
+                        ArrayDesignProbeMapperServiceImpl.log.debug( association );
+                    this.enqueue( persistingQueue, loaderDone, new BACS( compositeSequence, association ) );
+                }
+                progress.hits.incrementAndGet();
+            }
+
+            int count = progress.count.incrementAndGet();
+            if ( count % 200 == 0 ) {
+                ArrayDesignProbeMapperServiceImpl.log
+                        .info( "Processed " + count + " composite sequences" + " with blat results; " + progress.hits
+                                .get() + " mappings found." );
+            }
+        }
+    }
+
+    /**
+     * Map chunks of the probes on separate threads; all of them feed the same persisting queue.
+     */
+    private void processCompositeSequencesInParallel( List<CompositeSequence> compositeSequences,
+            final ProbeMapperConfig config, final Taxon taxon, final GoldenPathSequenceAnalysis goldenPathDb,
+            final BlockingQueue<BACS> persistingQueue, final AtomicBoolean loaderDone,
+            final MappingProgress progress ) {
+        final SecurityContext context = SecurityContextHolder.getContext();
+        int chunkSize = Math.max( 1, ArrayDesignProbeMapperServiceImpl.CHUNK_SIZE );
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for ( int start = 0; start < compositeSequences.size(); start += chunkSize ) {
+            final List<CompositeSequence> chunk = compositeSequences
+                    .subList( start, Math.min( compositeSequences.size(), start + chunkSize ) );
+            tasks.add( new Callable<Void>() {
+                @Override
+                public Void call() {
+                    SecurityContextHolder.setContext( context );
+                    try {
+                        ArrayDesignProbeMapperServiceImpl.this
+                                .processCompositeSequences( chunk, config, taxon, goldenPathDb, persistingQueue,
+                                        loaderDone, progress );
+                        return null;
+                    } finally {
+                        SecurityContextHolder.clearContext();
+                    }
+                }
+            } );
+        }
+        if ( tasks.isEmpty() ) {
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(
+                Math.max( 1, Math.min( ArrayDesignProbeMapperServiceImpl.NUM_THREADS, tasks.size() ) ) );
+        ArrayDesignProbeMapperServiceImpl.log
+                .info( "Mapping in " + tasks.size() + " chunks on " + pool.getParallelism() + " threads" );
+        try {
+            for ( Future<Void> f : pool.invokeAll( tasks ) ) {
+                f.get();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Wait for room in the queue, unless the loader has stopped (e.g. because of an error).
+     */
+    private void enqueue( BlockingQueue<BACS> queue, AtomicBoolean loaderDone, BACS bacs ) {
+        try {
+            while ( !queue.offer( bacs, 1, TimeUnit.SECONDS ) ) {
+                if ( loaderDone.get() ) {
+                    throw new IllegalStateException( "Loading of associations stopped before mapping was done" );
+                }
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        }
+    }
+
     private void doLoad( final BlockingQueue<BACS> queue, AtomicBoolean generatorDone, AtomicBoolean loaderDone,
             boolean persist ) {
         int loadedAssociationCount = 0;
@@ -540,6 +647,15 @@ public class ArrayDesignProbeMapperServiceImpl implements ArrayDesignProbeMapper
                         + gene.getOfficialSymbol() + "\t" + gene.getClass().getSimpleName() );
     }
 
+    /**
+     * Counts for logging, shared by the mapping threads.
+     */
+    private static class MappingProgress {
+        final AtomicInteger count = new AtomicInteger( 0 );
+        final AtomicInteger hits = new AtomicInteger( 0 );
+        final AtomicInteger numWithNoResults = new AtomicInteger( 0 );
+    }
+
     /**
      * Wrapper
      */
@@ -40,7 +40,9 @@ import ubic.gemma.persistence.util.SequenceBinUtils;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Convert NCBIGene2Accession objects into Gemma Gene objects with associated GeneProducts. Genes without products are
@@ -65,6 +67,8 @@ public class NcbiGeneConverter implements Converter<Object, Object> {
 
     AtomicBoolean producerDone = new AtomicBoolean( false );
     AtomicBoolean sourceDone = new AtomicBoolean( false );
+    private final AtomicLong consumedCount = new AtomicLong( 0 );
+    private final AtomicLong producedCount = new AtomicLong( 0 );
 
     /**
      * @return the genBank
@@ -245,10 +249,12 @@ public class NcbiGeneConverter implements Converter<Object, Object> {
             public void run() {
                 while ( !( sourceDone.get() && geneInfoQueue.isEmpty() ) ) {
                     try {
-                        NcbiGeneData data = geneInfoQueue.poll();
+                        // wait for the parser rather than spinning; the timeout is just so we notice when it is done.
+                        NcbiGeneData data = geneInfoQueue.poll( 1, TimeUnit.SECONDS );
                         if ( data == null ) {
                             continue;
                         }
+                        consumedCount.incrementAndGet();
                         Gene converted = NcbiGeneConverter.this.convert( data );
 
                         if ( converted.getProducts().isEmpty() ) {
@@ -257,6 +263,7 @@ public class NcbiGeneConverter implements Converter<Object, Object> {
                         }
 
                         geneQueue.put( converted );
+                        producedCount.incrementAndGet();
 
                     } catch ( InterruptedException e ) {
                         NcbiGeneConverter.log.warn( "Interrupted" );
@@ -273,6 +280,20 @@ public class NcbiGeneConverter implements Converter<Object, Object> {
         convertThread.start();
     }
 
+    /**
+     * @return how many records have been taken from the input queue so far.
+     */
+    public long getConsumedCount() {
+        return this.consumedCount.get();
+    }
+
+    /**
+     * @return how many genes have been put on the output queue so far (genes without products are not passed on).
+     */
+    public long getProducedCount() {
+        return this.producedCount.get();
+    }
+
     public boolean isProducerDone() {
         return this.producerDone.get();
     }
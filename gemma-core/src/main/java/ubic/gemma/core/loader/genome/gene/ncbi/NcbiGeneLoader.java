@@ -28,27 +28,41 @@ import ubic.gemma.model.genome.Gene;
 import ubic.gemma.model.genome.Taxon;
 import ubic.gemma.persistence.persister.Persister;
 import ubic.gemma.persistence.service.genome.taxon.TaxonService;
+import ubic.gemma.persistence.util.Settings;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Load or update information about genes from the NCBI Gene database.
+ * <p>
+ * The files are parsed, converted and written in a pipeline of threads connected by blocking queues. The genes are
+ * handed out to several writer threads, each of which persists them in batches; a given chromosome of a given taxon
+ * always goes to the same writer.
  *
  * @author jsantos, paul
  */
 @SuppressWarnings({ "unused", "WeakerAccess" }) // Possible external use
 public class NcbiGeneLoader {
     private static final int QUEUE_SIZE = 1000;
+    private static final int NUM_THREADS = Settings.getInt( "gemma.ncbigene.loader.threads", 4 );
+    private static final int BATCH_SIZE = Settings.getInt( "gemma.ncbigene.loader.batchsize", 100 );
+    private static final long REPORT_INTERVAL_MS = 30 * 1000;
     private static final Log log = LogFactory.getLog( NcbiGeneConverter.class.getName() );
     private final AtomicBoolean generatorDone;
     private final AtomicBoolean converterDone;
     private final AtomicBoolean loaderDone;
+    private final AtomicInteger loadedGeneCount = new AtomicInteger( 0 );
     private Persister persisterHelper;
-    private int loadedGeneCount = 0;
     private TaxonService taxonService;
 
     // whether to fetch files from ncbi or use existing ones
@@ -70,7 +84,7 @@ public class NcbiGeneLoader {
      * @return the loadedGeneCount
      */
     public int getLoadedGeneCount() {
-        return loadedGeneCount;
+        return loadedGeneCount.get();
     }
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted") // Better semantics
@@ -178,61 +192,105 @@ public class NcbiGeneLoader {
         this.startingNcbiId = startNcbiid;
     }
 
-    void doLoad( final BlockingQueue<Gene> geneQueue ) {
+    /**
+     * Hands the converted genes out to the writers, on the calling thread, until the converter is done.
+     *
+     * @param numWriters number of writer threads
+     */
+    void doLoad( NcbiGeneConverter converter, BlockingQueue<NcbiGeneData> geneInfoQueue,
+            BlockingQueue<Gene> geneQueue, int numWriters ) {
+        SecurityContext context = SecurityContextHolder.getContext();
+        AtomicBoolean dispatcherDone = new AtomicBoolean( false );
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        List<GeneWriter> writers = new ArrayList<>( numWriters );
+        List<Thread> threads = new ArrayList<>( numWriters );
+        for ( int i = 0; i < numWriters; i++ ) {
+            GeneWriter writer = new GeneWriter( context, dispatcherDone, failure );
+            Thread thread = new Thread( writer, "Loading-" + i );
+            thread.start();
+            writers.add( writer );
+            threads.add( thread );
+        }
+
         StopWatch timer = new StopWatch();
         timer.start();
-        while ( !( converterDone.get() && geneQueue.isEmpty() ) ) {
-            Gene gene = null;
-            try {
-                // the converted genes.
-                gene = geneQueue.poll();
-                if ( gene == null ) {
-                    continue;
+        long lastReport = 0;
+        long dispatched = 0;
+        try {
+            while ( !( converterDone.get() && geneQueue.isEmpty() ) ) {
+                Gene gene = geneQueue.poll( 1, TimeUnit.SECONDS );
+                if ( gene != null ) {
+                    dispatched++;
+                    // after a failure we just drain the queue, so the converter isn't left blocked on it.
+                    BlockingQueue<Gene> writerQueue = writers.get( this.getPartition( gene, numWriters ) ).queue;
+                    while ( failure.get() == null ) {
+                        if ( writerQueue.offer( gene, 1, TimeUnit.SECONDS ) ) {
+                            break;
+                        }
+                    }
                 }
 
-                persisterHelper.persistOrUpdate( gene );
-
-                if ( ++loadedGeneCount % 1000 == 0 || timer.getTime() > 30 * 1000 ) {
-                    NcbiGeneLoader.log.info( "Processed " + loadedGeneCount + " genes. Queue has " + geneQueue.size()
-                            + " items; last gene: " + gene );
-                    timer.reset();
-                    timer.start();
+                if ( timer.getTime() - lastReport > NcbiGeneLoader.REPORT_INTERVAL_MS ) {
+                    lastReport = timer.getTime();
+                    this.logProgress( lastReport, converter, geneInfoQueue, geneQueue, dispatched, writers );
+                }
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet( null, e );
+        } finally {
+            dispatcherDone.set( true );
+            for ( Thread thread : threads ) {
+                try {
+                    thread.join();
+                } catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    failure.compareAndSet( null, e );
                 }
-
-            } catch ( Exception e ) {
-                NcbiGeneLoader.log.error( "Error while loading gene: " + gene + ": " + e.getMessage(), e );
-                loaderDone.set( true );
-                throw new RuntimeException( e );
             }
+            loaderDone.set( true );
+        }
+
+        if ( failure.get() != null ) {
+            throw new RuntimeException( "Gene loading failed after " + loadedGeneCount.get() + " genes",
+                    failure.get() );
         }
-        NcbiGeneLoader.log.info( "Loaded " + loadedGeneCount + " genes. " );
-        loaderDone.set( true );
+        this.logProgress( timer.getTime(), converter, geneInfoQueue, geneQueue, dispatched, writers );
+        NcbiGeneLoader.log.info( "Loaded " + loadedGeneCount.get() + " genes. " );
     }
 
     /**
-     * @param geneQueue a blocking queue of genes to be loaded into the database loads genes into the database
+     * All the genes on one chromosome of one taxon go to the same writer, so the writers never race to create the same
+     * chromosome. The input is sorted by taxon, so partitioning by taxon alone would leave all but one writer idle.
      */
-    private void load( final BlockingQueue<Gene> geneQueue ) {
-        final SecurityContext context = SecurityContextHolder.getContext();
-        assert context != null;
-
-        Thread loadThread = new Thread( new Runnable() {
-            @Override
-            public void run() {
-                SecurityContextHolder.setContext( context );
-                NcbiGeneLoader.this.doLoad( geneQueue );
-            }
-
-        }, "Loading" );
-        loadThread.start();
+    private int getPartition( Gene gene, int numWriters ) {
+        int key = 0;
+        if ( gene.getTaxon() != null && gene.getTaxon().getNcbiId() != null ) {
+            key = gene.getTaxon().getNcbiId();
+        }
+        if ( gene.getPhysicalLocation() != null && gene.getPhysicalLocation().getChromosome() != null ) {
+            key = 31 * key + StringUtils.defaultString( gene.getPhysicalLocation().getChromosome().getName() )
+                    .hashCode();
+        }
+        return Math.abs( key % numWriters );
+    }
 
-        while ( !generatorDone.get() || !converterDone.get() || !loaderDone.get() ) {
-            try {
-                Thread.sleep( 1000 );
-            } catch ( InterruptedException e ) {
-                e.printStackTrace();
-            }
+    private void logProgress( long elapsedMs, NcbiGeneConverter converter, BlockingQueue<NcbiGeneData> geneInfoQueue,
+            BlockingQueue<Gene> geneQueue, long dispatched, List<GeneWriter> writers ) {
+        double seconds = Math.max( 1, elapsedMs / 1000.0 );
+        StringBuilder buf = new StringBuilder();
+        long written = 0;
+        for ( GeneWriter writer : writers ) {
+            written += writer.loaded.get();
+            buf.append( buf.length() == 0 ? "" : ", " ).append( writer.loaded.get() ).append( " (queue " )
+                    .append( writer.queue.size() ).append( ")" );
         }
+        NcbiGeneLoader.log.info( String.format(
+                "After %.0fs: parser queue %d; converter read %d (%.0f/s), passed on %d; gene queue %d; dispatched %d; "
+                        + "written %d (%.0f/s), by writer: %s", seconds, geneInfoQueue.size(),
+                converter.getConsumedCount(), converter.getConsumedCount() / seconds, converter.getProducedCount(),
+                geneQueue.size(), dispatched, written, written / seconds, buf ) );
     }
 
     private void load( String geneInfoFile, String gene2AccFile, String geneHistoryFile, String geneEnsemblFile,
@@ -268,13 +326,70 @@ public class NcbiGeneLoader {
         // Gene/GeneProduct/DatabaseEntry entries
         converter.convert( geneInfoQueue, geneQueue );
 
-        // Threaded consumer. Consumes Gene objects and persists them into
-        // the database
-        this.load( geneQueue );
+        // Consumes Gene objects and persists them into the database, with several threads unless new taxa might have
+        // to be created (they would race).
+        int numWriters = supportedTaxa == null ? 1 : Math.max( 1, NcbiGeneLoader.NUM_THREADS );
+        this.doLoad( converter, geneInfoQueue, geneQueue, numWriters );
 
         // update taxon table to indicate that now there are genes loaded for that taxa.
         // all or nothing so that if fails for some taxa then no taxa will be updated.
         this.updateTaxaWithGenesUsable( sdog.getSupportedTaxaWithNCBIGenes() );
     }
 
+    /**
+     * Persists the genes from its queue in batches.
+     */
+    private class GeneWriter implements Runnable {
+        private final BlockingQueue<Gene> queue = new ArrayBlockingQueue<>( NcbiGeneLoader.QUEUE_SIZE );
+        private final AtomicLong loaded = new AtomicLong( 0 );
+        private final SecurityContext context;
+        private final AtomicBoolean dispatcherDone;
+        private final AtomicReference<Throwable> failure;
+
+        private GeneWriter( SecurityContext context, AtomicBoolean dispatcherDone,
+                AtomicReference<Throwable> failure ) {
+            this.context = context;
+            this.dispatcherDone = dispatcherDone;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            SecurityContextHolder.setContext( context );
+            int batchSize = Math.max( 1, NcbiGeneLoader.BATCH_SIZE );
+            List<Gene> batch = new ArrayList<>( batchSize );
+            try {
+                while ( failure.get() == null && !( dispatcherDone.get() && queue.isEmpty() ) ) {
+                    Gene first = queue.poll( 1, TimeUnit.SECONDS );
+                    if ( first == null ) {
+                        continue;
+                    }
+                    batch.add( first );
+                    queue.drainTo( batch, batchSize - 1 );
+
+                    try {
+                        persisterHelper.persistOrUpdateGenes( batch );
+                    } catch ( Throwable e ) {
+                        // including errors, so the other threads stop instead of waiting for this one.
+                        NcbiGeneLoader.log.error( "Error while loading " + batch.size() + " genes, starting with "
+                                + first + ": " + e.getMessage(), e );
+                        failure.compareAndSet( null, e );
+                        return;
+                    }
+
+                    loaded.addAndGet( batch.size() );
+                    loadedGeneCount.addAndGet( batch.size() );
+                    batch.clear();
+                }
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet( null, e );
+            } catch ( Throwable e ) {
+                NcbiGeneLoader.log.error( "Gene writer failed: " + e.getMessage(), e );
+                failure.compareAndSet( null, e );
+            } finally {
+                SecurityContextHolder.clearContext();
+            }
+        }
+    }
 }
@@ -30,6 +30,11 @@ public class SvdTaskCommand extends TaskCommand {
 
     private ExpressionExperiment expressionExperiment;
 
+    /**
+     * How many components to compute, 0 for all of them; null to use the configured default.
+     */
+    private Integer numComponents = null;
+
     public SvdTaskCommand( ExpressionExperiment expressionExperiment ) {
         super();
         this.setMaxRuntime( 30 );
@@ -50,6 +55,14 @@ public class SvdTaskCommand extends TaskCommand {
         this.expressionExperiment = expressionExperiment;
     }
 
+    public Integer getNumComponents() {
+        return numComponents;
+    }
+
+    public void setNumComponents( Integer numComponents ) {
+        this.numComponents = numComponents;
+    }
+
     @Override
     public Class<? extends Task<TaskResult, ? extends TaskCommand>> getTaskClass() {
         return SvdTask.class;
@@ -39,7 +39,9 @@ public class SvdTaskImpl extends AbstractTask<TaskResult, SvdTaskCommand> implem
     public TaskResult execute() {
         TaskResult result = new TaskResult( taskCommand, null );
 
-        if ( taskCommand.getExpressionExperiment() != null ) {
+        if ( taskCommand.getExpressionExperiment() != null && taskCommand.getNumComponents() != null ) {
+            svdService.svd( taskCommand.getExpressionExperiment().getId(), taskCommand.getNumComponents() );
+        } else if ( taskCommand.getExpressionExperiment() != null ) {
             svdService.svd( taskCommand.getExpressionExperiment().getId() );
         } else {
             log.warn( "TaskCommand was not valid, nothing being done" );
@@ -0,0 +1,81 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.visualization;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.zip.CRC32;
+
+/**
+ * An encoded QC image with what is needed to answer conditional requests for it.
+ *
+ * @see    QCImageCache
+ */
+public class QCImage implements Serializable {
+
+    private static final long serialVersionUID = 2389475609182375562L;
+
+    private final byte[] data;
+    private final String eTag;
+    private final long lastModified;
+
+    /**
+     * @param eeId         experiment id
+     * @param data         the encoded image
+     * @param lastModified when the data the image shows was last changed, in milliseconds since the epoch
+     */
+    QCImage( Long eeId, byte[] data, long lastModified ) {
+        this.data = data;
+        this.lastModified = lastModified;
+        CRC32 crc = new CRC32();
+        crc.update( data );
+        this.eTag = "\"" + eeId + "-" + Long.toHexString( lastModified ) + "-" + Long.toHexString( crc.getValue() )
+                + "\"";
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return a quoted entity tag for the image.
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return in milliseconds since the epoch.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @param  lastUpdated last update of the experiment, can be null
+     * @return             true if the image was made for that version of the experiment
+     */
+    boolean isFor( Date lastUpdated ) {
+        return lastModified == QCImage.toMillis( lastUpdated );
+    }
+
+    static long toMillis( Date lastUpdated ) {
+        return lastUpdated == null ? 0L : lastUpdated.getTime();
+    }
+}
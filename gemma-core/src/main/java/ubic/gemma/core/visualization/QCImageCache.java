@@ -0,0 +1,55 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.visualization;
+
+import java.util.Date;
+
+/**
+ * Keeps rendered QC images (PCA, correlation matrix, mean-variance, p-value distributions etc.) of experiments, so
+ * they don't have to be recomputed for every page view.
+ */
+public interface QCImageCache {
+
+    /**
+     * @param  eeId        experiment id
+     * @param  key         identifies the image and its parameters within the experiment
+     * @param  lastUpdated last update of the experiment; entries made for any other value are not returned.
+     * @return             the image, or null if it is not cached or is out of date.
+     */
+    QCImage get( Long eeId, String key, Date lastUpdated );
+
+    /**
+     * @param  eeId        experiment id
+     * @param  key         identifies the image and its parameters within the experiment
+     * @param  lastUpdated last update of the experiment the image was made for; can be null.
+     * @param  png         the encoded image
+     * @return             the cached image
+     */
+    QCImage put( Long eeId, String key, Date lastUpdated, byte[] png );
+
+    /**
+     * Remove all the images for the experiment, e.g. because an analysis they show was recomputed.
+     *
+     * @param eeId experiment id
+     */
+    void clearCache( Long eeId );
+
+    void clearCache();
+
+}
@@ -0,0 +1,176 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.visualization;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.ehcache.EhCacheManagerFactoryBean;
+import org.springframework.stereotype.Component;
+import ubic.gemma.persistence.util.CacheUtils;
+import ubic.gemma.persistence.util.Settings;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Implementation note: images are kept in an ehCache, least recently used first out of memory, with a bounded disk
+ * store behind it. Entries are keyed by experiment and image key; the last update date of the experiment is checked on
+ * retrieval, so images made before a change to the experiment are not used. The image keys of each experiment are also
+ * indexed here, so clearing an experiment's images does not go through all the keys in the cache. The index can hold
+ * keys of images the cache has since evicted; they are dropped when next looked up or cleared.
+ */
+@Component
+public class QCImageCacheImpl implements QCImageCache, InitializingBean {
+
+    private static final String QC_IMAGE_CACHE_NAME = "QCImageCache";
+    private static final int QC_IMAGE_CACHE_DEFAULT_MAX_ELEMENTS = 500;
+    private static final int QC_IMAGE_CACHE_DEFAULT_MAX_ELEMENTS_ON_DISK = 20000;
+    private static final boolean QC_IMAGE_CACHE_DEFAULT_OVERFLOW_TO_DISK = true;
+
+    private Cache cache;
+
+    /**
+     * Image keys put in the cache, by experiment id.
+     */
+    private final ConcurrentMap<Long, Set<String>> keysByExperiment = new ConcurrentHashMap<>();
+
+    @Autowired
+    private EhCacheManagerFactoryBean cacheManagerFactory;
+
+    @Override
+    public void afterPropertiesSet() {
+        CacheManager cacheManager = this.cacheManagerFactory.getObject();
+        int maxElements = Settings
+                .getInt( "gemma.cache.qcimages.maxelements", QCImageCacheImpl.QC_IMAGE_CACHE_DEFAULT_MAX_ELEMENTS );
+        int maxElementsOnDisk = Settings.getInt( "gemma.cache.qcimages.maxelementsondisk",
+                QCImageCacheImpl.QC_IMAGE_CACHE_DEFAULT_MAX_ELEMENTS_ON_DISK );
+        boolean overFlowToDisk = Settings
+                .getBoolean( "gemma.cache.qcimages.usedisk", QCImageCacheImpl.QC_IMAGE_CACHE_DEFAULT_OVERFLOW_TO_DISK );
+        boolean terracottaEnabled = Settings.getBoolean( "gemma.cache.clustered", true );
+        boolean diskPersistent = Settings.getBoolean( "gemma.cache.diskpersistent", true ) && !terracottaEnabled;
+
+        this.cache = CacheUtils
+                .createOrLoadCache( cacheManager, QCImageCacheImpl.QC_IMAGE_CACHE_NAME, terracottaEnabled, maxElements,
+                        overFlowToDisk, true, 0, 0, diskPersistent );
+        if ( !terracottaEnabled ) {
+            this.cache.getCacheConfiguration().setMaxElementsOnDisk( maxElementsOnDisk );
+        }
+
+        // images kept on disk from an earlier run.
+        for ( Object o : this.cache.getKeys() ) {
+            QCImageKey k = ( QCImageKey ) o;
+            this.index( k.eeId ).add( k.key );
+        }
+    }
+
+    @Override
+    public void clearCache( Long eeId ) {
+        Set<String> keys = this.keysByExperiment.remove( eeId );
+        if ( keys == null )
+            return;
+        for ( String key : keys ) {
+            this.cache.remove( new QCImageKey( eeId, key ) );
+        }
+    }
+
+    @Override
+    public void clearCache() {
+        this.cache.removeAll();
+        this.keysByExperiment.clear();
+    }
+
+    @Override
+    public QCImage get( Long eeId, String key, Date lastUpdated ) {
+        Element element = this.cache.get( new QCImageKey( eeId, key ) );
+        if ( element == null ) {
+            this.unindex( eeId, key );
+            return null;
+        }
+        QCImage image = ( QCImage ) element.getObjectValue();
+        if ( !image.isFor( lastUpdated ) ) {
+            this.cache.remove( element.getObjectKey() );
+            this.unindex( eeId, key );
+            return null;
+        }
+        // in case it was put while the experiment's images were being cleared.
+        this.index( eeId ).add( key );
+        return image;
+    }
+
+    @Override
+    public QCImage put( Long eeId, String key, Date lastUpdated, byte[] png ) {
+        QCImage image = new QCImage( eeId, png, QCImage.toMillis( lastUpdated ) );
+        this.index( eeId ).add( key );
+        this.cache.put( new Element( new QCImageKey( eeId, key ), image ) );
+        return image;
+    }
+
+    private Set<String> index( Long eeId ) {
+        Set<String> keys = this.keysByExperiment.get( eeId );
+        if ( keys == null ) {
+            Set<String> newKeys = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+            keys = this.keysByExperiment.putIfAbsent( eeId, newKeys );
+            if ( keys == null ) {
+                keys = newKeys;
+            }
+        }
+        return keys;
+    }
+
+    private void unindex( Long eeId, String key ) {
+        Set<String> keys = this.keysByExperiment.get( eeId );
+        if ( keys != null ) {
+            keys.remove( key );
+        }
+    }
+
+    private static class QCImageKey implements Serializable {
+
+        private static final long serialVersionUID = -3260591374592745081L;
+        private final Long eeId;
+        private final String key;
+
+        private QCImageKey( Long eeId, String key ) {
+            this.eeId = eeId;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( this == obj )
+                return true;
+            if ( obj == null || this.getClass() != obj.getClass() )
+                return false;
+            QCImageKey other = ( QCImageKey ) obj;
+            return eeId.equals( other.eeId ) && key.equals( other.key );
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * eeId.hashCode() + key.hashCode();
+        }
+    }
+}
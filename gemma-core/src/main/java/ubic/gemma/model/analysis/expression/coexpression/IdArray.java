@@ -34,6 +34,39 @@ public abstract class IdArray implements Serializable {
     // keep visible to subclasses.
     EWAHCompressedBitmap data = new EWAHCompressedBitmap();
 
+    /**
+     * @param ids IDs, in any order
+     * @return bitmap with the IDs set
+     * @throws IllegalArgumentException if a value is too large to be stored as an integer.
+     */
+    public static EWAHCompressedBitmap toBitmap( Collection<Long> ids ) {
+        List<Long> idl = new ArrayList<>( ids );
+        Collections.sort( idl );
+
+        // bits can only be set in increasing order.
+        EWAHCompressedBitmap b = new EWAHCompressedBitmap();
+        for ( Long id : idl ) {
+            if ( id > Integer.MAX_VALUE ) {
+                throw new IllegalArgumentException( "Cannot store values larger than " + Integer.MAX_VALUE );
+            }
+            b.set( id.intValue() );
+        }
+        return b;
+    }
+
+    /**
+     * @param bitmap bitmap
+     * @return set of the positions that are set in the bitmap
+     */
+    public static Set<Long> toSet( EWAHCompressedBitmap bitmap ) {
+        int[] array = bitmap.toArray();
+        Set<Long> result = new HashSet<>( 2 * array.length );
+        for ( int i : array ) {
+            result.add( ( long ) i );
+        }
+        return result;
+    }
+
     private static byte[] pack( EWAHCompressedBitmap bitmap ) {
         ByteArrayDataOutput os = ByteStreams.newDataOutput();
         try {
@@ -55,18 +88,7 @@ public abstract class IdArray implements Serializable {
     }
 
     public synchronized void addEntities( Collection<Long> ids ) {
-        List<Long> idl = new ArrayList<>( ids );
-        Collections.sort( idl );
-
-        EWAHCompressedBitmap b = new EWAHCompressedBitmap();
-
-        for ( Long id : idl ) {
-            if ( id > Integer.MAX_VALUE ) {
-                throw new IllegalArgumentException( "Cannot store values larger than " + Integer.MAX_VALUE );
-            }
-            b.set( id.intValue() );
-        }
-        data = data.or( b );
+        data = data.or( IdArray.toBitmap( ids ) );
     }
 
     /**
@@ -111,12 +133,23 @@ public abstract class IdArray implements Serializable {
      * @return datasets IDs it has in common with this, as a set
      */
     public Set<Long> andSet( IdArray other ) {
-        Set<Long> result = new HashSet<>();
-        EWAHCompressedBitmap aab = data.and( other.data );
-        for ( int i : aab.toArray() ) {
-            result.add( ( long ) i );
-        }
-        return result;
+        return IdArray.toSet( data.and( other.data ) );
+    }
+
+    /**
+     * @param other the other idArray to compare with.
+     * @return datasets IDs it has in common with this, as a bitmap which must not be modified.
+     */
+    public EWAHCompressedBitmap andBitmap( IdArray other ) {
+        return data.and( other.data );
+    }
+
+    /**
+     * @param other the other idArray to compare with.
+     * @return how many datasets IDs it has in common with this, without forming the intersection.
+     */
+    public int andCardinality( IdArray other ) {
+        return data.andCardinality( other.data );
     }
 
     public byte[] getBytes() {
@@ -147,15 +180,7 @@ public abstract class IdArray implements Serializable {
      * @return set representation
      */
     public Set<Long> getIdsSet() {
-
-        Set<Long> result = new HashSet<>();
-
-        int[] array = data.toArray();
-        for ( int i : array ) {
-            result.add( ( long ) i );
-        }
-        return result;
-
+        return IdArray.toSet( data );
     }
 
     /**
@@ -25,14 +25,17 @@ import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrixUtil;
 import ubic.gemma.model.common.quantitationtype.PrimitiveType;
 import ubic.gemma.model.common.quantitationtype.QuantitationType;
+import ubic.gemma.model.common.quantitationtype.QuantitationTypeValueObject;
 import ubic.gemma.model.common.quantitationtype.ScaleType;
 import ubic.gemma.model.expression.arrayDesign.ArrayDesignValueObject;
 import ubic.gemma.model.expression.bioAssay.BioAssayValueObject;
 import ubic.gemma.model.expression.biomaterial.BioMaterialValueObject;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.expression.designElement.CompositeSequenceValueObject;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
 import ubic.gemma.model.expression.experiment.ExpressionExperimentSubSet;
 import ubic.gemma.model.expression.experiment.ExpressionExperimentSubsetValueObject;
+import ubic.gemma.model.expression.experiment.ExpressionExperimentValueObject;
 
 import java.util.*;
 
@@ -158,6 +161,38 @@ public class DoubleVectorValueObject extends DataVectorValueObject {
         }
     }
 
+    /**
+     * Create a vector from data held outside the database, for a processed vector with the given ID.
+     *
+     * @param id         the ID of the processed vector
+     * @param data       values in the order of the bioassay dimension; outliers will be set to NaN.
+     * @param rankByMean rank by mean
+     * @param rankByMax  rank by max
+     */
+    public DoubleVectorValueObject( Long id, ExpressionExperimentValueObject expressionExperiment,
+            CompositeSequenceValueObject designElement, QuantitationTypeValueObject quantitationType,
+            BioAssayDimensionValueObject badVo, Collection<Long> genes, double[] data, Double rankByMean,
+            Double rankByMax ) {
+        super( id );
+        this.expressionExperiment = expressionExperiment;
+        this.setDesignElement( designElement );
+        this.setQuantitationType( quantitationType );
+        this.setBioAssayDimension( badVo );
+        this.setGenes( genes );
+        this.masked = quantitationType.getIsMaskedPreferred();
+        this.data = data;
+        this.rankByMean = rankByMean;
+        this.rankByMax = rankByMax;
+
+        int i = 0;
+        for ( BioAssayValueObject bVo : this.getBioAssays() ) {
+            if ( bVo.isOutlier() ) {
+                data[i] = Double.NaN;
+            }
+            i++;
+        }
+    }
+
     @Override
     public boolean equals( Object obj ) {
         if ( id != null ) {
@@ -40,6 +40,18 @@ public class Gene2CsStatus implements Serializable {
 
     private String annotation;
 
+    private boolean fullRebuild;
+
+    /**
+     * Rows deleted plus rows inserted; for a full rebuild, the size of the new table.
+     */
+    private long rowsChanged;
+
+    /**
+     * In milliseconds.
+     */
+    private long duration;
+
     public String getAnnotation() {
         return annotation;
     }
@@ -48,6 +60,14 @@ public class Gene2CsStatus implements Serializable {
         this.annotation = annotation;
     }
 
+    public long getDuration() {
+        return duration;
+    }
+
+    public void setDuration( long duration ) {
+        this.duration = duration;
+    }
+
     public Exception getError() {
         return error;
     }
@@ -64,6 +84,22 @@ public class Gene2CsStatus implements Serializable {
         this.lastUpdate = lastUpdate;
     }
 
+    public long getRowsChanged() {
+        return rowsChanged;
+    }
+
+    public void setRowsChanged( long rowsChanged ) {
+        this.rowsChanged = rowsChanged;
+    }
+
+    public boolean isFullRebuild() {
+        return fullRebuild;
+    }
+
+    public void setFullRebuild( boolean fullRebuild ) {
+        this.fullRebuild = fullRebuild;
+    }
+
     @Override
     public String toString() {
         return lastUpdate.toString() + " " + ( error == null );
@@ -21,6 +21,7 @@ package ubic.gemma.persistence.persister;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.reflect.FieldUtils;
 import org.hibernate.FlushMode;
+import org.hibernate.Hibernate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 import ubic.gemma.model.association.BioSequence2GeneProduct;
@@ -42,18 +43,17 @@ import ubic.gemma.persistence.service.genome.sequenceAnalysis.BlatResultDao;
 import ubic.gemma.persistence.service.genome.taxon.TaxonDao;
 import ubic.gemma.persistence.util.SequenceBinUtils;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author pavlidis
  */
 abstract public class GenomePersister extends CommonPersister {
 
-    private final Map<Object, Taxon> seenTaxa = new HashMap<>();
-    private final Map<Object, Chromosome> seenChromosomes = new HashMap<>();
+    // concurrent because genes can be loaded by several threads at once (see NcbiGeneLoader)
+    private final Map<Object, Taxon> seenTaxa = new ConcurrentHashMap<>();
+    private final Map<Object, Chromosome> seenChromosomes = new ConcurrentHashMap<>();
     @Autowired
     private GeneDao geneDao;
     @Autowired
@@ -109,6 +109,92 @@ abstract public class GenomePersister extends CommonPersister {
         return super.persistOrUpdate( entity );
     }
 
+    @Override
+    @Transactional
+    public Collection<Gene> persistOrUpdateGenes( Collection<Gene> genes ) {
+        Collection<Gene> result = new ArrayList<>( genes.size() );
+        if ( genes.isEmpty() )
+            return result;
+
+        Collection<Integer> ncbiIds = new HashSet<>();
+        for ( Gene gene : genes ) {
+            ncbiIds.addAll( this.getNcbiIds( gene ) );
+        }
+
+        /*
+         * One round of queries for the whole batch, rather than several per gene: the genes and their products (so
+         * updateGeneProduct doesn't have to thaw them one at a time). Products are still looked up one by one before
+         * being created, as other loaders may have added them since.
+         */
+        Map<Integer, Collection<Gene>> existingGenes = new HashMap<>();
+        Collection<Long> existingIds = new HashSet<>();
+        for ( Gene g : geneDao.findAllByNcbiIds( ncbiIds ) ) {
+            if ( !existingGenes.containsKey( g.getNcbiGeneId() ) ) {
+                existingGenes.put( g.getNcbiGeneId(), new HashSet<Gene>() );
+            }
+            existingGenes.get( g.getNcbiGeneId() ).add( g );
+            existingIds.add( g.getId() );
+        }
+        if ( !existingIds.isEmpty() ) {
+            geneDao.loadThawed( existingIds );
+            geneProductDao.loadThawedByGeneIds( existingIds );
+        }
+
+        // see persistOrUpdateGene; also lets the updates go to the database in JDBC batches at commit.
+        this.getSession().setFlushMode( FlushMode.COMMIT );
+
+        // previous NCBI ids of genes done earlier in the batch; the lookup above can't be used for them any more.
+        Collection<Integer> stale = new HashSet<>();
+        UnflushedGeneProducts unflushed = new UnflushedGeneProducts();
+        for ( Gene gene : genes ) {
+            if ( unflushed.anyMatch( gene.getProducts() ) ) {
+                // a product was created or moved earlier in this batch; the lookups below have to be able to see it.
+                this.getSession().flush();
+                unflushed.clear();
+            }
+
+            Collection<Integer> geneNcbiIds = this.getNcbiIds( gene );
+            Collection<Gene> candidates = new HashSet<>();
+            for ( Integer ncbiId : geneNcbiIds ) {
+                if ( existingGenes.containsKey( ncbiId ) ) {
+                    candidates.addAll( existingGenes.get( ncbiId ) );
+                }
+            }
+
+            boolean isStale = !Collections.disjoint( stale, geneNcbiIds );
+            Gene persistentGene;
+            if ( gene.getId() != null || gene.getNcbiGeneId() == null || candidates.size() > 1 || isStale ) {
+                if ( isStale ) {
+                    // the gene-by-gene lookup has to see the changes made earlier in the batch.
+                    this.getSession().flush();
+                    unflushed.clear();
+                }
+                // unusual; the gene-by-gene path knows how to deal with these (e.g. by removing relics).
+                persistentGene = this.persistOrUpdateGene( gene );
+            } else if ( candidates.isEmpty() ) {
+                persistentGene = this.persistGene( gene, false );
+            } else {
+                if ( AbstractPersister.log.isDebugEnabled() )
+                    AbstractPersister.log.debug( "Updating " + candidates.iterator().next() );
+                persistentGene = this.updateGene( candidates.iterator().next(), gene );
+            }
+
+            // the previous ids now belong to this gene, or to relics that may have been removed.
+            for ( Integer ncbiId : geneNcbiIds ) {
+                if ( !ncbiId.equals( persistentGene.getNcbiGeneId() ) ) {
+                    stale.add( ncbiId );
+                }
+            }
+            if ( persistentGene.getNcbiGeneId() != null ) {
+                existingGenes.put( persistentGene.getNcbiGeneId(), Collections.singleton( persistentGene ) );
+                stale.remove( persistentGene.getNcbiGeneId() );
+            }
+            unflushed.addAll( persistentGene.getProducts() );
+            result.add( persistentGene );
+        }
+        return result;
+    }
+
     /**
      * Update a gene.
      *
@@ -675,7 +761,7 @@ abstract public class GenomePersister extends CommonPersister {
 
     private void addAnyNewAccessions( GeneProduct existing, GeneProduct geneProduct ) {
         Map<String, DatabaseEntry> updatedGpMap = new HashMap<>();
-        existing = geneProductDao.thaw( existing );
+        existing = this.thawGeneProduct( existing );
         for ( DatabaseEntry de : existing.getAccessions() ) {
             updatedGpMap.put( de.getAccession(), de );
         }
@@ -687,6 +773,38 @@ abstract public class GenomePersister extends CommonPersister {
         }
     }
 
+    /**
+     * @return the current and previous NCBI ids of the gene, which is what GeneDao.find looks for.
+     */
+    private Collection<Integer> getNcbiIds( Gene gene ) {
+        Collection<Integer> ncbiIds = new HashSet<>();
+        if ( gene.getNcbiGeneId() == null )
+            return ncbiIds;
+        ncbiIds.add( gene.getNcbiGeneId() );
+        if ( StringUtils.isNotBlank( gene.getPreviousNcbiId() ) ) {
+            for ( String previousId : StringUtils.split( gene.getPreviousNcbiId(), "," ) ) {
+                try {
+                    ncbiIds.add( Integer.parseInt( previousId ) );
+                } catch ( NumberFormatException e ) {
+                    // no action, as in BusinessKey
+                }
+            }
+        }
+        return ncbiIds;
+    }
+
+    /**
+     * Skips the query if the product is already in the session with its associations loaded (persistOrUpdateGenes loads
+     * them for a whole batch).
+     */
+    private GeneProduct thawGeneProduct( GeneProduct geneProduct ) {
+        if ( this.getSession().contains( geneProduct ) && Hibernate.isInitialized( geneProduct.getAccessions() )
+                && Hibernate.isInitialized( geneProduct.getPhysicalLocation() ) ) {
+            return geneProduct;
+        }
+        return geneProductDao.thaw( geneProduct );
+    }
+
     private void fillChromosomeLocationAssociations( ChromosomeLocation chromosomeLocation, Taxon t ) {
         if ( chromosomeLocation == null )
             return;
@@ -954,7 +1072,7 @@ abstract public class GenomePersister extends CommonPersister {
         Gene geneForExistingGeneProduct = existingGeneProduct.getGene();
         assert !this.isTransient( geneForExistingGeneProduct );
 
-        existingGeneProduct = geneProductDao.thaw( existingGeneProduct );
+        existingGeneProduct = this.thawGeneProduct( existingGeneProduct );
 
         // Update all the fields. Note that usually, some of these can't have changed or we wouldn't have even
         // found the 'existing' one (name GI in particular); however, sometimes we are updating this information
@@ -973,4 +1091,39 @@ abstract public class GenomePersister extends CommonPersister {
         }
 
     }
+
+    /**
+     * The GIs and names of gene products created or moved in the current batch and not flushed yet, which
+     * GeneProductDao.find would not see.
+     */
+    private static class UnflushedGeneProducts {
+        private final Collection<String> gis = new HashSet<>();
+        private final Collection<String> names = new HashSet<>();
+
+        private void addAll( Collection<GeneProduct> geneProducts ) {
+            for ( GeneProduct gp : geneProducts ) {
+                if ( StringUtils.isNotBlank( gp.getNcbiGi() ) )
+                    this.gis.add( gp.getNcbiGi() );
+                if ( StringUtils.isNotBlank( gp.getName() ) )
+                    this.names.add( gp.getName() );
+            }
+        }
+
+        /**
+         * Mirrors the business key used by GeneProductDao.find: the GI if there is one, otherwise the name.
+         */
+        private boolean anyMatch( Collection<GeneProduct> geneProducts ) {
+            for ( GeneProduct gp : geneProducts ) {
+                if ( StringUtils.isNotBlank( gp.getNcbiGi() ) ? this.gis.contains( gp.getNcbiGi() ) :
+                        this.names.contains( gp.getName() ) )
+                    return true;
+            }
+            return false;
+        }
+
+        private void clear() {
+            this.gis.clear();
+            this.names.clear();
+        }
+    }
 }
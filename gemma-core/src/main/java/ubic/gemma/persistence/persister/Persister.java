@@ -20,6 +20,7 @@ package ubic.gemma.persistence.persister;
 
 import org.springframework.security.access.annotation.Secured;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
 import ubic.gemma.persistence.util.ArrayDesignsForExperimentCache;
 
 import java.util.Collection;
@@ -84,6 +85,17 @@ public interface Persister {
     @Secured({ "GROUP_USER" })
     Object persistOrUpdate( Object obj );
 
+    /**
+     * Persist or update a batch of genes (with their products) in one transaction, as for
+     * {@link #persistOrUpdate(Object)}. The existing genes and their products are loaded for the whole batch at once
+     * rather than gene by gene; genes that match more than one existing gene are still done one at a time.
+     *
+     * @param  genes transient genes, typically from NCBI
+     * @return       the persistent versions of the genes.
+     */
+    @Secured({ "GROUP_USER" })
+    Collection<Gene> persistOrUpdateGenes( Collection<Gene> genes );
+
     /**
      * Determine if a entity is transient (not persistent).
      *
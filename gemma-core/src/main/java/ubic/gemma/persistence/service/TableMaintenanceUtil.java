@@ -27,7 +27,8 @@ import org.springframework.transaction.annotation.Transactional;
 public interface TableMaintenanceUtil {
 
     /**
-     * If necessary, update the GENE2CS table.
+     * If necessary, update the GENE2CS table. A full rebuild is not done in a single transaction, as MySQL commits
+     * around the DDL it uses; GENE2CS is only swapped for the rebuilt table at the end.
      */
     @Transactional
     @Secured({ "GROUP_AGENT" })
@@ -20,6 +20,7 @@
 package ubic.gemma.persistence.service;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.StopWatch;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Session;
@@ -40,9 +41,7 @@ import ubic.gemma.persistence.util.MailEngine;
 import ubic.gemma.persistence.util.Settings;
 
 import java.io.*;
-import java.util.Calendar;
-import java.util.Collection;
-import java.util.Date;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -58,13 +57,20 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
     private static final AtomicBoolean running = new AtomicBoolean( false );
 
     /**
-     * The query used to repopulate the contents of the GENE2CS table.
+     * The query used to populate the contents of the GENE2CS table (or its shadow, the table name is the first format
+     * argument) for one platform.
      */
     private static final String GENE2CS_REPOPULATE_QUERY =
-            "INSERT INTO GENE2CS (GENE, CS, AD) " + "SELECT DISTINCT gene.ID, cs.ID, cs.ARRAY_DESIGN_FK "
+            "INSERT INTO %s (GENE, CS, AD) " + "SELECT DISTINCT gene.ID, cs.ID, cs.ARRAY_DESIGN_FK "
                     + " FROM CHROMOSOME_FEATURE AS gene, CHROMOSOME_FEATURE AS geneprod,BIO_SEQUENCE2_GENE_PRODUCT AS bsgp,COMPOSITE_SEQUENCE cs "
                     + " WHERE geneprod.GENE_FK = gene.ID AND bsgp.GENE_PRODUCT_FK = geneprod.ID AND "
-                    + " bsgp.BIO_SEQUENCE_FK = cs.BIOLOGICAL_CHARACTERISTIC_FK ORDER BY gene.ID,cs.ARRAY_DESIGN_FK";
+                    + " bsgp.BIO_SEQUENCE_FK = cs.BIOLOGICAL_CHARACTERISTIC_FK AND cs.ARRAY_DESIGN_FK = :ad "
+                    + " ORDER BY gene.ID";
+
+    /**
+     * Full rebuilds are done in this table, which then replaces GENE2CS, so GENE2CS stays usable in the meantime.
+     */
+    private static final String GENE2CS_SHADOW_TABLE = "GENE2CS_NEW";
 
     private static final String HOME_DIR = Settings.getString( "gemma.appdata.home" );
 
@@ -94,54 +100,78 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
         TableMaintenanceUtilImpl.log.debug( "Running Gene2CS status check" );
 
         String annotation = "";
+        // changes made while this runs are picked up by the next run.
+        Date runStart = new Date();
         try {
             TableMaintenanceUtilImpl.running.set( true );
 
             Gene2CsStatus status = this.getLastGene2CsUpdateStatus();
-            boolean needToRefresh = false;
-            if ( status == null ) {
-                needToRefresh = true;
-            }
 
-            if ( !needToRefresh ) {
+            /*
+             * Without a record of a successful run we don't know what is in the table, so it is rebuilt completely.
+             * Otherwise only the platforms that are new or were mapped since then are redone.
+             */
+            boolean fullRebuild = status == null || status.getError() != null;
+            Set<Long> changedPlatforms = new TreeSet<>();
+            StringBuilder buf = new StringBuilder();
+
+            if ( !fullRebuild ) {
                 Collection<Auditable> newObj = auditEventService.getNewSinceDate( status.getLastUpdate() );
 
                 for ( Auditable a : newObj ) {
-                    if ( a instanceof ArrayDesign ) {
-                        needToRefresh = true;
-                        annotation = a + " is new since " + status.getLastUpdate();
-                        TableMaintenanceUtilImpl.log.debug( annotation );
-                        break;
+                    if ( a instanceof ArrayDesign && changedPlatforms.add( a.getId() ) ) {
+                        String message = a + " is new since " + status.getLastUpdate();
+                        buf.append( message ).append( "\n" );
+                        TableMaintenanceUtilImpl.log.debug( message );
                     }
                 }
-            }
 
-            if ( !needToRefresh ) {
                 Collection<Auditable> updatedObj = auditEventService.getUpdatedSinceDate( status.getLastUpdate() );
                 for ( Auditable a : updatedObj ) {
-                    if ( a instanceof ArrayDesign ) {
-                        for ( AuditEvent ae : auditEventService.getEvents( a ) ) {
-                            if ( ae == null )
-                                continue; // legacy of ordered-list which could end up with gaps; should
-                            // not be needed any more
-                            if ( ae.getEventType() != null && ae.getEventType() instanceof ArrayDesignGeneMappingEvent
-                                    && ae.getDate().after( status.getLastUpdate() ) ) {
-                                needToRefresh = true;
-                                annotation = a + " had probe mapping done since: " + status.getLastUpdate();
-                                TableMaintenanceUtilImpl.log.debug( annotation );
-                                break;
-                            }
+                    if ( !( a instanceof ArrayDesign ) || changedPlatforms.contains( a.getId() ) )
+                        continue;
+                    for ( AuditEvent ae : auditEventService.getEvents( a ) ) {
+                        if ( ae == null )
+                            continue; // legacy of ordered-list which could end up with gaps; should
+                        // not be needed any more
+                        if ( ae.getEventType() != null && ae.getEventType() instanceof ArrayDesignGeneMappingEvent
+                                && ae.getDate().after( status.getLastUpdate() ) ) {
+                            changedPlatforms.add( a.getId() );
+                            String message = a + " had probe mapping done since: " + status.getLastUpdate();
+                            buf.append( message ).append( "\n" );
+                            TableMaintenanceUtilImpl.log.debug( message );
+                            break;
                         }
                     }
-                    if ( needToRefresh )
-                        break;
                 }
             }
 
-            if ( needToRefresh ) {
+            StopWatch timer = new StopWatch();
+            timer.start();
+            long rowsChanged;
+            if ( fullRebuild ) {
                 TableMaintenanceUtilImpl.log.debug( "Update of GENE2CS initiated" );
-                this.generateGene2CsEntries();
-                Gene2CsStatus updatedStatus = this.writeUpdateStatus( annotation, null );
+                annotation = "Full rebuild, " + ( status == null ? "no earlier run recorded" : "last run failed" );
+                rowsChanged = this.generateGene2CsEntries();
+            } else {
+                // removing genes or probes is not audited on the platform, so this is checked every time.
+                rowsChanged = this.removeStaleGene2CsEntries();
+                if ( rowsChanged > 0 ) {
+                    buf.append( rowsChanged ).append( " entries of removed platforms, genes or probes deleted\n" );
+                }
+                if ( !changedPlatforms.isEmpty() ) {
+                    TableMaintenanceUtilImpl.log.debug( "Update of GENE2CS initiated" );
+                    rowsChanged += this.updateGene2CsEntries( changedPlatforms );
+                }
+                annotation = buf.toString();
+            }
+
+            if ( fullRebuild || rowsChanged > 0 || !changedPlatforms.isEmpty() ) {
+                Gene2CsStatus updatedStatus = this.createUpdateStatus( annotation, null, runStart );
+                updatedStatus.setRowsChanged( rowsChanged );
+                updatedStatus.setDuration( timer.getTime() );
+                updatedStatus.setFullRebuild( fullRebuild );
+                this.writeUpdateStatus( updatedStatus );
                 this.sendEmail( updatedStatus );
 
             } else {
@@ -151,7 +181,7 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
         } catch ( Exception e ) {
             try {
                 TableMaintenanceUtilImpl.log.info( "Error during attempt to check status or update GENE2CS", e );
-                Gene2CsStatus updatedStatus = this.writeUpdateStatus( annotation, e );
+                Gene2CsStatus updatedStatus = this.writeUpdateStatus( annotation, e, runStart );
                 this.sendEmail( updatedStatus );
             } catch ( IOException e1 ) {
                 throw new RuntimeException( e1 );
@@ -171,29 +201,94 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
 
     /**
      * Function to regenerate the GENE2CS entries. Gene2Cs is a denormalized join table that allows for a quick link
-     * between Genes and CompositeSequences
+     * between Genes and CompositeSequences. The new contents are built in a shadow table one platform at a time, which
+     * then replaces GENE2CS in a single rename, so queries using GENE2CS are not held up meanwhile.
+     * <p>
+     * MySQL commits implicitly around each DDL statement, so unlike an incremental update this does not run in one
+     * transaction. That is safe because GENE2CS is only replaced by the final rename: if the rebuild fails before it,
+     * GENE2CS is unchanged, the failure is recorded, and the next run drops the leftover shadow table and starts over.
      *
      * @see GeneDao for where the GENE2CS table is used extensively.
+     * @return the number of rows in the new table
+     */
+    private long generateGene2CsEntries() {
+        TableMaintenanceUtilImpl.log.info( "Regenerating Gene2Cs ..." );
+        Session session = this.sessionFactory.getCurrentSession();
+        String shadow = TableMaintenanceUtilImpl.GENE2CS_SHADOW_TABLE;
+
+        // left over if an earlier rebuild failed.
+        session.createSQLQuery( "DROP TABLE IF EXISTS " + shadow ).executeUpdate();
+        session.createSQLQuery( "CREATE TABLE " + shadow + " LIKE GENE2CS" ).executeUpdate();
+
+        long inserted = 0;
+        //noinspection unchecked
+        List<Number> platforms = session.createSQLQuery( "SELECT ID FROM ARRAY_DESIGN ORDER BY ID" ).list();
+        for ( Number ad : platforms ) {
+            inserted += this.insertGene2CsEntries( session, shadow, ad.longValue() );
+        }
+
+        // MySQL renames both tables atomically.
+        session.createSQLQuery( "RENAME TABLE GENE2CS TO GENE2CS_OLD, " + shadow + " TO GENE2CS" ).executeUpdate();
+        session.createSQLQuery( "DROP TABLE GENE2CS_OLD" ).executeUpdate();
+        TableMaintenanceUtilImpl.log
+                .info( "Done regenerating Gene2Cs: " + inserted + " entries for " + platforms.size() + " platforms" );
+
+        session.flush();
+        session.clear();
+        return inserted;
+    }
+
+    /**
+     * Remove the GENE2CS entries that refer to platforms, genes or composite sequences that no longer exist.
+     *
+     * @return the number of rows deleted
      */
-    private void generateGene2CsEntries() {
-        TableMaintenanceUtilImpl.log.info( "Updating Gene2Cs ..." );
+    private long removeStaleGene2CsEntries() {
         Session session = this.sessionFactory.getCurrentSession();
-        TableMaintenanceUtilImpl.log.info( "Deleting all entries for Gene2Cs." );
-        String queryString = "DELETE FROM GENE2CS"; // Truncate doesn't work., bug 2057
-        org.hibernate.SQLQuery queryObject;
+        long deleted = session.createSQLQuery(
+                "DELETE g2c FROM GENE2CS g2c LEFT JOIN ARRAY_DESIGN ad ON g2c.AD = ad.ID WHERE ad.ID IS NULL" )
+                .executeUpdate();
+        deleted += session.createSQLQuery(
+                "DELETE g2c FROM GENE2CS g2c LEFT JOIN CHROMOSOME_FEATURE gene ON g2c.GENE = gene.ID "
+                        + "WHERE gene.ID IS NULL" ).executeUpdate();
+        deleted += session.createSQLQuery(
+                "DELETE g2c FROM GENE2CS g2c LEFT JOIN COMPOSITE_SEQUENCE cs ON g2c.CS = cs.ID WHERE cs.ID IS NULL" )
+                .executeUpdate();
+        if ( deleted > 0 ) {
+            TableMaintenanceUtilImpl.log.info( "Removed " + deleted + " stale Gene2Cs entries" );
+        }
+        return deleted;
+    }
 
-        queryObject = session.createSQLQuery( queryString ); // for native query.
-        int deleted = queryObject.executeUpdate();
+    /**
+     * Redo the GENE2CS entries of the given platforms only.
+     *
+     * @return the number of rows deleted plus the number inserted
+     */
+    private long updateGene2CsEntries( Collection<Long> platforms ) {
+        TableMaintenanceUtilImpl.log.info( "Updating Gene2Cs for " + platforms.size() + " platforms ..." );
+        Session session = this.sessionFactory.getCurrentSession();
 
-        TableMaintenanceUtilImpl.log.info( "Deleted " + deleted + "; Recreating all entries for Gene2Cs." );
-        queryString = TableMaintenanceUtilImpl.GENE2CS_REPOPULATE_QUERY;
-        queryObject = session.createSQLQuery( queryString ); // for native query.
-        queryObject.executeUpdate();
-        TableMaintenanceUtilImpl.log.info( "Done regenerating Gene2Cs." );
+        long changed = 0;
+        for ( Long ad : platforms ) {
+            int deleted = session.createSQLQuery( "DELETE FROM GENE2CS WHERE AD = :ad" ).setParameter( "ad", ad )
+                    .executeUpdate();
+            int inserted = this.insertGene2CsEntries( session, "GENE2CS", ad );
+            TableMaintenanceUtilImpl.log
+                    .debug( "Platform " + ad + ": replaced " + deleted + " Gene2Cs entries with " + inserted );
+            changed += deleted + inserted;
+        }
+        TableMaintenanceUtilImpl.log.info( "Done updating Gene2Cs: " + changed + " rows changed" );
 
         session.flush();
         session.clear();
+        return changed;
+    }
 
+    private int insertGene2CsEntries( Session session, String table, Long ad ) {
+        return session
+                .createSQLQuery( String.format( TableMaintenanceUtilImpl.GENE2CS_REPOPULATE_QUERY, table ) ) // native
+                .setParameter( "ad", ad ).executeUpdate();
     }
 
     private File getGene2CsInfopath() {
@@ -236,28 +331,40 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
         }
         msg.setTo( adminEmailAddress );
         msg.setSubject( "Gene2Cs update status." );
-        msg.setText( "Gene2Cs updating was run.\n" + results.getAnnotation() );
+        msg.setText( "Gene2Cs updating was run" + ( results.isFullRebuild() ? " (full rebuild)" : "" ) + ": "
+                + results.getRowsChanged() + " rows changed in " + results.getDuration() + "ms.\n" + results
+                .getAnnotation() );
         mailEngine.send( msg );
         TableMaintenanceUtilImpl.log.info( "Email notification sent to " + adminEmailAddress );
     }
 
     /**
      * @param annotation extra text that describes the status
+     * @param runStart   when the run started; changes after it are left for the next run
      */
-    private Gene2CsStatus writeUpdateStatus( String annotation, Exception e ) throws IOException {
-        this.initDirectories();
+    private Gene2CsStatus createUpdateStatus( String annotation, Exception e, Date runStart ) {
         Gene2CsStatus status = new Gene2CsStatus();
-        Calendar c = Calendar.getInstance();
-        Date date = c.getTime();
-        status.setLastUpdate( date );
+        status.setLastUpdate( runStart );
         status.setError( e );
         status.setAnnotation( annotation );
+        return status;
+    }
 
+    /**
+     * @param annotation extra text that describes the status
+     */
+    private Gene2CsStatus writeUpdateStatus( String annotation, Exception e, Date runStart ) throws IOException {
+        Gene2CsStatus status = this.createUpdateStatus( annotation, e, runStart );
+        this.writeUpdateStatus( status );
+        return status;
+    }
+
+    private void writeUpdateStatus( Gene2CsStatus status ) throws IOException {
+        this.initDirectories();
         try (FileOutputStream fos = new FileOutputStream( this.getGene2CsInfopath() );
                 ObjectOutputStream oos = new ObjectOutputStream( fos )) {
             oos.writeObject( status );
         }
-        return status;
     }
 
 }
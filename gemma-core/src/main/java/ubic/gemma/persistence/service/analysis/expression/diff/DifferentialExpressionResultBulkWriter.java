@@ -0,0 +1,231 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.analysis.expression.diff;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import ubic.gemma.model.analysis.expression.diff.ContrastResult;
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysisResult;
+import ubic.gemma.model.analysis.expression.diff.ExpressionAnalysisResultSet;
+import ubic.gemma.model.analysis.expression.diff.PvalueDistribution;
+import ubic.gemma.model.expression.experiment.FactorValue;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes the results of a (persistent, but still empty) result set, their contrasts and the p-value distribution with
+ * plain JDBC statements on the connection of the current session, so none of them ever enter the session. Rows are
+ * written as multi-row <code>INSERT ... VALUES (...), (...)</code> statements of up to {@link #ROWS_PER_INSERT} rows,
+ * so they do not depend on the driver rewriting JDBC batches (<code>rewriteBatchedStatements</code>, which our
+ * connection URL does not set). These tables use native (auto-increment) IDs; the IDs of each statement's rows are the
+ * keys the driver reports for it, which it derives from the first one. They are only right if the server gives a
+ * multi-row insert consecutive IDs (an auto-increment lock mode below 2 and an increment of 1), so this must only be
+ * used if {@link ExpressionAnalysisResultSetDao#canCreateResultsInBulk()}. The IDs are set on the objects as they are
+ * written, which is what lets the contrasts refer to their results. The rows are the same as Hibernate would have
+ * written, so the analysis reads back normally.
+ */
+class DifferentialExpressionResultBulkWriter {
+
+    /**
+     * Maximum number of rows in one multi-row INSERT.
+     */
+    private static final int ROWS_PER_INSERT = 500;
+
+    private static final Log log = LogFactory.getLog( DifferentialExpressionResultBulkWriter.class );
+
+    private static final String INSERT_RESULT = "INSERT INTO DIFFERENTIAL_EXPRESSION_ANALYSIS_RESULT"
+            + " (PVALUE, CORRECTED_PVALUE, `RANK`, CORRECTED_P_VALUE_BIN, RESULT_SET_FK, PROBE_FK) VALUES ";
+    private static final String RESULT_ROW = "(?, ?, ?, ?, ?, ?)";
+    private static final int[] RESULT_TYPES = new int[] { Types.DOUBLE, Types.DOUBLE, Types.DOUBLE, Types.INTEGER,
+            Types.BIGINT, Types.BIGINT };
+
+    private static final String INSERT_CONTRAST = "INSERT INTO CONTRAST_RESULT"
+            + " (PVALUE, TSTAT, COEFFICIENT, LOG_FOLD_CHANGE, FACTOR_VALUE_FK, SECOND_FACTOR_VALUE_FK,"
+            + " DIFFERENTIAL_EXPRESSION_ANALYSIS_RESULT_FK) VALUES ";
+    private static final String CONTRAST_ROW = "(?, ?, ?, ?, ?, ?, ?)";
+    private static final int[] CONTRAST_TYPES = new int[] { Types.DOUBLE, Types.DOUBLE, Types.DOUBLE, Types.DOUBLE,
+            Types.BIGINT, Types.BIGINT, Types.BIGINT };
+
+    private static final String INSERT_PVALUE_DISTRIBUTION = "INSERT INTO PVALUE_DISTRIBUTION (NUM_BINS, BIN_COUNTS)"
+            + " VALUES (?, ?)";
+
+    private static final String UPDATE_RESULT_SET = "UPDATE ANALYSIS_RESULT_SET SET PVALUE_DISTRIBUTION_FK = ?"
+            + " WHERE ID = ?";
+
+    private final Session session;
+
+    private long numResults = 0;
+    private long numContrasts = 0;
+
+    DifferentialExpressionResultBulkWriter( Session session ) {
+        this.session = session;
+    }
+
+    private static Long getId( FactorValue value ) {
+        return value == null ? null : value.getId();
+    }
+
+    /**
+     * Insert the rows with one statement and set the generated keys, in the order of the rows, on the given objects.
+     */
+    private static void insert( Connection connection, String insert, String rowPlaceholders, int[] types,
+            List<Object[]> rows, List<?> entities ) throws SQLException {
+        StringBuilder sql = new StringBuilder( insert );
+        for ( int i = 0; i < rows.size(); i++ ) {
+            if ( i > 0 ) {
+                sql.append( ", " );
+            }
+            sql.append( rowPlaceholders );
+        }
+        try (PreparedStatement ps = connection.prepareStatement( sql.toString(), Statement.RETURN_GENERATED_KEYS )) {
+            int index = 1;
+            for ( Object[] row : rows ) {
+                for ( int i = 0; i < row.length; i++ ) {
+                    if ( row[i] == null ) {
+                        ps.setNull( index++, types[i] );
+                    } else {
+                        ps.setObject( index++, row[i], types[i] );
+                    }
+                }
+            }
+            ps.executeUpdate();
+            DifferentialExpressionResultBulkWriter.readIds( ps, entities );
+        }
+    }
+
+    /**
+     * Reads the generated keys of an insert, in the order the rows were added, into the given objects.
+     */
+    private static void readIds( PreparedStatement ps, List<?> entities ) throws SQLException {
+        try (ResultSet keys = ps.getGeneratedKeys()) {
+            for ( Object entity : entities ) {
+                if ( !keys.next() ) {
+                    throw new IllegalStateException( "Fewer generated keys than rows inserted" );
+                }
+                long id = keys.getLong( 1 );
+                if ( entity instanceof DifferentialExpressionAnalysisResult ) {
+                    ( ( DifferentialExpressionAnalysisResult ) entity ).setId( id );
+                } else {
+                    ( ( ContrastResult ) entity ).setId( id );
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the results of the result set, with their contrasts, and its p-value distribution, if it has one.
+     *
+     * @param resultSet persistent result set; its results must not be persistent yet.
+     */
+    void write( final ExpressionAnalysisResultSet resultSet ) {
+        if ( resultSet.getId() == null ) {
+            throw new IllegalArgumentException( "Result set must be persistent before its results are written" );
+        }
+        long start = System.currentTimeMillis();
+
+        session.doWork( new Work() {
+            @Override
+            public void execute( Connection connection ) throws SQLException {
+                if ( resultSet.getPvalueDistribution() != null ) {
+                    DifferentialExpressionResultBulkWriter.this
+                            .writePvalueDistribution( connection, resultSet, resultSet.getPvalueDistribution() );
+                }
+
+                List<DifferentialExpressionAnalysisResult> chunk = new ArrayList<>(
+                        DifferentialExpressionResultBulkWriter.ROWS_PER_INSERT );
+                for ( Iterator<DifferentialExpressionAnalysisResult> it = resultSet.getResults().iterator(); it
+                        .hasNext(); ) {
+                    chunk.add( it.next() );
+                    if ( chunk.size() == DifferentialExpressionResultBulkWriter.ROWS_PER_INSERT || !it.hasNext() ) {
+                        DifferentialExpressionResultBulkWriter.this.writeChunk( connection, resultSet, chunk );
+                        chunk.clear();
+                    }
+                }
+            }
+        } );
+
+        long time = System.currentTimeMillis() - start;
+        DifferentialExpressionResultBulkWriter.log.info( String.format(
+                "Bulk wrote %d results and %d contrasts for result set %d in %.1fs (%.0f rows/s)", numResults,
+                numContrasts, resultSet.getId(), time / 1000.0,
+                ( numResults + numContrasts ) / Math.max( 0.001, time / 1000.0 ) ) );
+    }
+
+    private void writeChunk( Connection connection, ExpressionAnalysisResultSet resultSet,
+            List<DifferentialExpressionAnalysisResult> chunk ) throws SQLException {
+        List<Object[]> rows = new ArrayList<>( chunk.size() );
+        for ( DifferentialExpressionAnalysisResult r : chunk ) {
+            rows.add( new Object[] { r.getPvalue(), r.getCorrectedPvalue(), r.getRank(), r.getCorrectedPValueBin(),
+                    resultSet.getId(), r.getProbe().getId() } );
+        }
+        DifferentialExpressionResultBulkWriter
+                .insert( connection, DifferentialExpressionResultBulkWriter.INSERT_RESULT,
+                        DifferentialExpressionResultBulkWriter.RESULT_ROW,
+                        DifferentialExpressionResultBulkWriter.RESULT_TYPES, rows, chunk );
+        numResults += chunk.size();
+
+        List<ContrastResult> contrasts = new ArrayList<>();
+        rows = new ArrayList<>();
+        for ( DifferentialExpressionAnalysisResult r : chunk ) {
+            for ( ContrastResult c : r.getContrasts() ) {
+                rows.add( new Object[] { c.getPvalue(), c.getTstat(), c.getCoefficient(), c.getLogFoldChange(),
+                        DifferentialExpressionResultBulkWriter.getId( c.getFactorValue() ),
+                        DifferentialExpressionResultBulkWriter.getId( c.getSecondFactorValue() ), r.getId() } );
+                contrasts.add( c );
+            }
+        }
+        for ( int from = 0; from < rows.size(); from += DifferentialExpressionResultBulkWriter.ROWS_PER_INSERT ) {
+            int to = Math.min( rows.size(), from + DifferentialExpressionResultBulkWriter.ROWS_PER_INSERT );
+            DifferentialExpressionResultBulkWriter
+                    .insert( connection, DifferentialExpressionResultBulkWriter.INSERT_CONTRAST,
+                            DifferentialExpressionResultBulkWriter.CONTRAST_ROW,
+                            DifferentialExpressionResultBulkWriter.CONTRAST_TYPES, rows.subList( from, to ),
+                            contrasts.subList( from, to ) );
+        }
+        numContrasts += contrasts.size();
+    }
+
+    private void writePvalueDistribution( Connection connection, ExpressionAnalysisResultSet resultSet,
+            PvalueDistribution pvd ) throws SQLException {
+        try (PreparedStatement ps = connection
+                .prepareStatement( DifferentialExpressionResultBulkWriter.INSERT_PVALUE_DISTRIBUTION,
+                        Statement.RETURN_GENERATED_KEYS )) {
+            ps.setInt( 1, pvd.getNumBins() );
+            ps.setBytes( 2, pvd.getBinCounts() );
+            ps.executeUpdate();
+            try (ResultSet keys = ps.getGeneratedKeys()) {
+                if ( !keys.next() ) {
+                    throw new IllegalStateException( "No key was generated for the p-value distribution" );
+                }
+                pvd.setId( keys.getLong( 1 ) );
+            }
+        }
+        try (PreparedStatement ps = connection
+                .prepareStatement( DifferentialExpressionResultBulkWriter.UPDATE_RESULT_SET )) {
+            ps.setLong( 1, pvd.getId() );
+            ps.setLong( 2, resultSet.getId() );
+            ps.executeUpdate();
+        }
+    }
+}
@@ -40,4 +40,22 @@ public interface ExpressionAnalysisResultSetDao extends BaseDao<ExpressionAnalys
 
     ExpressionAnalysisResultSet thawWithoutContrasts( ExpressionAnalysisResultSet resultSet );
 
+    /**
+     * Write the results (with their contrasts) and the p-value distribution of a result set with JDBC batches, without
+     * passing them through the session. IDs are set on the objects as they are written.
+     *
+     * The IDs are the keys MySQL reports for each multi-row insert, so only use this if
+     * {@link #canCreateResultsInBulk()}.
+     *
+     * @param resultSet persistent result set, holding results that are not persistent yet.
+     */
+    void createResults( ExpressionAnalysisResultSet resultSet );
+
+    /**
+     * @return true if the database hands out consecutive IDs to the rows of a multi-row insert (an InnoDB
+     *         auto-increment lock mode below 2 and an auto-increment increment of 1), which
+     *         {@link #createResults(ExpressionAnalysisResultSet)} relies on to know the IDs of the rows it wrote.
+     */
+    boolean canCreateResultsInBulk();
+
 }
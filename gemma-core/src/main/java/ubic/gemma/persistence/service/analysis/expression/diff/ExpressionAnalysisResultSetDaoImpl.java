@@ -40,6 +40,11 @@ import java.util.List;
 public class ExpressionAnalysisResultSetDaoImpl extends AbstractDao<ExpressionAnalysisResultSet>
         implements ExpressionAnalysisResultSetDao {
 
+    /**
+     * Whether multi-row inserts get consecutive IDs; read from the server the first time it is needed.
+     */
+    private volatile Boolean consecutiveIds = null;
+
     @Autowired
     public ExpressionAnalysisResultSetDaoImpl( SessionFactory sessionFactory ) {
         super( ExpressionAnalysisResultSet.class, sessionFactory );
@@ -138,6 +143,42 @@ public class ExpressionAnalysisResultSetDaoImpl extends AbstractDao<ExpressionAn
 
     }
 
+    @Override
+    public void createResults( ExpressionAnalysisResultSet resultSet ) {
+        Session session = this.getSessionFactory().getCurrentSession();
+        // anything pending must be in the database before the rows that refer to it.
+        session.flush();
+        new DifferentialExpressionResultBulkWriter( session ).write( resultSet );
+
+        // the result set row was changed behind Hibernate's back.
+        Cache cache = this.getSessionFactory().getCache();
+        cache.evictEntity( ExpressionAnalysisResultSet.class, resultSet.getId() );
+        cache.evictCollection( ExpressionAnalysisResultSet.class.getName() + ".results", resultSet.getId() );
+        // the analysis was saved without its result sets; its cached (empty) collection of them is stale too.
+        if ( resultSet.getAnalysis() != null ) {
+            cache.evictCollection( DifferentialExpressionAnalysis.class.getName() + ".resultSets",
+                    resultSet.getAnalysis().getId() );
+        }
+    }
+
+    @Override
+    public boolean canCreateResultsInBulk() {
+        if ( this.consecutiveIds == null ) {
+            Object[] row = ( Object[] ) this.getSessionFactory().getCurrentSession()
+                    .createSQLQuery( "SELECT @@innodb_autoinc_lock_mode, @@auto_increment_increment" )
+                    .uniqueResult();
+            int lockMode = ( ( Number ) row[0] ).intValue();
+            int increment = ( ( Number ) row[1] ).intValue();
+            this.consecutiveIds = lockMode < 2 && increment == 1;
+            if ( !this.consecutiveIds ) {
+                AbstractDao.log.warn( "Analysis results will be saved through Hibernate: innodb_autoinc_lock_mode="
+                        + lockMode + " and auto_increment_increment=" + increment
+                        + " do not guarantee consecutive IDs for multi-row inserts" );
+            }
+        }
+        return this.consecutiveIds;
+    }
+
     @Override
     public void remove( ExpressionAnalysisResultSet resultSet ) {
 
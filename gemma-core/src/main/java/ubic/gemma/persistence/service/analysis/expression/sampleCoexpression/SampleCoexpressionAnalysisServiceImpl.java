@@ -36,6 +36,7 @@ import ubic.gemma.core.analysis.service.ExpressionDataMatrixService;
 import ubic.gemma.core.analysis.util.ExperimentalDesignUtils;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataMatrixColumnSort;
+import ubic.gemma.core.visualization.QCImageCache;
 import ubic.gemma.model.analysis.expression.coexpression.SampleCoexpressionAnalysis;
 import ubic.gemma.model.analysis.expression.coexpression.SampleCoexpressionMatrix;
 import ubic.gemma.model.expression.bioAssay.BioAssay;
@@ -89,6 +90,8 @@ public class SampleCoexpressionAnalysisServiceImpl implements SampleCoexpression
 
     @Autowired
     private ExpressionExperimentService expressionExperimentService;
+    @Autowired
+    private QCImageCache qcImageCache;
 
     @Override
     public DoubleMatrix<BioAssay, BioAssay> loadFullMatrix( ExpressionExperiment ee ) {
@@ -152,6 +155,7 @@ public class SampleCoexpressionAnalysisServiceImpl implements SampleCoexpression
     @Override
     public void removeForExperiment( ExpressionExperiment ee ) {
         this.sampleCoexpressionAnalysisDao.removeForExperiment( ee );
+        this.qcImageCache.clearCache( ee.getId() );
     }
 
     /**
@@ -0,0 +1,313 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.association.coexpression;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.jdbc.Work;
+import ubic.gemma.model.analysis.expression.coexpression.SupportDetails;
+import ubic.gemma.model.association.coexpression.ExperimentCoexpressionLink;
+import ubic.gemma.model.association.coexpression.Gene2GeneCoexpression;
+import ubic.gemma.model.genome.Taxon;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Writes coexpression links, their support details and the experiment-level links with plain JDBC statements on the
+ * connection of the current session, bypassing the Hibernate session (and its first-level cache) entirely. IDs come
+ * from the same generators Hibernate uses for these entities, so rows written here are indistinguishable from rows
+ * saved through the session. Rows are buffered and written in batches; call {@link #flush()} before anything else
+ * reads the tables in the same transaction, and {@link #finish()} when done.
+ * Inserts are written as multi-row <code>INSERT ... VALUES (...), (...)</code> statements, so they do not depend on
+ * the driver rewriting JDBC batches (<code>rewriteBatchedStatements</code>, which our connection URL does not set).
+ * Support details and gene-level links are written with <code>INSERT ... ON DUPLICATE KEY UPDATE</code> on the
+ * primary key, so the same statements serve for new rows and for updates of the support of existing ones (MySQL).
+ * The updates of the flipped links can't be combined that way and are sent as an ordinary JDBC batch.
+ */
+class CoexpressionBulkWriter {
+
+    /**
+     * How many rows to buffer before writing them out.
+     */
+    private static final int FLUSH_SIZE = 2048;
+
+    /**
+     * Maximum number of rows in one multi-row INSERT; keeps the statements well under max_allowed_packet even for
+     * large support details.
+     */
+    private static final int ROWS_PER_INSERT = 256;
+
+    private static final Log log = LogFactory.getLog( CoexpressionBulkWriter.class );
+
+    private final Session session;
+    private final LinkCreator linkCreator;
+    private final Map<Class<?>, IdentifierGenerator> generators = new HashMap<>();
+
+    private final List<Statement> statements = new ArrayList<>();
+    private final Statement upsertSupportDetails;
+    private final Statement upsertLink;
+    private final Statement updateFlippedLinkSupport;
+    private final Statement insertExperimentLink;
+
+    private int numPending = 0;
+    private long numWritten = 0;
+    private long timeWriting = 0;
+
+    CoexpressionBulkWriter( Session session, Taxon taxon, LinkCreator linkCreator ) {
+        this.session = session;
+        this.linkCreator = linkCreator;
+
+        String supportDetailsTable = CoexpressionQueryUtils.getSupportDetailsTableName( taxon );
+        String linkTable = CoexpressionQueryUtils.getGeneLinkTableName( taxon );
+        String experimentLinkTable = CoexpressionQueryUtils.getExperimentLinkTableName( taxon );
+
+        // the statements are run in this order, which respects the foreign keys (links refer to their support details)
+        this.upsertSupportDetails = this.addStatement( new Statement( "INSERT INTO " + supportDetailsTable
+                + " (ID, BYTES) VALUES ", "(?, ?)", " ON DUPLICATE KEY UPDATE BYTES = VALUES(BYTES)", true ) );
+        this.upsertLink = this.addStatement( new Statement( "INSERT INTO " + linkTable
+                + " (ID, POSITIVE, SUPPORT, FIRST_GENE_FK, SECOND_GENE_FK, SUPPORT_DETAILS_FK) VALUES ",
+                "(?, ?, ?, ?, ?, ?)", " ON DUPLICATE KEY UPDATE SUPPORT = VALUES(SUPPORT)", true ) );
+        this.updateFlippedLinkSupport = this.addStatement( new Statement( "UPDATE " + linkTable
+                + " SET SUPPORT = ? WHERE FIRST_GENE_FK = ? AND SECOND_GENE_FK = ? AND POSITIVE = ?", "", "",
+                false ) );
+        this.insertExperimentLink = this.addStatement( new Statement( "INSERT INTO " + experimentLinkTable
+                + " (ID, EXPERIMENT_FK, LINK_FK, GENE1_FK, GENE2_FK) VALUES ", "(?, ?, ?, ?, ?)", "", true ) );
+    }
+
+    /**
+     * Write out any buffered rows and report the throughput.
+     *
+     * @return how many rows were written in total, as reported by the database. MySQL counts an
+     *         <code>INSERT ... ON DUPLICATE KEY UPDATE</code> that updates an existing row as two.
+     */
+    long finish() {
+        this.flush();
+        if ( numWritten > 0 ) {
+            CoexpressionBulkWriter.log.info( String.format( "Bulk wrote %d coexpression rows in %.1fs (%.0f rows/s)",
+                    numWritten, timeWriting / 1000.0, numWritten / Math.max( 0.001, timeWriting / 1000.0 ) ) );
+        }
+        return numWritten;
+    }
+
+    /**
+     * Write out the buffered rows.
+     */
+    void flush() {
+        if ( numPending == 0 ) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        session.doWork( new Work() {
+            @Override
+            public void execute( Connection connection ) throws SQLException {
+                for ( Statement statement : statements ) {
+                    numWritten += statement.execute( connection );
+                }
+            }
+        } );
+        numPending = 0;
+        timeWriting += System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Write the experiment-level link. Its ID is assigned here.
+     */
+    void insertExperimentLink( ExperimentCoexpressionLink link ) {
+        link.setId( this.generateId( link ) );
+        this.add( insertExperimentLink,
+                new Object[] { link.getId(), link.getExperiment().getId(), link.getLinkId(), link.getFirstGene(),
+                        link.getSecondGene() } );
+    }
+
+    /**
+     * Write gene-level links whose support details have already been written.
+     *
+     * @return the IDs assigned to the links, in the same order.
+     */
+    List<Long> insertLinks( Collection<Gene2GeneCoexpression> links ) {
+        List<Long> ids = new ArrayList<>( links.size() );
+        for ( Gene2GeneCoexpression g2g : links ) {
+            assert g2g.getSupportDetails() != null && g2g.getSupportDetails().getId() != null;
+            Long id = this.generateId( g2g );
+            this.add( upsertLink,
+                    new Object[] { id, g2g.isPositiveCorrelation() ? 1 : 0, g2g.getNumDatasetsSupporting(),
+                            g2g.getFirstGene(), g2g.getSecondGene(), g2g.getSupportDetails().getId() } );
+            ids.add( id );
+        }
+        return ids;
+    }
+
+    /**
+     * Equivalent of {@link CoexpressionDaoImpl}'s saveBatchAndMakeFlipped: write the new links along with their
+     * (new) support details.
+     *
+     * @param linkIds will be updated with the ids of the links which were saved.
+     * @param batch   will be cleared by this call.
+     * @return flipped versions of the links, sharing their support details, to be sorted and written later.
+     */
+    List<Gene2GeneCoexpression> insertNewLinks( Map<Long, NonPersistentNonOrderedCoexpLink> linkIds,
+            Map<SupportDetails, Gene2GeneCoexpression> batch ) {
+        List<Gene2GeneCoexpression> flipped = new ArrayList<>( batch.size() );
+        List<Gene2GeneCoexpression> links = new ArrayList<>( batch.size() );
+        for ( Map.Entry<SupportDetails, Gene2GeneCoexpression> e : batch.entrySet() ) {
+            SupportDetails sd = e.getKey();
+            Gene2GeneCoexpression g2g = e.getValue();
+            assert sd.getNumIds() > 0;
+
+            sd.setId( this.generateId( sd ) );
+            this.add( upsertSupportDetails, new Object[] { sd.getId(), sd.getBytes() } );
+            g2g.setSupportDetails( sd );
+            links.add( g2g );
+
+            // make a copy that has the genes flipped; reuse the supportDetails.
+            Gene2GeneCoexpression flippedG2g = linkCreator
+                    .create( g2g.isPositiveCorrelation() ? 1 : -1, g2g.getSecondGene(), g2g.getFirstGene() );
+            flippedG2g.setSupportDetails( sd );
+            flipped.add( flippedG2g );
+        }
+
+        List<Long> ids = this.insertLinks( links );
+        for ( int i = 0; i < ids.size(); i++ ) {
+            linkIds.put( ids.get( i ), new NonPersistentNonOrderedCoexpLink( links.get( i ) ) );
+        }
+        batch.clear();
+        return flipped;
+    }
+
+    /**
+     * Write the (already modified) support details and support of an existing link, and the support of its flipped
+     * version.
+     */
+    void updateSupport( Gene2GeneCoexpression existingLink ) {
+        SupportDetails sd = existingLink.getSupportDetails();
+        this.add( upsertSupportDetails, new Object[] { sd.getId(), sd.getBytes() } );
+        this.add( upsertLink, new Object[] { existingLink.getId(), existingLink.isPositiveCorrelation() ? 1 : 0,
+                existingLink.getNumDatasetsSupporting(), existingLink.getFirstGene(), existingLink.getSecondGene(),
+                sd.getId() } );
+        this.add( updateFlippedLinkSupport,
+                new Object[] { existingLink.getNumDatasetsSupporting(), existingLink.getSecondGene(),
+                        existingLink.getFirstGene(), existingLink.isPositiveCorrelation() ? 1 : 0 } );
+    }
+
+    private void add( Statement statement, Object[] row ) {
+        statement.rows.add( row );
+        if ( ++numPending >= CoexpressionBulkWriter.FLUSH_SIZE ) {
+            this.flush();
+        }
+    }
+
+    private Statement addStatement( Statement statement ) {
+        statements.add( statement );
+        return statement;
+    }
+
+    private Long generateId( Object entity ) {
+        IdentifierGenerator generator = generators.get( entity.getClass() );
+        if ( generator == null ) {
+            generator = ( ( SessionFactoryImplementor ) session.getSessionFactory() )
+                    .getIdentifierGenerator( entity.getClass().getName() );
+            if ( generator == null ) {
+                throw new IllegalStateException( "No identifier generator for " + entity.getClass().getName() );
+            }
+            generators.put( entity.getClass(), generator );
+        }
+        return ( Long ) generator.generate( ( SessionImplementor ) session, entity );
+    }
+
+    /**
+     * A statement and its pending rows. Multi-row statements are <code>prefix row, row, ... suffix</code> with up to
+     * {@link #ROWS_PER_INSERT} rows each; the others are sent as a JDBC batch, one row at a time.
+     */
+    private static class Statement {
+        private final String prefix;
+        private final String rowPlaceholders;
+        private final String suffix;
+        private final boolean multiRow;
+        private final List<Object[]> rows = new ArrayList<>();
+
+        private Statement( String prefix, String rowPlaceholders, String suffix, boolean multiRow ) {
+            this.prefix = prefix;
+            this.rowPlaceholders = rowPlaceholders;
+            this.suffix = suffix;
+            this.multiRow = multiRow;
+        }
+
+        /**
+         * @return how many rows were written, as reported by the driver; the pending rows are cleared.
+         */
+        private long execute( Connection connection ) throws SQLException {
+            int n = rows.size();
+            if ( n == 0 ) {
+                return 0;
+            }
+            long numWritten = 0;
+            if ( !multiRow ) {
+                try (PreparedStatement ps = connection.prepareStatement( prefix )) {
+                    for ( Object[] row : rows ) {
+                        this.bind( ps, row, 1 );
+                        ps.addBatch();
+                    }
+                    for ( int count : ps.executeBatch() ) {
+                        // the driver may not know how many rows a statement changed (SUCCESS_NO_INFO).
+                        numWritten += count == java.sql.Statement.SUCCESS_NO_INFO ? 1 : count;
+                    }
+                }
+            } else {
+                for ( int from = 0; from < n; from += CoexpressionBulkWriter.ROWS_PER_INSERT ) {
+                    List<Object[]> chunk = rows
+                            .subList( from, Math.min( n, from + CoexpressionBulkWriter.ROWS_PER_INSERT ) );
+                    try (PreparedStatement ps = connection.prepareStatement( this.sql( chunk.size() ) )) {
+                        int index = 1;
+                        for ( Object[] row : chunk ) {
+                            index = this.bind( ps, row, index );
+                        }
+                        numWritten += ps.executeUpdate();
+                    }
+                }
+            }
+            rows.clear();
+            return numWritten;
+        }
+
+        private int bind( PreparedStatement ps, Object[] row, int index ) throws SQLException {
+            for ( Object value : row ) {
+                ps.setObject( index++, value );
+            }
+            return index;
+        }
+
+        private String sql( int numRows ) {
+            StringBuilder buf = new StringBuilder( prefix );
+            for ( int i = 0; i < numRows; i++ ) {
+                if ( i > 0 ) {
+                    buf.append( ", " );
+                }
+                buf.append( rowPlaceholders );
+            }
+            return buf.append( suffix ).toString();
+        }
+    }
+}
@@ -52,6 +52,19 @@ public interface CoexpressionCache {
      */
     List<CoexpressionValueObject> get( Long g );
 
+    /**
+     * @return fraction of calls to {@link #get(Long)} that found the gene in the cache.
+     */
+    double getHitRatio();
+
+    /**
+     * Like {@link #get(Long)} but without retrieving the results (or counting towards the hit ratio).
+     *
+     * @param g gene id
+     * @return true if results for the gene are in the cache
+     */
+    boolean isCached( Long g );
+
     boolean isEnabled();
 
     /**
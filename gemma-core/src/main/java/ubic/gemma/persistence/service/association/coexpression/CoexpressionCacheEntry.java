@@ -0,0 +1,183 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.association.coexpression;
+
+import com.googlecode.javaewah.EWAHCompressedBitmap;
+import ubic.gemma.model.analysis.expression.coexpression.IdArray;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The cached coexpression results for one query gene, in a compact encoded form; these objects are unmodifiable. The
+ * coexpressed gene IDs and support details IDs are delta coded as variable-length integers, the supporting and
+ * tested-in data sets of each link are EWAH bitmaps (as in {@link IdArray}), and the signs are kept in a primitive
+ * array. Nothing is decoded until {@link #toValueObjects()} is called.
+ */
+class CoexpressionCacheEntry implements Serializable {
+
+    private static final long serialVersionUID = -3470125887932710493L;
+
+    private final long queryGene;
+    private final String queryGeneSymbol;
+    private final boolean[] positiveCorrelation;
+    private final String[] coexGeneSymbols;
+    /**
+     * For each link: coexpressed gene, support, support details, supporting data sets, tested-in data sets.
+     */
+    private final byte[] data;
+
+    /**
+     * @param queryGene query gene ID
+     * @param results   coexpression results for the gene; can be empty.
+     */
+    CoexpressionCacheEntry( Long queryGene, Collection<CoexpressionValueObject> results ) {
+        this.queryGene = queryGene;
+        this.positiveCorrelation = new boolean[results.size()];
+        this.coexGeneSymbols = new String[results.size()];
+
+        String symbol = null;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream( 32 * results.size() );
+        DataOutputStream out = new DataOutputStream( bos );
+        long lastGene = 0;
+        long lastDetails = 0;
+        int i = 0;
+        try {
+            for ( CoexpressionValueObject vo : results ) {
+                if ( vo.isEeConstraint() || vo.getMaxResults() > 0
+                        || vo.getQueryStringency() > CoexpressionCache.CACHE_QUERY_STRINGENCY ) {
+                    throw new IllegalArgumentException( "Cannot cache a result that had constraints" );
+                }
+                assert queryGene.equals( vo.getQueryGeneId() );
+                symbol = vo.getQueryGeneSymbol();
+
+                CoexpressionCacheEntry
+                        .writeVarLong( out, CoexpressionCacheEntry.zigZag( vo.getCoexGeneId() - lastGene ) );
+                lastGene = vo.getCoexGeneId();
+
+                CoexpressionCacheEntry.writeVarLong( out, vo.getNumDatasetsSupporting() );
+
+                // zero is kept for null.
+                long details = vo.getSupportDetailsId() == null ? 0 : vo.getSupportDetailsId() + 1;
+                CoexpressionCacheEntry.writeVarLong( out, CoexpressionCacheEntry.zigZag( details - lastDetails ) );
+                lastDetails = details;
+
+                CoexpressionCacheEntry.writeBitmap( out,
+                        vo.getSupportingDatasets() == null ? null : IdArray.toBitmap( vo.getSupportingDatasets() ) );
+                CoexpressionCacheEntry.writeBitmap( out, vo.getTestedInBitmap() );
+
+                this.positiveCorrelation[i] = vo.isPositiveCorrelation();
+                this.coexGeneSymbols[i] = vo.getCoexGeneSymbol();
+                i++;
+            }
+            out.flush();
+        } catch ( IOException e ) {
+            throw new RuntimeException( e );
+        }
+        this.queryGeneSymbol = symbol;
+        this.data = bos.toByteArray();
+    }
+
+    private static EWAHCompressedBitmap readBitmap( DataInputStream in ) throws IOException {
+        long length = CoexpressionCacheEntry.readVarLong( in );
+        if ( length == 0 ) {
+            return null;
+        }
+        EWAHCompressedBitmap b = new EWAHCompressedBitmap();
+        b.deserialize( in );
+        return b;
+    }
+
+    private static long readVarLong( DataInputStream in ) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= ( long ) ( b & 0x7F ) << shift;
+            shift += 7;
+        } while ( ( b & 0x80 ) != 0 );
+        return value;
+    }
+
+    private static long unZigZag( long v ) {
+        return ( v >>> 1 ) ^ -( v & 1 );
+    }
+
+    /**
+     * Writes the size of the serialized bitmap followed by the bitmap, or just zero for null.
+     */
+    private static void writeBitmap( DataOutputStream out, EWAHCompressedBitmap b ) throws IOException {
+        if ( b == null ) {
+            CoexpressionCacheEntry.writeVarLong( out, 0 );
+            return;
+        }
+        CoexpressionCacheEntry.writeVarLong( out, b.serializedSizeInBytes() );
+        b.serialize( out );
+    }
+
+    private static void writeVarLong( DataOutputStream out, long v ) throws IOException {
+        while ( ( v & ~0x7FL ) != 0 ) {
+            out.writeByte( ( int ) ( ( v & 0x7F ) | 0x80 ) );
+            v >>>= 7;
+        }
+        out.writeByte( ( int ) v );
+    }
+
+    private static long zigZag( long v ) {
+        return ( v << 1 ) ^ ( v >> 63 );
+    }
+
+    int size() {
+        return positiveCorrelation.length;
+    }
+
+    /**
+     * @return decoded copies of the results, in the order they were given.
+     */
+    List<CoexpressionValueObject> toValueObjects() {
+        List<CoexpressionValueObject> result = new ArrayList<>( this.size() );
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) );
+        long lastGene = 0;
+        long lastDetails = 0;
+        try {
+            for ( int i = 0; i < this.size(); i++ ) {
+                long coexGene = lastGene + CoexpressionCacheEntry.unZigZag( CoexpressionCacheEntry.readVarLong( in ) );
+                lastGene = coexGene;
+                int support = ( int ) CoexpressionCacheEntry.readVarLong( in );
+                long details =
+                        lastDetails + CoexpressionCacheEntry.unZigZag( CoexpressionCacheEntry.readVarLong( in ) );
+                lastDetails = details;
+                EWAHCompressedBitmap supporting = CoexpressionCacheEntry.readBitmap( in );
+                EWAHCompressedBitmap testedIn = CoexpressionCacheEntry.readBitmap( in );
+
+                CoexpressionValueObject vo = new CoexpressionValueObject( coexGene, coexGeneSymbols[i],
+                        positiveCorrelation[i], queryGene, queryGeneSymbol, support, details == 0 ? null : details - 1,
+                        supporting == null ? null : IdArray.toSet( supporting ), null );
+                if ( testedIn != null && testedIn.cardinality() > 0 ) {
+                    vo.setTestedInDatasets( testedIn );
+                }
+                result.add( vo );
+            }
+        } catch ( IOException e ) {
+            throw new RuntimeException( e );
+        }
+        return result;
+    }
+}
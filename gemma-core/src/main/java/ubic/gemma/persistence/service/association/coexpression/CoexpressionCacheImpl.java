@@ -37,6 +37,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Configures the cache for gene2gene coexpression.
@@ -56,6 +57,8 @@ public class CoexpressionCacheImpl implements InitializingBean, CoexpressionCach
     private static final Logger log = LoggerFactory.getLogger( CoexpressionCacheImpl.class );
     private final AtomicBoolean enabled = new AtomicBoolean(
             Settings.getBoolean( "gemma.cache.gene2gene.enabled", true ) );
+    private final AtomicLong hits = new AtomicLong( 0 );
+    private final AtomicLong misses = new AtomicLong( 0 );
     private Cache cache;
     @Autowired
     private EhCacheManagerFactoryBean cacheManagerFactory;
@@ -90,19 +93,9 @@ public class CoexpressionCacheImpl implements InitializingBean, CoexpressionCach
         if ( !this.enabled.get() )
             return;
 
-        assert r != null; // but can be empty, if there is no coexpression.
-        assert geneId != null;
-        List<CoexpressionCacheValueObject> forCache = new ArrayList<>();
-        for ( CoexpressionValueObject g2g : r ) {
-            if ( g2g.isFromCache() )
-                continue;
-            assert g2g.getNumDatasetsSupporting() > 0;
-            if ( g2g.getNumDatasetsSupporting() < CoexpressionCache.CACHE_QUERY_STRINGENCY )
-                continue;
-            forCache.add( new CoexpressionCacheValueObject( g2g ) );
-        }
+        Element element = this.toElement( geneId, r );
         synchronized ( cache ) {
-            this.cache.put( new Element( new GeneCached( geneId ), forCache ) );
+            this.cache.put( element );
         }
     }
 
@@ -114,10 +107,14 @@ public class CoexpressionCacheImpl implements InitializingBean, CoexpressionCach
         StopWatch timer = new StopWatch();
 
         timer.start();
+        List<Element> elements = new ArrayList<>( r.size() );
         for ( Long id : r.keySet() ) {
             List<CoexpressionValueObject> res = r.get( id );
             assert res != null;
-            this.cacheCoexpression( id, res );
+            elements.add( this.toElement( id, res ) );
+        }
+        synchronized ( cache ) {
+            this.cache.putAll( elements );
         }
 
         if ( timer.getTime() > 100 ) {
@@ -137,25 +134,44 @@ public class CoexpressionCacheImpl implements InitializingBean, CoexpressionCach
         }
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public List<CoexpressionValueObject> get( Long g ) {
         if ( !this.enabled.get() )
             return null;
 
+        CoexpressionCacheEntry entry;
         synchronized ( cache ) {
             Element element = this.cache.get( new GeneCached( g ) );
-            if ( element == null )
+            if ( element == null ) {
+                misses.incrementAndGet();
                 return null;
-            List<CoexpressionValueObject> result = new ArrayList<>();
-
-            for ( CoexpressionCacheValueObject co : ( List<CoexpressionCacheValueObject> ) element.getObjectValue() ) {
-                CoexpressionValueObject vo = co.toModifiable();
-                vo.setFromCache( true );
-                assert vo.getNumDatasetsSupporting() > 0;
-                result.add( vo );
             }
-            return result;
+            hits.incrementAndGet();
+            entry = ( CoexpressionCacheEntry ) element.getObjectValue();
+        }
+
+        // decoding doesn't need the lock.
+        List<CoexpressionValueObject> result = entry.toValueObjects();
+        for ( CoexpressionValueObject vo : result ) {
+            vo.setFromCache( true );
+            assert vo.getNumDatasetsSupporting() > 0;
+        }
+        return result;
+    }
+
+    @Override
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : ( double ) h / total;
+    }
+
+    @Override
+    public boolean isCached( Long g ) {
+        if ( !this.enabled.get() )
+            return false;
+        synchronized ( cache ) {
+            return this.cache.isKeyInCache( new GeneCached( g ) );
         }
     }
 
@@ -171,7 +187,7 @@ public class CoexpressionCacheImpl implements InitializingBean, CoexpressionCach
         synchronized ( cache ) {
             int affected = 0;
             for ( Long long1 : genes ) {
-                if ( this.cache.remove( long1 ) )
+                if ( this.cache.remove( new GeneCached( long1 ) ) )
                     affected++;
             }
             return affected;
@@ -195,6 +211,21 @@ public class CoexpressionCacheImpl implements InitializingBean, CoexpressionCach
         }
     }
 
+    private Element toElement( Long geneId, Collection<CoexpressionValueObject> r ) {
+        assert r != null; // but can be empty, if there is no coexpression.
+        assert geneId != null;
+        List<CoexpressionValueObject> forCache = new ArrayList<>();
+        for ( CoexpressionValueObject g2g : r ) {
+            if ( g2g.isFromCache() )
+                continue;
+            assert g2g.getNumDatasetsSupporting() > 0;
+            if ( g2g.getNumDatasetsSupporting() < CoexpressionCache.CACHE_QUERY_STRINGENCY )
+                continue;
+            forCache.add( g2g );
+        }
+        return new Element( new GeneCached( geneId ), new CoexpressionCacheEntry( geneId, forCache ) );
+    }
+
     /**
      * For storing information about gene results that are cached.
      */
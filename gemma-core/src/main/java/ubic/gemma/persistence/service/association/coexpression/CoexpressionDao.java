@@ -124,6 +124,25 @@ public interface CoexpressionDao {
      */
     int queryAndCache( Gene gene );
 
+    /**
+     * Fetch and cache the results for the genes that aren't already in the cache, with a single query.
+     *
+     * @param taxon   taxon of all the genes
+     * @param geneIds gene IDs
+     * @return number of genes whose results were cached
+     */
+    int queryAndCache( Taxon taxon, Collection<Long> geneIds );
+
+    /**
+     * Build or refresh the snapshot of the links for the taxon used to answer gene-major queries, if snapshots are
+     * enabled. Only the links of genes that changed since the last snapshot are read from the database: those changed
+     * by this process and those in coexpression analyses added since. If analyses were deleted, the snapshot is
+     * rebuilt from scratch.
+     *
+     * @param taxon taxon
+     */
+    void updateSnapshot( Taxon taxon );
+
     Map<SupportDetails, Gene2GeneCoexpression> initializeFromOldData( Gene gene, Map<Long, Gene> geneIdMap,
             Map<NonPersistentNonOrderedCoexpLink, SupportDetails> linksSoFar, Set<Long> skipGenes );
 
@@ -18,21 +18,26 @@
  */
 package ubic.gemma.persistence.service.association.coexpression;
 
+import com.googlecode.javaewah.EWAHCompressedBitmap;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.*;
+import org.hibernate.jdbc.Work;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import ubic.basecode.dataStructure.CountingMap;
 import ubic.basecode.io.ByteArrayConverter;
 import ubic.basecode.util.BatchIterator;
 import ubic.gemma.model.analysis.expression.coexpression.GeneCoexpressedGenes;
 import ubic.gemma.model.analysis.expression.coexpression.GeneCoexpressionTestedIn;
+import ubic.gemma.model.analysis.expression.coexpression.IdArray;
 import ubic.gemma.model.analysis.expression.coexpression.IdArrayValueObject;
 import ubic.gemma.model.analysis.expression.coexpression.SupportDetails;
 import ubic.gemma.model.association.coexpression.ExperimentCoexpressionLink;
@@ -43,9 +48,16 @@ import ubic.gemma.model.expression.experiment.BioAssaySet;
 import ubic.gemma.model.genome.Gene;
 import ubic.gemma.model.genome.Taxon;
 import ubic.gemma.persistence.util.EntityUtils;
+import ubic.gemma.persistence.util.Settings;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Manages and queries coexpression 'links' between genes.
@@ -90,6 +102,10 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
     private static final int MIN_GENES_FOR_DATASET_FIRST_QUERY = 10;
     private static final int BATCH_SIZE = 2048;
     private static final int BATCH_SIZE_SMALL = 8;
+    /**
+     * Whether gene-major queries are answered from a {@link CoexpressionGraphSnapshot} when there is one.
+     */
+    private static final boolean USE_SNAPSHOTS = Settings.getBoolean( "gemma.coexpression.snapshot.enabled", false );
     private static final Log log = LogFactory.getLog( CoexpressionDaoImpl.class );
     /**
      * If the stringency is less than this, we will usually want to use a dataset-first query unless the number of
@@ -104,11 +120,43 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
     @Autowired
     private GeneTestedInCache geneTestedInCache;
 
+    /**
+     * Snapshots by taxon ID. Whether a snapshot is current is decided from the coexpression analyses it records (see
+     * {@link #updateSnapshot}), so changes made by other processes are picked up when it is next updated.
+     */
+    private final ConcurrentMap<Long, CoexpressionGraphSnapshot> snapshots = new ConcurrentHashMap<>();
+    /**
+     * Taxa for which we looked for a snapshot on disk; this is only done once, after that they are built.
+     */
+    private final Set<Long> snapshotsOpened = Collections.synchronizedSet( new HashSet<Long>() );
+    /**
+     * Genes whose links were changed by this process since the snapshot of their taxon was built, so they are not
+     * served from it; mapped to when the transaction that changed them completed (Long.MAX_VALUE until then).
+     */
+    private final Map<Long, Map<Long, Long>> genesChangedSinceSnapshot = new ConcurrentHashMap<>();
+    /**
+     * One snapshot build at a time; queries don't wait for it.
+     */
+    private final Object snapshotBuildLock = new Object();
+
+    /**
+     * Whether {@link #createOrUpdate} writes with a {@link CoexpressionBulkWriter} rather than through the Hibernate
+     * session.
+     */
+    private boolean useBulkWrites = Settings.getBoolean( "gemma.coexpression.bulkwrites", true );
+
     @Autowired
     public CoexpressionDaoImpl( SessionFactory sessionFactory ) {
         super.setSessionFactory( sessionFactory );
     }
 
+    /**
+     * For tests, which compare the two ways of writing links.
+     */
+    void setUseBulkWrites( boolean useBulkWrites ) {
+        this.useBulkWrites = useBulkWrites;
+    }
+
     @Override
     public Integer countLinks( Gene gene, BioAssaySet ee ) {
         // Looking at the first gene is enough if we save the flipped versions; we don't get a double-count here because
@@ -167,6 +215,13 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         TreeMap<Long, NonPersistentNonOrderedCoexpLink> linkIds = new TreeMap<>(); // keep order so for this experiment
         // they are in order.
 
+        // if null, we write through the session.
+        CoexpressionBulkWriter bulkWriter = this.useBulkWrites ?
+                new CoexpressionBulkWriter( sess, gene.getTaxon(), c ) :
+                null;
+        StopWatch writeTimer = new StopWatch();
+        writeTimer.start();
+
         Set<Long> seenExistingLinks = new HashSet<>(); // for sanity checks.
         Set<NonPersistentNonOrderedCoexpLink> seenNewLinks = new HashSet<>(); // for sanity checks.
         Set<SupportDetails> seenNewSupportDetails = new HashSet<>(); // for sanity checks.
@@ -258,9 +313,6 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
                 existingLink.getSupportDetails().addEntity( bioAssaySet.getId() );
                 existingLink.updateNumDatasetsSupporting();
 
-                // there is no cascade... on purpose.
-                sess.update( existingLink.getSupportDetails() );
-
                 assert oldSupport + 1 == existingLink.getNumDatasetsSupporting();
                 assert existingLink.getSupportDetails().getNumIds() == oldSupport + 1;
 
@@ -268,18 +320,27 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
                 linkIds.put( existingLink.getId(), new NonPersistentNonOrderedCoexpLink( existingLink ) );
                 seenExistingLinks.add( existingLink.getId() );
 
-                /*
-                 * The flipped link is asserted to be in the database. The support details is already dealt with; we
-                 * just have to update the support value.
-                 */
+                if ( bulkWriter != null ) {
+                    // writes the link, its support details and the support of the flipped link; keep the session out of it.
+                    bulkWriter.updateSupport( existingLink );
+                    sess.evict( existingLink.getSupportDetails() );
+                    sess.evict( existingLink );
+                } else {
+                    // there is no cascade... on purpose.
+                    sess.update( existingLink.getSupportDetails() );
 
-                int numFlippedUpdated = updateFlippedLinkQuery
-                        .setParameter( "s", existingLink.getNumDatasetsSupporting() )
-                        .setParameter( "g2", proposedG2G.getSecondGene() )
-                        .setParameter( "g1", proposedG2G.getFirstGene() )
-                        .setParameter( "po", proposedG2G.isPositiveCorrelation() ? 1 : 0 ).executeUpdate();
-                assert numFlippedUpdated == 1 :
-                        "Flipped link missing for " + proposedG2G + " [" + numFlippedUpdated + "]";
+                    /*
+                     * The flipped link is asserted to be in the database. The support details is already dealt with; we
+                     * just have to update the support value.
+                     */
+                    int numFlippedUpdated = updateFlippedLinkQuery
+                            .setParameter( "s", existingLink.getNumDatasetsSupporting() )
+                            .setParameter( "g2", proposedG2G.getSecondGene() )
+                            .setParameter( "g1", proposedG2G.getFirstGene() )
+                            .setParameter( "po", proposedG2G.isPositiveCorrelation() ? 1 : 0 ).executeUpdate();
+                    assert numFlippedUpdated == 1 :
+                            "Flipped link missing for " + proposedG2G + " [" + numFlippedUpdated + "]";
+                }
 
                 numUpdated++;
                 if ( CoexpressionDaoImpl.log.isDebugEnabled() )
@@ -297,7 +358,9 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
             }
 
             if ( batchToCreate.size() >= BATCH_SIZE ) {
-                newFlippedLinks.addAll( this.saveBatchAndMakeFlipped( sess, linkIds, batchToCreate, c ) );
+                newFlippedLinks.addAll( bulkWriter != null ?
+                        bulkWriter.insertNewLinks( linkIds, batchToCreate ) :
+                        this.saveBatchAndMakeFlipped( sess, linkIds, batchToCreate, c ) );
             } else if ( numUpdated > 0 && numUpdated % BATCH_SIZE == 0 ) {
                 sess.flush();
                 sess.clear();
@@ -308,7 +371,9 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         // tail end batch
         if ( !batchToCreate.isEmpty() ) {
             // we make the flipped links later to optimize their ordering.
-            newFlippedLinks.addAll( this.saveBatchAndMakeFlipped( sess, linkIds, batchToCreate, c ) );
+            newFlippedLinks.addAll( bulkWriter != null ?
+                    bulkWriter.insertNewLinks( linkIds, batchToCreate ) :
+                    this.saveBatchAndMakeFlipped( sess, linkIds, batchToCreate, c ) );
         }
 
         // flush the updated ones one last time...
@@ -333,16 +398,20 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
             }
         } );
 
-        progress = 0;
-        for ( Gene2GeneCoexpression gl : newFlippedLinks ) {
-            sess.save( gl );
-            if ( ++progress % 5000 == 0 ) {
-                CoexpressionDaoImpl.log.info( "Processed " + progress + "/" + newFlippedLinks.size()
-                        + " new flipped gene-level links..." );
-            }
-            if ( progress % BATCH_SIZE == 0 ) {
-                sess.flush();
-                sess.clear();
+        if ( bulkWriter != null ) {
+            bulkWriter.insertLinks( newFlippedLinks );
+        } else {
+            progress = 0;
+            for ( Gene2GeneCoexpression gl : newFlippedLinks ) {
+                sess.save( gl );
+                if ( ++progress % 5000 == 0 ) {
+                    CoexpressionDaoImpl.log.info( "Processed " + progress + "/" + newFlippedLinks.size()
+                            + " new flipped gene-level links..." );
+                }
+                if ( progress % BATCH_SIZE == 0 ) {
+                    sess.flush();
+                    sess.clear();
+                }
             }
         }
 
@@ -351,7 +420,21 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
          */
         CoexpressionDaoImpl.log
                 .info( "Saving " + linkIds.size() + " experiment-level links (plus flipped versions) ..." );
-        this.saveExperimentLevelLinks( sess, c, linkIds, bioAssaySet );
+        this.saveExperimentLevelLinks( sess, c, linkIds, bioAssaySet, bulkWriter );
+
+        long numRows;
+        if ( bulkWriter != null ) {
+            numRows = bulkWriter.finish();
+        } else {
+            // support details and both versions of each new link; support details, link and flipped link for each
+            // updated link; and both versions of the experiment-level links.
+            numRows = 3L * numNew + 3L * numUpdated + 2L * linkIds.size();
+        }
+        writeTimer.stop();
+        CoexpressionDaoImpl.log.info( String.format( "Wrote %d rows for %d links in %.1fs (%.0f rows/s) via %s",
+                numRows, links.size(), writeTimer.getTime() / 1000.0,
+                numRows / Math.max( 0.001, writeTimer.getTime() / 1000.0 ),
+                bulkWriter != null ? "JDBC batches" : "Hibernate" ) );
 
         if ( genesTested != null )
             this.updatedTestedIn( bioAssaySet, genesTested );
@@ -363,6 +446,13 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         if ( numRemovedFromCache > 0 )
             CoexpressionDaoImpl.log.info( numRemovedFromCache + " results evicted from cache" );
 
+        Collection<Long> genesWithLinks = new HashSet<>();
+        for ( NonPersistentNonOrderedCoexpLink link : links ) {
+            genesWithLinks.add( link.getFirstGene() );
+            genesWithLinks.add( link.getSecondGene() );
+        }
+        this.markChangedSinceSnapshot( gene.getTaxon(), genesWithLinks );
+
         // flush happens on commit...
         CoexpressionDaoImpl.log.info( "Done,  flushing changes ..." );
     }
@@ -480,6 +570,7 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
             int numRemovedFromCache = gene2GeneCoexpressionCache.remove( genesAffected );
             if ( numRemovedFromCache > 0 )
                 CoexpressionDaoImpl.log.info( numRemovedFromCache + " results evicted from cache" );
+            this.markChangedSinceSnapshot( t, genesAffected );
 
         }
 
@@ -580,7 +671,10 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
 
         if ( !genesNeeded.isEmpty() ) { // something wasn't in the cache.
             Map<Long, List<CoexpressionValueObject>> dbResults;
-            if ( bas.size() > CoexpressionDaoImpl.MAX_DATASETS_FOR_DATASET_FIRST_QUERY
+            CoexpressionGraphSnapshot snapshot = this.getSnapshot( taxon, genes );
+            if ( snapshot != null ) {
+                dbResults = this.getCoexpressionFromSnapshot( snapshot, genes, stringency, true, quick );
+            } else if ( bas.size() > CoexpressionDaoImpl.MAX_DATASETS_FOR_DATASET_FIRST_QUERY
                     || genes.size() < CoexpressionDaoImpl.MIN_GENES_FOR_DATASET_FIRST_QUERY ) {
                 dbResults = this.getInterCoexpressionFromDbViaGenes( taxon, genes, stringency, quick );
             } else {
@@ -686,7 +780,7 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
     @Transactional(readOnly = true)
     public int queryAndCache( Gene gene ) {
 
-        if ( gene2GeneCoexpressionCache.get( gene.getId() ) != null ) {
+        if ( gene2GeneCoexpressionCache.isCached( gene.getId() ) ) {
             // already in the cache.
             return -1;
         }
@@ -712,6 +806,93 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         return results.size();
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public int queryAndCache( Taxon taxon, Collection<Long> geneIds ) {
+        Collection<Long> toFetch = new HashSet<>();
+        for ( Long id : geneIds ) {
+            if ( !gene2GeneCoexpressionCache.isCached( id ) ) {
+                toFetch.add( id );
+            }
+        }
+        if ( toFetch.isEmpty() ) {
+            return 0;
+        }
+
+        CoexpressionDaoImpl.log.debug( "Fetching data for " + toFetch.size() + " genes for cache" );
+        Map<Long, List<CoexpressionValueObject>> rr = this
+                .getCoexpressionFromDbViaGenes2( toFetch, taxon, CoexpressionCache.CACHE_QUERY_STRINGENCY, true );
+
+        Map<Long, List<CoexpressionValueObject>> forCache = new HashMap<>();
+        for ( Long id : toFetch ) {
+            List<CoexpressionValueObject> results = rr.get( id );
+            // it is necessary to avoid searching again when there are no results.
+            forCache.put( id, results == null ? new ArrayList<CoexpressionValueObject>() : results );
+        }
+        gene2GeneCoexpressionCache.cacheCoexpression( forCache );
+        return toFetch.size();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public void updateSnapshot( final Taxon taxon ) {
+        if ( !CoexpressionDaoImpl.USE_SNAPSHOTS ) {
+            return;
+        }
+
+        synchronized ( snapshotBuildLock ) {
+            // before anything is read, so changes stamped earlier are visible to this transaction.
+            long buildStart = System.currentTimeMillis();
+
+            CoexpressionGraphSnapshot previous = this.getSnapshot( taxon, Collections.<Long>emptySet() );
+            final Set<Long> analyses = this.getFinishedCoexpressionAnalyses();
+            final Set<Long> changed = new HashSet<>( this.getGenesChangedSinceSnapshot( taxon ).keySet() );
+            if ( previous != null ) {
+                if ( !analyses.containsAll( previous.getAnalyses() ) ) {
+                    // we can't tell which genes lost links.
+                    CoexpressionDaoImpl.log.info( "Coexpression analyses were deleted since the snapshot for " + taxon
+                            + " was built, rebuilding it from scratch" );
+                    previous = null;
+                } else {
+                    Set<Long> added = new HashSet<>( analyses );
+                    added.removeAll( previous.getAnalyses() );
+                    changed.addAll( this.getGenesAnalyzed( taxon, added ) );
+                    if ( changed.isEmpty() ) {
+                        return;
+                    }
+                }
+            }
+
+            final CoexpressionGraphSnapshot from = previous;
+            final CoexpressionGraphSnapshot[] built = new CoexpressionGraphSnapshot[1];
+            this.getSessionFactory().getCurrentSession().doWork( new Work() {
+                @Override
+                public void execute( Connection connection ) throws SQLException {
+                    try {
+                        built[0] = CoexpressionGraphSnapshot.build( connection, taxon.getId(),
+                                CoexpressionQueryUtils.getGeneLinkTableName( taxon ),
+                                CoexpressionQueryUtils.getSupportDetailsTableName( taxon ), from, changed, analyses,
+                                CoexpressionDaoImpl.this.getSnapshotDirectory() );
+                    } catch ( IOException e ) {
+                        throw new RuntimeException( "Could not write coexpression snapshot", e );
+                    }
+                }
+            } );
+
+            CoexpressionGraphSnapshot replaced = snapshots.put( taxon.getId(), built[0] );
+
+            // genes changed by transactions that completed before we started are in the new snapshot.
+            for ( Iterator<Long> it = this.getGenesChangedSinceSnapshot( taxon ).values().iterator(); it.hasNext(); ) {
+                if ( it.next() < buildStart ) {
+                    it.remove();
+                }
+            }
+            if ( replaced != null ) {
+                replaced.close();
+            }
+        }
+    }
+
     /*
      * This assumes that we're going to do this for all genes, so we get links in both directions eventually. We don't
      * have to explicitly make the flipped linSks here.
@@ -1333,7 +1514,14 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         assert !bas.isEmpty();
 
         Map<Long, List<CoexpressionValueObject>> results;
-        if ( genes.isEmpty() && bas.size() < CoexpressionDaoImpl.MAX_DATASETS_FOR_DATASET_ONLY_QUERY ) {
+        CoexpressionGraphSnapshot snapshot = genes.isEmpty() ? null : this.getSnapshot( t, genes );
+        if ( snapshot != null ) {
+            /*
+             * Gene-major mode, without the database.
+             */
+            results = this.getCoexpressionFromSnapshot( snapshot, genes, stringency, false, quick );
+
+        } else if ( genes.isEmpty() && bas.size() < CoexpressionDaoImpl.MAX_DATASETS_FOR_DATASET_ONLY_QUERY ) {
             /*
              * Experiment-major mode, no gene constraint: Find links common to the experiments in question at the
              * requested stringency. This could be quite slow since the cache cannot be used very well, so the caller
@@ -1841,6 +2029,194 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
 
     }
 
+    /**
+     * Gene-major query answered from the snapshot. Does not do the trimming step.
+     *
+     * @param genesOnly if true, only links among the given genes are returned, and only in one direction
+     */
+    private Map<Long, List<CoexpressionValueObject>> getCoexpressionFromSnapshot( CoexpressionGraphSnapshot snapshot,
+            Collection<Long> genes, int stringency, boolean genesOnly, boolean quick ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        Map<Long, List<CoexpressionValueObject>> results = new HashMap<>();
+        Set<CoexpressionValueObject> seen = new HashSet<>();
+        List<CoexpressionValueObject> all = new ArrayList<>();
+        for ( Long g : genes ) {
+            List<CoexpressionValueObject> links = snapshot.getLinks( g, stringency, genesOnly ? genes : null );
+            for ( Iterator<CoexpressionValueObject> it = links.iterator(); it.hasNext(); ) {
+                CoexpressionValueObject g2g = it.next();
+                if ( genesOnly ) {
+                    // we get the links in 'both directions' so we want to omit them.
+                    if ( !seen.add( g2g ) ) {
+                        it.remove();
+                        continue;
+                    }
+                    g2g.setInterQueryLink( true );
+                } else if ( genes.contains( g2g.getCoexGeneId() ) ) {
+                    g2g.setInterQueryLink( true );
+                }
+            }
+            if ( !links.isEmpty() ) {
+                Collections.sort( links );
+                results.put( g, links );
+                all.addAll( links );
+            }
+        }
+
+        if ( !quick && !all.isEmpty() ) {
+            this.populateTestedInDetails( all );
+        }
+
+        if ( timer.getTime() > 1000 ) {
+            CoexpressionDaoImpl.log
+                    .info( "Coexpression from snapshot for " + genes.size() + " genes: " + all.size() + " links, "
+                            + timer.getTime() + "ms" );
+        }
+        return results;
+    }
+
+    /**
+     * @return IDs of the coexpression analyses whose links have been saved (the number of links is filled in after).
+     */
+    private Set<Long> getFinishedCoexpressionAnalyses() {
+        List<?> ids = this.getSessionFactory().getCurrentSession().createSQLQuery(
+                "SELECT ID FROM ANALYSIS WHERE class = 'CoexpressionAnalysis' AND NUMBER_OF_LINKS IS NOT NULL" )
+                .list();
+        Set<Long> result = new HashSet<>();
+        for ( Object id : ids ) {
+            result.add( ( ( BigInteger ) id ).longValue() );
+        }
+        return result;
+    }
+
+    /**
+     * @return the genes with links in the experiments of the given coexpression analyses
+     */
+    private Set<Long> getGenesAnalyzed( Taxon t, Collection<Long> analyses ) {
+        Set<Long> result = new HashSet<>();
+        if ( analyses.isEmpty() ) {
+            return result;
+        }
+        Session sess = this.getSessionFactory().getCurrentSession();
+        String table = CoexpressionQueryUtils.getExperimentLinkTableName( t );
+        for ( String column : new String[] { "GENE1_FK", "GENE2_FK" } ) {
+            List<?> ids = sess.createSQLQuery( "SELECT DISTINCT e." + column + " FROM " + table
+                    + " e INNER JOIN ANALYSIS a ON a.EXPERIMENT_ANALYZED_FK = e.EXPERIMENT_FK WHERE a.ID IN (:ids)" )
+                    .setParameterList( "ids", analyses ).list();
+            for ( Object id : ids ) {
+                result.add( ( ( BigInteger ) id ).longValue() );
+            }
+        }
+        return result;
+    }
+
+    private Map<Long, Long> getGenesChangedSinceSnapshot( Taxon t ) {
+        synchronized ( genesChangedSinceSnapshot ) {
+            if ( !genesChangedSinceSnapshot.containsKey( t.getId() ) ) {
+                genesChangedSinceSnapshot.put( t.getId(), new ConcurrentHashMap<Long, Long>() );
+            }
+            return genesChangedSinceSnapshot.get( t.getId() );
+        }
+    }
+
+    /**
+     * @param genes genes to be queried; empty means we are not checking genes.
+     * @return the snapshot for the taxon, if snapshots are enabled, one has been built and none of the genes have
+     * changed since; otherwise null.
+     */
+    private CoexpressionGraphSnapshot getSnapshot( Taxon t, Collection<Long> genes ) {
+        if ( !CoexpressionDaoImpl.USE_SNAPSHOTS || t == null ) {
+            return null;
+        }
+
+        CoexpressionGraphSnapshot snapshot = snapshots.get( t.getId() );
+        if ( snapshot == null ) {
+            if ( !snapshotsOpened.add( t.getId() ) ) {
+                return null;
+            }
+            // look for one written before a restart, or by another process.
+            snapshot = this.openSnapshot( t );
+            if ( snapshot == null ) {
+                return null;
+            }
+        }
+
+        Map<Long, Long> changed = this.getGenesChangedSinceSnapshot( t );
+        for ( Long g : genes ) {
+            if ( changed.containsKey( g ) ) {
+                return null;
+            }
+        }
+        return snapshot;
+    }
+
+    private File getSnapshotDirectory() {
+        return new File( Settings.getString( "gemma.coexpression.snapshot.dir",
+                Settings.getString( "gemma.appdata.home" ) + File.separator + "coexpression" ) );
+    }
+
+    /**
+     * Mark genes as not to be served from the snapshot until it is next updated. The time is recorded once the current
+     * transaction completes, so the update doesn't unmark them before it can see the changes.
+     */
+    private void markChangedSinceSnapshot( Taxon t, Collection<Long> genes ) {
+        if ( !CoexpressionDaoImpl.USE_SNAPSHOTS ) {
+            return;
+        }
+        final Map<Long, Long> changed = this.getGenesChangedSinceSnapshot( t );
+        final Collection<Long> marked = new ArrayList<>( genes );
+        for ( Long g : marked ) {
+            changed.put( g, Long.MAX_VALUE );
+        }
+        if ( !TransactionSynchronizationManager.isSynchronizationActive() ) {
+            this.stampChanged( changed, marked );
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion( int status ) {
+                CoexpressionDaoImpl.this.stampChanged( changed, marked );
+            }
+        } );
+    }
+
+    /**
+     * Open the snapshot for the taxon found on disk, if it is still usable: if coexpression analyses were deleted
+     * since it was built it is not; the genes of analyses added since are marked as changed.
+     */
+    private CoexpressionGraphSnapshot openSnapshot( Taxon t ) {
+        CoexpressionGraphSnapshot snapshot = CoexpressionGraphSnapshot.open( this.getSnapshotDirectory(), t.getId() );
+        if ( snapshot == null ) {
+            return null;
+        }
+
+        Set<Long> analyses = this.getFinishedCoexpressionAnalyses();
+        if ( !analyses.containsAll( snapshot.getAnalyses() ) ) {
+            CoexpressionDaoImpl.log.info( "Coexpression snapshot for " + t
+                    + " is out of date (analyses were deleted since it was built); it will be rebuilt" );
+            snapshot.close();
+            return null;
+        }
+        analyses.removeAll( snapshot.getAnalyses() );
+        this.markChangedSinceSnapshot( t, this.getGenesAnalyzed( t, analyses ) );
+
+        CoexpressionGraphSnapshot existing = snapshots.putIfAbsent( t.getId(), snapshot );
+        if ( existing != null ) {
+            // one was built meanwhile.
+            snapshot.close();
+            return existing;
+        }
+        return snapshot;
+    }
+
+    private void stampChanged( Map<Long, Long> changed, Collection<Long> genes ) {
+        Long now = System.currentTimeMillis();
+        for ( Long g : genes ) {
+            changed.replace( g, Long.MAX_VALUE, now );
+        }
+    }
+
     private Map<Long, Collection<Long>> getQuickCoex( Collection<Long> ba ) {
         Session sess = this.getSessionFactory().getCurrentSession();
         Collection<GeneCoexpressedGenes> r = sess.createQuery( "from GeneCoexpressedGenes where geneId in (:ids)" )
@@ -1936,26 +2312,13 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         StopWatch timer = new StopWatch();
         timer.start();
         // GeneCoexpressionTestedIn are one-per-gene so we first gather up all the unique genes we have to look at.
-
-        Map<Long, GeneCoexpressionTestedIn> gcTestedIn = new HashMap<>();
         Set<Long> genes = new HashSet<>();
         for ( CoexpressionValueObject gene2GeneCoexpression : g2gLinks ) {
-            Long queryGeneId = gene2GeneCoexpression.getQueryGeneId();
-            GeneCoexpressionTestedIn queryGeneTestedIn = geneTestedInCache.get( queryGeneId );
-            if ( queryGeneTestedIn == null ) {
-                genes.add( queryGeneId );
-            } else {
-                gcTestedIn.put( queryGeneId, queryGeneTestedIn );
-            }
-
-            Long coexGeneId = gene2GeneCoexpression.getCoexGeneId();
-            GeneCoexpressionTestedIn coexGeneTestedIn = geneTestedInCache.get( coexGeneId );
-            if ( coexGeneTestedIn == null ) {
-                genes.add( coexGeneId );
-            } else {
-                gcTestedIn.put( coexGeneId, coexGeneTestedIn );
-            }
+            genes.add( gene2GeneCoexpression.getQueryGeneId() );
+            genes.add( gene2GeneCoexpression.getCoexGeneId() );
         }
+        Map<Long, GeneCoexpressionTestedIn> gcTestedIn = geneTestedInCache.getAll( genes );
+        genes.removeAll( gcTestedIn.keySet() );
 
         if ( !genes.isEmpty() ) {
             // fetch the GeneCoexpressionTestedIn information for those genes which were not cached.
@@ -1983,7 +2346,7 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         timer.reset();
         timer.start();
 
-        // copy it into the g2g value objects.
+        // copy it into the g2g value objects; the intersections are done on the bitmaps.
         for ( CoexpressionValueObject g2g : g2gLinks ) {
             assert g2g.getNumDatasetsSupporting() > 0 : g2g + " has support less than 1";
 
@@ -2003,9 +2366,9 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
                         .join( geneCoexpressionTestedIn2.getIds(), "," ) );
             }
 
-            Set<Long> testedIn = geneCoexpressionTestedIn1.andSet( geneCoexpressionTestedIn2 );
+            EWAHCompressedBitmap testedIn = geneCoexpressionTestedIn1.andBitmap( geneCoexpressionTestedIn2 );
 
-            if ( testedIn.isEmpty() ) {
+            if ( testedIn.cardinality() == 0 ) {
                 throw new IllegalStateException( g2g + ": had no data sets tested in: " + StringUtils
                         .join( geneCoexpressionTestedIn1.getIds(), "," ) + " :: " + StringUtils
                         .join( geneCoexpressionTestedIn2.getIds(), "," ) );
@@ -2187,8 +2550,12 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         return flipped;
     }
 
+    /**
+     * @param bulkWriter if not null, used instead of the session to write the links
+     */
     private void saveExperimentLevelLinks( Session sess, LinkCreator c,
-            TreeMap<Long, NonPersistentNonOrderedCoexpLink> links, BioAssaySet bioAssaySet ) {
+            TreeMap<Long, NonPersistentNonOrderedCoexpLink> links, BioAssaySet bioAssaySet,
+            CoexpressionBulkWriter bulkWriter ) {
         int progress = 0;
         int BATCH_SIZE = 1024;
         List<ExperimentCoexpressionLink> flippedLinks = new ArrayList<>();
@@ -2208,7 +2575,11 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
              */
             flippedLinks.add( c.createEELink( bioAssaySet, linkid, link.getSecondGene(), link.getFirstGene() ) );
 
-            sess.save( ecl );
+            if ( bulkWriter != null ) {
+                bulkWriter.insertExperimentLink( ecl );
+            } else {
+                sess.save( ecl );
+            }
 
             if ( ++progress % 50000 == 0 ) {
                 CoexpressionDaoImpl.log
@@ -2239,7 +2610,11 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
          */
         progress = 0;
         for ( ExperimentCoexpressionLink fl : flippedLinks ) {
-            sess.save( fl );
+            if ( bulkWriter != null ) {
+                bulkWriter.insertExperimentLink( fl );
+            } else {
+                sess.save( fl );
+            }
 
             if ( ++progress % 50000 == 0 ) {
                 CoexpressionDaoImpl.log
@@ -2274,6 +2649,7 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         assert stringency > 0;
         assert !bas.isEmpty();
 
+        EWAHCompressedBitmap basBitmap = IdArray.toBitmap( bas );
         Set<Long> toRemove = new HashSet<>();
         for ( Long g : results.keySet() ) {
             /*
@@ -2285,7 +2661,7 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
             for ( Iterator<CoexpressionValueObject> it = results.get( g ).iterator(); it.hasNext(); ) {
                 CoexpressionValueObject g2g = it.next();
 
-                if ( g2g.getNumDatasetsSupporting() < stringency || !g2g.trimDatasets( bas, stringency ) ) {
+                if ( g2g.getNumDatasetsSupporting() < stringency || !g2g.trimDatasets( bas, basBitmap, stringency ) ) {
                     it.remove();
                 } else if ( maxResults > 0 && kept >= maxResults && !g2g.isInterQueryLink() ) {
                     // only keep up to maxResults, but always keep inter-query links.
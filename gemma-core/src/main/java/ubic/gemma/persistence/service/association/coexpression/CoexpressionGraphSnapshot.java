@@ -0,0 +1,551 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.association.coexpression;
+
+import com.googlecode.javaewah.EWAHCompressedBitmap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import ubic.gemma.model.analysis.expression.coexpression.IdArray;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Read-only copy of the gene-level coexpression links of one taxon, held in a memory-mapped file in compressed sparse
+ * row form, so queries can be answered without the database. The genes are kept in a sorted array on the heap, each
+ * with the position of its first link; the links of a gene are sorted by the coexpressed gene and record its ID, the
+ * support, the sign and the support details (ID, and the offset of the supporting data sets, a serialized EWAH bitmap).
+ * Links are stored in both directions, as in the database.
+ * A snapshot is never modified: {@link #build} writes a new file, copying the links of genes that have not changed
+ * from the previous snapshot and fetching only the others. The file also records the coexpression analyses whose links
+ * it holds, so a snapshot found on disk (perhaps written by another process) can be checked against the database before
+ * it is used. Instances are safe to share between threads.
+ */
+class CoexpressionGraphSnapshot implements Closeable {
+
+    private static final Log log = LogFactory.getLog( CoexpressionGraphSnapshot.class );
+
+    private static final String FILE_PREFIX = "coexpression-graph-";
+    private static final String FILE_SUFFIX = ".bin";
+    private static final int MAGIC = 0x47434f58;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    /**
+     * Bytes per link: coexpressed gene, support details ID, bitmap offset (longs), support and sign (ints).
+     */
+    private static final int LINK_SIZE = 32;
+    /**
+     * Size of the regions of the file mapped at once; links are aligned to 8 bytes, so their fields never straddle two.
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+    /**
+     * How many genes to fetch links for in each query.
+     */
+    private static final int FETCH_BATCH_SIZE = 500;
+    /**
+     * Stored in place of the ID for links without support details.
+     */
+    private static final long NO_SUPPORT_DETAILS = -1L;
+
+    private final File file;
+    private final long taxonId;
+    private final long[] genes;
+    /**
+     * Index of the first link of each gene; one longer than the genes, so the last entry is the number of links.
+     */
+    private final long[] firstLinks;
+    private final long linksStart;
+    private final long bitmapsStart;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    /**
+     * The coexpression analyses whose links were in the database when the snapshot was built.
+     */
+    private final Set<Long> analyses;
+    /**
+     * Whether this process wrote the file, in which case it is also responsible for deleting it.
+     */
+    private final boolean written;
+
+    private CoexpressionGraphSnapshot( File file, boolean written ) throws IOException {
+        this.file = file;
+        this.written = written;
+        this.channel = new RandomAccessFile( file, "r" ).getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate( CoexpressionGraphSnapshot.HEADER_SIZE );
+        this.readFully( header, 0 );
+        header.flip();
+        if ( header.getInt() != CoexpressionGraphSnapshot.MAGIC
+                || header.getInt() != CoexpressionGraphSnapshot.VERSION ) {
+            channel.close();
+            throw new IOException( file + " is not a coexpression snapshot, or was written by another version" );
+        }
+        this.taxonId = header.getLong();
+        int numGenes = header.getInt();
+        this.linksStart = header.getLong();
+        this.bitmapsStart = header.getLong();
+        long analysesStart = header.getLong();
+        int numAnalyses = header.getInt();
+
+        ByteBuffer nodes = ByteBuffer.allocate( numGenes * 16 + 8 );
+        this.readFully( nodes, CoexpressionGraphSnapshot.HEADER_SIZE );
+        nodes.flip();
+        this.genes = new long[numGenes];
+        this.firstLinks = new long[numGenes + 1];
+        for ( int i = 0; i < numGenes; i++ ) {
+            genes[i] = nodes.getLong();
+            firstLinks[i] = nodes.getLong();
+        }
+        firstLinks[numGenes] = nodes.getLong();
+
+        ByteBuffer analysisIds = ByteBuffer.allocate( numAnalyses * 8 );
+        this.readFully( analysisIds, analysesStart );
+        analysisIds.flip();
+        Set<Long> a = new HashSet<>();
+        for ( int i = 0; i < numAnalyses; i++ ) {
+            a.add( analysisIds.getLong() );
+        }
+        this.analyses = Collections.unmodifiableSet( a );
+
+        long size = channel.size();
+        this.segments = new MappedByteBuffer[( int ) ( ( size + CoexpressionGraphSnapshot.SEGMENT_SIZE - 1 )
+                / CoexpressionGraphSnapshot.SEGMENT_SIZE )];
+        for ( int s = 0; s < segments.length; s++ ) {
+            long start = s * CoexpressionGraphSnapshot.SEGMENT_SIZE;
+            segments[s] = channel.map( FileChannel.MapMode.READ_ONLY, start,
+                    Math.min( CoexpressionGraphSnapshot.SEGMENT_SIZE, size - start ) );
+        }
+    }
+
+    /**
+     * Write a new snapshot for the taxon. Links are read from the database for the changed genes (or for all genes, if
+     * there is no previous snapshot) and copied from the previous snapshot for the rest.
+     *
+     * @param connection          for reading the links
+     * @param taxonId             taxon ID
+     * @param linkTable           gene-level link table for the taxon
+     * @param supportDetailsTable support details table for the taxon
+     * @param previous            snapshot to copy unchanged genes from; null to build from scratch
+     * @param changedGenes        genes whose links have changed since the previous snapshot was built; ignored if
+     *                            there is no previous snapshot.
+     * @param analyses            the coexpression analyses whose links are in the database, read in the same
+     *                            transaction before the links; recorded in the snapshot.
+     * @param directory           where to write the snapshot
+     * @return the new snapshot
+     */
+    static CoexpressionGraphSnapshot build( Connection connection, long taxonId, String linkTable,
+            String supportDetailsTable, CoexpressionGraphSnapshot previous, Collection<Long> changedGenes,
+            Collection<Long> analyses, File directory ) throws SQLException, IOException {
+
+        SortedSet<Long> toFetch = new TreeSet<>();
+        if ( previous == null ) {
+            try (PreparedStatement ps = connection
+                    .prepareStatement( "SELECT DISTINCT FIRST_GENE_FK FROM " + linkTable );
+                    ResultSet rs = ps.executeQuery()) {
+                while ( rs.next() ) {
+                    toFetch.add( rs.getLong( 1 ) );
+                }
+            }
+        } else {
+            toFetch.addAll( changedGenes );
+        }
+
+        SortedSet<Long> allGenes = new TreeSet<>( toFetch );
+        if ( previous != null ) {
+            for ( long g : previous.genes ) {
+                allGenes.add( g );
+            }
+        }
+
+        if ( !directory.exists() && !directory.mkdirs() ) {
+            throw new IOException( "Could not create " + directory );
+        }
+        File linksFile = File.createTempFile( CoexpressionGraphSnapshot.FILE_PREFIX, ".links", directory );
+        File bitmapsFile = File.createTempFile( CoexpressionGraphSnapshot.FILE_PREFIX, ".bitmaps", directory );
+        File file = new File( directory,
+                CoexpressionGraphSnapshot.FILE_PREFIX + taxonId + "-" + System.currentTimeMillis()
+                        + CoexpressionGraphSnapshot.FILE_SUFFIX );
+
+        List<Long> nodeGenes = new ArrayList<>( allGenes.size() );
+        List<Long> nodeFirstLinks = new ArrayList<>( allGenes.size() );
+        long numLinks = 0;
+        long bitmapsSize = 0;
+        long numFetched = 0;
+        try {
+            try (DataOutputStream links = new DataOutputStream(
+                    new BufferedOutputStream( new FileOutputStream( linksFile ), 1 << 16 ) );
+                    DataOutputStream bitmaps = new DataOutputStream(
+                            new BufferedOutputStream( new FileOutputStream( bitmapsFile ), 1 << 16 ) )) {
+
+                Iterator<Long> fetchIterator = toFetch.iterator();
+                Map<Long, List<Object[]>> fetched = new HashMap<>();
+                long lastFetched = Long.MIN_VALUE;
+                for ( Long gene : allGenes ) {
+                    List<Object[]> rows;
+                    if ( toFetch.contains( gene ) ) {
+                        if ( gene > lastFetched ) {
+                            // genes are visited in order, so the next batch starts with this one.
+                            List<Long> batch = new ArrayList<>( CoexpressionGraphSnapshot.FETCH_BATCH_SIZE );
+                            while ( fetchIterator.hasNext()
+                                    && batch.size() < CoexpressionGraphSnapshot.FETCH_BATCH_SIZE ) {
+                                batch.add( fetchIterator.next() );
+                            }
+                            lastFetched = batch.get( batch.size() - 1 );
+                            fetched = CoexpressionGraphSnapshot
+                                    .fetch( connection, linkTable, supportDetailsTable, batch );
+                        }
+                        rows = fetched.remove( gene );
+                        if ( rows == null ) {
+                            continue; // the gene no longer has links.
+                        }
+                        numFetched += rows.size();
+                    } else {
+                        rows = previous.read( gene );
+                    }
+
+                    nodeGenes.add( gene );
+                    nodeFirstLinks.add( numLinks );
+                    for ( Object[] row : rows ) {
+                        byte[] bitmap = ( byte[] ) row[4];
+                        links.writeLong( ( Long ) row[0] );
+                        links.writeLong( row[1] == null ?
+                                CoexpressionGraphSnapshot.NO_SUPPORT_DETAILS :
+                                ( Long ) row[1] );
+                        links.writeLong( bitmapsSize );
+                        links.writeInt( ( Integer ) row[2] );
+                        links.writeInt( ( Boolean ) row[3] ? 1 : 0 );
+                        bitmaps.writeInt( bitmap == null ? 0 : bitmap.length );
+                        bitmapsSize += 4;
+                        if ( bitmap != null ) {
+                            bitmaps.write( bitmap );
+                            bitmapsSize += bitmap.length;
+                        }
+                        numLinks++;
+                    }
+                }
+            }
+
+            CoexpressionGraphSnapshot
+                    .assemble( file, taxonId, nodeGenes, nodeFirstLinks, numLinks, linksFile, bitmapsFile, analyses );
+        } finally {
+            if ( !linksFile.delete() || !bitmapsFile.delete() ) {
+                CoexpressionGraphSnapshot.log.warn( "Could not delete temporary files in " + directory );
+            }
+        }
+
+        CoexpressionGraphSnapshot.log
+                .info( "Wrote coexpression snapshot for taxon " + taxonId + ": " + nodeGenes.size() + " genes, "
+                        + numLinks + " links (" + numFetched + " read from the database) to " + file );
+        return new CoexpressionGraphSnapshot( file, true );
+    }
+
+    /**
+     * Nothing is deleted here, since other processes may be using the files; a snapshot file is deleted when it is
+     * replaced, by the process that wrote it (see {@link #close()}).
+     *
+     * @param directory where snapshots are written
+     * @param taxonId   taxon ID
+     * @return the most recent snapshot for the taxon in the directory, or null if there is none. The caller should
+     * check it is still current with {@link #getAnalyses()}.
+     */
+    static CoexpressionGraphSnapshot open( File directory, long taxonId ) {
+        final String prefix = CoexpressionGraphSnapshot.FILE_PREFIX + taxonId + "-";
+        File[] files = directory.listFiles( new FilenameFilter() {
+            @Override
+            public boolean accept( File dir, String name ) {
+                return name.startsWith( prefix ) && name.endsWith( CoexpressionGraphSnapshot.FILE_SUFFIX );
+            }
+        } );
+        if ( files == null || files.length == 0 ) {
+            return null;
+        }
+
+        // the names sort by the time they were written.
+        Arrays.sort( files );
+
+        try {
+            CoexpressionGraphSnapshot snapshot = new CoexpressionGraphSnapshot( files[files.length - 1], false );
+            CoexpressionGraphSnapshot.log.info( "Opened coexpression snapshot " + snapshot.file );
+            return snapshot;
+        } catch ( IOException e ) {
+            CoexpressionGraphSnapshot.log.error( "Could not open coexpression snapshot: " + e.getMessage() );
+            return null;
+        }
+    }
+
+    /**
+     * Write the snapshot to a temporary file and then rename it, so other processes never see a partial file.
+     */
+    private static void assemble( File file, long taxonId, List<Long> genes, List<Long> firstLinks, long numLinks,
+            File linksFile, File bitmapsFile, Collection<Long> analyses ) throws IOException {
+        long linksStart = CoexpressionGraphSnapshot.HEADER_SIZE + genes.size() * 16L + 8;
+        long bitmapsStart = linksStart + numLinks * CoexpressionGraphSnapshot.LINK_SIZE;
+        long analysesStart = bitmapsStart + bitmapsFile.length();
+
+        File tmp = File.createTempFile( CoexpressionGraphSnapshot.FILE_PREFIX, ".tmp", file.getParentFile() );
+        try (RandomAccessFile raf = new RandomAccessFile( tmp, "rw" ); FileChannel out = raf.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate( CoexpressionGraphSnapshot.HEADER_SIZE );
+            header.putInt( CoexpressionGraphSnapshot.MAGIC ).putInt( CoexpressionGraphSnapshot.VERSION )
+                    .putLong( taxonId ).putInt( genes.size() ).putLong( linksStart ).putLong( bitmapsStart )
+                    .putLong( analysesStart ).putInt( analyses.size() );
+            header.clear();
+            CoexpressionGraphSnapshot.writeFully( out, header );
+
+            ByteBuffer nodes = ByteBuffer.allocate( 1 << 16 );
+            for ( int i = 0; i < genes.size(); i++ ) {
+                if ( nodes.remaining() < 16 ) {
+                    nodes.flip();
+                    CoexpressionGraphSnapshot.writeFully( out, nodes );
+                    nodes.clear();
+                }
+                nodes.putLong( genes.get( i ) ).putLong( firstLinks.get( i ) );
+            }
+            nodes.putLong( numLinks );
+            nodes.flip();
+            CoexpressionGraphSnapshot.writeFully( out, nodes );
+
+            for ( File part : new File[] { linksFile, bitmapsFile } ) {
+                try (FileChannel in = new FileInputStream( part ).getChannel()) {
+                    long position = 0;
+                    long size = in.size();
+                    while ( position < size ) {
+                        position += in.transferTo( position, size - position, out );
+                    }
+                }
+            }
+
+            ByteBuffer analysisIds = ByteBuffer.allocate( analyses.size() * 8 );
+            for ( Long id : analyses ) {
+                analysisIds.putLong( id );
+            }
+            analysisIds.flip();
+            CoexpressionGraphSnapshot.writeFully( out, analysisIds );
+        } catch ( IOException e ) {
+            if ( !tmp.delete() ) {
+                CoexpressionGraphSnapshot.log.warn( "Could not delete " + tmp );
+            }
+            throw e;
+        }
+
+        if ( !tmp.renameTo( file ) ) {
+            if ( !tmp.delete() ) {
+                CoexpressionGraphSnapshot.log.warn( "Could not delete " + tmp );
+            }
+            throw new IOException( "Could not rename " + tmp + " to " + file );
+        }
+    }
+
+    /**
+     * Fetch the links for a batch of genes.
+     *
+     * @return map of gene to rows of (coexpressed gene, support details ID, support, positive, support details bytes),
+     * sorted by the coexpressed gene. Genes without links are absent.
+     */
+    private static Map<Long, List<Object[]>> fetch( Connection connection, String linkTable, String supportDetailsTable,
+            List<Long> batch ) throws SQLException {
+
+        StringBuilder placeholders = new StringBuilder();
+        for ( int i = 0; i < batch.size(); i++ ) {
+            placeholders.append( i == 0 ? "?" : ",?" );
+        }
+        String sql = "SELECT l.FIRST_GENE_FK, l.SECOND_GENE_FK, l.SUPPORT_DETAILS_FK, l.SUPPORT, l.POSITIVE, s.BYTES "
+                + "FROM " + linkTable + " l LEFT JOIN " + supportDetailsTable + " s ON s.ID = l.SUPPORT_DETAILS_FK "
+                + "WHERE l.FIRST_GENE_FK IN (" + placeholders + ") ORDER BY l.FIRST_GENE_FK, l.SECOND_GENE_FK";
+
+        Map<Long, List<Object[]>> result = new HashMap<>();
+        try (PreparedStatement ps = connection.prepareStatement( sql )) {
+            for ( int i = 0; i < batch.size(); i++ ) {
+                ps.setLong( i + 1, batch.get( i ) );
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while ( rs.next() ) {
+                    Long gene = rs.getLong( 1 );
+                    if ( !result.containsKey( gene ) ) {
+                        result.put( gene, new ArrayList<Object[]>() );
+                    }
+                    Long supportDetailsId = rs.getLong( 3 );
+                    if ( rs.wasNull() ) {
+                        supportDetailsId = null;
+                    }
+                    result.get( gene ).add( new Object[] { rs.getLong( 2 ), supportDetailsId, rs.getInt( 4 ),
+                            rs.getBoolean( 5 ), rs.getBytes( 6 ) } );
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void writeFully( FileChannel out, ByteBuffer buf ) throws IOException {
+        while ( buf.hasRemaining() ) {
+            out.write( buf );
+        }
+    }
+
+    /**
+     * Closes the file, and deletes it if this process wrote it. Value objects already returned are unaffected.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch ( IOException e ) {
+            CoexpressionGraphSnapshot.log.warn( "Could not close " + file + ": " + e.getMessage() );
+        }
+        if ( written && !file.delete() ) {
+            CoexpressionGraphSnapshot.log.warn( "Could not delete " + file );
+        }
+    }
+
+    boolean contains( Long gene ) {
+        return Arrays.binarySearch( genes, gene ) >= 0;
+    }
+
+    /**
+     * @param gene       query gene
+     * @param stringency minimum support
+     * @param restrictTo if not null, only links to these genes are returned
+     * @return links of the gene at the given stringency, with the supporting data sets filled in but not the data sets
+     * they were tested in; empty if the gene has no links.
+     */
+    List<CoexpressionValueObject> getLinks( Long gene, int stringency, Collection<Long> restrictTo ) {
+        List<CoexpressionValueObject> result = new ArrayList<>();
+        int i = Arrays.binarySearch( genes, gene );
+        if ( i < 0 ) {
+            return result;
+        }
+
+        for ( long k = firstLinks[i]; k < firstLinks[i + 1]; k++ ) {
+            long position = linksStart + k * CoexpressionGraphSnapshot.LINK_SIZE;
+            int support = this.getInt( position + 24 );
+            if ( support < stringency ) {
+                continue;
+            }
+            Long coexGene = this.getLong( position );
+            if ( restrictTo != null && !restrictTo.contains( coexGene ) ) {
+                continue;
+            }
+            Long supportDetailsId = this.getSupportDetailsId( position );
+            boolean positive = this.getInt( position + 28 ) != 0;
+            byte[] bitmap = this.getBitmap( this.getLong( position + 16 ) );
+
+            result.add( new CoexpressionValueObject( gene, coexGene, positive, support, supportDetailsId,
+                    bitmap == null ? null : CoexpressionGraphSnapshot.toSet( bitmap ) ) );
+        }
+        return result;
+    }
+
+    /**
+     * @return IDs of the coexpression analyses whose links were in the database when the snapshot was built.
+     */
+    Set<Long> getAnalyses() {
+        return analyses;
+    }
+
+    long getTaxonId() {
+        return taxonId;
+    }
+
+    private static Set<Long> toSet( byte[] bitmap ) {
+        EWAHCompressedBitmap b = new EWAHCompressedBitmap();
+        try {
+            b.deserialize( new DataInputStream( new ByteArrayInputStream( bitmap ) ) );
+        } catch ( IOException e ) {
+            throw new RuntimeException( e );
+        }
+        return IdArray.toSet( b );
+    }
+
+    private void get( long position, byte[] dst ) {
+        int done = 0;
+        while ( done < dst.length ) {
+            long p = position + done;
+            ByteBuffer segment = segments[( int ) ( p / CoexpressionGraphSnapshot.SEGMENT_SIZE )].duplicate();
+            segment.position( ( int ) ( p % CoexpressionGraphSnapshot.SEGMENT_SIZE ) );
+            int n = Math.min( dst.length - done, segment.remaining() );
+            segment.get( dst, done, n );
+            done += n;
+        }
+    }
+
+    private byte[] getBitmap( long offset ) {
+        long position = bitmapsStart + offset;
+        int length = this.getInt( position );
+        if ( length == 0 ) {
+            return null;
+        }
+        byte[] bitmap = new byte[length];
+        this.get( position + 4, bitmap );
+        return bitmap;
+    }
+
+    private int getInt( long position ) {
+        int offset = ( int ) ( position % CoexpressionGraphSnapshot.SEGMENT_SIZE );
+        MappedByteBuffer segment = segments[( int ) ( position / CoexpressionGraphSnapshot.SEGMENT_SIZE )];
+        if ( offset + 4 <= segment.limit() ) {
+            return segment.getInt( offset );
+        }
+        // straddles two segments (only possible in the bitmaps).
+        byte[] b = new byte[4];
+        this.get( position, b );
+        return ByteBuffer.wrap( b ).getInt();
+    }
+
+    private long getLong( long position ) {
+        // links are aligned, so they never straddle segments.
+        return segments[( int ) ( position / CoexpressionGraphSnapshot.SEGMENT_SIZE )]
+                .getLong( ( int ) ( position % CoexpressionGraphSnapshot.SEGMENT_SIZE ) );
+    }
+
+    private Long getSupportDetailsId( long linkPosition ) {
+        long id = this.getLong( linkPosition + 8 );
+        return id == CoexpressionGraphSnapshot.NO_SUPPORT_DETAILS ? null : id;
+    }
+
+    /**
+     * @return the links of a gene in the same form as {@link #fetch}, for copying into a new snapshot.
+     */
+    private List<Object[]> read( Long gene ) {
+        int i = Arrays.binarySearch( genes, gene );
+        List<Object[]> rows = new ArrayList<>( ( int ) ( firstLinks[i + 1] - firstLinks[i] ) );
+        for ( long k = firstLinks[i]; k < firstLinks[i + 1]; k++ ) {
+            long position = linksStart + k * CoexpressionGraphSnapshot.LINK_SIZE;
+            rows.add( new Object[] { this.getLong( position ), this.getSupportDetailsId( position ),
+                    this.getInt( position + 24 ), this.getInt( position + 28 ) != 0,
+                    this.getBitmap( this.getLong( position + 16 ) ) } );
+        }
+        return rows;
+    }
+
+    private void readFully( ByteBuffer buf, long position ) throws IOException {
+        while ( buf.hasRemaining() ) {
+            int n = channel.read( buf, position );
+            if ( n < 0 ) {
+                throw new EOFException( "Unexpected end of " + file );
+            }
+            position += n;
+        }
+    }
+}
@@ -35,6 +35,16 @@ interface CoexpressionQueryQueue {
 
     void addToFullQueryQueue( Gene gene );
 
+    /**
+     * @return number of genes waiting to be queried.
+     */
+    int getQueueDepth();
+
+    /**
+     * @return average number of genes cached per second spent querying.
+     */
+    double getWarmRate();
+
     /**
      * Remove genes from the queue; for example if we know their data is about to become stale.
      *
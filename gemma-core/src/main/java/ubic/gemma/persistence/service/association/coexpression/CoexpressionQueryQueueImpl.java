@@ -29,13 +29,18 @@ import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Repository;
 import ubic.gemma.model.genome.Gene;
+import ubic.gemma.model.genome.Taxon;
 import ubic.gemma.persistence.service.genome.GeneDao;
+import ubic.gemma.persistence.util.Settings;
 
-import java.util.Collection;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Warms the coexpression cache with a pool of worker threads. Each worker takes a batch of genes off the queue, most
+ * recently requested first, and fetches and caches their coexpression with a single query per taxon. Genes that are
+ * requested again move to the front of the queue; when the queue is full, the genes requested longest ago are dropped.
+ *
  * @author Paul
  */
 @Repository
@@ -43,12 +48,25 @@ import java.util.concurrent.BlockingQueue;
 class CoexpressionQueryQueueImpl extends HibernateDaoSupport implements CoexpressionQueryQueue {
 
     private static final int QUEUE_SIZE = 1000;
+    private static final int NUM_THREADS = Math.max( 1, Settings.getInt( "gemma.cache.gene2gene.warm.threads", 2 ) );
+    private static final int BATCH_SIZE = Math.max( 1, Settings.getInt( "gemma.cache.gene2gene.warm.batchsize", 50 ) );
+    /**
+     * How often (in genes warmed) to log the queue statistics.
+     */
+    private static final int REPORT_INTERVAL = 1000;
     private static final Logger log = LoggerFactory.getLogger( CoexpressionQueryQueueImpl.class );
-    private final BlockingQueue<QueuedGene> geneQueue = new ArrayBlockingQueue<>(
-            CoexpressionQueryQueueImpl.QUEUE_SIZE );
+
+    /*
+     * In order of request; the most recent are at the end. Guarded by itself.
+     */
+    private final LinkedHashSet<Long> geneQueue = new LinkedHashSet<>();
+    private final AtomicLong numWarmed = new AtomicLong( 0 );
+    private final AtomicLong timeWarming = new AtomicLong( 0 );
     @Autowired
     private CoexpressionDao coexpressionDao;
     @Autowired
+    private CoexpressionCache gene2GeneCoexpressionCache;
+    @Autowired
     private GeneDao geneDao;
 
     @Autowired
@@ -57,28 +75,41 @@ class CoexpressionQueryQueueImpl extends HibernateDaoSupport implements Coexpres
     }
 
     @Override
-    public synchronized void addToFullQueryQueue( Collection<Long> geneIds ) {
-        if ( this.geneQueue.remainingCapacity() == 0 ) {
-            CoexpressionQueryQueueImpl.log.debug( "Queue is full, cannot add genes for cache warm." );
-            return;
+    public void addToFullQueryQueue( Collection<Long> geneIds ) {
+        synchronized ( geneQueue ) {
+            for ( Long id : geneIds ) {
+                this.enqueue( id );
+            }
+            geneQueue.notifyAll();
         }
+    }
 
-        for ( Long id : geneIds ) {
-            this.addToFullQueryQueue( id );
+    @Override
+    public void addToFullQueryQueue( Gene gene ) {
+        this.addToFullQueryQueue( Collections.singleton( gene.getId() ) );
+    }
+
+    @Override
+    public int getQueueDepth() {
+        synchronized ( geneQueue ) {
+            return geneQueue.size();
         }
     }
 
     @Override
-    public synchronized void addToFullQueryQueue( Gene gene ) {
-        this.addToFullQueryQueue( gene.getId() );
+    public double getWarmRate() {
+        long time = timeWarming.get();
+        return time == 0 ? 0.0 : 1000.0 * numWarmed.get() / time;
     }
 
     @Override
-    public synchronized void removeFromQueue( Collection<Long> geneIds ) {
+    public void removeFromQueue( Collection<Long> geneIds ) {
         int count = 0;
-        for ( Long id : geneIds ) {
-            if ( geneQueue.remove( new QueuedGene( id ) ) )
-                count++;
+        synchronized ( geneQueue ) {
+            for ( Long id : geneIds ) {
+                if ( geneQueue.remove( id ) )
+                    count++;
+            }
         }
 
         if ( count > 0 ) {
@@ -91,117 +122,103 @@ class CoexpressionQueryQueueImpl extends HibernateDaoSupport implements Coexpres
         super.initDao();
         final SecurityContext context = SecurityContextHolder.getContext();
 
-        Thread loadThread = new Thread( new Runnable() {
-
-            private final int MAX_WARNINGS = 5;
-
-            @Override
-            public void run() {
-                SecurityContextHolder.setContext( context );
-
-                int numWarnings = 0;
-                //noinspection InfiniteLoopStatement // Expected
-                while ( true ) {
-                    QueuedGene gene;
-                    try {
-
-                        synchronized ( geneQueue ) {
-                            gene = geneQueue.poll();
-                        }
-
-                        if ( gene == null ) {
-                            Thread.sleep( 1000 );
-                            continue;
-                        }
-
-                        CoexpressionQueryQueueImpl.this.queryForCache( gene );
-
-                        Thread.sleep( 500 );
-
-                    } catch ( Exception e ) {
-                        // can happen during tests
-                        if ( numWarnings < MAX_WARNINGS ) {
-                            CoexpressionQueryQueueImpl.log
-                                    .error( "Error while caching coexpression: " + e.getMessage() );
-                        } else if ( numWarnings == MAX_WARNINGS ) {
-                            CoexpressionQueryQueueImpl.log.error( "Further warnings suppressed" );
+        for ( int i = 0; i < CoexpressionQueryQueueImpl.NUM_THREADS; i++ ) {
+            Thread loadThread = new Thread( new Runnable() {
+
+                private final int MAX_WARNINGS = 5;
+
+                @Override
+                public void run() {
+                    SecurityContextHolder.setContext( context );
+
+                    int numWarnings = 0;
+                    //noinspection InfiniteLoopStatement // Expected
+                    while ( true ) {
+                        try {
+                            List<Long> batch = CoexpressionQueryQueueImpl.this.takeBatch();
+                            CoexpressionQueryQueueImpl.this.queryForCache( batch );
+                        } catch ( InterruptedException e ) {
+                            return;
+                        } catch ( Exception e ) {
+                            // can happen during tests
+                            if ( numWarnings < MAX_WARNINGS ) {
+                                CoexpressionQueryQueueImpl.log
+                                        .error( "Error while caching coexpression: " + e.getMessage() );
+                            } else if ( numWarnings == MAX_WARNINGS ) {
+                                CoexpressionQueryQueueImpl.log.error( "Further warnings suppressed" );
+                            }
+                            numWarnings++;
                         }
-                        numWarnings++;
                     }
                 }
-            }
 
-        }, "Fetching coexpression for recently used genes" );
-        loadThread.setDaemon( true );
-        loadThread.start();
-    }
-
-    private void queryForCache( QueuedGene gene ) {
-
-        int numCached = coexpressionDao.queryAndCache( geneDao.load( gene.getId() ) );
-        //noinspection StatementWithEmptyBody // Better readability
-        if ( numCached < 0 ) {
-            // it was already in the cache
-        } else if ( numCached > 0 ) {
-            CoexpressionQueryQueueImpl.log.debug( "Cached " + numCached + " coexpression links at stringency="
-                    + CoexpressionCache.CACHE_QUERY_STRINGENCY + " for " + gene.getId() );
-        } else {
-            CoexpressionQueryQueueImpl.log
-                    .debug( "No coexpression links to cache at stringency=" + CoexpressionCache.CACHE_QUERY_STRINGENCY
-                            + " for " + gene.getId() );
+            }, "Fetching coexpression for recently used genes " + ( i + 1 ) );
+            loadThread.setDaemon( true );
+            loadThread.start();
         }
     }
 
-    private synchronized void addToFullQueryQueue( Long id ) {
-        if ( this.geneQueue.remainingCapacity() == 0 ) {
-            CoexpressionQueryQueueImpl.log.debug( "Queue is full, cannot add genes for cache warm." );
-            return;
-        }
-
-        try {
-            CoexpressionQueryQueueImpl.log.debug( "Queuing gene=" + id + " for cache warm" );
-            this.geneQueue.add( new QueuedGene( id ) );
-        } catch ( Exception e ) {
-            // if JVM is finished (e.g. test) this will happen.
-            CoexpressionQueryQueueImpl.log.error( "Could not add to queue: " + e.getMessage() );
+    /**
+     * Must be called while holding the lock on the queue.
+     */
+    private void enqueue( Long id ) {
+        // re-adding a gene moves it to the most recent end.
+        if ( !geneQueue.remove( id ) && geneQueue.size() >= CoexpressionQueryQueueImpl.QUEUE_SIZE ) {
+            Iterator<Long> it = geneQueue.iterator();
+            Long dropped = it.next();
+            it.remove();
+            CoexpressionQueryQueueImpl.log.debug( "Queue is full, dropped gene=" + dropped + " from cache warm" );
         }
+        CoexpressionQueryQueueImpl.log.debug( "Queuing gene=" + id + " for cache warm" );
+        geneQueue.add( id );
     }
-}
-
-class QueuedGene {
 
-    private final Long id;
+    private void queryForCache( List<Long> batch ) {
+        long start = System.currentTimeMillis();
 
-    QueuedGene( Long id ) {
-        super();
-        this.id = id;
-    }
+        Map<Taxon, Collection<Long>> byTaxon = new HashMap<>();
+        for ( Gene gene : geneDao.load( batch ) ) {
+            Taxon taxon = gene.getTaxon();
+            if ( !byTaxon.containsKey( taxon ) ) {
+                byTaxon.put( taxon, new ArrayList<Long>() );
+            }
+            byTaxon.get( taxon ).add( gene.getId() );
+        }
 
-    public Long getId() {
-        return id;
-    }
+        int numCached = 0;
+        for ( Taxon taxon : byTaxon.keySet() ) {
+            numCached += coexpressionDao.queryAndCache( taxon, byTaxon.get( taxon ) );
+        }
 
-    @Override
-    public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + ( ( id == null ) ? 0 : id.hashCode() );
-        return result;
+        timeWarming.addAndGet( System.currentTimeMillis() - start );
+        long before = numWarmed.getAndAdd( numCached );
+        CoexpressionQueryQueueImpl.log.debug( "Cached coexpression at stringency="
+                + CoexpressionCache.CACHE_QUERY_STRINGENCY + " for " + numCached + "/" + batch.size() + " genes" );
+
+        if ( before / CoexpressionQueryQueueImpl.REPORT_INTERVAL
+                != ( before + numCached ) / CoexpressionQueryQueueImpl.REPORT_INTERVAL ) {
+            CoexpressionQueryQueueImpl.log.info( String.format(
+                    "Coexpression cache warm: %d genes cached, %.1f genes/s, %d queued, cache hit ratio %.2f",
+                    before + numCached, this.getWarmRate(), this.getQueueDepth(),
+                    gene2GeneCoexpressionCache.getHitRatio() ) );
+        }
     }
 
-    @Override
-    public boolean equals( Object obj ) {
-        if ( this == obj )
-            return true;
-        if ( obj == null )
-            return false;
-        if ( this.getClass() != obj.getClass() )
-            return false;
-        QueuedGene other = ( QueuedGene ) obj;
-        if ( id == null ) {
-            return other.id == null;
-        } else
-            return id.equals( other.id );
+    /**
+     * Wait for genes to be queued, then remove up to a batch of them, most recently requested first.
+     */
+    private List<Long> takeBatch() throws InterruptedException {
+        synchronized ( geneQueue ) {
+            while ( geneQueue.isEmpty() ) {
+                geneQueue.wait();
+            }
+            // LinkedHashSet can't be walked backwards, so copy it out.
+            List<Long> all = new ArrayList<>( geneQueue );
+            int n = Math.min( CoexpressionQueryQueueImpl.BATCH_SIZE, all.size() );
+            List<Long> batch = new ArrayList<>( all.subList( all.size() - n, all.size() ) );
+            Collections.reverse( batch );
+            geneQueue.removeAll( batch );
+            return batch;
+        }
     }
-
 }
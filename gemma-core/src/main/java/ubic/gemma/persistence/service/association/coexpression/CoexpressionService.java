@@ -156,6 +156,22 @@ public interface CoexpressionService {
     @Secured("GROUP_ADMIN")
     void updateNodeDegrees( Taxon taxon );
 
+    /**
+     * Bring the snapshot of the coexpression graph for the taxon up to date with the database, if snapshots are
+     * enabled; only the links of genes that changed are re-read.
+     *
+     * @param taxon taxon
+     */
+    @Secured("GROUP_USER")
+    void updateSnapshot( Taxon taxon );
+
+    /**
+     * Bring the snapshots of all taxa up to date, as for {@link #updateSnapshot(Taxon)}. Run periodically, so changes
+     * made by any process are picked up.
+     */
+    @Secured("GROUP_AGENT")
+    void updateSnapshots();
+
     GeneCoexpressionNodeDegreeValueObject getNodeDegree( Gene g );
 
     Map<Long, GeneCoexpressionNodeDegreeValueObject> getNodeDegrees( Collection<Long> genes );
@@ -36,6 +36,7 @@ import ubic.gemma.model.genome.Gene;
 import ubic.gemma.model.genome.Taxon;
 import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentDao;
 import ubic.gemma.persistence.service.genome.GeneDao;
+import ubic.gemma.persistence.service.genome.taxon.TaxonDao;
 import ubic.gemma.persistence.util.EntityUtils;
 
 import java.util.*;
@@ -67,6 +68,9 @@ public class CoexpressionServiceImpl implements CoexpressionService {
     @Autowired
     private GeneDao geneDao;
 
+    @Autowired
+    private TaxonDao taxonDao;
+
     @Override
     @Transactional(readOnly = true)
     public Integer countLinks( BioAssaySet ee, Gene gene ) {
@@ -168,6 +172,20 @@ public class CoexpressionServiceImpl implements CoexpressionService {
         return this.coexpressionDao.getCoexpression( experimentDao.getTaxon( experiment ), experiment, quick );
     }
 
+    @Override
+    public void updateSnapshot( Taxon taxon ) {
+        this.coexpressionDao.updateSnapshot( taxon );
+    }
+
+    @Override
+    public void updateSnapshots() {
+        for ( Taxon t : taxonDao.loadAll() ) {
+            if ( t.getIsGenesUsable() != null && t.getIsGenesUsable() ) {
+                this.coexpressionDao.updateSnapshot( t );
+            }
+        }
+    }
+
     @Override
     public void updateNodeDegrees( Taxon t ) {
         CoexpressionServiceImpl.log.info( "Updating node degree for all genes from " + t );
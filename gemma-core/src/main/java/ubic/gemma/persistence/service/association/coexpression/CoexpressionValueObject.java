@@ -19,7 +19,9 @@
 
 package ubic.gemma.persistence.service.association.coexpression;
 
+import com.googlecode.javaewah.EWAHCompressedBitmap;
 import org.apache.commons.lang3.StringUtils;
+import ubic.gemma.model.analysis.expression.coexpression.IdArray;
 import ubic.gemma.model.association.coexpression.Gene2GeneCoexpression;
 
 import java.util.Collection;
@@ -76,9 +78,9 @@ public class CoexpressionValueObject implements Comparable<CoexpressionValueObje
 
     /**
      * The data sets in which the link was tested. If eeConstraint = true, this reflects only data sets which were in
-     * the query.
+     * the query. Kept as a bitmap, as it is usually computed by intersecting the data sets each gene was tested in.
      */
-    private Set<Long> testedInDatasets = null;
+    private EWAHCompressedBitmap testedInDatasets = null;
 
     /**
      * Construct a value object. The "tested-in" component is not filled in, it must be done later.
@@ -127,7 +129,7 @@ public class CoexpressionValueObject implements Comparable<CoexpressionValueObje
         this.support = support;
         this.supportDetailsId = supportDetailsId;
         this.supportingDatasets = ( Set<Long> ) supportingDatasets;
-        this.testedInDatasets = ( Set<Long> ) testedInDatasets;
+        this.testedInDatasets = testedInDatasets == null ? null : IdArray.toBitmap( testedInDatasets );
     }
 
     protected CoexpressionValueObject( Long coexGeneId, String coexGeneSymbol, boolean positiveCorrelation,
@@ -142,7 +144,7 @@ public class CoexpressionValueObject implements Comparable<CoexpressionValueObje
         this.support = support;
         this.supportDetailsId = supportDetailsId;
         this.supportingDatasets = supportingDatasets;
-        this.testedInDatasets = testedInDatasets;
+        this.testedInDatasets = testedInDatasets == null ? null : IdArray.toBitmap( testedInDatasets );
     }
 
     @Override
@@ -182,10 +184,10 @@ public class CoexpressionValueObject implements Comparable<CoexpressionValueObje
      * is zero (which is basically an error).
      */
     public Integer getNumDatasetsTestedIn() {
-        if ( testedInDatasets == null || testedInDatasets.isEmpty() ) {
+        if ( testedInDatasets == null || testedInDatasets.cardinality() == 0 ) {
             return -1;
         }
-        return this.testedInDatasets.size();
+        return this.testedInDatasets.cardinality();
     }
 
     public Long getQueryGeneId() {
@@ -229,13 +231,24 @@ public class CoexpressionValueObject implements Comparable<CoexpressionValueObje
         this.supportingDatasets = ids;
     }
 
+    /**
+     * @return a copy of the data sets the link was tested in, or null if the information was not retrieved.
+     */
     public Set<Long> getTestedInDatasets() {
+        return testedInDatasets == null ? null : IdArray.toSet( testedInDatasets );
+    }
+
+    /**
+     * @return the data sets the link was tested in, which must not be modified; or null if the information was not
+     * retrieved.
+     */
+    EWAHCompressedBitmap getTestedInBitmap() {
         return testedInDatasets;
     }
 
-    void setTestedInDatasets( Set<Long> ids ) {
-        assert ids != null && !ids.isEmpty();
-        assert this.testedInDatasets == null || this.testedInDatasets.isEmpty();
+    void setTestedInDatasets( EWAHCompressedBitmap ids ) {
+        assert ids != null && ids.cardinality() > 0;
+        assert this.testedInDatasets == null || this.testedInDatasets.cardinality() == 0;
 
         this.testedInDatasets = ids;
     }
@@ -279,7 +292,7 @@ public class CoexpressionValueObject implements Comparable<CoexpressionValueObje
     public String toString() {
         String[] fields = new String[] { queryGeneId.toString(), queryGeneSymbol, coexGeneId.toString(), coexGeneSymbol,
                 support.toString(),
-                ( this.testedInDatasets != null ? Integer.toString( this.testedInDatasets.size() ) : "?" ),
+                ( this.testedInDatasets != null ? Integer.toString( this.testedInDatasets.cardinality() ) : "?" ),
                 positiveCorrelation ? "+" : "-" };
         return StringUtils.join( fields, "\t" );
     }
@@ -316,19 +329,22 @@ public class CoexpressionValueObject implements Comparable<CoexpressionValueObje
      * is okay).
      *
      * @param bas        bas
+     * @param basBitmap  the same data sets as a bitmap
      * @param stringency stringency
      * @return true if this still meets the stringency. If it returns false, we assume that means it will be rejected so
      * we don't bother actually trimming.
      */
-    boolean trimDatasets( Collection<Long> bas, int stringency ) {
+    boolean trimDatasets( Collection<Long> bas, EWAHCompressedBitmap basBitmap, int stringency ) {
 
         boolean changed = this.supportingDatasets.retainAll( bas );
 
         this.support = this.supportingDatasets.size();
 
         if ( this.testedInDatasets != null ) {
-            changed = this.testedInDatasets.retainAll( bas ) || changed;
-            assert this.testedInDatasets.size() >= this.supportingDatasets.size();
+            int before = this.testedInDatasets.cardinality();
+            this.testedInDatasets = this.testedInDatasets.and( basBitmap );
+            changed = this.testedInDatasets.cardinality() != before || changed;
+            assert this.testedInDatasets.cardinality() >= this.supportingDatasets.size();
         }
 
         this.eeConstraint = this.eeConstraint || changed;
@@ -21,6 +21,7 @@ package ubic.gemma.persistence.service.association.coexpression;
 
 import ubic.gemma.model.analysis.expression.coexpression.GeneCoexpressionTestedIn;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -38,6 +39,13 @@ public interface GeneTestedInCache {
 
     GeneCoexpressionTestedIn get( Long geneId );
 
+    /**
+     * @param geneIds gene IDs
+     * @return map of the genes that were in the cache to their tested-in information; the data sets are kept as a
+     * compressed bitmap, so they can be intersected without decoding them.
+     */
+    Map<Long, GeneCoexpressionTestedIn> getAll( Collection<Long> geneIds );
+
     void cache( Map<Long, GeneCoexpressionTestedIn> idMap );
 
     boolean contains( Long queryGeneId );
@@ -30,6 +30,8 @@ import ubic.gemma.model.analysis.expression.coexpression.GeneCoexpressionTestedI
 import ubic.gemma.persistence.util.CacheUtils;
 import ubic.gemma.persistence.util.Settings;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -101,6 +103,20 @@ public class GeneTestedInCacheImpl implements InitializingBean, GeneTestedInCach
 
     }
 
+    @Override
+    public Map<Long, GeneCoexpressionTestedIn> getAll( Collection<Long> geneIds ) {
+        Map<Long, GeneCoexpressionTestedIn> result = new HashMap<>();
+        if ( cache == null || geneIds.isEmpty() )
+            return result;
+
+        for ( Map.Entry<Object, Element> e : cache.getAll( geneIds ).entrySet() ) {
+            if ( e.getValue() != null ) {
+                result.put( ( Long ) e.getKey(), ( GeneCoexpressionTestedIn ) e.getValue().getObjectValue() );
+            }
+        }
+        return result;
+    }
+
     @Override
     public void cache( Map<Long, GeneCoexpressionTestedIn> idMap ) {
         for ( GeneCoexpressionTestedIn v : idMap.values() ) {
@@ -238,13 +238,23 @@ public abstract class DesignElementDataVectorDaoImpl<T extends DesignElementData
      * @return         map of vectors to gene ids.
      */
     Map<T, Collection<Long>> getVectorsForProbesInExperiments( Long ee, Map<Long, Collection<Long>> cs2gene ) {
+        return this.getVectorsForProbesInExperiments( this.getSessionFactory().getCurrentSession(), ee, cs2gene );
+    }
+
+    /**
+     * @param  session session to use, which need not be the current one.
+     * @param  ee      ee
+     * @param  cs2gene Map of probes to genes.
+     * @return         map of vectors to gene ids.
+     */
+    Map<T, Collection<Long>> getVectorsForProbesInExperiments( Session session, Long ee,
+            Map<Long, Collection<Long>> cs2gene ) {
 
         // Do not do in clause for experiments, as it can't use the indices
         //language=HQL
         String queryString = "select dedv, dedv.designElement.id from ProcessedExpressionDataVector dedv fetch all properties"
                 + " where dedv.designElement.id in ( :cs ) and dedv.expressionExperiment.id = :eeId ";
 
-        Session session = this.getSessionFactory().getCurrentSession();
         org.hibernate.Query queryObject = session.createQuery( queryString );
         queryObject.setReadOnly( true );
         queryObject.setFlushMode( FlushMode.MANUAL );
@@ -0,0 +1,36 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.expression.bioAssayData;
+
+import ubic.gemma.model.expression.bioAssayData.DoubleVectorValueObject;
+
+import java.util.Collection;
+
+/**
+ * Receives the vectors of a multi-experiment fetch as they become available, so callers can start on them before the
+ * slowest experiment is done. Always called on the thread that asked for the vectors.
+ */
+public interface ProcessedDataVectorListener {
+
+    /**
+     * @param vectors vectors that are ready, already sliced for any subsets asked for. Each vector is passed only
+     *                once; the same vectors are also part of the final result of the fetch.
+     */
+    void vectorsFetched( Collection<DoubleVectorValueObject> vectors );
+}
@@ -0,0 +1,291 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.expression.bioAssayData;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import ubic.basecode.io.ByteArrayConverter;
+import ubic.gemma.model.expression.bioAssayData.ProcessedExpressionDataVector;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Read-only copy of the processed data of one experiment in a memory-mapped file, so the vectors for a few genes can be
+ * read without fetching and unpacking the blobs of the data vectors. The values of each probe are stored together, as
+ * single-precision floats, and the probes are sorted by ID (for binary search in place); alongside are the ID of each
+ * vector and its ranks. The genes of the probes are not stored, since the annotations change independently of the data;
+ * callers look them up when they query. Only experiments that have a single bioassay dimension can be stored.
+ * Files are never modified: {@link #write} replaces the file. Instances are safe to share between threads.
+ */
+class ProcessedDataVectorStore {
+
+    private static final Log log = LogFactory.getLog( ProcessedDataVectorStore.class );
+
+    private static final int MAGIC = 0x50454456;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    /**
+     * Bytes per probe: probe ID, vector ID, rank by mean, rank by max (8 bytes each).
+     */
+    private static final int PROBE_SIZE = 32;
+
+    private final File file;
+    private final long lastModified;
+    private final MappedByteBuffer buffer;
+    private final long experimentId;
+    private final long bioAssayDimensionId;
+    private final long quantitationTypeId;
+    private final int numProbes;
+    private final int numSamples;
+    private final int dataStart;
+
+    private ProcessedDataVectorStore( File file ) throws IOException {
+        this.file = file;
+        this.lastModified = file.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile( file, "r" ); FileChannel channel = raf.getChannel()) {
+            // the mapping stays valid after the channel is closed.
+            this.buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        }
+
+        if ( buffer.getInt( 0 ) != ProcessedDataVectorStore.MAGIC
+                || buffer.getInt( 4 ) != ProcessedDataVectorStore.VERSION ) {
+            throw new IOException( file + " is not a processed data store, or was written by another version" );
+        }
+        this.experimentId = buffer.getLong( 8 );
+        this.bioAssayDimensionId = buffer.getLong( 16 );
+        this.quantitationTypeId = buffer.getLong( 24 );
+        this.numProbes = buffer.getInt( 32 );
+        this.numSamples = buffer.getInt( 36 );
+        this.dataStart = ProcessedDataVectorStore.HEADER_SIZE + numProbes * ProcessedDataVectorStore.PROBE_SIZE;
+    }
+
+    /**
+     * @return the store in the file, or null if there is none or it could not be read.
+     */
+    static ProcessedDataVectorStore open( File file ) {
+        if ( !file.exists() ) {
+            return null;
+        }
+        try {
+            return new ProcessedDataVectorStore( file );
+        } catch ( IOException e ) {
+            ProcessedDataVectorStore.log.error( "Could not open processed data store " + file + ": " + e.getMessage() );
+            return null;
+        }
+    }
+
+    /**
+     * Write the processed data of an experiment, replacing the file if it exists.
+     *
+     * @param file                where to write
+     * @param experimentId        the experiment
+     * @param bioAssayDimensionId the dimension shared by all the vectors
+     * @param quantitationTypeId  the quantitation type shared by all the vectors
+     * @param vectors             the processed vectors of the experiment
+     * @return false if the data are too large to be stored, in which case nothing is written.
+     */
+    static boolean write( File file, long experimentId, long bioAssayDimensionId, long quantitationTypeId,
+            Collection<ProcessedExpressionDataVector> vectors ) throws IOException {
+
+        List<ProcessedExpressionDataVector> probes = new ArrayList<>( vectors );
+        Collections.sort( probes, new Comparator<ProcessedExpressionDataVector>() {
+            @Override
+            public int compare( ProcessedExpressionDataVector o1, ProcessedExpressionDataVector o2 ) {
+                return o1.getDesignElement().getId().compareTo( o2.getDesignElement().getId() );
+            }
+        } );
+
+        ByteArrayConverter bac = new ByteArrayConverter();
+        int numSamples = probes.isEmpty() ? 0 : bac.byteArrayToDoubles( probes.get( 0 ).getData() ).length;
+        long size = ProcessedDataVectorStore.HEADER_SIZE + ( long ) probes.size() * ProcessedDataVectorStore.PROBE_SIZE
+                + ( long ) probes.size() * numSamples * 4;
+        if ( size > Integer.MAX_VALUE ) {
+            ProcessedDataVectorStore.log
+                    .warn( "Processed data for experiment " + experimentId + " are too large to store (" + size
+                            + " bytes)" );
+            return false;
+        }
+
+        File tmp = new File( file.getParentFile(), file.getName() + ".tmp" );
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream( new FileOutputStream( tmp ), 1 << 16 ) )) {
+            out.writeInt( ProcessedDataVectorStore.MAGIC );
+            out.writeInt( ProcessedDataVectorStore.VERSION );
+            out.writeLong( experimentId );
+            out.writeLong( bioAssayDimensionId );
+            out.writeLong( quantitationTypeId );
+            out.writeInt( probes.size() );
+            out.writeInt( numSamples );
+            out.write( new byte[ProcessedDataVectorStore.HEADER_SIZE - out.size()] );
+
+            for ( ProcessedExpressionDataVector v : probes ) {
+                out.writeLong( v.getDesignElement().getId() );
+                out.writeLong( v.getId() );
+                out.writeDouble( v.getRankByMean() == null ? Double.NaN : v.getRankByMean() );
+                out.writeDouble( v.getRankByMax() == null ? Double.NaN : v.getRankByMax() );
+            }
+
+            for ( ProcessedExpressionDataVector v : probes ) {
+                double[] data = bac.byteArrayToDoubles( v.getData() );
+                if ( data.length != numSamples ) {
+                    throw new IllegalArgumentException(
+                            "Vectors for experiment " + experimentId + " are not all the same length" );
+                }
+                for ( double d : data ) {
+                    out.writeFloat( ( float ) d );
+                }
+            }
+        } catch ( IOException | RuntimeException e ) {
+            if ( !tmp.delete() ) {
+                ProcessedDataVectorStore.log.warn( "Could not delete " + tmp );
+            }
+            throw e;
+        }
+
+        if ( !tmp.renameTo( file ) ) {
+            // renaming over an existing file is not atomic everywhere.
+            if ( !file.delete() || !tmp.renameTo( file ) ) {
+                throw new IOException( "Could not move " + tmp + " to " + file );
+            }
+        }
+        ProcessedDataVectorStore.log
+                .info( "Wrote processed data for experiment " + experimentId + ": " + probes.size() + " probes, "
+                        + numSamples + " samples to " + file );
+        return true;
+    }
+
+    long getBioAssayDimensionId() {
+        return bioAssayDimensionId;
+    }
+
+    long getExperimentId() {
+        return experimentId;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the modification time of the file when it was opened, to tell whether it has been replaced since.
+     */
+    long getLastModified() {
+        return lastModified;
+    }
+
+    int getNumProbes() {
+        return numProbes;
+    }
+
+    int getNumSamples() {
+        return numSamples;
+    }
+
+    long getQuantitationTypeId() {
+        return quantitationTypeId;
+    }
+
+    /**
+     * @return copy of the values for the probe in the given row, in the order of the bioassay dimension.
+     */
+    double[] getData( int row ) {
+        FloatBuffer values = this.getValues( row );
+        double[] data = new double[numSamples];
+        for ( int i = 0; i < numSamples; i++ ) {
+            data[i] = values.get( i );
+        }
+        return data;
+    }
+
+    long getProbeId( int row ) {
+        return buffer.getLong( ProcessedDataVectorStore.HEADER_SIZE + row * ProcessedDataVectorStore.PROBE_SIZE );
+    }
+
+    Double getRankByMax( int row ) {
+        double r = buffer
+                .getDouble( ProcessedDataVectorStore.HEADER_SIZE + row * ProcessedDataVectorStore.PROBE_SIZE + 24 );
+        return Double.isNaN( r ) ? null : r;
+    }
+
+    Double getRankByMean( int row ) {
+        double r = buffer
+                .getDouble( ProcessedDataVectorStore.HEADER_SIZE + row * ProcessedDataVectorStore.PROBE_SIZE + 16 );
+        return Double.isNaN( r ) ? null : r;
+    }
+
+    /**
+     * @return the row of the probe, or -1 if it has no data here.
+     */
+    int getRow( long probeId ) {
+        int lo = 0;
+        int hi = numProbes - 1;
+        while ( lo <= hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            long p = this.getProbeId( mid );
+            if ( p < probeId ) {
+                lo = mid + 1;
+            } else if ( p > probeId ) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the rows of the given probes that have data here, in order and without repeats.
+     */
+    int[] getRows( Collection<Long> probes ) {
+        SortedSet<Integer> rows = new TreeSet<>();
+        for ( Long probe : probes ) {
+            int row = this.getRow( probe );
+            if ( row >= 0 ) {
+                rows.add( row );
+            }
+        }
+        int[] result = new int[rows.size()];
+        int i = 0;
+        for ( Integer row : rows ) {
+            result[i++] = row;
+        }
+        return result;
+    }
+
+    /**
+     * @return view of the values for the probe in the given row, without copying them.
+     */
+    FloatBuffer getValues( int row ) {
+        ByteBuffer b = buffer.duplicate();
+        int start = dataStart + row * numSamples * 4;
+        b.limit( start + numSamples * 4 );
+        b.position( start );
+        return b.slice().asFloatBuffer();
+    }
+
+    long getVectorId( int row ) {
+        return buffer
+                .getLong( ProcessedDataVectorStore.HEADER_SIZE + row * ProcessedDataVectorStore.PROBE_SIZE + 8 );
+    }
+}
@@ -58,6 +58,18 @@ public interface ProcessedExpressionDataVectorDao extends DesignElementDataVecto
     Collection<DoubleVectorValueObject> getProcessedDataArrays( Collection<? extends BioAssaySet> expressionExperiments,
             Collection<Long> genes );
 
+    /**
+     * As {@link #getProcessedDataArrays(Collection, Collection)}, with the vectors also handed to the listener as they
+     * become available. Vectors for many experiments are fetched in parallel.
+     *
+     * @param expressionExperiments experiments and/or subsets
+     * @param genes                 genes
+     * @param listener              listener
+     * @return all the vectors
+     */
+    Collection<DoubleVectorValueObject> getProcessedDataArrays( Collection<? extends BioAssaySet> expressionExperiments,
+            Collection<Long> genes, ProcessedDataVectorListener listener );
+
     Collection<DoubleVectorValueObject> getProcessedDataArraysByProbe(
             Collection<? extends BioAssaySet> expressionExperiments, Collection<CompositeSequence> probes );
 
@@ -89,6 +101,15 @@ public interface ProcessedExpressionDataVectorDao extends DesignElementDataVecto
 
     void removeProcessedDataVectors( final ExpressionExperiment expressionExperiment );
 
+    /**
+     * Rewrite the on-disk copy of the processed data of the experiment that is used to read vectors for genes, if that
+     * is enabled (gemma.processeddata.store.enabled). Experiments with more than one bioassay dimension are not stored.
+     * The file is written once the current transaction commits.
+     *
+     * @param ee the experiment
+     */
+    void updateDataStore( ExpressionExperiment ee );
+
     //    /**
     //     * When the processed data is being computed separately.
     //     *
@@ -23,6 +23,8 @@ import org.hibernate.*;
 import org.hibernate.type.LongType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
 import ubic.basecode.util.BatchIterator;
@@ -31,9 +33,11 @@ import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrixUtil;
 import ubic.gemma.model.common.quantitationtype.QuantitationType;
 import ubic.gemma.model.common.quantitationtype.QuantitationTypeImpl;
+import ubic.gemma.model.common.quantitationtype.QuantitationTypeValueObject;
 import ubic.gemma.model.common.quantitationtype.ScaleType;
 import ubic.gemma.model.common.quantitationtype.StandardQuantitationType;
 import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
+import ubic.gemma.model.expression.arrayDesign.ArrayDesignValueObject;
 import ubic.gemma.model.expression.arrayDesign.TechnologyType;
 import ubic.gemma.model.expression.bioAssay.BioAssay;
 import ubic.gemma.model.expression.bioAssay.BioAssayValueObject;
@@ -48,8 +52,12 @@ import ubic.gemma.model.genome.Gene;
 import ubic.gemma.persistence.service.AbstractDao;
 import ubic.gemma.persistence.util.CommonQueries;
 import ubic.gemma.persistence.util.EntityUtils;
+import ubic.gemma.persistence.util.Settings;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author Paul
@@ -64,8 +72,50 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
      */
     private static final int MIN_SIZE_FOR_RENORMALIZATION = 4000;
 
+    /**
+     * Whether vectors for genes are read from the experiments' {@link ProcessedDataVectorStore}s, where there are any.
+     */
+    private static final boolean USE_DATA_STORE = Settings.getBoolean( "gemma.processeddata.store.enabled", false );
+
+    /**
+     * How many experiments' vectors can be fetched at once, each with its own session (and connection). Shared by all
+     * requests; 1 fetches everything on the calling thread. Capped at a quarter of the connection pool, so concurrent
+     * requests cannot take all the connections the rest of the application needs.
+     */
+    private static final int FETCH_THREADS = Math.max( 1,
+            Math.min( Settings.getInt( "gemma.processeddata.fetch.threads", 4 ),
+                    Settings.getInt( "gemma.db.maxactive", 70 ) / 4 ) );
+
+    /**
+     * Experiments are handed to the fetch threads in batches of this size, and fetches for fewer experiments than this
+     * are not split up.
+     */
+    private static final int EXPERIMENTS_PER_FETCH_BATCH = 10;
+
+    /**
+     * Fetches for more experiments than this are done on the fetch threads.
+     */
+    private int parallelFetchThreshold = ProcessedExpressionDataVectorDaoImpl.EXPERIMENTS_PER_FETCH_BATCH;
+
     private final ProcessedDataVectorCache processedDataVectorCache;
 
+    /**
+     * Stores that have been opened, by experiment ID.
+     */
+    private final Map<Long, ProcessedDataVectorStore> dataStores = new ConcurrentHashMap<>();
+
+    private final ExecutorService fetchExecutor = Executors
+            .newFixedThreadPool( ProcessedExpressionDataVectorDaoImpl.FETCH_THREADS, new ThreadFactory() {
+                private int i = 0;
+
+                @Override
+                public synchronized Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "processed-vector-fetch-" + ++i );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+
     @Autowired
     public ProcessedExpressionDataVectorDaoImpl( SessionFactory sessionFactory,
             ProcessedDataVectorCache processedDataVectorCache ) {
@@ -184,6 +234,7 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         assert expressionExperiment.getNumberOfDataVectors() != null;
 
         this.processedDataVectorCache.clearCache( expressionExperiment.getId() );
+        this.updateDataStore( expressionExperiment );
 
         return expressionExperiment;
 
@@ -199,7 +250,7 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
             Collection<Long> genes ) {
         Collection<BioAssaySet> expressionExperiments = new HashSet<>();
         expressionExperiments.add( expressionExperiment );
-        return this.handleGetProcessedExpressionDataArrays( expressionExperiments, genes );
+        return this.handleGetProcessedExpressionDataArrays( expressionExperiments, genes, null );
     }
 
     @Override
@@ -245,7 +296,14 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
     @Override
     public Collection<DoubleVectorValueObject> getProcessedDataArrays(
             Collection<? extends BioAssaySet> expressionExperiments, Collection<Long> genes ) {
-        return this.handleGetProcessedExpressionDataArrays( expressionExperiments, genes );
+        return this.handleGetProcessedExpressionDataArrays( expressionExperiments, genes, null );
+    }
+
+    @Override
+    public Collection<DoubleVectorValueObject> getProcessedDataArrays(
+            Collection<? extends BioAssaySet> expressionExperiments, Collection<Long> genes,
+            ProcessedDataVectorListener listener ) {
+        return this.handleGetProcessedExpressionDataArrays( expressionExperiments, genes, listener );
     }
 
     @Override
@@ -467,6 +525,7 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         //        this.getSessionFactory().getCurrentSession().update( expressionExperiment );
 
         expressionExperiment.getProcessedExpressionDataVectors().clear();
+        this.removeDataStore( expressionExperiment.getId() );
 
         //        if ( !vectors.isEmpty() ) {
         //            this.getSessionFactory().getCurrentSession()
@@ -483,6 +542,54 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         }
     }
 
+    @Override
+    public void updateDataStore( final ExpressionExperiment ee ) {
+        if ( !ProcessedExpressionDataVectorDaoImpl.USE_DATA_STORE ) {
+            return;
+        }
+
+        // the vectors need their IDs.
+        this.getSessionFactory().getCurrentSession().flush();
+        final Collection<ProcessedExpressionDataVector> vectors = this.getProcessedVectors( ee );
+        if ( vectors.isEmpty() ) {
+            this.removeDataStore( ee.getId() );
+            return;
+        }
+        Collection<BioAssayDimension> dims = new HashSet<>();
+        for ( ProcessedExpressionDataVector v : vectors ) {
+            dims.add( v.getBioAssayDimension() );
+        }
+        if ( dims.size() > 1 ) {
+            AbstractDao.log.info( "Processed data for " + ee + " have more than one bioassay dimension, not stored" );
+            this.removeDataStore( ee.getId() );
+            return;
+        }
+
+        final Long eeId = ee.getId();
+        final Long dimId = dims.iterator().next().getId();
+        final Long qtId = vectors.iterator().next().getQuantitationType().getId();
+        this.afterCommit( new Runnable() {
+            @Override
+            public void run() {
+                File file = ProcessedExpressionDataVectorDaoImpl.this.getDataStoreFile( eeId );
+                try {
+                    if ( !file.getParentFile().exists() && !file.getParentFile().mkdirs() ) {
+                        throw new IOException( "Could not create " + file.getParentFile() );
+                    }
+                    if ( !ProcessedDataVectorStore.write( file, eeId, dimId, qtId, vectors ) && file.exists()
+                            && !file.delete() ) {
+                        AbstractDao.log.warn( "Could not delete " + file );
+                    }
+                } catch ( IOException e ) {
+                    // not fatal, the data are read from the database instead.
+                    AbstractDao.log
+                            .error( "Could not write processed data store for " + ee + ": " + e.getMessage(), e );
+                }
+                dataStores.remove( eeId );
+            }
+        } );
+    }
+
     /**
      * Make sure the data are on a log2 scale
      *
@@ -604,6 +711,21 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
     //
     //    }
 
+    /**
+     * @param ees      experiments and/or subsets asked for
+     * @param vectors  vectors fetched, for whole experiments
+     * @param results  the sliced vectors are added here
+     * @param listener if not null, is given the sliced vectors
+     */
+    private void addFetched( Collection<? extends BioAssaySet> ees, Collection<DoubleVectorValueObject> vectors,
+            Collection<DoubleVectorValueObject> results, ProcessedDataVectorListener listener ) {
+        Collection<DoubleVectorValueObject> sliced = this.sliceSubsets( ees, vectors );
+        results.addAll( sliced );
+        if ( listener != null && !sliced.isEmpty() ) {
+            listener.vectorsFetched( sliced );
+        }
+    }
+
     private void addToGene( RankMethod method, Map<Gene, Collection<Double>> result, Double rMean, Double rMax,
             Collection<Gene> genes4probe ) {
         for ( Gene gene : genes4probe ) {
@@ -729,6 +851,208 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
 
     }
 
+    /**
+     * Fetch the vectors for the probes in the experiments with the current session.
+     *
+     * @param  ees                experiments and/or subsets asked for
+     * @param  needToSearch       experiments to fetch vectors for
+     * @param  bioAssayDimensions dimensions of the experiments
+     * @param  cs2gene            probes to fetch, with their genes
+     * @param  results            the vectors, sliced for subsets, are added here
+     * @param  listener           if not null, is given the vectors of each experiment as it is unpacked
+     * @return                    the vectors fetched, for whole experiments
+     */
+    private Collection<DoubleVectorValueObject> fetchProcessedDataArrays( Collection<? extends BioAssaySet> ees,
+            Collection<ExpressionExperiment> needToSearch,
+            Map<BioAssaySet, Collection<BioAssayDimension>> bioAssayDimensions, Map<Long, Collection<Long>> cs2gene,
+            Collection<DoubleVectorValueObject> results, ProcessedDataVectorListener listener ) {
+        Map<ProcessedExpressionDataVector, Collection<Long>> processedDataVectors = this
+                .getProcessedVectors( EntityUtils.getIds( needToSearch ), cs2gene );
+
+        Collection<DoubleVectorValueObject> newResults = new HashSet<>();
+
+        /*
+         * This loop is to ensure that we don't get misaligned vectors for experiments that use more than one array
+         * design. See bug 1704. This isn't that common, so we try to break out as soon as possible.
+         */
+        for ( BioAssaySet bas : needToSearch ) {
+
+            Collection<BioAssayDimension> dims = bioAssayDimensions.get( bas );
+
+            if ( dims == null || dims.isEmpty() ) {
+                AbstractDao.log.warn( "BioAssayDimensions were null/empty unexpectedly." );
+                continue;
+            }
+
+            /*
+             * Get the vectors for just this experiment. This is made more efficient by removing things from the map
+             * each time through.
+             */
+            Map<ProcessedExpressionDataVector, Collection<Long>> vecsForBas = new HashMap<>();
+            if ( needToSearch.size() == 1 ) {
+                vecsForBas = processedDataVectors;
+            } else {
+                // isolate the vectors for the current experiment.
+                for ( Iterator<ProcessedExpressionDataVector> it = processedDataVectors.keySet().iterator(); it
+                        .hasNext(); ) {
+                    ProcessedExpressionDataVector v = it.next();
+                    if ( v.getExpressionExperiment().equals( bas ) ) {
+                        vecsForBas.put( v, processedDataVectors.get( v ) );
+                        it.remove(); // since we're done with it.
+                    }
+                }
+            }
+
+            /*
+             * Now see if anything is 'ragged' (fewer bioassays per biomaterial than in some other vector)
+             */
+            Collection<DoubleVectorValueObject> vecs = new HashSet<>();
+            if ( dims.size() == 1 ) {
+                vecs.addAll( this.unpack( vecsForBas ) );
+            } else {
+                BioAssayDimension longestBad = this.checkRagged( dims );
+                if ( longestBad == null ) {
+                    vecs.addAll( this.unpack( vecsForBas ) );
+                } else {
+                    vecs.addAll( this.unpack( vecsForBas, longestBad ) );
+                }
+            }
+            newResults.addAll( vecs );
+            this.addFetched( ees, vecs, results, listener );
+        }
+        return newResults;
+    }
+
+    /**
+     * Like {@link #fetchProcessedDataArrays}, but the experiments are fetched in batches on the fetch threads, each
+     * batch with a separate read-only session. The results are passed on as each experiment is done. Experiments with
+     * ragged dimensions are fetched on the calling thread, since filling in their gaps needs entities of the current
+     * session.
+     */
+    private Collection<DoubleVectorValueObject> fetchProcessedDataArraysInParallel(
+            Collection<? extends BioAssaySet> ees, Collection<ExpressionExperiment> needToSearch,
+            Map<BioAssaySet, Collection<BioAssayDimension>> bioAssayDimensions,
+            final Map<Long, Collection<Long>> cs2gene, Collection<DoubleVectorValueObject> results,
+            ProcessedDataVectorListener listener ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        List<Long> toFetch = new ArrayList<>();
+        Map<ExpressionExperiment, BioAssayDimension> ragged = new HashMap<>();
+        for ( ExpressionExperiment ee : needToSearch ) {
+            Collection<BioAssayDimension> dims = bioAssayDimensions.get( ee );
+            if ( dims == null || dims.isEmpty() ) {
+                AbstractDao.log.warn( "BioAssayDimensions were null/empty unexpectedly." );
+                continue;
+            }
+            BioAssayDimension longestBad = dims.size() == 1 ? null : this.checkRagged( dims );
+            if ( longestBad == null ) {
+                toFetch.add( ee.getId() );
+            } else {
+                ragged.put( ee, longestBad );
+            }
+        }
+
+        final BlockingQueue<FetchedVectors> queue = new LinkedBlockingQueue<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for ( Collection<Long> b : new BatchIterator<>( toFetch,
+                ProcessedExpressionDataVectorDaoImpl.EXPERIMENTS_PER_FETCH_BATCH ) ) {
+            final Collection<Long> batch = new ArrayList<>( b );
+            futures.add( fetchExecutor.submit( new Runnable() {
+                @Override
+                public void run() {
+                    ProcessedExpressionDataVectorDaoImpl.this.fetchBatch( batch, cs2gene, queue );
+                }
+            } ) );
+        }
+
+        Collection<DoubleVectorValueObject> newResults = new HashSet<>();
+        try {
+            for ( ExpressionExperiment ee : ragged.keySet() ) {
+                Map<ProcessedExpressionDataVector, Collection<Long>> vecsForBas = this
+                        .getVectorsForProbesInExperiments( ee.getId(), cs2gene );
+                Collection<DoubleVectorValueObject> vecs = new HashSet<>(
+                        this.unpack( vecsForBas, ragged.get( ee ) ) );
+                newResults.addAll( vecs );
+                this.addFetched( ees, vecs, results, listener );
+            }
+
+            int batchesDone = 0;
+            while ( batchesDone < futures.size() ) {
+                FetchedVectors fetched = queue.take();
+                if ( fetched.error != null ) {
+                    throw new RuntimeException( "Fetching processed vectors failed", fetched.error );
+                }
+                if ( fetched.vectors == null ) {
+                    batchesDone++;
+                    continue;
+                }
+                newResults.addAll( fetched.vectors );
+                this.addFetched( ees, fetched.vectors, results, listener );
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        } finally {
+            // only does anything if we failed.
+            for ( Future<?> f : futures ) {
+                f.cancel( true );
+            }
+        }
+
+        AbstractDao.log.info( "Fetched " + newResults.size() + " vectors for " + needToSearch.size() + " experiments in "
+                + futures.size() + " batches: " + timer.getTime() + "ms" );
+        return newResults;
+    }
+
+    /**
+     * Fetch and unpack the vectors for a batch of experiments with a new read-only session, putting the results for
+     * each experiment on the queue as it is done. Every batch ends by putting either a failure or an empty "done"
+     * element on the queue, even if it was interrupted, so the caller never waits for results that will not come.
+     */
+    private void fetchBatch( Collection<Long> ees, Map<Long, Collection<Long>> cs2gene,
+            BlockingQueue<FetchedVectors> queue ) {
+        FetchedVectors last = FetchedVectors.DONE;
+        Session session = null;
+        Transaction tx = null;
+        try {
+            session = this.getSessionFactory().openSession();
+            session.setDefaultReadOnly( true );
+            session.setFlushMode( FlushMode.MANUAL );
+            tx = session.beginTransaction();
+            for ( Long ee : ees ) {
+                if ( Thread.currentThread().isInterrupted() ) {
+                    last = new FetchedVectors( null, new InterruptedException( "Fetch was interrupted" ) );
+                    break;
+                }
+                Map<ProcessedExpressionDataVector, Collection<Long>> vecs = this
+                        .getVectorsForProbesInExperiments( session, ee, cs2gene );
+                queue.add( new FetchedVectors( this.unpack( vecs ), null ) );
+            }
+        } catch ( Throwable e ) {
+            last = new FetchedVectors( null, e );
+        } finally {
+            try {
+                if ( tx != null ) {
+                    tx.rollback();
+                }
+                if ( session != null ) {
+                    session.close();
+                }
+            } catch ( RuntimeException e ) {
+                AbstractDao.log.warn( "Failed to close fetch session: " + e.getMessage() );
+            }
+            queue.add( last );
+        }
+    }
+
+    /**
+     * For tests: fetches for more experiments than this are done on the fetch threads (if there is more than one).
+     */
+    void setParallelFetchThreshold( int parallelFetchThreshold ) {
+        this.parallelFetchThreshold = parallelFetchThreshold;
+    }
+
     private Collection<BioAssayDimension> getBioAssayDimensions( BioAssaySet ee ) {
         if ( ee instanceof ExpressionExperiment ) {
             StopWatch timer = new StopWatch();
@@ -809,6 +1133,173 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         return badVos;
     }
 
+    private File getDataStoreFile( Long eeId ) {
+        return new File( Settings.getString( "gemma.processeddata.store.dir",
+                Settings.getString( "gemma.appdata.home" ) + File.separator + "processedData" ),
+                eeId + ".vectors" );
+    }
+
+    /**
+     * @return the store for the experiment, or null if there is none.
+     */
+    private ProcessedDataVectorStore getDataStore( Long eeId ) {
+        File file = this.getDataStoreFile( eeId );
+        ProcessedDataVectorStore store = dataStores.get( eeId );
+        if ( store != null && file.lastModified() == store.getLastModified() ) {
+            return store;
+        }
+
+        // not opened yet, or replaced (possibly by another process).
+        store = ProcessedDataVectorStore.open( file );
+        if ( store == null ) {
+            dataStores.remove( eeId );
+            return null;
+        }
+        dataStores.put( eeId, store );
+        return store;
+    }
+
+    /**
+     * Read the vectors for the genes from the experiments' stores. This does not use the database for the data, and
+     * the results are not cached.
+     *
+     * @param ees                experiments; those that were dealt with are removed.
+     * @param bioAssayDimensions dimensions of the experiments; stores are only used if they match.
+     * @param genes              genes
+     * @return vectors for the genes, for whole experiments.
+     */
+    private Collection<DoubleVectorValueObject> getProcessedDataArraysFromStores( Collection<ExpressionExperiment> ees,
+            Map<BioAssaySet, Collection<BioAssayDimension>> bioAssayDimensions, Collection<Long> genes ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        Map<ExpressionExperiment, ProcessedDataVectorStore> stores = new HashMap<>();
+        Map<ExpressionExperiment, int[]> rows = new HashMap<>();
+        Collection<Long> probes = new HashSet<>();
+        for ( Iterator<ExpressionExperiment> it = ees.iterator(); it.hasNext(); ) {
+            ExpressionExperiment ee = it.next();
+            Collection<BioAssayDimension> dims = bioAssayDimensions.get( ee );
+            if ( dims == null || dims.size() != 1 ) {
+                continue;
+            }
+            ProcessedDataVectorStore store = this.getDataStore( ee.getId() );
+            if ( store == null || store.getBioAssayDimensionId() != dims.iterator().next().getId() ) {
+                continue; // out of date, e.g. after the samples were reordered.
+            }
+            stores.put( ee, store );
+            it.remove();
+        }
+
+        Collection<DoubleVectorValueObject> results = new HashSet<>();
+        if ( stores.isEmpty() ) {
+            return results;
+        }
+
+        /*
+         * The genes of the probes are looked up now, as for the database, since the stores don't keep up with changes
+         * to the platform annotations.
+         */
+        Session session = this.getSessionFactory().getCurrentSession();
+        Collection<Long> arrays = new HashSet<>();
+        for ( Collection<Long> ads : CommonQueries
+                .getArrayDesignsUsedEEMap( EntityUtils.getIds( stores.keySet() ), session ).values() ) {
+            arrays.addAll( ads );
+        }
+        Map<Long, Collection<Long>> cs2gene = arrays.isEmpty() || genes.isEmpty() ?
+                new HashMap<Long, Collection<Long>>() :
+                CommonQueries.getCs2GeneIdMap( genes, arrays, session );
+        if ( !cs2gene.isEmpty() ) {
+            cs2gene = CommonQueries.getCs2GeneMapForProbes( cs2gene.keySet(), session );
+        }
+        for ( ExpressionExperiment ee : stores.keySet() ) {
+            int[] r = stores.get( ee ).getRows( cs2gene.keySet() );
+            for ( int row : r ) {
+                probes.add( stores.get( ee ).getProbeId( row ) );
+            }
+            rows.put( ee, r );
+        }
+
+        Map<Long, CompositeSequenceValueObject> probeVos = this.getCompositeSequenceValueObjects( probes );
+        Map<Long, QuantitationTypeValueObject> qtVos = new HashMap<>();
+        for ( ExpressionExperiment ee : stores.keySet() ) {
+            ProcessedDataVectorStore store = stores.get( ee );
+            int[] r = rows.get( ee );
+            if ( r.length == 0 ) {
+                continue;
+            }
+
+            Long qtId = store.getQuantitationTypeId();
+            if ( !qtVos.containsKey( qtId ) ) {
+                qtVos.put( qtId, new QuantitationTypeValueObject( ( QuantitationType ) this.getSessionFactory()
+                        .getCurrentSession().get( QuantitationTypeImpl.class, qtId ) ) );
+            }
+            ExpressionExperimentValueObject eeVo = new ExpressionExperimentValueObject( ee );
+            BioAssayDimensionValueObject badVo = new BioAssayDimensionValueObject(
+                    bioAssayDimensions.get( ee ).iterator().next() );
+            for ( int row : r ) {
+                results.add( new DoubleVectorValueObject( store.getVectorId( row ), eeVo,
+                        probeVos.get( store.getProbeId( row ) ), qtVos.get( qtId ), badVo,
+                        cs2gene.get( store.getProbeId( row ) ),
+                        store.getData( row ), store.getRankByMean( row ), store.getRankByMax( row ) ) );
+            }
+        }
+
+        if ( timer.getTime() > 1000 ) {
+            AbstractDao.log
+                    .info( "Read " + results.size() + " vectors from stores for " + stores.size() + " experiments: "
+                            + timer.getTime() + "ms" );
+        }
+        return results;
+    }
+
+    private Map<Long, CompositeSequenceValueObject> getCompositeSequenceValueObjects( Collection<Long> probes ) {
+        Map<Long, CompositeSequenceValueObject> result = new HashMap<>();
+        Map<ArrayDesign, ArrayDesignValueObject> adVos = new HashMap<>();
+        for ( Collection<Long> batch : new BatchIterator<>( probes, 1000 ) ) {
+            //noinspection unchecked
+            List<CompositeSequence> css = this.getSessionFactory().getCurrentSession().createQuery(
+                    "select cs from CompositeSequence cs join fetch cs.arrayDesign ad join fetch ad.primaryTaxon "
+                            + "where cs.id in (:ids)" ).setParameterList( "ids", batch ).list();
+            for ( CompositeSequence cs : css ) {
+                if ( !adVos.containsKey( cs.getArrayDesign() ) ) {
+                    adVos.put( cs.getArrayDesign(), new ArrayDesignValueObject( cs.getArrayDesign() ) );
+                }
+                result.put( cs.getId(), new CompositeSequenceValueObject( cs, adVos.get( cs.getArrayDesign() ) ) );
+            }
+        }
+        return result;
+    }
+
+    private void removeDataStore( final Long eeId ) {
+        this.afterCommit( new Runnable() {
+            @Override
+            public void run() {
+                dataStores.remove( eeId );
+                File file = ProcessedExpressionDataVectorDaoImpl.this.getDataStoreFile( eeId );
+                if ( file.exists() && !file.delete() ) {
+                    AbstractDao.log.warn( "Could not delete " + file );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Run the task once the current transaction has committed (right away if there is none), so the files of the data
+     * stores never reflect changes that were rolled back.
+     */
+    private void afterCommit( final Runnable task ) {
+        if ( !TransactionSynchronizationManager.isSynchronizationActive() ) {
+            task.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                task.run();
+            }
+        } );
+    }
+
     private ExpressionExperiment getExperiment( BioAssaySet bas ) {
         ExpressionExperiment e;
         if ( bas instanceof ExpressionExperiment ) {
@@ -1080,12 +1571,13 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
     /**
      * This is an important method for fetching vectors.
      *
-     * @param  genes genes
-     * @param  ees   ees
-     * @return       vectors, possibly subsetted.
+     * @param  genes    genes
+     * @param  ees      ees
+     * @param  listener if not null, is given the vectors as they become available.
+     * @return          vectors, possibly subsetted.
      */
     private Collection<DoubleVectorValueObject> handleGetProcessedExpressionDataArrays(
-            Collection<? extends BioAssaySet> ees, Collection<Long> genes ) {
+            Collection<? extends BioAssaySet> ees, Collection<Long> genes, ProcessedDataVectorListener listener ) {
 
         // ees must be thawed first as currently implemented (?)
 
@@ -1098,11 +1590,26 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         Collection<Long> genesToSearch = new HashSet<>();
         this.checkCache( ees, genes, results, needToSearch, genesToSearch );
         AbstractDao.log.info( "Using " + results.size() + " DoubleVectorValueObject(s) from cache" );
+        if ( listener != null && !results.isEmpty() ) {
+            listener.vectorsFetched( new HashSet<>( results ) );
+        }
 
         if ( needToSearch.size() == 0 ) {
             return results;
         }
 
+        Map<BioAssaySet, Collection<BioAssayDimension>> bioAssayDimensions = this.getBioAssayDimensions( needToSearch );
+
+        if ( ProcessedExpressionDataVectorDaoImpl.USE_DATA_STORE ) {
+            // experiments that are served from their stores are removed from needToSearch.
+            Collection<DoubleVectorValueObject> fromStores = this
+                    .getProcessedDataArraysFromStores( needToSearch, bioAssayDimensions, genesToSearch );
+            this.addFetched( ees, fromStores, results, listener );
+            if ( needToSearch.isEmpty() ) {
+                return results;
+            }
+        }
+
         /*
          * Get items not in the cache.
          */
@@ -1133,68 +1640,21 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         cs2gene = CommonQueries
                 .getCs2GeneMapForProbes( cs2gene.keySet(), this.getSessionFactory().getCurrentSession() );
 
-        Map<ProcessedExpressionDataVector, Collection<Long>> processedDataVectors = this
-                .getProcessedVectors( EntityUtils.getIds( needToSearch ), cs2gene );
-
-        Map<BioAssaySet, Collection<BioAssayDimension>> bioAssayDimensions = this.getBioAssayDimensions( needToSearch );
-
-        Collection<DoubleVectorValueObject> newResults = new HashSet<>();
-
-        /*
-         * This loop is to ensure that we don't get misaligned vectors for experiments that use more than one array
-         * design. See bug 1704. This isn't that common, so we try to break out as soon as possible.
-         */
-        for ( BioAssaySet bas : needToSearch ) {
-
-            Collection<BioAssayDimension> dims = bioAssayDimensions.get( bas );
-
-            if ( dims == null || dims.isEmpty() ) {
-                AbstractDao.log.warn( "BioAssayDimensions were null/empty unexpectedly." );
-                continue;
-            }
-
-            /*
-             * Get the vectors for just this experiment. This is made more efficient by removing things from the map
-             * each time through.
-             */
-            Map<ProcessedExpressionDataVector, Collection<Long>> vecsForBas = new HashMap<>();
-            if ( needToSearch.size() == 1 ) {
-                vecsForBas = processedDataVectors;
-            } else {
-                // isolate the vectors for the current experiment.
-                for ( Iterator<ProcessedExpressionDataVector> it = processedDataVectors.keySet().iterator(); it
-                        .hasNext(); ) {
-                    ProcessedExpressionDataVector v = it.next();
-                    if ( v.getExpressionExperiment().equals( bas ) ) {
-                        vecsForBas.put( v, processedDataVectors.get( v ) );
-                        it.remove(); // since we're done with it.
-                    }
-                }
-            }
-
-            /*
-             * Now see if anything is 'ragged' (fewer bioassays per biomaterial than in some other vector)
-             */
-            if ( dims.size() == 1 ) {
-                newResults.addAll( this.unpack( vecsForBas ) );
-            } else {
-                BioAssayDimension longestBad = this.checkRagged( dims );
-                if ( longestBad == null ) {
-                    newResults.addAll( this.unpack( vecsForBas ) );
-                } else {
-                    newResults.addAll( this.unpack( vecsForBas, longestBad ) );
-                }
-            }
+        Collection<DoubleVectorValueObject> newResults;
+        if ( ProcessedExpressionDataVectorDaoImpl.FETCH_THREADS > 1 && needToSearch.size() > parallelFetchThreshold ) {
+            newResults = this
+                    .fetchProcessedDataArraysInParallel( ees, needToSearch, bioAssayDimensions, cs2gene, results,
+                            listener );
+        } else {
+            newResults = this
+                    .fetchProcessedDataArrays( ees, needToSearch, bioAssayDimensions, cs2gene, results, listener );
         }
 
         /*
          * Finally....
          */
-
         if ( !newResults.isEmpty() ) {
             this.cacheResults( newResults );
-            newResults = this.sliceSubsets( ees, newResults );
-            results.addAll( newResults );
         }
 
         return results;
@@ -1524,4 +1984,20 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         }
         return result;
     }
+
+    /**
+     * Vectors for one experiment fetched on a fetch thread, the reason a batch failed, or (with neither) the end of a
+     * batch.
+     */
+    private static class FetchedVectors {
+        private static final FetchedVectors DONE = new FetchedVectors( null, null );
+
+        private final Collection<DoubleVectorValueObject> vectors;
+        private final Throwable error;
+
+        private FetchedVectors( Collection<DoubleVectorValueObject> vectors, Throwable error ) {
+            this.vectors = vectors;
+            this.error = error;
+        }
+    }
 }
@@ -71,6 +71,16 @@ public interface ProcessedExpressionDataVectorService
     Collection<DoubleVectorValueObject> getProcessedDataArrays( Collection<? extends BioAssaySet> bioassaySets,
             Collection<Long> genes );
 
+    /**
+     * @param bioassaySets - expressionExperiments or expressionExperimentSubSets
+     * @param genes        genes
+     * @param listener     is given the vectors as they become available, on the calling thread.
+     * @return vectors, which will be subsetted if the bioassayset is a subset.
+     */
+    @Secured({ "IS_AUTHENTICATED_ANONYMOUSLY", "ACL_SECURABLE_COLLECTION_READ" })
+    Collection<DoubleVectorValueObject> getProcessedDataArrays( Collection<? extends BioAssaySet> bioassaySets,
+            Collection<Long> genes, ProcessedDataVectorListener listener );
+
     /**
      * @param ees                 expressionExperiments
      * @param genes               genes
@@ -170,6 +180,15 @@ public interface ProcessedExpressionDataVectorService
     @Secured({ "GROUP_USER", "ACL_SECURABLE_EDIT" })
     void removeProcessedDataVectors( final ExpressionExperiment expressionExperiment );
 
+    /**
+     * Rewrite the on-disk copy of the processed data of the experiment, if that is enabled. This is done when the
+     * processed data are computed, so it should not usually be needed on its own.
+     *
+     * @param ee the experiment
+     */
+    @Secured({ "GROUP_USER", "ACL_SECURABLE_EDIT" })
+    void updateDataStore( ExpressionExperiment ee );
+
     @Override
     void remove( Collection<ProcessedExpressionDataVector> processedExpressionDataVectors );
 
@@ -68,6 +68,9 @@ public class ProcessedExpressionDataVectorServiceImpl
             ee = helperService.updateRanks( ee );
 
             assert ee.getNumberOfDataVectors() != null;
+
+            // again, now that the ranks are in.
+            this.updateDataStore( ee );
             return ee;
         } catch ( Exception e ) {
             auditTrailService.addUpdateEvent( ee, FailedProcessedVectorComputationEvent.Factory.newInstance(),
@@ -96,6 +99,15 @@ public class ProcessedExpressionDataVectorServiceImpl
         return processedExpressionDataVectorDao.getProcessedDataArrays( expressionExperiments, genes );
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public Collection<DoubleVectorValueObject> getProcessedDataArrays(
+            Collection<? extends BioAssaySet> expressionExperiments, Collection<Long> genes,
+            ProcessedDataVectorListener listener ) {
+        this.clearCache(); // Fix for 4320
+        return processedExpressionDataVectorDao.getProcessedDataArrays( expressionExperiments, genes, listener );
+    }
+
     @Override
     @Transactional(readOnly = true)
     public Collection<ExperimentExpressionLevelsValueObject> getExpressionLevels( Collection<ExpressionExperiment> ees,
@@ -297,6 +309,9 @@ public class ProcessedExpressionDataVectorServiceImpl
             // transaction. We load the vectors again because otherwise we have a long dirty check? See bug 3597
             ee = helperService.updateRanks( ee );
             assert ee.getNumberOfDataVectors() != null;
+
+            // again, now that the ranks are in.
+            this.updateDataStore( ee );
             return ee.getProcessedExpressionDataVectors();
         } catch ( Exception e ) {
             auditTrailService.addUpdateEvent( ee, FailedProcessedVectorComputationEvent.Factory.newInstance(),
@@ -311,6 +326,12 @@ public class ProcessedExpressionDataVectorServiceImpl
         this.helperService.reorderByDesign( eeId );
     }
 
+    @Override
+    @Transactional
+    public void updateDataStore( ExpressionExperiment ee ) {
+        this.processedExpressionDataVectorDao.updateDataStore( ee );
+    }
+
     /**
      * Creates an ExperimentExpressionLevelValueObject for the given experiment and collection of double vector VOs, and
      * adds it to the given vos collection.
@@ -164,6 +164,13 @@ public interface ExpressionExperimentDao
     Collection<ExpressionExperimentValueObject> loadValueObjectsPreFilter( int offset, int limit, String orderBy,
             boolean asc, List<ObjectFilter[]> filter );
 
+    /**
+     * @see ExpressionExperimentDaoImpl#loadValueObjectsPreFilterAfter(Long, Date, int, String, boolean, List) for
+     *      description.
+     */
+    Collection<ExpressionExperimentValueObject> loadValueObjectsPreFilterAfter( Long afterId, Date afterLastUpdated,
+            int limit, String orderBy, boolean asc, List<ObjectFilter[]> filter );
+
     ExpressionExperiment thaw( ExpressionExperiment expressionExperiment );
 
     ExpressionExperiment thawBioAssays( ExpressionExperiment expressionExperiment );
@@ -1087,14 +1087,29 @@ public class ExpressionExperimentDaoImpl
         List<Object[]> list = query.list();
         log.info( "EE details query: " + timer.getTime() + " ms for " + list.size() + " results" );
 
+        // Array design info for the whole page at once
+        List<Long> eeIds = new ArrayList<>( list.size() );
+        for ( Object[] row : list ) {
+            eeIds.add( ( Long ) row[0] );
+        }
+        Map<Long, Collection<ArrayDesignValueObject>> eeAdVos = new HashMap<>();
+        for ( Map.Entry<ArrayDesign, Collection<Long>> e : CommonQueries
+                .getArrayDesignsUsed( eeIds, this.getSessionFactory().getCurrentSession() ).entrySet() ) {
+            for ( Long eeId : e.getValue() ) {
+                if ( !eeAdVos.containsKey( eeId ) ) {
+                    eeAdVos.put( eeId, new ArrayList<ArrayDesignValueObject>() );
+                }
+                eeAdVos.get( eeId ).add( new ArrayDesignValueObject( e.getKey() ) );
+            }
+        }
+
         List<ExpressionExperimentDetailsValueObject> vos = new ArrayList<>( list.size() );
         for ( Object[] row : list ) {
             ExpressionExperimentDetailsValueObject vo = new ExpressionExperimentDetailsValueObject( row );
 
-            // Add array design info; watch out: this may be a performance drain for long lists  (if so, could batch)
-            Collection<ArrayDesignValueObject> adVos = CommonQueries
-                    .getArrayDesignsUsedVOs( vo.getId(), this.getSessionFactory().getCurrentSession() );
-            vo.setArrayDesigns( adVos ); // also sets taxon name, technology type, and number of ADs.
+            Collection<ArrayDesignValueObject> adVos = eeAdVos.get( vo.getId() );
+            // also sets taxon name, technology type, and number of ADs.
+            vo.setArrayDesigns( adVos == null ? new ArrayList<ArrayDesignValueObject>() : adVos );
 
             // watch out: this may be a performance drain for long lists (if so, could batch)
             vo.getOtherParts().addAll( this.getOtherParts( vo.getId() ) );
@@ -1223,31 +1238,71 @@ public class ExpressionExperimentDaoImpl
         query.setFirstResult( offset );
         //noinspection unchecked
         List<Object[]> list = query.list();
-        List<ExpressionExperimentValueObject> vos = new ArrayList<>( list.size() );
-
-        Query queryCnt = this.getCountVosQueryString( filter, orderByProperty, !asc );
-        queryCnt.setCacheable( true );
-        int totalCnt = queryCnt.list().size();
 
-        for ( Object[] row : list ) {
-            ExpressionExperimentValueObject vo = new ExpressionExperimentValueObject( row, totalCnt );
-
-            // Add array design info; watch out: this may be a performance drain for long lists  (if so, could batch)
-            Collection<ArrayDesignValueObject> adVos = CommonQueries
-                    .getArrayDesignsUsedVOs( vo.getId(), this.getSessionFactory().getCurrentSession() );
+        return this.toValueObjects( list, this.countValueObjectsPreFilter( filter ) );
+    }
 
-            if ( adVos.isEmpty() ) {
-                log.debug( "Missing array design information for " + vo );
-                continue;
+    /**
+     * Like {@link #loadValueObjectsPreFilter(int, int, String, boolean, List)}, but the page starts after the given
+     * experiment instead of at an offset ("keyset" paging). Unlike an offset, this does not get slower further into
+     * the results.
+     *
+     * @param  afterId          id of the last experiment of the previous page, or null for the first page.
+     * @param  afterLastUpdated last update date of that experiment when ordering by lastUpdated, null if it has none.
+     * @param  limit            maximum amount of EEs to retrieve.
+     * @param  orderBy          null or "id" to order by id, or "lastUpdated" to order by last update date and then id.
+     *                          Experiments without a last update date come first in ascending and last in descending
+     *                          order, as MySQL sorts them. Other orderings are not supported.
+     * @param  asc              true, to order by the {@code orderBy} in ascending, or false for descending order.
+     * @param  filter           see this#formRestrictionClause(ArrayList) filters argument for description.
+     * @return                  list of value objects representing the EEs that matched the criteria.
+     */
+    @Override
+    public Collection<ExpressionExperimentValueObject> loadValueObjectsPreFilterAfter( Long afterId,
+            Date afterLastUpdated, int limit, String orderBy, boolean asc, List<ObjectFilter[]> filter ) {
+
+        String idProperty = ObjectFilter.DAO_EE_ALIAS + ".id";
+        String orderByProperty = this.getOrderByProperty( "id".equals( orderBy ) ? null : orderBy );
+        boolean byLastUpdated = orderByProperty.equals( "s.lastUpdated" );
+        if ( !byLastUpdated && !orderByProperty.equals( idProperty ) ) {
+            throw new IllegalArgumentException(
+                    "Paging after an experiment only works when ordering by id or lastUpdated" );
+        }
+
+        String op = asc ? ">" : "<";
+        String afterIdClause = idProperty + " " + op + " :keysetId";
+        boolean useLastUpdated = afterId != null && byLastUpdated && afterLastUpdated != null;
+        String keysetClause = "";
+        if ( afterId != null && byLastUpdated ) {
+            // NULL dates sort before all others in ascending order and after them in descending order.
+            if ( afterLastUpdated == null && asc ) {
+                keysetClause = " and ( ( s.lastUpdated is null and " + afterIdClause
+                        + " ) or s.lastUpdated is not null ) ";
+            } else if ( afterLastUpdated == null ) {
+                keysetClause = " and s.lastUpdated is null and " + afterIdClause + " ";
+            } else {
+                keysetClause = " and ( s.lastUpdated " + op + " :keysetLastUpdated or ( s.lastUpdated = "
+                        + ":keysetLastUpdated and " + afterIdClause + " )" + ( asc ? "" : " or s.lastUpdated is null" )
+                        + " ) ";
             }
-            ArrayDesignValueObject ad = adVos.iterator().next();
-            vo.setTechnologyType( ad.getTechnologyType() );
-            vo.setArrayDesignCount( adVos.size() );
+        } else if ( afterId != null ) {
+            keysetClause = " and " + afterIdClause + " ";
+        }
 
-            vos.add( vo );
+        Query query = this.getLoadValueObjectsQueryString( filter, orderByProperty, !asc, keysetClause );
+        if ( afterId != null ) {
+            query.setParameter( "keysetId", afterId );
+        }
+        if ( useLastUpdated ) {
+            query.setTimestamp( "keysetLastUpdated", afterLastUpdated );
         }
 
-        return vos;
+        query.setCacheable( true );
+        query.setMaxResults( limit > 0 ? limit : -1 );
+        //noinspection unchecked
+        List<Object[]> list = query.list();
+
+        return this.toValueObjects( list, this.countValueObjectsPreFilter( filter ) );
     }
 
     @Override
@@ -1408,25 +1463,25 @@ public class ExpressionExperimentDaoImpl
     }
 
     /**
-     * ??
-     *
-     * @param  filters         filters
-     * @param  orderByProperty orderByProperty
-     * @param  orderDesc       orderDesc
-     * @return                 ?
+     * @param  filters filters
+     * @return         how many experiments match the filters and can be seen by the current user.
      */
-    private Query getCountVosQueryString( List<ObjectFilter[]> filters, String orderByProperty, boolean orderDesc ) {
+    private int countValueObjectsPreFilter( List<ObjectFilter[]> filters ) {
+        String filterJoins = getFilterJoins( filters );
 
         // Restrict to non-troubled EEs for non-administrators
         filters = getObjectFilters( filters );
 
         //noinspection JpaQlInspection // the constants for aliases is messing with the inspector
-        String queryString = "select " + ObjectFilter.DAO_EE_ALIAS + ".id " // 0
+        String queryString = "select count( distinct " + ObjectFilter.DAO_EE_ALIAS + ".id ) "
                 + " from ExpressionExperiment as " + ObjectFilter.DAO_EE_ALIAS;
 
-        queryString = queryString + getFilterJoins( filters );
+        queryString = queryString + filterJoins;
 
-        return postProcessVoQuery( filters, orderByProperty, orderDesc, queryString );
+        // no ordering, it is not needed for counting.
+        Query query = postProcessVoQuery( filters, null, false, queryString, null );
+        query.setCacheable( true );
+        return ( ( Long ) query.uniqueResult() ).intValue();
     }
 
     private <C extends ExpressionExperimentValueObject> Map<Long, C> getExpressionExperimentValueObjectMap(
@@ -1474,6 +1529,16 @@ public class ExpressionExperimentDaoImpl
      */
     private Query getLoadValueObjectsQueryString( List<ObjectFilter[]> filters, String orderByProperty,
             boolean orderDesc ) {
+        return this.getLoadValueObjectsQueryString( filters, orderByProperty, orderDesc, null );
+    }
+
+    /**
+     * @param  keysetClause restriction for keyset paging, starting with "and", empty for the first page, or null when
+     *                      not keyset paging. If not null, the results are also ordered by id after the
+     *                      orderByProperty, so pages are cut at the same place every time.
+     */
+    private Query getLoadValueObjectsQueryString( List<ObjectFilter[]> filters, String orderByProperty,
+            boolean orderDesc, String keysetClause ) {
 
         String filterJoins = getFilterJoins( filters );
 
@@ -1520,7 +1585,7 @@ public class ExpressionExperimentDaoImpl
 
         // parts of this query (above) are only needed for administrators: the notes, so it could theoretically be sped up even more
 
-        Query q = postProcessVoQuery( filters, orderByProperty, orderDesc, queryString );
+        Query q = postProcessVoQuery( filters, orderByProperty, orderDesc, queryString, keysetClause );
 
         // log.info( q.getQueryString() );
 
@@ -1678,6 +1743,35 @@ public class ExpressionExperimentDaoImpl
 
     }
 
+    /**
+     * Makes the value objects for rows of the value object query, with the platform information for all of them
+     * fetched at once. Experiments without platforms are left out.
+     */
+    private List<ExpressionExperimentValueObject> toValueObjects( List<Object[]> rows, int totalCnt ) {
+        List<Long> ids = new ArrayList<>( rows.size() );
+        for ( Object[] row : rows ) {
+            ids.add( ( Long ) row[0] );
+        }
+        Map<Long, List<String>> technologyTypes = CommonQueries
+                .getArrayDesignTechnologyTypes( ids, this.getSessionFactory().getCurrentSession() );
+
+        List<ExpressionExperimentValueObject> vos = new ArrayList<>( rows.size() );
+        for ( Object[] row : rows ) {
+            ExpressionExperimentValueObject vo = new ExpressionExperimentValueObject( row, totalCnt );
+
+            List<String> types = technologyTypes.get( vo.getId() );
+            if ( types == null ) {
+                log.debug( "Missing array design information for " + vo );
+                continue;
+            }
+            vo.setTechnologyType( types.get( 0 ) );
+            vo.setArrayDesignCount( types.size() );
+
+            vos.add( vo );
+        }
+        return vos;
+    }
+
     /**
      * Add constraints: security (permissions), filters on the query, and ordering.
      *
@@ -1685,17 +1779,26 @@ public class ExpressionExperimentDaoImpl
      * @param  orderByProperty order by property.
      * @param  orderDesc       true to order by the orderByProperty in descending order.
      * @param  queryString     the query string postprocess.
+     * @param  keysetClause    extra restriction for keyset paging, or null when not keyset paging.
      * @return                 finished query ready to be executed.
      */
     private Query postProcessVoQuery( List<ObjectFilter[]> filters, String orderByProperty, boolean orderDesc,
-            String queryString ) {
+            String queryString, String keysetClause ) {
         String aclClause = AbstractVoEnabledDao.formAclSelectClause( ObjectFilter.DAO_EE_ALIAS,
                 "ubic.gemma.model.expression.experiment.ExpressionExperiment" );
         queryString = queryString + aclClause;
 
         queryString += AbstractVoEnabledDao.formRestrictionClause( filters );
+        if ( keysetClause != null ) {
+            queryString += keysetClause;
+        }
         //   queryString += "group by " + ObjectFilter.DAO_EE_ALIAS + ".id ";
         queryString += AbstractVoEnabledDao.formOrderByProperty( orderByProperty, orderDesc );
+        String idProperty = ObjectFilter.DAO_EE_ALIAS + ".id";
+        if ( keysetClause != null && !idProperty.equals( orderByProperty ) ) {
+            // keyset paging needs a total order.
+            queryString += ", " + idProperty + ( orderDesc ? " desc " : " " );
+        }
 
         Query query = this.getSessionFactory().getCurrentSession().createQuery( queryString );
 
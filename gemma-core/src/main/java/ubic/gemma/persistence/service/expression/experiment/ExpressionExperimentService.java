@@ -432,6 +432,14 @@ public interface ExpressionExperimentService
     Collection<ExpressionExperimentValueObject> loadValueObjectsPreFilter( int offset, int limit, String orderBy,
             boolean asc, List<ObjectFilter[]> filter );
 
+    /**
+     * @see ExpressionExperimentDaoImpl#loadValueObjectsPreFilterAfter(Long, Date, int, String, boolean, List) for
+     *      description.
+     */
+    @Secured({ "IS_AUTHENTICATED_ANONYMOUSLY", "AFTER_ACL_COLLECTION_READ" })
+    Collection<ExpressionExperimentValueObject> loadValueObjectsPreFilterAfter( Long afterId, Date afterLastUpdated,
+            int limit, String orderBy, boolean asc, List<ObjectFilter[]> filter );
+
     @Secured({ "IS_AUTHENTICATED_ANONYMOUSLY", "AFTER_ACL_VALUE_OBJECT_COLLECTION_READ" })
     Collection<ExpressionExperimentValueObject> loadAllValueObjectsOrdered( String orderField, boolean descending );
 
@@ -1048,6 +1048,18 @@ public class ExpressionExperimentServiceImpl
         return this.expressionExperimentDao.loadValueObjectsPreFilter( offset, limit, orderBy, asc, filter );
     }
 
+    /**
+     * @see ExpressionExperimentDaoImpl#loadValueObjectsPreFilterAfter(Long, Date, int, String, boolean, List) for
+     *      description.
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public Collection<ExpressionExperimentValueObject> loadValueObjectsPreFilterAfter( Long afterId,
+            Date afterLastUpdated, int limit, String orderBy, boolean asc, List<ObjectFilter[]> filter ) {
+        return this.expressionExperimentDao
+                .loadValueObjectsPreFilterAfter( afterId, afterLastUpdated, limit, orderBy, asc, filter );
+    }
+
     private Collection<? extends AnnotationValueObject> getAnnotationsByFactorValues( Long eeId ) {
         return this.expressionExperimentDao.getAnnotationsByFactorvalues( eeId );
     }
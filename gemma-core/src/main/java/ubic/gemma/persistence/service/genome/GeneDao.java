@@ -85,6 +85,12 @@ public interface GeneDao extends BaseVoEnabledDao<Gene, GeneValueObject> {
      */
     Map<Integer, Gene> findByNcbiIds( Collection<Integer> ncbiIds );
 
+    /**
+     * @param ncbiIds ncbi ids
+     * @return all the genes with those NCBI ids, including any that share an NCBI id with another gene.
+     */
+    Collection<Gene> findAllByNcbiIds( Collection<Integer> ncbiIds );
+
     @Deprecated
     Collection<Gene> findByPhysicalLocation( PhysicalLocation location );
 
@@ -187,15 +187,22 @@ public class GeneDaoImpl extends AbstractVoEnabledDao<Gene, GeneValueObject> imp
     @Override
     public Map<Integer, Gene> findByNcbiIds( Collection<Integer> ncbiIds ) {
         Map<Integer, Gene> result = new HashMap<>();
+        for ( Gene g : this.findAllByNcbiIds( ncbiIds ) ) {
+            result.put( g.getNcbiGeneId(), g );
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<Gene> findAllByNcbiIds( Collection<Integer> ncbiIds ) {
+        Collection<Gene> result = new ArrayList<>();
         //language=HQL
         final String queryString = "from Gene g where g.ncbiGeneId in (:ncbi)";
 
         for ( Collection<Integer> batch : new BatchIterator<>( ncbiIds, GeneDaoImpl.BATCH_SIZE ) ) {
             //noinspection unchecked
             List<Gene> results = this.getHibernateTemplate().findByNamedParam( queryString, "ncbi", batch );
-            for ( Gene g : results ) {
-                result.put( g.getNcbiGeneId(), g );
-            }
+            result.addAll( results );
         }
         return result;
     }
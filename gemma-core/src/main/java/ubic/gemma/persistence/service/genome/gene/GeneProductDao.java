@@ -41,4 +41,10 @@ public interface GeneProductDao extends BaseVoEnabledDao<GeneProduct, GeneProduc
 
     GeneProduct thaw( GeneProduct existing );
 
+    /**
+     * @param  geneIds ids of genes
+     * @return         the products of those genes, with accessions and physical locations filled in.
+     */
+    Collection<GeneProduct> loadThawedByGeneIds( Collection<Long> geneIds );
+
 }
@@ -23,6 +23,7 @@ import org.hibernate.SessionFactory;
 import org.hibernate.criterion.CriteriaSpecification;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
+import ubic.basecode.util.BatchIterator;
 import ubic.gemma.model.genome.Gene;
 import ubic.gemma.model.genome.Taxon;
 import ubic.gemma.model.genome.gene.GeneProduct;
@@ -41,6 +42,7 @@ import java.util.*;
 public class GeneProductDaoImpl extends AbstractVoEnabledDao<GeneProduct, GeneProductValueObject>
         implements GeneProductDao {
 
+    private static final int BATCH_SIZE = 500;
     private static final Comparator<GeneProduct> c;
 
     static {
@@ -116,6 +118,19 @@ public class GeneProductDaoImpl extends AbstractVoEnabledDao<GeneProduct, GenePr
         return ( GeneProduct ) re.iterator().next();
     }
 
+    @Override
+    public Collection<GeneProduct> loadThawedByGeneIds( Collection<Long> geneIds ) {
+        Collection<GeneProduct> result = new HashSet<>();
+        for ( Collection<Long> batch : new BatchIterator<>( geneIds, GeneProductDaoImpl.BATCH_SIZE ) ) {
+            //noinspection unchecked
+            result.addAll( this.getSessionFactory().getCurrentSession().createQuery(
+                    "select distinct gp from GeneProduct gp left join fetch gp.physicalLocation pl "
+                            + "left join fetch pl.chromosome left join fetch gp.accessions where gp.gene.id in (:ids)" )
+                    .setParameterList( "ids", batch ).list() );
+        }
+        return result;
+    }
+
     @Override
     public GeneProduct findOrCreate( GeneProduct geneProduct ) {
         GeneProduct existingGeneProduct = this.find( geneProduct );
@@ -117,6 +117,39 @@ public class CommonQueries {
         return ee2ads;
     }
 
+    /**
+     * @param ees     experiments
+     * @param session session
+     * @return map of experiment id to the technology types of the platforms it uses, one per platform, in order of
+     * platform id. Experiments without platforms are left out.
+     */
+    public static Map<Long, List<String>> getArrayDesignTechnologyTypes( Collection<Long> ees, Session session ) {
+        Map<Long, List<String>> result = new HashMap<>();
+
+        if ( ees == null || ees.isEmpty() )
+            return result;
+
+        final String eeAdQuery = "select distinct ee.id, ad.id, ad.technologyType from ExpressionExperiment as ee "
+                + "inner join ee.bioAssays b inner join b.arrayDesignUsed ad where ee.id in (:ees) "
+                + "order by ee.id, ad.id";
+
+        org.hibernate.Query queryObject = session.createQuery( eeAdQuery );
+        queryObject.setParameterList( "ees", ees );
+        queryObject.setReadOnly( true );
+        queryObject.setFlushMode( FlushMode.MANUAL );
+
+        List<?> qr = queryObject.list();
+        for ( Object o : qr ) {
+            Object[] ar = ( Object[] ) o;
+            Long ee = ( Long ) ar[0];
+            if ( !result.containsKey( ee ) ) {
+                result.put( ee, new ArrayList<String>() );
+            }
+            result.get( ee ).add( ar[2] == null ? null : ar[2].toString() );
+        }
+        return result;
+    }
+
     private static Map<Long, Collection<Long>> addAllAds( Map<Long, Collection<Long>> ee2ads, List<?> qr ) {
         for ( Object o : qr ) {
             Object[] ar = ( Object[] ) o;
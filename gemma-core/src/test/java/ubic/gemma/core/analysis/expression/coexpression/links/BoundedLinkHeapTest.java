@@ -0,0 +1,71 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.coexpression.links;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BoundedLinkHeapTest {
+
+    @Test
+    public void testKeepsLargest() {
+        Random r = new Random( 1234 );
+        double[] values = new double[10000];
+        BoundedLinkHeap h = new BoundedLinkHeap( 100 );
+        for ( int i = 0; i < values.length; i++ ) {
+            values[i] = r.nextDouble() * 2.0 - 1.0;
+            h.offer( i, i + 1, values[i], values[i] );
+        }
+        assertEquals( 100, h.size() );
+        assertTrue( h.isFull() );
+
+        Arrays.sort( values );
+        double smallestKept = values[values.length - 100];
+        assertEquals( smallestKept, h.minKey(), 0.0 );
+        assertEquals( values[values.length - 101], h.getMaxDiscardedKey(), 0.0 );
+
+        h.sortByPosition();
+        for ( int k = 0; k < h.size(); k++ ) {
+            assertTrue( h.getCorrelation( k ) >= smallestKept );
+            assertEquals( h.getRow( k ) + 1, h.getColumn( k ) );
+            if ( k > 0 ) {
+                assertTrue( h.getRow( k ) > h.getRow( k - 1 ) );
+            }
+        }
+    }
+
+    @Test
+    public void testAddAll() {
+        BoundedLinkHeap a = new BoundedLinkHeap( 3 );
+        BoundedLinkHeap b = new BoundedLinkHeap( 3 );
+        a.offer( 0, 1, 0.1, 0.1 );
+        a.offer( 0, 2, 0.5, 0.5 );
+        b.offer( 1, 2, 0.9, 0.9 );
+        b.offer( 1, 3, 0.7, 0.7 );
+        b.discard( 0.05 );
+        a.addAll( b );
+        assertEquals( 3, a.size() );
+        assertEquals( 0.5, a.minKey(), 0.0 );
+        assertEquals( 0.1, a.getMaxDiscardedKey(), 0.0 );
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.coexpression.links;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LinkBufferTest {
+
+    @Test
+    public void testAddAndIterate() {
+        LinkBuffer b = new LinkBuffer();
+        for ( int i = 0; i < 5000; i++ ) {
+            b.add( i, i + 1, i / 5000.0 );
+        }
+        assertEquals( 5000, b.size() );
+        assertFalse( b.isSpilled() );
+
+        LinkBuffer.LinkIterator it = b.iterator();
+        int i = 0;
+        while ( it.next() ) {
+            assertEquals( i, it.getRow() );
+            assertEquals( i + 1, it.getColumn() );
+            assertEquals( i / 5000.0, it.getScore(), 1e-6 );
+            i++;
+        }
+        assertEquals( 5000, i );
+        b.close();
+    }
+
+    @Test
+    public void testSpill() {
+        LinkBuffer b = new LinkBuffer( 100 );
+        for ( int i = 0; i < 1050; i++ ) {
+            b.add( i, 2 * i, -0.5 );
+        }
+        assertTrue( b.isSpilled() );
+        assertEquals( 1050, b.size() );
+
+        LinkBuffer.LinkIterator it = b.iterator();
+        int i = 0;
+        while ( it.next() ) {
+            assertEquals( i, it.getRow() );
+            assertEquals( 2 * i, it.getColumn() );
+            assertEquals( -0.5, it.getScore(), 1e-6 );
+            i++;
+        }
+        assertEquals( 1050, i );
+
+        b.close();
+        assertEquals( 0, b.size() );
+        assertFalse( b.isSpilled() );
+    }
+
+    @Test
+    public void testSort() {
+        LinkBuffer b = new LinkBuffer();
+        b.add( 3, 4, 0.3 );
+        b.add( 1, 9, 0.1 );
+        b.add( 3, 1, 0.2 );
+        b.add( 0, 5, 0.0 );
+        b.sort();
+
+        LinkBuffer.LinkIterator it = b.iterator();
+        assertTrue( it.next() );
+        assertEquals( 0, it.getRow() );
+        assertTrue( it.next() );
+        assertEquals( 1, it.getRow() );
+        assertEquals( 9, it.getColumn() );
+        assertTrue( it.next() );
+        assertEquals( 3, it.getRow() );
+        assertEquals( 1, it.getColumn() );
+        assertEquals( 0.2, it.getScore(), 1e-6 );
+        assertTrue( it.next() );
+        assertEquals( 4, it.getColumn() );
+        assertFalse( it.next() );
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.coexpression.links;
+
+import org.junit.Test;
+import ubic.basecode.io.ByteArrayConverter;
+import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
+import ubic.gemma.model.common.quantitationtype.*;
+import ubic.gemma.model.expression.bioAssay.BioAssay;
+import ubic.gemma.model.expression.bioAssayData.BioAssayDimension;
+import ubic.gemma.model.expression.bioAssayData.ProcessedExpressionDataVector;
+import ubic.gemma.model.expression.biomaterial.BioMaterial;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.genome.Gene;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that computing the correlations in tiles on several threads gives exactly the same histogram, links and
+ * cross-hybridization counts as the serial computation, and that choosing the links from the candidates kept on the
+ * first pass gives the same links as a second pass.
+ */
+public class ParallelCorrelationTest {
+
+    private static final int NUM_ROWS = 400;
+    private static final int NUM_COLS = 200; // makes bands of 81 rows, so there are several bands and column tiles.
+    /**
+     * Fraction of the links to keep candidates for; this is far less than are kept with the lowest threshold below,
+     * but the candidate heaps always have room for at least 10000 links, more than pass the highest threshold.
+     */
+    private static final double CANDIDATE_FRACTION = 0.01;
+
+    @Test
+    public void testPearson() {
+        ExpressionDataDoubleMatrix matrix = this.createMatrix( new Random( 1 ), false );
+        this.assertSameAsSerial( new PearsonMetrics( matrix ), new PearsonMetrics( matrix ), matrix );
+    }
+
+    @Test
+    public void testPearsonWithMissing() {
+        ExpressionDataDoubleMatrix matrix = this.createMatrix( new Random( 2 ), true );
+        this.assertSameAsSerial( new PearsonMetrics( matrix ), new PearsonMetrics( matrix ), matrix );
+    }
+
+    @Test
+    public void testPearsonStandardized() {
+        ExpressionDataDoubleMatrix matrix = this.createMatrix( new Random( 3 ), true );
+        PearsonMetrics serial = new PearsonMetrics( matrix );
+        serial.setUseStandardizedKernel( true );
+        PearsonMetrics parallel = new PearsonMetrics( matrix );
+        parallel.setUseStandardizedKernel( true );
+        this.assertSameAsSerial( serial, parallel, matrix );
+    }
+
+    @Test
+    public void testSpearmanWithMissing() {
+        ExpressionDataDoubleMatrix matrix = this.createMatrix( new Random( 4 ), true );
+        this.assertSameAsSerial( new SpearmanMetrics( matrix ), new SpearmanMetrics( matrix ), matrix );
+    }
+
+    @Test
+    public void testPearsonSinglePass() {
+        ExpressionDataDoubleMatrix matrix = this.createMatrix( new Random( 5 ), true );
+        this.assertSinglePassSameAsTwoPass( new PearsonMetrics( matrix ), new PearsonMetrics( matrix, 1.0 ),
+                new PearsonMetrics( matrix ), new PearsonMetrics( matrix, 1.0 ), matrix, 0.4, true );
+    }
+
+    @Test
+    public void testSpearmanSinglePass() {
+        ExpressionDataDoubleMatrix matrix = this.createMatrix( new Random( 6 ), true );
+        this.assertSinglePassSameAsTwoPass( new SpearmanMetrics( matrix ), new SpearmanMetrics( matrix, 1.0 ),
+                new SpearmanMetrics( matrix ), new SpearmanMetrics( matrix, 1.0 ), matrix, 0.4, true );
+    }
+
+    /**
+     * With a threshold this low some of the links are weaker than the weakest candidate, so a second pass is needed.
+     */
+    @Test
+    public void testSinglePassFallsBackToSecondPass() {
+        ExpressionDataDoubleMatrix matrix = this.createMatrix( new Random( 7 ), true );
+        this.assertSinglePassSameAsTwoPass( new PearsonMetrics( matrix ), new PearsonMetrics( matrix, 1.0 ),
+                new PearsonMetrics( matrix ), new PearsonMetrics( matrix, 1.0 ), matrix, 0.001, false );
+    }
+
+    /**
+     * Runs the serial and parallel computations with and without single-pass link selection, and checks they all keep
+     * the same links in the same order.
+     *
+     * @param fromCandidates whether the links are expected to be chosen from the candidates, rather than by falling
+     *                       back to a second pass
+     */
+    private void assertSinglePassSameAsTwoPass( AbstractMatrixRowPairAnalysis serial,
+            AbstractMatrixRowPairAnalysis serialSinglePass, AbstractMatrixRowPairAnalysis parallel,
+            AbstractMatrixRowPairAnalysis parallelSinglePass, ExpressionDataDoubleMatrix matrix, double threshold,
+            boolean fromCandidates ) {
+        Map<CompositeSequence, Set<Gene>> probeToGeneMap = this.createProbeToGeneMap( matrix );
+        this.runTwoPass( serial, probeToGeneMap, 1, threshold );
+        this.runTwoPass( parallel, probeToGeneMap, 4, threshold );
+        assertEquals( fromCandidates, this.runSinglePass( serialSinglePass, probeToGeneMap, 1, threshold ) );
+        assertEquals( fromCandidates, this.runSinglePass( parallelSinglePass, probeToGeneMap, 4, threshold ) );
+
+        List<String> serialLinks = this.toList( serial.getKeepers() );
+        assertTrue( "Test data should give some links", serialLinks.size() > 100 );
+        assertEquals( serialLinks, this.toList( parallel.getKeepers() ) );
+        assertEquals( serialLinks, this.toList( serialSinglePass.getKeepers() ) );
+        assertEquals( serialLinks, this.toList( parallelSinglePass.getKeepers() ) );
+    }
+
+    /**
+     * Computes the histogram on a first pass, then sets the thresholds and selects the links on a second one, as link
+     * analysis does.
+     */
+    private void runTwoPass( AbstractMatrixRowPairAnalysis analysis, Map<CompositeSequence, Set<Gene>> probeToGeneMap,
+            int numThreads, double threshold ) {
+        analysis.setDuplicateMap( probeToGeneMap );
+        analysis.setNumThreads( numThreads );
+        analysis.calculateMetrics();
+        this.setThresholds( analysis, threshold );
+        analysis.calculateMetrics();
+    }
+
+    /**
+     * Like {@link #runTwoPass}, but keeps candidates on the first pass and chooses the links from them if it can.
+     *
+     * @return true if the links were chosen from the candidates, false if a second pass was needed
+     */
+    private boolean runSinglePass( AbstractMatrixRowPairAnalysis analysis,
+            Map<CompositeSequence, Set<Gene>> probeToGeneMap, int numThreads, double threshold ) {
+        analysis.setDuplicateMap( probeToGeneMap );
+        analysis.setNumThreads( numThreads );
+        analysis.setCandidateFraction( ParallelCorrelationTest.CANDIDATE_FRACTION );
+        analysis.calculateMetrics();
+        this.setThresholds( analysis, threshold );
+        if ( analysis.selectKeepersFromCandidates() ) {
+            return true;
+        }
+        analysis.calculateMetrics();
+        return false;
+    }
+
+    private void setThresholds( AbstractMatrixRowPairAnalysis analysis, double threshold ) {
+        analysis.setUsePvalueThreshold( false );
+        analysis.setUpperTailThreshold( threshold );
+        analysis.setLowerTailThreshold( -threshold );
+    }
+
+    private void assertSameAsSerial( AbstractMatrixRowPairAnalysis serial, AbstractMatrixRowPairAnalysis parallel,
+            ExpressionDataDoubleMatrix matrix ) {
+        Map<CompositeSequence, Set<Gene>> probeToGeneMap = this.createProbeToGeneMap( matrix );
+        this.run( serial, probeToGeneMap, 1 );
+        this.run( parallel, probeToGeneMap, 4 );
+
+        assertEquals( serial.getHistogramArrayList(), parallel.getHistogramArrayList() );
+        assertEquals( serial.getCrossHybridizationRejections(), parallel.getCrossHybridizationRejections() );
+
+        List<String> serialLinks = this.toList( serial.getKeepers() );
+        assertTrue( "Test data should give some links", serialLinks.size() > 100 );
+        assertEquals( serialLinks, this.toList( parallel.getKeepers() ) );
+    }
+
+    private void run( AbstractMatrixRowPairAnalysis analysis, Map<CompositeSequence, Set<Gene>> probeToGeneMap,
+            int numThreads ) {
+        analysis.setDuplicateMap( probeToGeneMap );
+        analysis.setUsePvalueThreshold( false );
+        analysis.setUpperTailThreshold( 0.2 );
+        analysis.setLowerTailThreshold( -0.2 );
+        analysis.setNumThreads( numThreads );
+        analysis.calculateMetrics();
+    }
+
+    private List<String> toList( LinkBuffer links ) {
+        List<String> result = new ArrayList<>();
+        LinkBuffer.LinkIterator it = links.iterator();
+        while ( it.next() ) {
+            result.add( it.getRow() + " " + it.getColumn() + " " + it.getScore() );
+        }
+        return result;
+    }
+
+    /**
+     * Every tenth probe has no gene; pairs of neighbouring probes share a gene, so some pairs are rejected as
+     * cross-hybridizing.
+     */
+    private Map<CompositeSequence, Set<Gene>> createProbeToGeneMap( ExpressionDataDoubleMatrix matrix ) {
+        Map<CompositeSequence, Set<Gene>> result = new HashMap<>();
+        Map<Integer, Gene> genes = new HashMap<>();
+        for ( int i = 0; i < matrix.rows(); i++ ) {
+            Set<Gene> geneSet = new HashSet<>();
+            if ( i % 10 != 9 ) {
+                int g = i / 2;
+                if ( !genes.containsKey( g ) ) {
+                    Gene gene = Gene.Factory.newInstance();
+                    gene.setId( ( long ) g + 1 );
+                    gene.setOfficialSymbol( "gene" + g );
+                    genes.put( g, gene );
+                }
+                geneSet.add( genes.get( g ) );
+            }
+            result.put( matrix.getDesignElementForRow( i ), geneSet );
+        }
+        return result;
+    }
+
+    /**
+     * Rows are noise plus one of a few shared patterns, so there are strong correlations in both tails.
+     */
+    private ExpressionDataDoubleMatrix createMatrix( Random random, boolean withMissing ) {
+        QuantitationType qt = QuantitationType.Factory.newInstance();
+        qt.setId( 1L );
+        qt.setName( "test" );
+        qt.setRepresentation( PrimitiveType.DOUBLE );
+        qt.setGeneralType( GeneralType.QUANTITATIVE );
+        qt.setType( StandardQuantitationType.AMOUNT );
+        qt.setScale( ScaleType.LOG2 );
+
+        List<BioAssay> bioAssays = new ArrayList<>();
+        for ( int j = 0; j < ParallelCorrelationTest.NUM_COLS; j++ ) {
+            BioMaterial bm = BioMaterial.Factory.newInstance();
+            bm.setId( ( long ) j + 1 );
+            bm.setName( "sample" + j );
+            BioAssay ba = BioAssay.Factory.newInstance();
+            ba.setId( ( long ) j + 1 );
+            ba.setName( "assay" + j );
+            ba.setSampleUsed( bm );
+            bm.setBioAssaysUsedIn( new HashSet<>( Collections.singleton( ba ) ) );
+            bioAssays.add( ba );
+        }
+        BioAssayDimension bad = BioAssayDimension.Factory.newInstance( "test", null, bioAssays );
+        bad.setId( 1L );
+
+        double[][] patterns = new double[5][ParallelCorrelationTest.NUM_COLS];
+        for ( double[] pattern : patterns ) {
+            for ( int j = 0; j < pattern.length; j++ ) {
+                pattern[j] = random.nextGaussian();
+            }
+        }
+
+        ByteArrayConverter bac = new ByteArrayConverter();
+        Collection<ProcessedExpressionDataVector> vectors = new ArrayList<>();
+        for ( int i = 0; i < ParallelCorrelationTest.NUM_ROWS; i++ ) {
+            CompositeSequence cs = CompositeSequence.Factory.newInstance();
+            cs.setId( ( long ) i + 1 );
+            cs.setName( String.format( "probe%05d", i ) );
+
+            double[] pattern = patterns[i % patterns.length];
+            double sign = i % 3 == 0 ? -1.0 : 1.0;
+            double[] data = new double[ParallelCorrelationTest.NUM_COLS];
+            for ( int j = 0; j < data.length; j++ ) {
+                data[j] = 8.0 + sign * pattern[j] * ( i % 7 ) / 4.0 + random.nextGaussian();
+                if ( withMissing && i % 4 == 0 && random.nextDouble() < 0.05 ) {
+                    data[j] = Double.NaN;
+                }
+            }
+
+            ProcessedExpressionDataVector v = ProcessedExpressionDataVector.Factory.newInstance();
+            v.setId( ( long ) i + 1 );
+            v.setDesignElement( cs );
+            v.setQuantitationType( qt );
+            v.setBioAssayDimension( bad );
+            v.setData( bac.doubleArrayToBytes( data ) );
+            vectors.add( v );
+        }
+        return new ExpressionDataDoubleMatrix( vectors );
+    }
+}
@@ -19,9 +19,15 @@
 package ubic.gemma.core.analysis.expression.coexpression.links;
 
 import cern.colt.list.DoubleArrayList;
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.junit.Test;
 import ubic.basecode.math.Rank;
 
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -29,6 +35,8 @@ import static org.junit.Assert.assertEquals;
  */
 public class SpearmanMetricsTest {
 
+    private static final Log log = LogFactory.getLog( SpearmanMetricsTest.class );
+
     /**
      * Value from R; this has ties.
      * <pre>
@@ -150,4 +158,62 @@ public class SpearmanMetricsTest {
         assertEquals( expectedValue, actualValue, 0.0001 );
 
     }
+
+    @Test
+    public void testRankTransform() {
+        double[] a = new double[] { 49.0, 43.0, 310.0, 20.0, 20.0, 688.0, 498.0, 533.0, 723.0, 1409.0, 279.0 };
+        double[] ranks = new double[a.length];
+        SpearmanMetrics.rankTransform( a, null, new int[a.length], ranks );
+        assertArrayEquals( new double[] { 4.0, 3.0, 6.0, 1.5, 1.5, 9.0, 7.0, 8.0, 10.0, 11.0, 5.0 }, ranks, 0.0 );
+        assertArrayEquals( Rank.rankTransform( new DoubleArrayList( a ) ).elements(), ranks, 0.0 );
+    }
+
+    @Test
+    public void testRankTransformWithMissing() {
+        double[] a = new double[] { 49.0, Double.NaN, 310.0, 20.0, 20.0, Double.NaN, 498.0 };
+        boolean[] used = new boolean[] { true, false, true, true, true, false, true };
+        double[] ranks = new double[a.length];
+        SpearmanMetrics.rankTransform( a, used, new int[a.length], ranks );
+        assertArrayEquals( new double[] { 3.0, Double.NaN, 4.0, 1.5, 1.5, Double.NaN, 5.0 }, ranks, 0.0 );
+    }
+
+    /**
+     * Compares against Rank.rankTransform on rows like those from RNA-seq data (many samples, many ties at zero), and
+     * logs the time taken by each.
+     */
+    @Test
+    public void testRankTransformBenchmark() {
+        int numRows = 2000;
+        int numCols = 500;
+        Random random = new Random( 123 );
+        double[][] data = new double[numRows][numCols];
+        for ( int i = 0; i < numRows; i++ ) {
+            for ( int j = 0; j < numCols; j++ ) {
+                data[i][j] = random.nextDouble() < 0.3 ? 0.0 : Math.floor( random.nextDouble() * 1000 );
+            }
+        }
+
+        StopWatch timer = new StopWatch();
+        timer.start();
+        double[][] expected = new double[numRows][];
+        for ( int i = 0; i < numRows; i++ ) {
+            expected[i] = Rank.rankTransform( new DoubleArrayList( data[i] ) ).elements();
+        }
+        long rankTime = timer.getTime();
+
+        timer.reset();
+        timer.start();
+        double[][] actual = new double[numRows][numCols];
+        int[] index = new int[numCols];
+        for ( int i = 0; i < numRows; i++ ) {
+            SpearmanMetrics.rankTransform( data[i], null, index, actual[i] );
+        }
+        long primitiveTime = timer.getTime();
+
+        for ( int i = 0; i < numRows; i++ ) {
+            assertArrayEquals( expected[i], actual[i], 1e-10 );
+        }
+        SpearmanMetricsTest.log.info( "Ranking " + numRows + " x " + numCols + ": Rank.rankTransform " + rankTime
+                + "ms, primitive " + primitiveTime + "ms" );
+    }
 }
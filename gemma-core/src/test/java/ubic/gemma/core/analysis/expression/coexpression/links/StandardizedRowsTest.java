@@ -0,0 +1,96 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.coexpression.links;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StandardizedRowsTest {
+
+    @Test
+    public void testAgreesWithDoublePrecision() {
+        Random r = new Random( 42 );
+        int numrows = 50;
+        int numcols = 130;
+        double[][] data = new double[numrows][numcols];
+        for ( int i = 0; i < numrows; i++ ) {
+            for ( int k = 0; k < numcols; k++ ) {
+                data[i][k] = 10.0 + r.nextGaussian() + ( i % 3 ) * k / 50.0;
+                if ( i % 4 == 0 && r.nextDouble() < 0.1 ) {
+                    data[i][k] = Double.NaN;
+                }
+            }
+        }
+
+        StandardizedRows rows = new StandardizedRows( data );
+        for ( int i = 0; i < numrows; i++ ) {
+            assertEquals( i % 4 == 0, rows.hasMissing( i ) );
+            for ( int j = i + 1; j < numrows; j++ ) {
+                int n = 0;
+                double sx = 0.0, sy = 0.0, sxx = 0.0, syy = 0.0, sxy = 0.0;
+                for ( int k = 0; k < numcols; k++ ) {
+                    double x = data[i][k];
+                    double y = data[j][k];
+                    if ( Double.isNaN( x ) || Double.isNaN( y ) ) continue;
+                    sx += x;
+                    sy += y;
+                    sxx += x * x;
+                    syy += y * y;
+                    sxy += x * y;
+                    n++;
+                }
+                double expected = ( sxy - sx * sy / n ) / Math.sqrt( ( sxx - sx * sx / n ) * ( syy - sy * sy / n ) );
+
+                assertEquals( n, rows.countShared( i, j ) );
+                if ( rows.hasMissing( i ) || rows.hasMissing( j ) ) {
+                    assertEquals( expected, rows.correlationShared( i, j ), 1e-5 );
+                } else {
+                    assertEquals( expected, rows.correlation( i, j ), 1e-5 );
+                    assertEquals( expected, rows.correlationShared( i, j ), 1e-5 );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTooLarge() {
+        // rows can share one array, we only need the dimensions to be too large.
+        double[] row = new double[50000];
+        double[][] data = new double[50000][];
+        Arrays.fill( data, row );
+        try {
+            new StandardizedRows( data );
+            fail( "Expected an exception" );
+        } catch ( IllegalArgumentException e ) {
+            assertTrue( e.getMessage().contains( "too large" ) );
+        }
+    }
+
+    @Test
+    public void testConstantRow() {
+        double[][] data = new double[][] { { 1, 1, 1, 1 }, { 1, 2, 3, 4 } };
+        StandardizedRows rows = new StandardizedRows( data );
+        assertTrue( Double.isNaN( rows.correlation( 0, 1 ) ) );
+        assertEquals( 0.0, rows.correlationShared( 0, 1 ), 0.0 );
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.diff;
+
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.gemma.core.analysis.service.ExpressionDataFileService;
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.persistence.service.common.auditAndSecurity.AuditTrailService;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that every experiment in a batch gives back its share of the memory budget, however its analysis ends. Each
+ * experiment here needs the whole budget, so if one did not, the next submission would never return.
+ */
+public class DifferentialExpressionBatchAnalyzerTest {
+
+    private DifferentialExpressionBatchAnalyzerImpl batchAnalyzer;
+    private AnalysisSelectionAndExecutionService analysisService;
+    private DifferentialExpressionAnalyzerService analyzerService;
+    private DifferentialExpressionAnalysisConfig config;
+
+    @Before
+    public void setUp() throws Exception {
+        analysisService = mock( AnalysisSelectionAndExecutionService.class );
+        analyzerService = mock( DifferentialExpressionAnalyzerService.class );
+        batchAnalyzer = new DifferentialExpressionBatchAnalyzerImpl();
+        FieldUtils.writeField( batchAnalyzer, "analysisSelectionAndExecutionService", analysisService, true );
+        FieldUtils.writeField( batchAnalyzer, "differentialExpressionAnalyzerService", analyzerService, true );
+        FieldUtils.writeField( batchAnalyzer, "auditTrailService", mock( AuditTrailService.class ), true );
+        FieldUtils.writeField( batchAnalyzer, "expressionDataFileService", mock( ExpressionDataFileService.class ),
+                true );
+        config = new DifferentialExpressionAnalysisConfig();
+        config.setPersist( true );
+    }
+
+    @Test(timeout = 60000)
+    public void testPermitsReleasedOnEveryOutcome() throws Exception {
+        ExpressionExperiment succeeds = this.experiment( 1L );
+        ExpressionExperiment analysisThrows = this.experiment( 2L );
+        ExpressionExperiment analysisErrors = this.experiment( 3L );
+        ExpressionExperiment saveThrows = this.experiment( 4L );
+        ExpressionExperiment saveErrors = this.experiment( 5L );
+
+        for ( ExpressionExperiment ee : Arrays.asList( succeeds, saveThrows, saveErrors ) ) {
+            DifferentialExpressionAnalysis analysis = DifferentialExpressionAnalysis.Factory.newInstance();
+            when( analysisService.analyze( eq( ee ), any( DifferentialExpressionAnalysisConfig.class ) ) )
+                    .thenReturn( Collections.singleton( analysis ) );
+        }
+        when( analysisService.analyze( eq( analysisThrows ), any( DifferentialExpressionAnalysisConfig.class ) ) )
+                .thenThrow( new IllegalStateException( "analysis failed" ) );
+        when( analysisService.analyze( eq( analysisErrors ), any( DifferentialExpressionAnalysisConfig.class ) ) )
+                .thenThrow( new AssertionError( "analysis error" ) );
+        when( analyzerService.persistAnalysis( eq( saveThrows ), any( DifferentialExpressionAnalysis.class ),
+                any( DifferentialExpressionAnalysisConfig.class ) ) )
+                .thenThrow( new IllegalStateException( "save failed" ) );
+        when( analyzerService.persistAnalysis( eq( saveErrors ), any( DifferentialExpressionAnalysis.class ),
+                any( DifferentialExpressionAnalysisConfig.class ) ) )
+                .thenThrow( new AssertionError( "save error" ) );
+        when( analyzerService.persistAnalysis( eq( succeeds ), any( DifferentialExpressionAnalysis.class ),
+                any( DifferentialExpressionAnalysisConfig.class ) ) )
+                .thenReturn( DifferentialExpressionAnalysis.Factory.newInstance() );
+
+        RecordingListener listener = new RecordingListener();
+        DifferentialExpressionBatchAnalyzer.Batch batch = batchAnalyzer.start( 2, listener );
+        List<ExpressionExperiment> ees = Arrays
+                .asList( analysisThrows, analysisErrors, saveThrows, saveErrors, succeeds, analysisErrors, succeeds );
+        for ( ExpressionExperiment ee : ees ) {
+            batch.submit( ee, config );
+        }
+        batch.awaitCompletion();
+
+        assertEquals( 2, listener.succeeded.size() );
+        assertEquals( 5, listener.failed.size() );
+        assertEquals( new HashSet<>( Arrays.asList( 2L, 3L, 4L, 5L ) ), new HashSet<>( listener.failed ) );
+    }
+
+    private ExpressionExperiment experiment( Long id ) {
+        ExpressionExperiment ee = ExpressionExperiment.Factory.newInstance();
+        ee.setId( id );
+        // far more than any heap, so each experiment takes the whole budget.
+        ee.setNumberOfDataVectors( Integer.MAX_VALUE );
+        return ee;
+    }
+
+    private static class RecordingListener implements DifferentialExpressionBatchAnalyzer.BatchListener {
+        private final List<Long> succeeded = Collections.synchronizedList( new ArrayList<Long>() );
+        private final List<Long> failed = Collections.synchronizedList( new ArrayList<Long>() );
+
+        @Override
+        public void analysisSucceeded( ExpressionExperiment ee, Collection<DifferentialExpressionAnalysis> analyses ) {
+            succeeded.add( ee.getId() );
+        }
+
+        @Override
+        public void analysisFailed( ExpressionExperiment ee, Exception e ) {
+            failed.add( ee.getId() );
+        }
+    }
+}
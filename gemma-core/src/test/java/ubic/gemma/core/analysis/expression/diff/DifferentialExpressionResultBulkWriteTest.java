@@ -0,0 +1,159 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.diff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.aop.framework.Advised;
+import org.springframework.beans.factory.annotation.Autowired;
+import ubic.gemma.core.loader.expression.geo.AbstractGeoServiceTest;
+import ubic.gemma.core.loader.expression.geo.GeoDomainObjectGeneratorLocal;
+import ubic.gemma.core.loader.expression.geo.service.GeoService;
+import ubic.gemma.model.analysis.expression.diff.*;
+import ubic.gemma.model.expression.experiment.ExperimentalFactor;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.expression.experiment.FactorValue;
+import ubic.gemma.persistence.service.analysis.expression.diff.DifferentialExpressionAnalysisService;
+import ubic.gemma.persistence.service.expression.bioAssayData.ProcessedExpressionDataVectorService;
+import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentService;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that results written in bulk read back the same as results saved through Hibernate.
+ */
+public class DifferentialExpressionResultBulkWriteTest extends AbstractGeoServiceTest {
+
+    @Autowired
+    private GeoService geoService;
+    @Autowired
+    private DifferentialExpressionAnalysisService differentialExpressionAnalysisService;
+    @Autowired
+    private DifferentialExpressionAnalyzerService differentialExpressionAnalyzerService;
+    @Autowired
+    private ExpressionExperimentService expressionExperimentService;
+    @Autowired
+    private ProcessedExpressionDataVectorService processedDataVectorService;
+
+    private ExpressionExperiment ee;
+
+    @Before
+    public void setUp() throws Exception {
+        ee = expressionExperimentService.findByShortName( "GSE1611" );
+        if ( ee != null ) {
+            expressionExperimentService.remove( ee );
+        }
+
+        geoService.setGeoDomainObjectGenerator(
+                new GeoDomainObjectGeneratorLocal( this.getTestFileBasePath( "gds994Short" ) ) );
+        Collection<?> results = geoService.fetchAndLoad( "GSE1611", false, true, false );
+        ee = ( ExpressionExperiment ) results.iterator().next();
+        processedDataVectorService.createProcessedDataVectors( ee );
+        ee = expressionExperimentService.thawLite( expressionExperimentService.findByShortName( "GSE1611" ) );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.getServiceImpl().setUseBulkWrites( true );
+        if ( ee != null ) {
+            expressionExperimentService.remove( ee );
+        }
+    }
+
+    @Test
+    public void testBulkMatchesHibernate() throws Exception {
+        DifferentialExpressionAnalysisConfig config = new DifferentialExpressionAnalysisConfig();
+        Collection<ExperimentalFactor> factors = ee.getExperimentalDesign().getExperimentalFactors();
+        config.setFactorsToInclude( factors );
+        config.addInteractionToInclude( factors );
+
+        this.getServiceImpl().setUseBulkWrites( false );
+        Map<String, Set<String>> hibernate = this.describe( config );
+
+        // replaces the first analysis, since it has the same factors.
+        this.getServiceImpl().setUseBulkWrites( true );
+        Map<String, Set<String>> bulk = this.describe( config );
+
+        assertFalse( hibernate.isEmpty() );
+        assertEquals( hibernate.keySet(), bulk.keySet() );
+        for ( String resultSet : hibernate.keySet() ) {
+            assertFalse( hibernate.get( resultSet ).isEmpty() );
+            assertEquals( "Results differ for " + resultSet, hibernate.get( resultSet ), bulk.get( resultSet ) );
+        }
+    }
+
+    /**
+     * Run and save the analysis, then read it back from the database.
+     *
+     * @return descriptions of the results and their contrasts (without IDs), by the factors of their result set.
+     */
+    private Map<String, Set<String>> describe( DifferentialExpressionAnalysisConfig config ) {
+        Collection<DifferentialExpressionAnalysis> analyses = differentialExpressionAnalyzerService
+                .runDifferentialExpressionAnalyses( ee, config );
+        assertEquals( 1, analyses.size() );
+
+        // load it again, so nothing comes from the objects that were saved.
+        DifferentialExpressionAnalysis analysis = differentialExpressionAnalysisService
+                .load( analyses.iterator().next().getId() );
+        analysis = differentialExpressionAnalysisService.thawFully( analysis );
+
+        Map<String, Set<String>> result = new HashMap<>();
+        for ( ExpressionAnalysisResultSet rs : analysis.getResultSets() ) {
+            List<Long> factorIds = new ArrayList<>();
+            for ( ExperimentalFactor ef : rs.getExperimentalFactors() ) {
+                factorIds.add( ef.getId() );
+            }
+            Collections.sort( factorIds );
+
+            Set<String> descriptions = new HashSet<>();
+            PvalueDistribution pvd = rs.getPvalueDistribution();
+            if ( pvd != null ) {
+                descriptions.add( "pvalues " + pvd.getNumBins() + " " + Arrays.toString( pvd.getBinCounts() ) );
+            }
+            for ( DifferentialExpressionAnalysisResult r : rs.getResults() ) {
+                List<String> contrasts = new ArrayList<>();
+                for ( ContrastResult c : r.getContrasts() ) {
+                    contrasts.add( this.id( c.getFactorValue() ) + "/" + this.id( c.getSecondFactorValue() ) + " p="
+                            + c.getPvalue() + " t=" + c.getTstat() + " coef=" + c.getCoefficient() + " lfc=" + c
+                            .getLogFoldChange() );
+                }
+                Collections.sort( contrasts );
+                descriptions.add( r.getProbe().getId() + " p=" + r.getPvalue() + " q=" + r.getCorrectedPvalue()
+                        + " rank=" + r.getRank() + " bin=" + r.getCorrectedPValueBin() + " " + contrasts );
+            }
+            assertNull( "More than one result set for " + factorIds, result.put( factorIds.toString(), descriptions ) );
+        }
+        return result;
+    }
+
+    private Long id( FactorValue fv ) {
+        return fv == null ? null : fv.getId();
+    }
+
+    private DifferentialExpressionAnalyzerServiceImpl getServiceImpl() throws Exception {
+        if ( differentialExpressionAnalyzerService instanceof Advised ) {
+            return ( DifferentialExpressionAnalyzerServiceImpl ) ( ( Advised ) differentialExpressionAnalyzerService )
+                    .getTargetSource().getTarget();
+        }
+        return ( DifferentialExpressionAnalyzerServiceImpl ) differentialExpressionAnalyzerService;
+    }
+}
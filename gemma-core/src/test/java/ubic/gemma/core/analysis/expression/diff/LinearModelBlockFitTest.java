@@ -0,0 +1,120 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.diff;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+import org.junit.Test;
+import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.dataStructure.matrix.ObjectMatrix;
+import ubic.basecode.dataStructure.matrix.ObjectMatrixImpl;
+import ubic.basecode.math.linearmodels.DesignMatrix;
+import ubic.basecode.math.linearmodels.LinearModelSummary;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that fitting the linear models in blocks of rows gives the same results as fitting all the rows at once.
+ */
+public class LinearModelBlockFitTest {
+
+    private static final double TOLERANCE = 1e-10;
+
+    @Test
+    public void testBlocksMatchSerial() {
+        this.compare( false, false );
+    }
+
+    @Test
+    public void testBlocksMatchSerialModerated() {
+        this.compare( true, false );
+    }
+
+    @Test
+    public void testBlocksMatchSerialWeighted() {
+        this.compare( false, true );
+    }
+
+    @Test
+    public void testBlocksMatchSerialModeratedWeighted() {
+        this.compare( true, true );
+    }
+
+    private void compare( boolean moderate, boolean useWeights ) {
+        Random random = new Random( 1 );
+        int numSamples = 12;
+        ObjectMatrix<String, String, Object> design = new ObjectMatrixImpl<>( numSamples, 2 );
+        List<String> sampleNames = new ArrayList<>();
+        for ( int j = 0; j < numSamples; j++ ) {
+            sampleNames.add( "biomat_" + j );
+            design.set( j, 0, j % 2 == 0 ? "fv_1" : "fv_2" );
+            design.set( j, 1, random.nextDouble() );
+        }
+        design.setRowNames( sampleNames );
+        design.setColumnNames( Arrays.asList( "fact_1", "fact_2" ) );
+        DesignMatrix designMatrix = new DesignMatrix( design, true );
+
+        int numRows = 1001;
+        double[][] rows = new double[numRows][numSamples];
+        for ( int i = 0; i < numRows; i++ ) {
+            double effect = i % 10 == 0 ? 2.0 : 0.0;
+            double sd = 0.5 + random.nextDouble();
+            for ( int j = 0; j < numSamples; j++ ) {
+                rows[i][j] = 8 + ( j % 2 == 0 ? 0 : effect ) + random.nextGaussian() * sd;
+            }
+        }
+        DoubleMatrix<String, String> data = new DenseDoubleMatrix<>( rows );
+        for ( int i = 0; i < numRows; i++ ) {
+            data.addRowName( "probe_" + i );
+        }
+        data.setColumnNames( sampleNames );
+
+        DoubleMatrix1D librarySize = new DenseDoubleMatrix1D( numSamples );
+        for ( int j = 0; j < numSamples; j++ ) {
+            librarySize.set( j, 1e6 * ( 1 + random.nextDouble() ) );
+        }
+
+        DifferentialExpressionAnalysisConfig config = new DifferentialExpressionAnalysisConfig();
+        config.setModerateStatistics( moderate );
+        config.setUseWeights( useWeights );
+
+        Map<String, LinearModelSummary> serial = LinearModelAnalyzer.fit( designMatrix, data, librarySize, config );
+        Map<String, LinearModelSummary> blocked = LinearModelAnalyzer
+                .fitInBlocks( designMatrix, data, librarySize, config, 4 );
+
+        assertEquals( serial.keySet(), blocked.keySet() );
+        for ( String probe : serial.keySet() ) {
+            LinearModelSummary s = serial.get( probe );
+            LinearModelSummary b = blocked.get( probe );
+            assertEquals( s.getMainEffectP( "fact_1" ), b.getMainEffectP( "fact_1" ),
+                    LinearModelBlockFitTest.TOLERANCE );
+            assertEquals( s.getMainEffectP( "fact_2" ), b.getMainEffectP( "fact_2" ),
+                    LinearModelBlockFitTest.TOLERANCE );
+            Map<String, Double> st = s.getContrastTStats( "fact_1" );
+            Map<String, Double> bt = b.getContrastTStats( "fact_1" );
+            assertEquals( st.keySet(), bt.keySet() );
+            for ( String contrast : st.keySet() ) {
+                assertEquals( st.get( contrast ), bt.get( contrast ), LinearModelBlockFitTest.TOLERANCE );
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.diff;
+
+import cern.colt.list.DoubleArrayList;
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import ubic.basecode.math.MultipleTestCorrection;
+import ubic.basecode.math.Rank;
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysisResult;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks {@link PvalueCorrection} against the baseCode implementations, and times it on result sets of typical size.
+ * The number of results per factor can be set with the system property <code>gemma.test.pvalues</code>.
+ */
+public class PvalueCorrectionTest {
+
+    private static final Log log = LogFactory.getLog( PvalueCorrectionTest.class );
+
+    @Test
+    public void testMatchesBaseCode() {
+        double[] pvalues = this.makePvalues( 5000, new Random( 1 ) );
+
+        double[] qvalues = new double[pvalues.length];
+        double[] ranks = new double[pvalues.length];
+        PvalueCorrection.correct( pvalues, qvalues, ranks );
+
+        DoubleArrayList expectedQ = MultipleTestCorrection.benjaminiHochberg( new DoubleArrayList( pvalues ) );
+        DoubleArrayList expectedRanks = Rank.rankTransform( new DoubleArrayList( pvalues ) );
+        for ( int i = 0; i < pvalues.length; i++ ) {
+            assertEquals( expectedQ.get( i ), qvalues[i], 1e-12 );
+            assertEquals( expectedRanks.get( i ) / pvalues.length, ranks[i], 1e-12 );
+        }
+    }
+
+    @Test
+    public void testMissingValues() {
+        double[] pvalues = new double[] { 0.01, Double.NaN, 0.04, 0.03 };
+        double[] qvalues = new double[pvalues.length];
+        double[] ranks = new double[pvalues.length];
+        PvalueCorrection.correct( pvalues, qvalues, ranks );
+        assertEquals( 0.03, qvalues[0], 1e-12 );
+        assertEquals( Double.NaN, qvalues[1], 0.0 );
+        assertEquals( 0.04, qvalues[2], 1e-12 );
+        assertEquals( 0.04, qvalues[3], 1e-12 );
+        assertEquals( 1.0 / 3, ranks[0], 1e-12 );
+        assertEquals( Double.NaN, ranks[1], 0.0 );
+
+        Map<String, List<DifferentialExpressionAnalysisResult>> results = new HashMap<>();
+        results.put( "f", this.makeResults( pvalues.length ) );
+        PvalueCorrection.correct( results, Collections.singletonMap( "f", pvalues ), true );
+        assertNull( results.get( "f" ).get( 1 ).getCorrectedPvalue() );
+        assertEquals( 0.03, results.get( "f" ).get( 0 ).getCorrectedPvalue(), 1e-12 );
+    }
+
+    @Test
+    public void testResultSetTiming() {
+        int numResults = Integer.getInteger( "gemma.test.pvalues", 60000 );
+        Random random = new Random( 2 );
+        Map<String, List<DifferentialExpressionAnalysisResult>> results = new HashMap<>();
+        Map<String, double[]> pvalues = new HashMap<>();
+        for ( String factor : new String[] { "f1", "f2", "f1:f2" } ) {
+            results.put( factor, this.makeResults( numResults ) );
+            pvalues.put( factor, this.makePvalues( numResults, random ) );
+        }
+
+        StopWatch timer = new StopWatch();
+        timer.start();
+        PvalueCorrection.correct( results, pvalues, true );
+        long time = timer.getTime();
+
+        timer.reset();
+        timer.start();
+        for ( String factor : pvalues.keySet() ) {
+            DoubleArrayList p = new DoubleArrayList( pvalues.get( factor ) );
+            DoubleArrayList q = MultipleTestCorrection.benjaminiHochberg( p );
+            DoubleArrayList r = Rank.rankTransform( p );
+            for ( int i = 0; i < numResults; i++ ) {
+                assertEquals( q.get( i ), results.get( factor ).get( i ).getCorrectedPvalue(), 1e-12 );
+                assertEquals( r.get( i ) / numResults, results.get( factor ).get( i ).getRank(), 1e-12 );
+            }
+        }
+        long baseCodeTime = timer.getTime();
+
+        PvalueCorrectionTest.log
+                .info( "3 x " + numResults + " results: " + time + "ms (baseCode, with checks: " + baseCodeTime
+                        + "ms)" );
+    }
+
+    private List<DifferentialExpressionAnalysisResult> makeResults( int n ) {
+        List<DifferentialExpressionAnalysisResult> results = new ArrayList<>( n );
+        for ( int i = 0; i < n; i++ ) {
+            results.add( DifferentialExpressionAnalysisResult.Factory.newInstance() );
+        }
+        return results;
+    }
+
+    /**
+     * @return mostly uniform p-values with some small ones and some ties.
+     */
+    private double[] makePvalues( int n, Random random ) {
+        double[] pvalues = new double[n];
+        for ( int i = 0; i < n; i++ ) {
+            if ( i % 20 == 0 ) {
+                pvalues[i] = random.nextDouble() * 1e-4;
+            } else if ( i % 50 == 1 ) {
+                pvalues[i] = 1.0;
+            } else {
+                pvalues[i] = Math.round( random.nextDouble() * 1e4 ) / 1e4;
+            }
+        }
+        return pvalues;
+    }
+}
@@ -177,6 +177,55 @@ public class ExpressionDataSVDTest {
         assertNotNull( svdNormalize );
     }
 
+    /*
+     * The truncated decomposition should give the same leading components (up to sign) and the same variance fractions.
+     */
+    @Test
+    public void testTruncated() {
+        ExpressionDataSVD full = new ExpressionDataSVD( testData, true );
+        ExpressionDataSVD truncated = new ExpressionDataSVD( new ExpressionDataTestMatrix(), true, 5 );
+
+        assertTrue( truncated.isTruncated() );
+        assertFalse( full.isTruncated() );
+        assertEquals( 5, truncated.getNumComponents() );
+        assertEquals( 5, truncated.getU().columns() );
+        assertEquals( full.getU().rows(), truncated.getU().rows() );
+        assertEquals( full.getV().rows(), truncated.getV().rows() );
+
+        assertEquals( full.getSingularValues().length, truncated.getSingularValues().length );
+        for ( int i = 0; i < 5; i++ ) {
+            assertEquals( full.getSingularValues()[i], truncated.getSingularValues()[i], 1e-6 );
+        }
+
+        Double[] fullFractions = full.getVarianceFractions();
+        Double[] truncatedFractions = truncated.getVarianceFractions();
+        assertEquals( fullFractions.length, truncatedFractions.length );
+        for ( int i = 0; i < fullFractions.length; i++ ) {
+            assertEquals( fullFractions[i], truncatedFractions[i], 1e-8 );
+        }
+
+        for ( int c = 0; c < 5; c++ ) {
+            Double[] fv = full.getEigenGene( c );
+            Double[] tv = truncated.getEigenGene( c );
+            double sign = Math.signum( fv[0] * tv[0] );
+            for ( int j = 0; j < fv.length; j++ ) {
+                assertEquals( fv[j], sign * tv[j], 1e-6 );
+            }
+            Double[] fu = full.getEigenSample( c );
+            Double[] tu = truncated.getEigenSample( c );
+            for ( int j = 0; j < fu.length; j++ ) {
+                assertEquals( fu[j], sign * tu[j], 1e-6 );
+            }
+        }
+
+        try {
+            truncated.removeHighestComponents( 1 );
+            fail( "Should have gotten an exception" );
+        } catch ( IllegalStateException e ) {
+            //
+        }
+    }
+
     @Test
     public void testUMatrixAsExpressionData() {
         svd = new ExpressionDataSVD( testData, true );
@@ -25,7 +25,10 @@ import ubic.basecode.dataStructure.matrix.StringMatrix;
 import ubic.basecode.io.reader.DoubleMatrixReader;
 import ubic.basecode.io.reader.StringMatrixReader;
 
+import java.util.concurrent.ForkJoinPool;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 
 /**
@@ -64,6 +67,31 @@ public class ComBatTest {
         assertEquals( 6.769583, finalResult.get( 10, 7 ), 0.0001 );
     }
 
+    @Test
+    public void testSharedThreadPool() throws Exception {
+        DoubleMatrixReader f = new DoubleMatrixReader();
+        DoubleMatrix<String, String> testMatrix = f.read( this.getClass()
+                .getResourceAsStream( "/data/analysis/preprocess/batcheffects/example.madata.small.txt" ) );
+        StringMatrixReader of = new StringMatrixReader();
+        StringMatrix<String, String> sampleInfo = of.read( this.getClass()
+                .getResourceAsStream( "/data/analysis/preprocess/batcheffects/example.metadata.small.txt" ) );
+        @SuppressWarnings({ "unchecked", "rawtypes" }) ComBat<String, String> comBat = new ComBat( testMatrix,
+                sampleInfo );
+        ForkJoinPool pool = new ForkJoinPool( 2 );
+        try {
+            comBat.setThreadPool( pool );
+            DoubleMatrix2D finalResult = comBat.run();
+            assertEquals( 10.67558, finalResult.get( 7, 0 ), 0.0001 );
+            assertEquals( 11.68505, finalResult.get( 7, 7 ), 0.0001 );
+            assertEquals( 6.769583, finalResult.get( 10, 7 ), 0.0001 );
+
+            // the pool belongs to the caller.
+            assertFalse( pool.isShutdown() );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     @Test
     public void test2WithMissingValues() throws Exception {
         DoubleMatrixReader f = new DoubleMatrixReader();
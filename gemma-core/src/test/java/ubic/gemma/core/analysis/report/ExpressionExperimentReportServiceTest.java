@@ -0,0 +1,106 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.report;
+
+import gemma.gsec.SecurityService;
+import gemma.gsec.authentication.UserDetailsImpl;
+import gemma.gsec.authentication.UserManager;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import ubic.gemma.core.util.test.BaseSpringContextTest;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.expression.experiment.ExpressionExperimentDetailsValueObject;
+import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentService;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that cached reports carry the permissions of the user they are handed to, not of the one who generated them.
+ */
+public class ExpressionExperimentReportServiceTest extends BaseSpringContextTest {
+
+    private final String otherUser = "EEReportTest_" + RandomStringUtils.randomAlphabetic( 5 );
+
+    @Autowired
+    private ExpressionExperimentReportService expressionExperimentReportService;
+    @Autowired
+    private ExpressionExperimentService expressionExperimentService;
+    @Autowired
+    private SecurityService securityService;
+    @Autowired
+    private UserManager userManager;
+
+    private ExpressionExperiment ee;
+
+    @Before
+    public void setUp() {
+        ee = this.getTestPersistentBasicExpressionExperiment();
+        securityService.makePublic( ee );
+        try {
+            userManager.loadUserByUsername( otherUser );
+        } catch ( UsernameNotFoundException e ) {
+            userManager.createUser( new UserDetailsImpl( "foo", otherUser, true, null,
+                    RandomStringUtils.randomAlphabetic( 10 ) + "@gmail.com", "key", new Date() ) );
+        }
+    }
+
+    @After
+    public void tearDown() {
+        this.runAsAdmin();
+        expressionExperimentReportService.evictFromCache( ee.getId() );
+        expressionExperimentService.remove( ee );
+    }
+
+    @Test
+    public void testCachedReportsHaveCurrentUsersPermissions() {
+        Collection<Long> ids = Collections.singleton( ee.getId() );
+
+        // generated and cached by the administrator
+        ExpressionExperimentDetailsValueObject generated = expressionExperimentReportService
+                .generateSummary( ee.getId() );
+        assertNotNull( generated );
+        assertTrue( generated.getUserCanWrite() );
+
+        Collection<ExpressionExperimentDetailsValueObject> forAdmin = expressionExperimentReportService
+                .retrieveSummaryObjects( ids );
+        assertEquals( 1, forAdmin.size() );
+        assertTrue( forAdmin.iterator().next().getUserCanWrite() );
+
+        this.runAsUser( otherUser );
+        Collection<ExpressionExperimentDetailsValueObject> forOther = expressionExperimentReportService
+                .retrieveSummaryObjects( ids );
+        assertEquals( 1, forOther.size() );
+        ExpressionExperimentDetailsValueObject vo = forOther.iterator().next();
+        assertEquals( ee.getId(), vo.getId() );
+        assertFalse( vo.getUserCanWrite() );
+        assertFalse( vo.getUserOwned() );
+        assertEquals( generated.getDateCached(), vo.getDateCached() );
+
+        // the administrator's copy was not changed by handing out the other user's.
+        assertTrue( forAdmin.iterator().next().getUserCanWrite() );
+    }
+}
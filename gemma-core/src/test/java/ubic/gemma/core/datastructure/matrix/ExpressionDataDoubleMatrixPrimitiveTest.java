@@ -0,0 +1,221 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.datastructure.matrix;
+
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import ubic.basecode.io.ByteArrayConverter;
+import ubic.gemma.core.analysis.preprocess.filter.RowMissingValueFilter;
+import ubic.gemma.model.common.quantitationtype.*;
+import ubic.gemma.model.expression.bioAssay.BioAssay;
+import ubic.gemma.model.expression.bioAssayData.BioAssayDimension;
+import ubic.gemma.model.expression.bioAssayData.ProcessedExpressionDataVector;
+import ubic.gemma.model.expression.biomaterial.BioMaterial;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the primitive accessors and bulk constructors of {@link ExpressionDataDoubleMatrix} against the boxed ones, and
+ * times construction and filtering. The size of the timed matrix can be set with the system property
+ * <code>gemma.test.matrix.rows</code> (e.g. 50000 for a typical full-size data set; the default is kept small).
+ */
+public class ExpressionDataDoubleMatrixPrimitiveTest {
+
+    private static final Log log = LogFactory.getLog( ExpressionDataDoubleMatrixPrimitiveTest.class );
+
+    @Test
+    public void testPrimitiveAccessors() {
+        ExpressionDataDoubleMatrix matrix = this.createMatrix( 200, 20, new Random( 1 ) );
+
+        assertEquals( 200, matrix.rows() );
+        assertEquals( 20, matrix.columns() );
+        double[][] rows = matrix.getRawRows();
+        for ( int i = 0; i < matrix.rows(); i++ ) {
+            Double[] boxed = matrix.getRow( i );
+            double[] raw = matrix.getRawRow( i );
+            assertEquals( boxed.length, raw.length );
+            for ( int j = 0; j < raw.length; j++ ) {
+                assertEquals( boxed[j], raw[j], 0.0 );
+                assertEquals( boxed[j], matrix.getAsDouble( i, j ), 0.0 );
+                assertEquals( boxed[j], rows[i][j], 0.0 );
+            }
+        }
+
+        for ( int j = 0; j < matrix.columns(); j++ ) {
+            Double[] boxed = matrix.getColumn( j );
+            double[] raw = matrix.getRawColumn( j );
+            for ( int i = 0; i < raw.length; i++ ) {
+                assertEquals( boxed[i], raw[i], 0.0 );
+            }
+        }
+
+        // copies, not views.
+        matrix.getRawRow( 0 )[0] = 12345.0;
+        assertNotEquals( 12345.0, matrix.getAsDouble( 0, 0 ), 0.0 );
+    }
+
+    @Test
+    public void testRowSubset() {
+        ExpressionDataDoubleMatrix matrix = this.createMatrix( 200, 20, new Random( 2 ) );
+
+        List<CompositeSequence> rowsToUse = new ArrayList<>();
+        for ( int i = matrix.rows() - 1; i >= 0; i -= 3 ) {
+            rowsToUse.add( matrix.getDesignElementForRow( i ) );
+        }
+
+        ExpressionDataDoubleMatrix subset = new ExpressionDataDoubleMatrix( matrix, rowsToUse );
+        assertEquals( rowsToUse.size(), subset.rows() );
+        assertEquals( matrix.columns(), subset.columns() );
+        assertEquals( rowsToUse, subset.getRowNames() );
+        for ( int i = 0; i < subset.rows(); i++ ) {
+            CompositeSequence cs = rowsToUse.get( i );
+            assertEquals( i, subset.getRowIndex( cs ) );
+            assertArrayEquals( matrix.getRawRow( matrix.getRowIndex( cs ) ), subset.getRawRow( i ), 0.0 );
+        }
+
+        ExpressionDataDoubleMatrix empty = new ExpressionDataDoubleMatrix( matrix,
+                new ArrayList<CompositeSequence>() );
+        assertEquals( 0, empty.rows() );
+        assertEquals( matrix.columns(), empty.columns() );
+    }
+
+    @Test
+    public void testColumnSubset() {
+        ExpressionDataDoubleMatrix matrix = this.createMatrix( 200, 20, new Random( 3 ) );
+
+        List<BioMaterial> columnsToUse = new ArrayList<>();
+        List<BioAssay> assays = new ArrayList<>();
+        for ( int j = matrix.columns() - 1; j >= 0; j -= 2 ) {
+            BioMaterial bm = matrix.getBioMaterialForColumn( j );
+            columnsToUse.add( bm );
+            assays.add( bm.getBioAssaysUsedIn().iterator().next() );
+        }
+        BioAssayDimension reorderedDim = BioAssayDimension.Factory.newInstance( "reordered", null, assays );
+
+        ExpressionDataDoubleMatrix subset = new ExpressionDataDoubleMatrix( matrix, columnsToUse, reorderedDim );
+        assertEquals( matrix.rows(), subset.rows() );
+        assertEquals( columnsToUse.size(), subset.columns() );
+        for ( int i = 0; i < subset.rows(); i++ ) {
+            for ( int j = 0; j < subset.columns(); j++ ) {
+                assertEquals( matrix.getAsDouble( i, matrix.getColumnIndex( columnsToUse.get( j ) ) ),
+                        subset.getAsDouble( i, j ), 0.0 );
+            }
+        }
+    }
+
+    @Test
+    public void testConstructionAndFilteringTimes() {
+        int numRows = Integer.getInteger( "gemma.test.matrix.rows", 5000 );
+        int numCols = 500;
+        Random random = new Random( 4 );
+        Collection<ProcessedExpressionDataVector> vectors = this.createVectors( numRows, numCols, random );
+
+        StopWatch timer = new StopWatch();
+        timer.start();
+        ExpressionDataDoubleMatrix matrix = new ExpressionDataDoubleMatrix( vectors );
+        long constructionTime = timer.getTime();
+        assertEquals( numRows, matrix.rows() );
+
+        timer.reset();
+        timer.start();
+        RowMissingValueFilter filter = new RowMissingValueFilter();
+        filter.setMinPresentFraction( 0.9 );
+        ExpressionDataDoubleMatrix filtered = filter.filter( matrix );
+        long filterTime = timer.getTime();
+        assertTrue( filtered.rows() > 0 && filtered.rows() < numRows );
+
+        timer.reset();
+        timer.start();
+        List<BioMaterial> columnsToUse = new ArrayList<>();
+        List<BioAssay> assays = new ArrayList<>();
+        for ( int j = matrix.columns() - 1; j >= 0; j-- ) {
+            BioMaterial bm = matrix.getBioMaterialForColumn( j );
+            columnsToUse.add( bm );
+            assays.add( bm.getBioAssaysUsedIn().iterator().next() );
+        }
+        ExpressionDataDoubleMatrix reordered = new ExpressionDataDoubleMatrix( matrix, columnsToUse,
+                BioAssayDimension.Factory.newInstance( "reordered", null, assays ) );
+        long reorderTime = timer.getTime();
+        assertEquals( matrix.getAsDouble( 0, 0 ), reordered.getAsDouble( 0, numCols - 1 ), 0.0 );
+
+        ExpressionDataDoubleMatrixPrimitiveTest.log
+                .info( numRows + " x " + numCols + ": construction " + constructionTime + "ms, row filtering "
+                        + filterTime + "ms, column reordering " + reorderTime + "ms" );
+    }
+
+    private ExpressionDataDoubleMatrix createMatrix( int numRows, int numCols, Random random ) {
+        return new ExpressionDataDoubleMatrix( this.createVectors( numRows, numCols, random ) );
+    }
+
+    /**
+     * @return vectors with random data, about 1% of it missing; some rows have a lot missing.
+     */
+    private Collection<ProcessedExpressionDataVector> createVectors( int numRows, int numCols, Random random ) {
+        QuantitationType qt = QuantitationType.Factory.newInstance();
+        qt.setId( 1L );
+        qt.setName( "test" );
+        qt.setRepresentation( PrimitiveType.DOUBLE );
+        qt.setGeneralType( GeneralType.QUANTITATIVE );
+        qt.setType( StandardQuantitationType.AMOUNT );
+        qt.setScale( ScaleType.LOG2 );
+
+        List<BioAssay> bioAssays = new ArrayList<>();
+        for ( int j = 0; j < numCols; j++ ) {
+            BioMaterial bm = BioMaterial.Factory.newInstance();
+            bm.setId( ( long ) j + 1 );
+            bm.setName( "sample" + j );
+            BioAssay ba = BioAssay.Factory.newInstance();
+            ba.setId( ( long ) j + 1 );
+            ba.setName( "assay" + j );
+            ba.setSampleUsed( bm );
+            bm.setBioAssaysUsedIn( new HashSet<>( Collections.singleton( ba ) ) );
+            bioAssays.add( ba );
+        }
+        BioAssayDimension bad = BioAssayDimension.Factory.newInstance( "test", null, bioAssays );
+        bad.setId( 1L );
+
+        ByteArrayConverter bac = new ByteArrayConverter();
+        Collection<ProcessedExpressionDataVector> vectors = new ArrayList<>( numRows );
+        for ( int i = 0; i < numRows; i++ ) {
+            CompositeSequence cs = CompositeSequence.Factory.newInstance();
+            cs.setId( ( long ) i + 1 );
+            cs.setName( String.format( "probe%08d", i ) );
+
+            double missingFraction = i % 10 == 0 ? 0.5 : 0.01;
+            double[] data = new double[numCols];
+            for ( int j = 0; j < numCols; j++ ) {
+                data[j] = random.nextDouble() < missingFraction ? Double.NaN : random.nextGaussian() * 2 + 8;
+            }
+
+            ProcessedExpressionDataVector v = ProcessedExpressionDataVector.Factory.newInstance();
+            v.setId( ( long ) i + 1 );
+            v.setDesignElement( cs );
+            v.setQuantitationType( qt );
+            v.setBioAssayDimension( bad );
+            v.setData( bac.doubleArrayToBytes( data ) );
+            vectors.add( v );
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.externalDb;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link GenomeIntervalIndex} queries against a linear scan.
+ */
+public class GenomeIntervalIndexTest {
+
+    @Test
+    public void testFindOverlapping() {
+        Random random = new Random( 5 );
+        for ( int n : new int[] { 0, 1, 2, 7, 16, 100, 1000, 5000 } ) {
+            int[] starts = new int[n];
+            int[] ends = new int[n];
+            String[] strands = new String[n];
+            GenomeIntervalIndex<Integer> index = new GenomeIntervalIndex<>();
+            for ( int i = 0; i < n; i++ ) {
+                starts[i] = random.nextInt( 100000 );
+                // mostly short, with some long ones like genes with big introns.
+                ends[i] = starts[i] + ( random.nextInt( 10 ) == 0 ? random.nextInt( 50000 ) : random.nextInt( 500 ) );
+                strands[i] = random.nextBoolean() ? "+" : "-";
+                index.add( "chr1", starts[i], ends[i], strands[i], i );
+            }
+            index.build();
+            assertEquals( n, index.size() );
+
+            for ( int q = 0; q < 500; q++ ) {
+                int start = random.nextInt( 110000 );
+                int end = start + random.nextInt( 2000 );
+                String strand = random.nextInt( 3 ) == 0 ? null : strands.length > 0 ? strands[q % n] : "+";
+
+                Set<Integer> expected = new HashSet<>();
+                for ( int i = 0; i < n; i++ ) {
+                    if ( starts[i] < end && start < ends[i] && ( strand == null || strands[i].equals( strand ) ) ) {
+                        expected.add( i );
+                    }
+                }
+                List<Integer> found = index.findOverlapping( "chr1", start, end, strand );
+                assertEquals( expected.size(), found.size() );
+                assertEquals( expected, new HashSet<>( found ) );
+            }
+        }
+    }
+
+    @Test
+    public void testBoundaries() {
+        GenomeIntervalIndex<String> index = new GenomeIntervalIndex<>();
+        index.add( "chr1", 100, 200, "+", "a" );
+        index.add( "chr2", 100, 200, "+", "b" );
+        index.build();
+
+        // half-open: touching is not overlapping.
+        assertTrue( index.findOverlapping( "chr1", 200, 300, null ).isEmpty() );
+        assertTrue( index.findOverlapping( "chr1", 50, 100, null ).isEmpty() );
+        assertEquals( Collections.singletonList( "a" ), index.findOverlapping( "chr1", 199, 300, null ) );
+        assertEquals( Collections.singletonList( "a" ), index.findOverlapping( "chr1", 50, 101, "+" ) );
+        assertTrue( index.findOverlapping( "chr1", 50, 101, "-" ).isEmpty() );
+        assertEquals( Collections.singletonList( "b" ), index.findOverlapping( "chr2", 150, 160, null ) );
+        assertTrue( index.findOverlapping( "chrX", 150, 160, null ).isEmpty() );
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotBuilt() {
+        GenomeIntervalIndex<String> index = new GenomeIntervalIndex<>();
+        index.add( "chr1", 100, 200, "+", "a" );
+        index.findOverlapping( "chr1", 100, 200, null );
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.visualization;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import ubic.gemma.core.util.test.BaseSpringContextTest;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class QCImageCacheTest extends BaseSpringContextTest {
+
+    private static final byte[] PNG = new byte[] { 1, 2, 3 };
+
+    @Autowired
+    private QCImageCache qcImageCache;
+
+    @Before
+    public void setUp() {
+        qcImageCache.clearCache();
+    }
+
+    @Test
+    public void testGet() {
+        Date lastUpdated = new Date();
+        QCImage put = qcImageCache.put( 1L, "pcaScree", lastUpdated, PNG );
+        QCImage image = qcImageCache.get( 1L, "pcaScree", lastUpdated );
+        assertNotNull( image );
+        assertArrayEquals( PNG, image.getData() );
+        assertEquals( put.getETag(), image.getETag() );
+        assertEquals( lastUpdated.getTime(), image.getLastModified() );
+
+        assertNull( qcImageCache.get( 1L, "pcaFactors", lastUpdated ) );
+        assertNull( qcImageCache.get( 2L, "pcaScree", lastUpdated ) );
+    }
+
+    @Test
+    public void testGetWithoutLastUpdated() {
+        qcImageCache.put( 1L, "pcaScree", null, PNG );
+        assertNotNull( qcImageCache.get( 1L, "pcaScree", null ) );
+        assertNull( qcImageCache.get( 1L, "pcaScree", new Date() ) );
+    }
+
+    @Test
+    public void testGetAfterExperimentUpdated() {
+        Date lastUpdated = new Date( 1000000L );
+        qcImageCache.put( 1L, "pcaScree", lastUpdated, PNG );
+        assertNull( qcImageCache.get( 1L, "pcaScree", new Date( 2000000L ) ) );
+        // the old image is gone too.
+        assertNull( qcImageCache.get( 1L, "pcaScree", lastUpdated ) );
+    }
+
+    @Test
+    public void testETagDependsOnImage() {
+        Date lastUpdated = new Date();
+        String eTag = qcImageCache.put( 1L, "pcaScree", lastUpdated, PNG ).getETag();
+        assertEquals( eTag, qcImageCache.put( 1L, "pcaScree", lastUpdated, PNG ).getETag() );
+        assertNotEquals( eTag, qcImageCache.put( 1L, "pcaScree", lastUpdated, new byte[] { 4 } ).getETag() );
+        assertNotEquals( eTag, qcImageCache.put( 2L, "pcaScree", lastUpdated, PNG ).getETag() );
+        assertNotEquals( eTag, qcImageCache.put( 1L, "pcaScree", new Date( 1000L ), PNG ).getETag() );
+    }
+
+    @Test
+    public void testClearExperiment() {
+        Date lastUpdated = new Date();
+        qcImageCache.put( 1L, "pcaScree", lastUpdated, PNG );
+        qcImageCache.put( 1L, "pcaFactors", lastUpdated, PNG );
+        qcImageCache.put( 2L, "pcaScree", lastUpdated, PNG );
+
+        qcImageCache.clearCache( 1L );
+
+        assertNull( qcImageCache.get( 1L, "pcaScree", lastUpdated ) );
+        assertNull( qcImageCache.get( 1L, "pcaFactors", lastUpdated ) );
+        assertNotNull( qcImageCache.get( 2L, "pcaScree", lastUpdated ) );
+
+        // images made after clearing are kept and can be cleared again.
+        qcImageCache.put( 1L, "pcaScree", lastUpdated, PNG );
+        assertNotNull( qcImageCache.get( 1L, "pcaScree", lastUpdated ) );
+        qcImageCache.clearCache( 1L );
+        assertNull( qcImageCache.get( 1L, "pcaScree", lastUpdated ) );
+
+        // nothing cached for it.
+        qcImageCache.clearCache( 3L );
+        assertNotNull( qcImageCache.get( 2L, "pcaScree", lastUpdated ) );
+    }
+
+    @Test
+    public void testClearAll() {
+        Date lastUpdated = new Date();
+        qcImageCache.put( 1L, "pcaScree", lastUpdated, PNG );
+        qcImageCache.put( 2L, "pcaScree", lastUpdated, PNG );
+
+        qcImageCache.clearCache();
+
+        assertNull( qcImageCache.get( 1L, "pcaScree", lastUpdated ) );
+        assertNull( qcImageCache.get( 2L, "pcaScree", lastUpdated ) );
+    }
+
+}
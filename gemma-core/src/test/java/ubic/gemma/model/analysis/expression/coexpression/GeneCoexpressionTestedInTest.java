@@ -18,6 +18,7 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Random;
@@ -43,6 +44,18 @@ public class GeneCoexpressionTestedInTest {
         assertEquals( 0, f.getNumIds() );
     }
 
+    @Test
+    public void testAnd() {
+        IdArray f = new GeneCoexpressionTestedIn( 1L );
+        f.addEntities( Arrays.asList( 3L, 10L, 700L, 5000L ) );
+        IdArray g = new GeneCoexpressionTestedIn( 2L );
+        g.addEntities( Arrays.asList( 2L, 10L, 5000L ) );
+
+        assertEquals( 2, f.andCardinality( g ) );
+        assertEquals( new HashSet<>( Arrays.asList( 10L, 5000L ) ), IdArray.toSet( f.andBitmap( g ) ) );
+        assertEquals( f.andSet( g ), IdArray.toSet( f.andBitmap( g ) ) );
+    }
+
     @Test
     public void testBulkAdd() {
         IdArray f = new GeneCoexpressionTestedIn( 1L );
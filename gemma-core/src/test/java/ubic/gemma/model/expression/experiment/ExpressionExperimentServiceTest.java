@@ -19,6 +19,7 @@
 package ubic.gemma.model.expression.experiment;
 
 import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.time.StopWatch;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -37,8 +38,10 @@ import ubic.gemma.model.genome.Taxon;
 import ubic.gemma.persistence.service.expression.bioAssayData.RawExpressionDataVectorService;
 import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentService;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.*;
@@ -219,4 +222,99 @@ public class ExpressionExperimentServiceTest extends BaseSpringContextTest {
         assertEquals( 1, list.size() );
     }
 
+    @Test
+    public final void testLoadValueObjectsPreFilterAfter() {
+        ExpressionExperiment undated = this.getTestPersistentCompleteExpressionExperiment( false );
+        List<ExpressionExperimentValueObject> all = new ArrayList<>(
+                expressionExperimentService.loadValueObjectsPreFilter( 0, -1, "id", true, null ) );
+        assertTrue( all.size() > 1 );
+        assertEquals( all.size(), all.get( 0 ).get_totalInQuery() );
+
+        List<ExpressionExperimentValueObject> paged = new ArrayList<>();
+        Long afterId = null;
+        while ( true ) {
+            Collection<ExpressionExperimentValueObject> page = expressionExperimentService
+                    .loadValueObjectsPreFilterAfter( afterId, null, 2, "id", true, null );
+            if ( page.isEmpty() )
+                break;
+            paged.addAll( page );
+            afterId = paged.get( paged.size() - 1 ).getId();
+        }
+
+        assertEquals( all.size(), paged.size() );
+        for ( int i = 0; i < all.size(); i++ ) {
+            assertEquals( all.get( i ).getId(), paged.get( i ).getId() );
+            assertEquals( all.get( i ).getTechnologyType(), paged.get( i ).getTechnologyType() );
+            assertEquals( all.get( i ).getArrayDesignCount(), paged.get( i ).getArrayDesignCount() );
+        }
+
+        // by last update, including an experiment without one.
+        simpleJdbcTemplate.update( "UPDATE CURATION_DETAILS SET LAST_UPDATED = NULL WHERE ID = "
+                + "(SELECT CURATION_DETAILS_FK FROM INVESTIGATION WHERE ID = ?)", undated.getId() );
+        hibernateSupport.getSessionFactory().getCache().evictQueryRegions();
+        for ( boolean asc : new boolean[] { true, false } ) {
+            List<ExpressionExperimentValueObject> byDate = new ArrayList<>(
+                    expressionExperimentService.loadValueObjectsPreFilter( 0, -1, "lastUpdated", asc, null ) );
+            List<ExpressionExperimentValueObject> pagedByDate = new ArrayList<>();
+            ExpressionExperimentValueObject last = null;
+            while ( true ) {
+                Collection<ExpressionExperimentValueObject> page = expressionExperimentService
+                        .loadValueObjectsPreFilterAfter( last == null ? null : last.getId(),
+                                last == null ? null : last.getLastUpdated(), 2, "lastUpdated", asc, null );
+                if ( page.isEmpty() )
+                    break;
+                pagedByDate.addAll( page );
+                last = pagedByDate.get( pagedByDate.size() - 1 );
+            }
+
+            assertEquals( byDate.size(), pagedByDate.size() );
+            Collection<Long> seen = new HashSet<>();
+            for ( ExpressionExperimentValueObject vo : pagedByDate ) {
+                assertTrue( seen.add( vo.getId() ) );
+            }
+            for ( ExpressionExperimentValueObject vo : byDate ) {
+                assertTrue( seen.contains( vo.getId() ) );
+            }
+            assertTrue( seen.contains( undated.getId() ) );
+        }
+    }
+
+    /**
+     * Times a page of 50 at a few offsets, by offset and by keyset. With a small test database the larger offsets are
+     * past the end, so this mostly checks that the listing queries run; point it at a full database to compare.
+     */
+    @Test
+    public final void testLoadValueObjectsPreFilterTimes() {
+        StopWatch timer = new StopWatch();
+        for ( int offset : new int[] { 0, 5000, 20000 } ) {
+            timer.reset();
+            timer.start();
+            Collection<ExpressionExperimentValueObject> byOffset = expressionExperimentService
+                    .loadValueObjectsPreFilter( offset, 50, "id", true, null );
+            long offsetTime = timer.getTime();
+
+            // the cursor for the keyset query is the id just before the offset.
+            Long afterId = null;
+            if ( offset > 0 ) {
+                Collection<ExpressionExperimentValueObject> previous = expressionExperimentService
+                        .loadValueObjectsPreFilter( offset - 1, 1, "id", true, null );
+                if ( previous.isEmpty() ) {
+                    log.info( "Offset " + offset + ": past the end, " + offsetTime + "ms" );
+                    continue;
+                }
+                afterId = previous.iterator().next().getId();
+            }
+
+            timer.reset();
+            timer.start();
+            Collection<ExpressionExperimentValueObject> byKeyset = expressionExperimentService
+                    .loadValueObjectsPreFilterAfter( afterId, null, 50, "id", true, null );
+            long keysetTime = timer.getTime();
+
+            assertEquals( byOffset.size(), byKeyset.size() );
+            log.info( "Offset " + offset + ": " + byOffset.size() + " results, " + offsetTime + "ms by offset, "
+                    + keysetTime + "ms by keyset" );
+        }
+    }
+
 }
@@ -19,6 +19,7 @@
 package ubic.gemma.persistence;
 
 import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
@@ -29,11 +30,15 @@ import ubic.gemma.model.genome.biosequence.BioSequence;
 import ubic.gemma.model.genome.gene.GeneProduct;
 import ubic.gemma.persistence.service.genome.biosequence.BioSequenceService;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.*;
 
 /**
  * @author pavlidis
@@ -94,6 +99,36 @@ public class GenomePersisterTest extends BaseSpringContextTest {
         assertNotNull( gp.getGene().getId() );
     }
 
+    /**
+     * Loading genes in a batch should give the same result as loading them one by one, including when a gene's NCBI id
+     * has changed and when the database has two genes with the same NCBI id.
+     */
+    @Test
+    public void testPersistOrUpdateGenesSameAsPerGene() {
+        int batchBase = 900000000 + new Random().nextInt( 1000000 ) * 100;
+        int perGeneBase = batchBase + 50;
+        Map<String, Long> batchIds = this.setUpGenes( batchBase );
+        this.setUpGenes( perGeneBase );
+
+        Collection<Gene> batchResult = this.persisterHelper.persistOrUpdateGenes( this.getUpdatedGenes( batchBase ) );
+        assertEquals( 4, batchResult.size() );
+        for ( Gene gene : this.getUpdatedGenes( perGeneBase ) ) {
+            this.persisterHelper.persistOrUpdate( gene );
+        }
+
+        List<String> batchSummary = this.summarize( batchBase );
+        assertEquals( this.summarize( perGeneBase ), batchSummary );
+
+        // the merged gene kept its record, and the duplicate was removed.
+        assertEquals( batchIds.get( "B" ), this.getGeneId( batchBase + 3 ) );
+        assertNull( this.getGeneId( batchBase + 2 ) );
+        assertEquals( batchIds.get( "X" ), this.getGeneId( batchBase + 5 ) );
+        assertTrue( batchSummary.contains( "3 prev=2 name=B' product=B1 gi=B1" ) );
+        assertTrue( batchSummary.contains( "3 prev=2 name=B' product=C1 gi=C1" ) );
+        assertTrue( batchSummary.contains( "1 prev=null name=A' product=A3 gi=A3" ) );
+        assertTrue( batchSummary.contains( "4 prev=null name=D product=D1 gi=D1" ) );
+    }
+
     @Test
     public void testUpdateBioSequence() {
         Taxon h = this.getTaxon( "human" );
@@ -120,4 +155,84 @@ public class GenomePersisterTest extends BaseSpringContextTest {
 
     }
 
+    /**
+     * Genes A (base + 1, products A1 and A2), B (base + 2, product B1), X (base + 5) and Y, a relic that also has X's
+     * NCBI id.
+     *
+     * @return the database ids of the genes, by label.
+     */
+    private Map<String, Long> setUpGenes( int base ) {
+        Map<String, Long> ids = new HashMap<>();
+        ids.put( "A", ( ( Gene ) this.persisterHelper.persistOrUpdate( this.gene( base, 1, null, "A", "A1", "A2" ) ) )
+                .getId() );
+        ids.put( "B", ( ( Gene ) this.persisterHelper.persistOrUpdate( this.gene( base, 2, null, "B", "B1" ) ) )
+                .getId() );
+        ids.put( "X", ( ( Gene ) this.persisterHelper.persistOrUpdate( this.gene( base, 5, null, "X" ) ) ).getId() );
+        ids.put( "Y", ( ( Gene ) this.persisterHelper.persistOrUpdate( this.gene( base, 6, null, "Y" ) ) ).getId() );
+
+        // NCBI used to have Y's record under X's id as well.
+        simpleJdbcTemplate.update( "UPDATE CHROMOSOME_FEATURE SET NCBI_GENE_ID = ?, PREVIOUS_NCBI_ID = ? WHERE ID = ?",
+                base + 5, String.valueOf( base + 5 ), ids.get( "Y" ) );
+        hibernateSupport.getSessionFactory().getCache().evictEntityRegion( Gene.class );
+        return ids;
+    }
+
+    /**
+     * A changed, B merged into C (base + 3), a new gene D (base + 4), and X, which matches X and Y in the database.
+     */
+    private Collection<Gene> getUpdatedGenes( int base ) {
+        Collection<Gene> genes = new ArrayList<>();
+        genes.add( this.gene( base, 1, null, "A'", "A1", "A2", "A3" ) );
+        genes.add( this.gene( base, 3, String.valueOf( base + 2 ), "B'", "B1", "C1" ) );
+        genes.add( this.gene( base, 4, null, "D", "D1" ) );
+        genes.add( this.gene( base, 5, null, "X'" ) );
+        return genes;
+    }
+
+    private Gene gene( int base, int ncbiOffset, String previousNcbiId, String name, String... products ) {
+        Gene gene = Gene.Factory.newInstance();
+        gene.setName( name );
+        gene.setOfficialSymbol( name );
+        gene.setNcbiGeneId( base + ncbiOffset );
+        gene.setPreviousNcbiId( previousNcbiId );
+        for ( String product : products ) {
+            GeneProduct gp = GeneProduct.Factory.newInstance();
+            gp.setName( "w" + base + "-" + product );
+            gp.setNcbiGi( "w" + base + "-" + product );
+            gp.setGene( gene );
+            gene.getProducts().add( gp );
+        }
+        return gene;
+    }
+
+    private Long getGeneId( int ncbiId ) {
+        List<Long> ids = simpleJdbcTemplate
+                .queryForList( "SELECT ID FROM CHROMOSOME_FEATURE WHERE class = 'Gene' AND NCBI_GENE_ID = ?",
+                        Long.class, ncbiId );
+        assertTrue( ids.size() <= 1 );
+        return ids.isEmpty() ? null : ids.get( 0 );
+    }
+
+    /**
+     * @return the genes and products of the test set starting at base, with NCBI ids relative to the base.
+     */
+    private List<String> summarize( int base ) {
+        List<Map<String, Object>> rows = simpleJdbcTemplate.queryForList(
+                "SELECT g.NCBI_GENE_ID, g.PREVIOUS_NCBI_ID, g.NAME, gp.NAME AS GP_NAME, gp.NCBI_GI "
+                        + "FROM CHROMOSOME_FEATURE g LEFT JOIN CHROMOSOME_FEATURE gp ON gp.GENE_FK = g.ID "
+                        + "WHERE g.class = 'Gene' AND g.NCBI_GENE_ID BETWEEN ? AND ? "
+                        + "ORDER BY g.NCBI_GENE_ID, gp.NAME", base, base + 10 );
+        String prefix = "w" + base + "-";
+        List<String> summary = new ArrayList<>();
+        for ( Map<String, Object> row : rows ) {
+            String previous = ( String ) row.get( "PREVIOUS_NCBI_ID" );
+            summary.add( ( ( Number ) row.get( "NCBI_GENE_ID" ) ).intValue() - base + " prev=" + ( previous == null ?
+                    null :
+                    Integer.parseInt( previous ) - base ) + " name=" + row.get( "NAME" ) + " product=" + StringUtils
+                    .removeStart( ( String ) row.get( "GP_NAME" ), prefix ) + " gi=" + StringUtils
+                    .removeStart( ( String ) row.get( "NCBI_GI" ), prefix ) );
+        }
+        return summary;
+    }
+
 }
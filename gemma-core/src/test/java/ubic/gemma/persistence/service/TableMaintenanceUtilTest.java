@@ -0,0 +1,94 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.persistence.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import ubic.gemma.core.util.test.BaseSpringContextTest;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TableMaintenanceUtilTest extends BaseSpringContextTest {
+
+    private static final String EXPECTED_COUNT_QUERY = "SELECT COUNT(*) FROM (SELECT DISTINCT gene.ID, cs.ID AS CS "
+            + "FROM CHROMOSOME_FEATURE AS gene, CHROMOSOME_FEATURE AS geneprod, BIO_SEQUENCE2_GENE_PRODUCT AS bsgp, "
+            + "COMPOSITE_SEQUENCE cs WHERE geneprod.GENE_FK = gene.ID AND bsgp.GENE_PRODUCT_FK = geneprod.ID "
+            + "AND bsgp.BIO_SEQUENCE_FK = cs.BIOLOGICAL_CHARACTERISTIC_FK AND cs.ARRAY_DESIGN_FK = ?) AS expected";
+
+    @Autowired
+    private TableMaintenanceUtil tableMaintenanceUtil;
+
+    private Long platformId;
+
+    @Before
+    public void setUp() {
+        ExpressionExperiment ee = this.getTestPersistentCompleteExpressionExperimentWithSequences();
+        platformId = ee.getBioAssays().iterator().next().getArrayDesignUsed().getId();
+        tableMaintenanceUtil.disableEmail();
+    }
+
+    @Test
+    public void testNewPlatformAdded() {
+        tableMaintenanceUtil.updateGene2CsEntries();
+
+        int expected = simpleJdbcTemplate.queryForObject( EXPECTED_COUNT_QUERY, Integer.class, platformId );
+        assertTrue( expected > 0 );
+        assertEquals( expected, this.countEntries( platformId ) );
+    }
+
+    @Test
+    public void testStaleEntriesRemoved() {
+        tableMaintenanceUtil.updateGene2CsEntries();
+        int before = this.countEntries( platformId );
+        assertTrue( before > 0 );
+
+        // a gene and a platform that do not exist.
+        Long missingGene = simpleJdbcTemplate.queryForObject( "SELECT MAX(ID) FROM CHROMOSOME_FEATURE", Long.class )
+                + 1000;
+        Long missingPlatform = simpleJdbcTemplate.queryForObject( "SELECT MAX(ID) FROM ARRAY_DESIGN", Long.class )
+                + 1000;
+        Long cs = simpleJdbcTemplate
+                .queryForObject( "SELECT MIN(CS) FROM GENE2CS WHERE AD = ?", Long.class, platformId );
+        simpleJdbcTemplate
+                .update( "INSERT INTO GENE2CS (GENE, CS, AD) VALUES (?, ?, ?)", missingGene, cs, platformId );
+        simpleJdbcTemplate
+                .update( "INSERT INTO GENE2CS (GENE, CS, AD) SELECT GENE, CS, ? FROM GENE2CS WHERE AD = ?",
+                        missingPlatform, platformId );
+        assertEquals( before + 1, this.countEntries( platformId ) );
+        assertEquals( before, this.countEntries( missingPlatform ) );
+
+        // nothing else changed, so only the stale entries go.
+        tableMaintenanceUtil.updateGene2CsEntries();
+
+        assertEquals( before, this.countEntries( platformId ) );
+        assertEquals( 0, this.countEntries( missingPlatform ) );
+        assertEquals( 0, ( int ) simpleJdbcTemplate
+                .queryForObject( "SELECT COUNT(*) FROM GENE2CS WHERE GENE = ?", Integer.class, missingGene ) );
+    }
+
+    private int countEntries( Long platform ) {
+        return simpleJdbcTemplate
+                .queryForObject( "SELECT COUNT(*) FROM GENE2CS WHERE AD = ?", Integer.class, platform );
+    }
+
+}
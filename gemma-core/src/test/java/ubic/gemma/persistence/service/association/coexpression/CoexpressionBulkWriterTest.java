@@ -0,0 +1,169 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.association.coexpression;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.aop.framework.Advised;
+import org.springframework.beans.factory.annotation.Autowired;
+import ubic.gemma.core.genome.gene.service.GeneService;
+import ubic.gemma.core.util.test.BaseSpringContextTest;
+import ubic.gemma.model.association.coexpression.MouseGeneCoExpression;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
+import ubic.gemma.model.genome.Taxon;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Links written with the {@link CoexpressionBulkWriter} must be the same as those saved through the Hibernate session.
+ * The same links are saved for two experiments, on separate sets of genes, once each way, and the results compared.
+ */
+public class CoexpressionBulkWriterTest extends BaseSpringContextTest {
+
+    private static final int NUM_GENES = 6;
+
+    /*
+     * {gene, gene, sign} for the first and second experiment. The second one has links that exist already (same and
+     * opposite sign) and new ones.
+     */
+    private static final int[][] FIRST_LINKS = { { 0, 1, 1 }, { 0, 2, -1 }, { 1, 3, 1 }, { 2, 4, 1 }, { 3, 5, -1 } };
+    private static final int[][] SECOND_LINKS = { { 0, 1, 1 }, { 0, 2, 1 }, { 1, 4, 1 }, { 3, 5, -1 } };
+
+    @Autowired
+    private CoexpressionService coexpressionService;
+
+    @Autowired
+    private CoexpressionDao coexpressionDao;
+
+    @Autowired
+    private GeneService geneService;
+
+    private Taxon mouse;
+
+    @Before
+    public void setup() {
+        mouse = taxonService.findByCommonName( "mouse" );
+    }
+
+    @Test
+    public void testBulkWritesMatchSession() throws Exception {
+        Written viaSession = this.write( false );
+        Written viaBulk = this.write( true );
+
+        // 7 distinct links, each stored with its flipped version
+        assertEquals( 14, viaSession.numLinkRows );
+        assertEquals( viaSession.numLinkRows, viaBulk.numLinkRows );
+        assertEquals( viaSession.numExperimentLinkRows, viaBulk.numExperimentLinkRows );
+        assertEquals( 0, viaBulk.numInconsistentFlipped );
+        assertEquals( viaSession.links, viaBulk.links );
+        assertTrue( viaBulk.links.contains( "0-1:+:2:[0, 1]" ) );
+    }
+
+    private Written write( boolean bulk ) throws Exception {
+        List<Gene> genes = new ArrayList<>();
+        for ( int i = 0; i < CoexpressionBulkWriterTest.NUM_GENES; i++ ) {
+            Gene gene = Gene.Factory.newInstance();
+            gene.setName( "test_bulkcoexp_" + this.randomName() );
+            gene.setTaxon( mouse );
+            genes.add( geneService.create( gene ) );
+        }
+        List<ExpressionExperiment> ees = Arrays
+                .asList( this.getTestPersistentBasicExpressionExperiment(),
+                        this.getTestPersistentBasicExpressionExperiment() );
+
+        CoexpressionDaoImpl dao = this.getDaoImpl();
+        dao.setUseBulkWrites( bulk );
+        try {
+            LinkCreator c = new LinkCreator( mouse );
+            coexpressionService.createOrUpdate( ees.get( 0 ),
+                    this.makeLinks( genes, CoexpressionBulkWriterTest.FIRST_LINKS ), c, new HashSet<>( genes ) );
+            coexpressionService.createOrUpdate( ees.get( 1 ),
+                    this.makeLinks( genes, CoexpressionBulkWriterTest.SECOND_LINKS ), c, new HashSet<>( genes ) );
+        } finally {
+            dao.setUseBulkWrites( true );
+        }
+
+        Written result = new Written();
+        List<Long> geneIds = new ArrayList<>();
+        for ( Gene g : genes ) {
+            geneIds.add( g.getId() );
+        }
+        List<Long> eeIds = Arrays.asList( ees.get( 0 ).getId(), ees.get( 1 ).getId() );
+
+        for ( Gene g : genes ) {
+            for ( CoexpressionValueObject vo : coexpressionService
+                    .findCoexpressionRelationships( g, eeIds, 100, false ) ) {
+                List<Integer> supporting = new ArrayList<>();
+                if ( vo.getSupportingDatasets() != null ) {
+                    for ( Long eeId : vo.getSupportingDatasets() ) {
+                        supporting.add( eeIds.indexOf( eeId ) );
+                    }
+                }
+                Collections.sort( supporting );
+                result.links.add( geneIds.indexOf( vo.getQueryGeneId() ) + "-" + geneIds.indexOf( vo.getCoexGeneId() )
+                        + ":" + ( vo.isPositiveCorrelation() ? "+" : "-" ) + ":" + vo.getNumDatasetsSupporting() + ":"
+                        + supporting );
+            }
+        }
+
+        String genesIn = " IN (" + StringUtils.join( geneIds, "," ) + ")";
+        result.numLinkRows = simpleJdbcTemplate
+                .queryForObject( "SELECT COUNT(*) FROM MOUSE_GENE_COEXPRESSION WHERE FIRST_GENE_FK" + genesIn,
+                        Integer.class );
+        result.numExperimentLinkRows = simpleJdbcTemplate
+                .queryForObject( "SELECT COUNT(*) FROM MOUSE_EXPERIMENT_COEXPRESSION WHERE GENE1_FK" + genesIn,
+                        Integer.class );
+        // the flipped version of each link must share its support and support details.
+        result.numInconsistentFlipped = simpleJdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM MOUSE_GENE_COEXPRESSION a JOIN MOUSE_GENE_COEXPRESSION b"
+                        + " ON a.FIRST_GENE_FK = b.SECOND_GENE_FK AND a.SECOND_GENE_FK = b.FIRST_GENE_FK"
+                        + " AND a.POSITIVE = b.POSITIVE WHERE a.FIRST_GENE_FK" + genesIn
+                        + " AND (a.SUPPORT <> b.SUPPORT OR a.SUPPORT_DETAILS_FK <> b.SUPPORT_DETAILS_FK)",
+                Integer.class );
+        return result;
+    }
+
+    private List<NonPersistentNonOrderedCoexpLink> makeLinks( List<Gene> genes, int[][] spec ) {
+        List<NonPersistentNonOrderedCoexpLink> links = new ArrayList<>();
+        for ( int[] l : spec ) {
+            links.add( new NonPersistentNonOrderedCoexpLink( MouseGeneCoExpression.Factory
+                    .newInstance( 0.9 * l[2], genes.get( l[0] ).getId(), genes.get( l[1] ).getId() ) ) );
+        }
+        return links;
+    }
+
+    private CoexpressionDaoImpl getDaoImpl() throws Exception {
+        if ( coexpressionDao instanceof Advised ) {
+            return ( CoexpressionDaoImpl ) ( ( Advised ) coexpressionDao ).getTargetSource().getTarget();
+        }
+        return ( CoexpressionDaoImpl ) coexpressionDao;
+    }
+
+    private static class Written {
+        private final Set<String> links = new HashSet<>();
+        private int numLinkRows;
+        private int numExperimentLinkRows;
+        private int numInconsistentFlipped;
+    }
+}
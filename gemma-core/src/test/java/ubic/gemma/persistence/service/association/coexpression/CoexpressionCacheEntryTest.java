@@ -0,0 +1,67 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.association.coexpression;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CoexpressionCacheEntryTest {
+
+    @Test
+    public void testRoundTrip() {
+        List<CoexpressionValueObject> results = new ArrayList<>();
+        results.add( new CoexpressionValueObject( 5000L, "B", true, 10L, "A", 2, 77L,
+                new HashSet<>( Arrays.asList( 3L, 1000L ) ), new HashSet<>( Arrays.asList( 3L, 4L, 1000L ) ) ) );
+        results.add( new CoexpressionValueObject( 12L, "C", false, 10L, "A", 1, null,
+                new HashSet<>( Collections.singletonList( 4L ) ), null ) );
+        results.add( new CoexpressionValueObject( 99999999L, null, true, 10L, "A", 1, 3L,
+                new HashSet<>( Collections.singletonList( 2L ) ), new HashSet<>( Arrays.asList( 2L, 9L ) ) ) );
+
+        CoexpressionCacheEntry entry = SerializationUtils
+                .clone( new CoexpressionCacheEntry( 10L, results ) );
+        assertEquals( 3, entry.size() );
+
+        List<CoexpressionValueObject> decoded = entry.toValueObjects();
+        assertEquals( 3, decoded.size() );
+        for ( int i = 0; i < results.size(); i++ ) {
+            CoexpressionValueObject expected = results.get( i );
+            CoexpressionValueObject actual = decoded.get( i );
+            assertEquals( expected.getCoexGeneId(), actual.getCoexGeneId() );
+            assertEquals( expected.getCoexGeneSymbol(), actual.getCoexGeneSymbol() );
+            assertEquals( expected.getQueryGeneId(), actual.getQueryGeneId() );
+            assertEquals( "A", actual.getQueryGeneSymbol() );
+            assertEquals( expected.isPositiveCorrelation(), actual.isPositiveCorrelation() );
+            assertEquals( expected.getNumDatasetsSupporting(), actual.getNumDatasetsSupporting() );
+            assertEquals( expected.getSupportDetailsId(), actual.getSupportDetailsId() );
+            assertEquals( expected.getSupportingDatasets(), actual.getSupportingDatasets() );
+            assertEquals( expected.getTestedInDatasets(), actual.getTestedInDatasets() );
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        CoexpressionCacheEntry entry = new CoexpressionCacheEntry( 10L, new ArrayList<CoexpressionValueObject>() );
+        assertEquals( 0, entry.size() );
+        assertTrue( entry.toValueObjects().isEmpty() );
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.association.coexpression;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import ubic.gemma.core.genome.gene.service.GeneService;
+import ubic.gemma.core.util.test.BaseSpringContextTest;
+import ubic.gemma.model.association.coexpression.MouseGeneCoExpression;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
+import ubic.gemma.model.genome.Taxon;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Links read from a {@link CoexpressionGraphSnapshot} must be the same as those from the database.
+ */
+public class CoexpressionGraphSnapshotTest extends BaseSpringContextTest {
+
+    private static final int NUM_GENES = 6;
+
+    @Autowired
+    private CoexpressionService coexpressionService;
+
+    @Autowired
+    private GeneService geneService;
+
+    private Taxon mouse;
+    private List<Gene> genes;
+    private List<Long> eeIds;
+    private File directory;
+    private Long nullSupportDetailsLinkId = null;
+
+    @Before
+    public void setup() throws Exception {
+        mouse = taxonService.findByCommonName( "mouse" );
+        genes = new ArrayList<>();
+        for ( int i = 0; i < CoexpressionGraphSnapshotTest.NUM_GENES; i++ ) {
+            Gene gene = Gene.Factory.newInstance();
+            gene.setName( "test_coexpsnapshot_" + this.randomName() );
+            gene.setTaxon( mouse );
+            genes.add( geneService.create( gene ) );
+        }
+        eeIds = new ArrayList<>();
+        directory = Files.createTempDirectory( "coexpsnapshot" ).toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if ( nullSupportDetailsLinkId != null ) {
+            simpleJdbcTemplate.update( "DELETE FROM MOUSE_GENE_COEXPRESSION WHERE ID = ?", nullSupportDetailsLinkId );
+        }
+        File[] files = directory.listFiles();
+        if ( files != null ) {
+            for ( File f : files ) {
+                assertTrue( f.delete() );
+            }
+        }
+        assertTrue( directory.delete() );
+    }
+
+    @Test
+    public void testBuildOpenAndUpdate() throws Exception {
+        this.saveLinks( new int[][] { { 0, 1, 1 }, { 0, 2, -1 }, { 1, 3, 1 }, { 2, 4, 1 } } );
+
+        Set<Long> analyses = new HashSet<>( Arrays.asList( 1L, 2L ) );
+        CoexpressionGraphSnapshot snapshot;
+        try (Connection c = simpleJdbcTemplate.getDataSource().getConnection()) {
+            snapshot = this.build( c, null, new HashSet<Long>(), analyses );
+        }
+        this.assertSameAsDatabase( snapshot );
+        assertEquals( analyses, snapshot.getAnalyses() );
+
+        // a snapshot found on disk is the same; closing it doesn't delete a file this process didn't write.
+        CoexpressionGraphSnapshot opened = CoexpressionGraphSnapshot.open( directory, mouse.getId() );
+        assertNotNull( opened );
+        this.assertSameAsDatabase( opened );
+        assertEquals( analyses, opened.getAnalyses() );
+        opened.close();
+        assertEquals( 1, this.countSnapshotFiles() );
+
+        // update with another experiment: only the genes it touches are read again.
+        Set<Long> changed = this.saveLinks( new int[][] { { 0, 1, 1 }, { 0, 5, 1 }, { 3, 4, -1 } } );
+        Set<Long> moreAnalyses = new HashSet<>( Arrays.asList( 1L, 2L, 3L ) );
+        CoexpressionGraphSnapshot updated;
+        try (Connection c = simpleJdbcTemplate.getDataSource().getConnection()) {
+            updated = this.build( c, snapshot, changed, moreAnalyses );
+        }
+        this.assertSameAsDatabase( updated );
+        assertEquals( moreAnalyses, updated.getAnalyses() );
+
+        // replacing the snapshot deletes the file we wrote; the newest is what is opened.
+        snapshot.close();
+        assertEquals( 1, this.countSnapshotFiles() );
+        opened = CoexpressionGraphSnapshot.open( directory, mouse.getId() );
+        assertNotNull( opened );
+        assertEquals( moreAnalyses, opened.getAnalyses() );
+        opened.close();
+        updated.close();
+    }
+
+    @Test
+    public void testLinkWithoutSupportDetails() throws Exception {
+        this.saveLinks( new int[][] { { 0, 1, 1 } } );
+        nullSupportDetailsLinkId = simpleJdbcTemplate
+                .queryForObject( "SELECT MAX(ID) + 1 FROM MOUSE_GENE_COEXPRESSION", Long.class );
+        simpleJdbcTemplate.update( "INSERT INTO MOUSE_GENE_COEXPRESSION (ID, POSITIVE, SUPPORT, FIRST_GENE_FK, "
+                        + "SECOND_GENE_FK, SUPPORT_DETAILS_FK) VALUES (?, 1, 1, ?, ?, NULL)", nullSupportDetailsLinkId,
+                genes.get( 2 ).getId(), genes.get( 3 ).getId() );
+
+        CoexpressionGraphSnapshot snapshot;
+        try (Connection c = simpleJdbcTemplate.getDataSource().getConnection()) {
+            snapshot = this.build( c, null, new HashSet<Long>(), new HashSet<Long>() );
+        }
+        List<CoexpressionValueObject> links = snapshot.getLinks( genes.get( 2 ).getId(), 1, null );
+        assertEquals( 1, links.size() );
+        assertEquals( genes.get( 3 ).getId(), links.get( 0 ).getCoexGeneId() );
+        assertNull( links.get( 0 ).getSupportDetailsId() );
+        assertNull( links.get( 0 ).getSupportingDatasets() );
+        assertNotNull( snapshot.getLinks( genes.get( 0 ).getId(), 1, null ).get( 0 ).getSupportDetailsId() );
+        snapshot.close();
+    }
+
+    private void assertSameAsDatabase( CoexpressionGraphSnapshot snapshot ) {
+        for ( Gene g : genes ) {
+            Set<String> expected = new HashSet<>();
+            for ( CoexpressionValueObject vo : coexpressionService
+                    .findCoexpressionRelationships( g, eeIds, 1, 100, true ) ) {
+                expected.add( this.describe( vo ) );
+            }
+            Set<String> actual = new HashSet<>();
+            for ( CoexpressionValueObject vo : snapshot.getLinks( g.getId(), 1, null ) ) {
+                actual.add( this.describe( vo ) );
+            }
+            assertEquals( "Links of " + g, expected, actual );
+            assertEquals( !expected.isEmpty(), snapshot.contains( g.getId() ) );
+        }
+    }
+
+    private CoexpressionGraphSnapshot build( Connection c, CoexpressionGraphSnapshot previous, Set<Long> changed,
+            Set<Long> analyses ) throws Exception {
+        return CoexpressionGraphSnapshot.build( c, mouse.getId(), CoexpressionQueryUtils.getGeneLinkTableName( mouse ),
+                CoexpressionQueryUtils.getSupportDetailsTableName( mouse ), previous, changed, analyses, directory );
+    }
+
+    private int countSnapshotFiles() {
+        File[] files = directory.listFiles();
+        return files == null ? 0 : files.length;
+    }
+
+    private String describe( CoexpressionValueObject vo ) {
+        return vo.getCoexGeneId() + ":" + ( vo.isPositiveCorrelation() ? "+" : "-" ) + ":"
+                + vo.getNumDatasetsSupporting() + ":" + vo.getSupportDetailsId() + ":" + new TreeSet<>(
+                vo.getSupportingDatasets() == null ? new HashSet<Long>() : vo.getSupportingDatasets() );
+    }
+
+    /**
+     * Save links among the genes for a new experiment, given as {gene, gene, sign}.
+     *
+     * @return the genes involved.
+     */
+    private Set<Long> saveLinks( int[][] spec ) {
+        ExpressionExperiment ee = this.getTestPersistentBasicExpressionExperiment();
+        eeIds.add( ee.getId() );
+        List<NonPersistentNonOrderedCoexpLink> links = new ArrayList<>();
+        Set<Long> involved = new HashSet<>();
+        for ( int[] l : spec ) {
+            Long g1 = genes.get( l[0] ).getId();
+            Long g2 = genes.get( l[1] ).getId();
+            links.add( new NonPersistentNonOrderedCoexpLink(
+                    MouseGeneCoExpression.Factory.newInstance( 0.9 * l[2], g1, g2 ) ) );
+            involved.add( g1 );
+            involved.add( g2 );
+        }
+        coexpressionService.createOrUpdate( ee, links, new LinkCreator( mouse ), new HashSet<>( genes ) );
+        return involved;
+    }
+}
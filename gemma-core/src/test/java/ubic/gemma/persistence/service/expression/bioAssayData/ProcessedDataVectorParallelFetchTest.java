@@ -0,0 +1,200 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.expression.bioAssayData;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.aop.framework.Advised;
+import org.springframework.beans.factory.annotation.Autowired;
+import ubic.gemma.core.analysis.preprocess.TwoChannelMissingValues;
+import ubic.gemma.core.loader.expression.geo.AbstractGeoServiceTest;
+import ubic.gemma.core.loader.expression.geo.GeoDomainObjectGeneratorLocal;
+import ubic.gemma.core.loader.expression.geo.service.GeoService;
+import ubic.gemma.core.loader.util.AlreadyExistsInSystemException;
+import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
+import ubic.gemma.model.expression.bioAssayData.DoubleVectorValueObject;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
+import ubic.gemma.model.genome.Taxon;
+import ubic.gemma.model.genome.biosequence.BioSequence;
+import ubic.gemma.model.genome.sequenceAnalysis.BlatAssociation;
+import ubic.gemma.model.genome.sequenceAnalysis.BlatResult;
+import ubic.gemma.persistence.service.TableMaintenanceUtil;
+import ubic.gemma.persistence.service.expression.arrayDesign.ArrayDesignService;
+import ubic.gemma.persistence.service.expression.designElement.CompositeSequenceService;
+import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentService;
+import ubic.gemma.persistence.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that fetching processed vectors for genes on the fetch threads gives the same vectors as fetching them on the
+ * calling thread.
+ */
+public class ProcessedDataVectorParallelFetchTest extends AbstractGeoServiceTest {
+
+    @Autowired
+    private ProcessedExpressionDataVectorService processedDataVectorService;
+    @Autowired
+    private ProcessedExpressionDataVectorDao processedDataVectorDao;
+    @Autowired
+    private ExpressionExperimentService expressionExperimentService;
+    @Autowired
+    private TableMaintenanceUtil tableMaintenanceUtil;
+    @Autowired
+    private GeoService geoService;
+    @Autowired
+    private ArrayDesignService arrayDesignService;
+    @Autowired
+    private CompositeSequenceService compositeSequenceService;
+
+    private ExpressionExperiment ee;
+
+    @Before
+    public void setUp() throws Exception {
+        ee = this.getDataset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.getDaoImpl().setParallelFetchThreshold( 10 );
+        processedDataVectorService.clearCache();
+        if ( ee != null ) {
+            expressionExperimentService.remove( ee );
+        }
+    }
+
+    @Test
+    public void testParallelFetchMatchesSerial() throws Exception {
+        if ( ee == null ) {
+            log.error( "Test skipped because of failure to fetch data." );
+            return;
+        }
+
+        Collection<Long> genes = EntityUtils.getIds( this.getGenesAssociatedWithEe( ee ) );
+        tableMaintenanceUtil.disableEmail();
+        tableMaintenanceUtil.updateGene2CsEntries();
+        Collection<ExpressionExperiment> ees = Collections.singleton( ee );
+
+        this.getDaoImpl().setParallelFetchThreshold( Integer.MAX_VALUE );
+        processedDataVectorService.clearCache();
+        Map<Long, DoubleVectorValueObject> serial = this
+                .byProbe( processedDataVectorService.getProcessedDataArrays( ees, genes ) );
+        assertTrue( "got " + serial.size() + ", expected at least 40", 40 <= serial.size() );
+
+        this.getDaoImpl().setParallelFetchThreshold( 0 );
+        processedDataVectorService.clearCache();
+        Map<Long, DoubleVectorValueObject> parallel = this
+                .byProbe( processedDataVectorService.getProcessedDataArrays( ees, genes ) );
+
+        assertEquals( serial.keySet(), parallel.keySet() );
+        for ( Long probe : serial.keySet() ) {
+            DoubleVectorValueObject s = serial.get( probe );
+            DoubleVectorValueObject p = parallel.get( probe );
+            assertArrayEquals( s.getData(), p.getData(), 1e-10 );
+            assertEquals( new HashSet<>( s.getGenes() ), new HashSet<>( p.getGenes() ) );
+            assertEquals( s.getQuantitationType().getId(), p.getQuantitationType().getId() );
+            assertEquals( s.getBioAssayDimension().getId(), p.getBioAssayDimension().getId() );
+        }
+    }
+
+    private Map<Long, DoubleVectorValueObject> byProbe( Collection<DoubleVectorValueObject> vectors ) {
+        Map<Long, DoubleVectorValueObject> result = new HashMap<>();
+        for ( DoubleVectorValueObject v : vectors ) {
+            assertNull( "More than one vector for " + v.getDesignElement().getId(),
+                    result.put( v.getDesignElement().getId(), v ) );
+        }
+        return result;
+    }
+
+    private ProcessedExpressionDataVectorDaoImpl getDaoImpl() throws Exception {
+        if ( processedDataVectorDao instanceof Advised ) {
+            return ( ProcessedExpressionDataVectorDaoImpl ) ( ( Advised ) processedDataVectorDao ).getTargetSource()
+                    .getTarget();
+        }
+        return ( ProcessedExpressionDataVectorDaoImpl ) processedDataVectorDao;
+    }
+
+    private ExpressionExperiment getDataset() throws Exception {
+        ExpressionExperiment result;
+        try {
+            geoService.setGeoDomainObjectGenerator(
+                    new GeoDomainObjectGeneratorLocal( this.getTestFileBasePath( "gse432Short" ) ) );
+            //noinspection unchecked
+            Collection<ExpressionExperiment> results = ( Collection<ExpressionExperiment> ) geoService
+                    .fetchAndLoad( "GSE432", false, true, false );
+            result = results.iterator().next();
+
+            TwoChannelMissingValues tcmv = this.getBean( TwoChannelMissingValues.class );
+            tcmv.computeMissingValues( result, 1.5, null );
+        } catch ( AlreadyExistsInSystemException e ) {
+            if ( e.getData() instanceof List ) {
+                result = ( ExpressionExperiment ) ( ( List<?> ) e.getData() ).iterator().next();
+            } else {
+                result = ( ExpressionExperiment ) e.getData();
+            }
+        } catch ( Exception e ) {
+            if ( e.getCause() instanceof IOException && e.getCause().getMessage().contains( "502" ) ) {
+                return null;
+            }
+            throw e;
+        }
+
+        result.setShortName( RandomStringUtils.randomAlphabetic( 12 ) );
+        expressionExperimentService.update( result );
+        result = expressionExperimentService.thawLite( result );
+        processedDataVectorService.createProcessedDataVectors( result );
+        return result;
+    }
+
+    private Collection<Gene> getGenesAssociatedWithEe( ExpressionExperiment experiment ) {
+        Collection<ArrayDesign> ads = this.expressionExperimentService.getArrayDesignsUsed( experiment );
+        Collection<Gene> genes = new HashSet<>();
+        Taxon taxon = this.getTaxon( "mouse" );
+        for ( ArrayDesign ad : ads ) {
+            ad = this.arrayDesignService.thaw( ad );
+            for ( CompositeSequence cs : ad.getCompositeSequences() ) {
+                Gene g = this.getTestPersistentGene();
+                BioSequence bs = BioSequence.Factory.newInstance();
+                bs.setName( RandomStringUtils.random( 10 ) );
+                bs.setTaxon( taxon );
+                bs = ( BioSequence ) persisterHelper.persist( bs );
+
+                cs.setBiologicalCharacteristic( bs );
+                compositeSequenceService.update( cs );
+
+                BlatResult br = BlatResult.Factory.newInstance();
+                br.setQuerySequence( bs );
+                BlatAssociation blata = BlatAssociation.Factory.newInstance();
+                blata.setGeneProduct( g.getProducts().iterator().next() );
+                blata.setBlatResult( br );
+                blata.setBioSequence( bs );
+                persisterHelper.persist( blata );
+                genes.add( g );
+            }
+        }
+        return genes;
+    }
+}
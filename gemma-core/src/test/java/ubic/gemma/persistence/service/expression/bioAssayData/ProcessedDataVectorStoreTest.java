@@ -0,0 +1,180 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.expression.bioAssayData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.basecode.io.ByteArrayConverter;
+import ubic.gemma.model.expression.bioAssayData.ProcessedExpressionDataVector;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ProcessedDataVectorStoreTest {
+
+    private static final int NUM_PROBES = 50;
+    private static final int NUM_SAMPLES = 7;
+
+    private final ByteArrayConverter bac = new ByteArrayConverter();
+    private File directory;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory( "pdvstore" ).toFile();
+        file = new File( directory, "1.vectors" );
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if ( files != null ) {
+            for ( File f : files ) {
+                assertTrue( f.delete() );
+            }
+        }
+        assertTrue( directory.delete() );
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        Map<Long, double[]> data = new HashMap<>();
+        List<ProcessedExpressionDataVector> vectors = this.makeVectors( data, 0 );
+        assertTrue( ProcessedDataVectorStore.write( file, 1L, 2L, 3L, vectors ) );
+
+        ProcessedDataVectorStore store = ProcessedDataVectorStore.open( file );
+        assertNotNull( store );
+        assertEquals( 1L, store.getExperimentId() );
+        assertEquals( 2L, store.getBioAssayDimensionId() );
+        assertEquals( 3L, store.getQuantitationTypeId() );
+        assertEquals( ProcessedDataVectorStoreTest.NUM_PROBES, store.getNumProbes() );
+        assertEquals( ProcessedDataVectorStoreTest.NUM_SAMPLES, store.getNumSamples() );
+
+        for ( ProcessedExpressionDataVector v : vectors ) {
+            long probe = v.getDesignElement().getId();
+            int row = store.getRow( probe );
+            assertTrue( row >= 0 );
+            assertEquals( probe, store.getProbeId( row ) );
+            assertEquals( v.getId().longValue(), store.getVectorId( row ) );
+            assertEquals( v.getRankByMean(), store.getRankByMean( row ) );
+            assertEquals( v.getRankByMax(), store.getRankByMax( row ) );
+
+            double[] expected = data.get( probe );
+            double[] actual = store.getData( row );
+            assertEquals( expected.length, actual.length );
+            for ( int j = 0; j < expected.length; j++ ) {
+                // stored in single precision
+                assertEquals( ( double ) ( float ) expected[j], actual[j], 0.0 );
+            }
+            assertEquals( expected.length, store.getValues( row ).remaining() );
+        }
+
+        // rows are sorted by probe
+        for ( int row = 1; row < store.getNumProbes(); row++ ) {
+            assertTrue( store.getProbeId( row - 1 ) < store.getProbeId( row ) );
+        }
+
+        assertEquals( -1, store.getRow( 1L ) );
+        int[] rows = store.getRows( Arrays.asList( 1L, 130L, 110L, 130L ) );
+        assertArrayEquals( new int[] { store.getRow( 110L ), store.getRow( 130L ) }, rows );
+        assertTrue( rows[0] < rows[1] );
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        Map<Long, double[]> data = new HashMap<>();
+        assertTrue( ProcessedDataVectorStore.write( file, 1L, 2L, 3L, this.makeVectors( data, 0 ) ) );
+        ProcessedDataVectorStore before = ProcessedDataVectorStore.open( file );
+        assertNotNull( before );
+
+        Map<Long, double[]> newData = new HashMap<>();
+        assertTrue( ProcessedDataVectorStore.write( file, 1L, 4L, 3L, this.makeVectors( newData, 1 ) ) );
+        ProcessedDataVectorStore after = ProcessedDataVectorStore.open( file );
+        assertNotNull( after );
+        assertEquals( 4L, after.getBioAssayDimensionId() );
+        int row = after.getRow( 110L );
+        assertEquals( ( double ) ( float ) newData.get( 110L )[0], after.getData( row )[0], 0.0 );
+
+        // what was already mapped is unaffected.
+        assertEquals( 2L, before.getBioAssayDimensionId() );
+        assertEquals( ( double ) ( float ) data.get( 110L )[0], before.getData( before.getRow( 110L ) )[0], 0.0 );
+
+        assertEquals( 1, directory.listFiles().length );
+    }
+
+    @Test
+    public void testVectorsOfDifferentLengths() throws Exception {
+        List<ProcessedExpressionDataVector> vectors = this.makeVectors( new HashMap<Long, double[]>(), 0 );
+        vectors.get( 3 ).setData( bac.doubleArrayToBytes( new double[] { 1.0, 2.0 } ) );
+        try {
+            ProcessedDataVectorStore.write( file, 1L, 2L, 3L, vectors );
+            fail( "Should have failed" );
+        } catch ( IllegalArgumentException e ) {
+            // expected
+        }
+        assertFalse( file.exists() );
+        assertEquals( 0, directory.listFiles().length );
+    }
+
+    @Test
+    public void testOpenInvalid() throws Exception {
+        assertNull( ProcessedDataVectorStore.open( file ) );
+
+        try (FileOutputStream out = new FileOutputStream( file )) {
+            out.write( new byte[128] );
+        }
+        assertNull( ProcessedDataVectorStore.open( file ) );
+    }
+
+    /**
+     * Vectors for probes 101 ... in shuffled order; every fifth has no ranks and every seventh value is missing.
+     */
+    private List<ProcessedExpressionDataVector> makeVectors( Map<Long, double[]> data, long seed ) {
+        Random random = new Random( seed );
+        List<ProcessedExpressionDataVector> vectors = new ArrayList<>();
+        for ( int i = 0; i < ProcessedDataVectorStoreTest.NUM_PROBES; i++ ) {
+            CompositeSequence cs = CompositeSequence.Factory.newInstance();
+            cs.setId( 101L + i );
+
+            double[] values = new double[ProcessedDataVectorStoreTest.NUM_SAMPLES];
+            for ( int j = 0; j < values.length; j++ ) {
+                values[j] = ( i + j ) % 7 == 0 ? Double.NaN : random.nextGaussian() * 2 + 8;
+            }
+            data.put( cs.getId(), values );
+
+            ProcessedExpressionDataVector v = ProcessedExpressionDataVector.Factory.newInstance();
+            v.setId( 1001L + i );
+            v.setDesignElement( cs );
+            v.setData( bac.doubleArrayToBytes( values ) );
+            if ( i % 5 != 0 ) {
+                v.setRankByMean( random.nextDouble() );
+                v.setRankByMax( random.nextDouble() );
+            }
+            vectors.add( v );
+        }
+        Collections.shuffle( vectors, random );
+        return vectors;
+    }
+}
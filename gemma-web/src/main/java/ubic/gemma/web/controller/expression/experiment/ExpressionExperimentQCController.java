@@ -71,6 +71,8 @@ import ubic.gemma.core.analysis.preprocess.svd.SVDValueObject;
 import ubic.gemma.core.analysis.util.ExperimentalDesignUtils;
 import ubic.gemma.core.datastructure.matrix.ExperimentalDesignWriter;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataWriterUtils;
+import ubic.gemma.core.visualization.QCImage;
+import ubic.gemma.core.visualization.QCImageCache;
 import ubic.gemma.model.analysis.expression.coexpression.CoexpCorrelationDistribution;
 import ubic.gemma.model.common.description.Characteristic;
 import ubic.gemma.model.expression.bioAssay.BioAssay;
@@ -88,6 +90,8 @@ import ubic.gemma.web.controller.BaseController;
 import ubic.gemma.web.view.TextView;
 
 import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Rectangle2D;
@@ -121,16 +125,24 @@ public class ExpressionExperimentQCController extends BaseController {
     private DifferentialExpressionResultService differentialExpressionResultService;
     @Autowired
     private CoexpressionAnalysisService coexpressionAnalysisService;
+    @Autowired
+    private QCImageCache qcImageCache;
 
     @RequestMapping("/expressionExperiment/detailedFactorAnalysis.html")
-    public void detailedFactorAnalysis( Long id, OutputStream os ) throws Exception {
-        ExpressionExperiment ee = expressionExperimentService.load( id );
+    public void detailedFactorAnalysis( Long id, HttpServletRequest request, HttpServletResponse response,
+            OutputStream os ) throws Exception {
+        final ExpressionExperiment ee = expressionExperimentService.load( id );
         if ( ee == null ) {
             log.warn( "Could not load experiment with id " + id );
             return;
         }
 
-        boolean ok = this.writeDetailedFactorAnalysis( ee, os );
+        boolean ok = this.writeCachedImage( ee, "detailedFactorAnalysis", request, response, os, new QCImageRenderer() {
+            @Override
+            public boolean render( OutputStream out ) throws Exception {
+                return ExpressionExperimentQCController.this.writeDetailedFactorAnalysis( ee, out );
+            }
+        } );
         if ( !ok ) {
             this.writePlaceholderImage( os );
         }
@@ -227,47 +239,59 @@ public class ExpressionExperimentQCController extends BaseController {
 
     @SuppressWarnings("SameReturnValue")
     @RequestMapping("/expressionExperiment/pcaFactors.html")
-    public ModelAndView pcaFactors( Long id, OutputStream os ) throws Exception {
+    public ModelAndView pcaFactors( Long id, HttpServletRequest request, HttpServletResponse response,
+            OutputStream os ) throws Exception {
         if ( id == null )
             return null;
 
-        ExpressionExperiment ee = expressionExperimentService.load( id );
+        final ExpressionExperiment ee = expressionExperimentService.load( id );
         if ( ee == null ) {
             log.warn( "Could not load experiment with id " + id ); // or access denied.
             this.writePlaceholderImage( os );
             return null;
         }
 
-        SVDValueObject svdo = null;
-        try {
-            svdo = svdService.getSvdFactorAnalysis( ee.getId() );
-        } catch ( Exception e ) {
-            // if there is no pca
-            // log.error( e, e );
-        }
+        boolean ok = this.writeCachedImage( ee, "pcaFactors", request, response, os, new QCImageRenderer() {
+            @Override
+            public boolean render( OutputStream out ) throws Exception {
+                SVDValueObject svdo = null;
+                try {
+                    svdo = svdService.getSvdFactorAnalysis( ee.getId() );
+                } catch ( Exception e ) {
+                    // if there is no pca
+                    // log.error( e, e );
+                }
 
-        if ( svdo != null ) {
-            this.writePCAFactors( os, ee, svdo );
-        } else
+                if ( svdo == null )
+                    return false;
+                ExpressionExperimentQCController.this.writePCAFactors( out, ee, svdo );
+                return true;
+            }
+        } );
+        if ( !ok )
             this.writePlaceholderImage( os );
         return null;
     }
 
     @SuppressWarnings("SameReturnValue")
     @RequestMapping("/expressionExperiment/pcaScree.html")
-    public ModelAndView pcaScree( Long id, OutputStream os ) throws Exception {
-        ExpressionExperiment ee = expressionExperimentService.load( id );
+    public ModelAndView pcaScree( Long id, HttpServletRequest request, HttpServletResponse response,
+            OutputStream os ) throws Exception {
+        final ExpressionExperiment ee = expressionExperimentService.load( id );
         if ( ee == null ) {
             log.warn( "Could not load experiment with id " + id ); // or access deined.
             this.writePlaceholderImage( os );
             return null;
         }
 
-        SVDValueObject svdo = svdService.getSvd( ee.getId() );
-
-        if ( svdo != null ) {
-            this.writePCAScree( os, svdo );
-        } else {
+        boolean ok = this.writeCachedImage( ee, "pcaScree", request, response, os, new QCImageRenderer() {
+            @Override
+            public boolean render( OutputStream out ) throws Exception {
+                SVDValueObject svdo = svdService.getSvd( ee.getId() );
+                return svdo != null && ExpressionExperimentQCController.this.writePCAScree( out, svdo );
+            }
+        } );
+        if ( !ok ) {
             this.writePlaceholderImage( os );
         }
         return null;
@@ -284,26 +308,48 @@ public class ExpressionExperimentQCController extends BaseController {
      * @param os response output stream
      */
     @RequestMapping("/expressionExperiment/visualizeCorrMat.html")
-    public void visualizeCorrMat( Long id, Double size, String contrVal, Boolean text, Boolean showLabels,
-            Boolean forceShowLabels, Boolean reg, OutputStream os ) throws Exception {
+    public void visualizeCorrMat( final Long id, final Double size, String contrVal, Boolean text,
+            final Boolean showLabels, final Boolean forceShowLabels, final Boolean reg, HttpServletRequest request,
+            HttpServletResponse response, OutputStream os ) throws Exception {
 
         if ( id == null ) {
             log.warn( "No id!" );
             return;
         }
 
-        ExpressionExperiment ee = expressionExperimentService.load( id );
+        final ExpressionExperiment ee = expressionExperimentService.load( id );
         if ( ee == null ) {
             log.warn( "Could not load experiment with id " + id );
             return;
         }
 
+        if ( text == null || !text ) {
+            String key = "visualizeCorrMat:" + size + ":" + showLabels + ":" + forceShowLabels + ":" + reg;
+            this.writeCachedImage( ee, key, request, response, os, new QCImageRenderer() {
+                @Override
+                public boolean render( OutputStream out ) throws Exception {
+                    return ExpressionExperimentQCController.this
+                            .writeCorrMat( out, ee, size, false, showLabels, forceShowLabels, reg );
+                }
+            } );
+            return;
+        }
+
+        this.writeCorrMat( os, ee, size, true, showLabels, forceShowLabels, reg );
+    }
+
+    /**
+     * @return false if there is no correlation matrix.
+     */
+    private boolean writeCorrMat( OutputStream os, ExpressionExperiment ee, Double size, boolean text,
+            Boolean showLabels, Boolean forceShowLabels, Boolean reg ) throws Exception {
+        Long id = ee.getId();
         ee = expressionExperimentService.thawLiter( ee );
         DoubleMatrix<BioAssay, BioAssay> omatrix = ( reg != null && reg ) ? sampleCoexpressionAnalysisService.loadTryRegressedThenFull( ee )
                 : sampleCoexpressionAnalysisService.loadFullMatrix( ee );
         if ( omatrix == null ) {
             log.warn( "No correlation matrix for ee " + id );
-            return;
+            return false;
         }
 
         List<String> stringNames = new ArrayList<>();
@@ -314,13 +360,13 @@ public class ExpressionExperimentQCController extends BaseController {
         matrix.setRowNames( stringNames );
         matrix.setColumnNames( stringNames );
 
-        if ( text != null && text ) {
+        if ( text ) {
             StringWriter s = new StringWriter();
             MatrixWriter<String, String> mw = new MatrixWriter<>( s, new DecimalFormat( "#.##" ) );
             mw.writeMatrix( matrix, true );
             os.write( s.toString().replace( "\uFFFD", "\t" )
                     .getBytes() ); // This does not solve the root issue, but I wasted too much time on it
-            return;
+            return true;
         }
 
         /*
@@ -350,6 +396,7 @@ public class ExpressionExperimentQCController extends BaseController {
         writer.setCellSize( new Dimension( cellsize, cellsize ) );
         boolean showScalebar = size > 2;
         writer.writeToPng( cm, os, reallyShowLabels, showScalebar );
+        return true;
     }
 
     /**
@@ -360,61 +407,71 @@ public class ExpressionExperimentQCController extends BaseController {
      * @return ModelAndView object if text is true, otherwise null
      */
     @RequestMapping("/expressionExperiment/visualizeMeanVariance.html")
-    public ModelAndView visualizeMeanVariance( Long id, Double size, Boolean text, OutputStream os ) throws Exception {
+    public ModelAndView visualizeMeanVariance( Long id, final Double size, Boolean text, HttpServletRequest request,
+            HttpServletResponse response, OutputStream os ) throws Exception {
 
         if ( id == null ) {
             log.warn( "No id!" );
             return null;
         }
 
-        ExpressionExperiment ee = expressionExperimentService.load( id );
+        final ExpressionExperiment ee = expressionExperimentService.load( id );
         if ( ee == null ) {
             log.warn( "Could not load experiment with id " + id );
             return null;
         }
 
+        if ( text == null || !text ) {
+            // FIXME might be something better to do if there is nothing to show
+            this.writeCachedImage( ee, "visualizeMeanVariance:" + size, request, response, os, new QCImageRenderer() {
+                @Override
+                public boolean render( OutputStream out ) throws Exception {
+                    MeanVarianceRelation mvr = meanVarianceService.find( ee );
+                    return mvr != null && ExpressionExperimentQCController.this.writeMeanVariance( out, mvr, size );
+                }
+            } );
+            return null;
+        }
+
         MeanVarianceRelation mvr = meanVarianceService.find( ee );
 
         if ( mvr == null ) {
             return null;
         }
 
-        if ( text != null && text ) {
-            final ByteArrayConverter bac = new ByteArrayConverter();
-
-            double[] means = bac.byteArrayToDoubles( mvr.getMeans() );
-            double[] variances = bac.byteArrayToDoubles( mvr.getVariances() );
-
-            DoubleMatrix2D matrix = new DenseDoubleMatrix2D( means.length, 2 );
-            matrix.viewColumn( 0 ).assign( means );
-            matrix.viewColumn( 1 ).assign( variances );
+        final ByteArrayConverter bac = new ByteArrayConverter();
 
-            String matrixString = new Formatter( "%1.2G" )
-                    .toTitleString( matrix, null, new String[] { "mean", "variance" }, null, null, null, null );
-            ModelAndView mav = new ModelAndView( new TextView() );
-            mav.addObject( TextView.TEXT_PARAM, matrixString );
+        double[] means = bac.byteArrayToDoubles( mvr.getMeans() );
+        double[] variances = bac.byteArrayToDoubles( mvr.getVariances() );
 
-            return mav;
-        }
+        DoubleMatrix2D matrix = new DenseDoubleMatrix2D( means.length, 2 );
+        matrix.viewColumn( 0 ).assign( means );
+        matrix.viewColumn( 1 ).assign( variances );
 
-        if ( !this.writeMeanVariance( os, mvr, size ) ) {
-            // FIXME might be something better to do
-            return null;
-        }
+        String matrixString = new Formatter( "%1.2G" )
+                .toTitleString( matrix, null, new String[] { "mean", "variance" }, null, null, null, null );
+        ModelAndView mav = new ModelAndView( new TextView() );
+        mav.addObject( TextView.TEXT_PARAM, matrixString );
 
-        return null;
+        return mav;
     }
 
     @SuppressWarnings("SameReturnValue")
     @RequestMapping("/expressionExperiment/visualizeProbeCorrDist.html")
-    public ModelAndView visualizeProbeCorrDist( Long id, OutputStream os ) throws Exception {
-        ExpressionExperiment ee = expressionExperimentService.load( id );
+    public ModelAndView visualizeProbeCorrDist( Long id, HttpServletRequest request, HttpServletResponse response,
+            OutputStream os ) throws Exception {
+        final ExpressionExperiment ee = expressionExperimentService.load( id );
         if ( ee == null ) {
             log.warn( "Could not load experiment with id " + id );
             return null;
         }
 
-        this.writeProbeCorrHistImage( os, ee );
+        this.writeCachedImage( ee, "visualizeProbeCorrDist", request, response, os, new QCImageRenderer() {
+            @Override
+            public boolean render( OutputStream out ) throws Exception {
+                return ExpressionExperimentQCController.this.writeProbeCorrHistImage( out, ee );
+            }
+        } );
         return null; // nothing to return;
     }
 
@@ -429,20 +486,32 @@ public class ExpressionExperimentQCController extends BaseController {
      */
     @SuppressWarnings("SameReturnValue")
     @RequestMapping("/expressionExperiment/visualizePvalueDist.html")
-    public ModelAndView visualizePvalueDist( Long id, Long analysisId, Long rsid, String factorName, Integer size,
-            OutputStream os ) throws Exception {
-        ExpressionExperiment ee = this.expressionExperimentService.load( id );
+    public ModelAndView visualizePvalueDist( Long id, final Long analysisId, final Long rsid, final String factorName,
+            final Integer size, HttpServletRequest request, HttpServletResponse response, OutputStream os )
+            throws Exception {
+        final ExpressionExperiment ee = this.expressionExperimentService.load( id );
         if ( ee == null ) {
             this.log.warn( "Could not load experiment with id " + id );
             return null;
         }
 
-        if ( size == null ) {
-            if ( !this.writePValueHistImage( os, ee, analysisId, rsid, factorName ) ) {
-                this.writePlaceholderImage( os );
+        String key = "visualizePvalueDist:" + analysisId + ":" + rsid + ":" + factorName + ":" + size;
+        boolean ok = this.writeCachedImage( ee, key, request, response, os, new QCImageRenderer() {
+            @Override
+            public boolean render( OutputStream out ) throws Exception {
+                if ( size == null ) {
+                    return ExpressionExperimentQCController.this
+                            .writePValueHistImage( out, ee, analysisId, rsid, factorName );
+                }
+                return ExpressionExperimentQCController.this
+                        .writePValueHistThumbnailImage( out, ee, analysisId, rsid, factorName, size );
             }
-        } else {
-            if ( !this.writePValueHistThumbnailImage( os, ee, analysisId, rsid, factorName, size ) ) {
+        } );
+
+        if ( !ok ) {
+            if ( size == null ) {
+                this.writePlaceholderImage( os );
+            } else {
                 this.writePlaceholderThumbnailImage( os, size );
             }
         }
@@ -476,6 +545,61 @@ public class ExpressionExperimentQCController extends BaseController {
 
     }
 
+    /**
+     * Writes an image, from the cache if it was made since the experiment was last updated, otherwise by rendering it
+     * and caching the result. Answers conditional requests for an image the client already has with a 304.
+     *
+     * @param  key      identifies the image and the parameters used to make it.
+     * @param  renderer makes the image if needed.
+     * @return          false if there is no image to show, in which case nothing was written.
+     */
+    boolean writeCachedImage( ExpressionExperiment ee, String key, HttpServletRequest request,
+            HttpServletResponse response, OutputStream os, QCImageRenderer renderer ) throws Exception {
+        Date lastUpdated = ee.getCurationDetails() == null ? null : ee.getCurationDetails().getLastUpdated();
+        QCImage image = qcImageCache.get( ee.getId(), key, lastUpdated );
+        if ( image == null ) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            if ( !renderer.render( bos ) ) {
+                return false;
+            }
+            image = qcImageCache.put( ee.getId(), key, lastUpdated, bos.toByteArray() );
+        }
+
+        // access depends on the user, so only the browser can keep it, and it has to check back with us.
+        response.setHeader( "Cache-Control", "private, no-cache" );
+        response.setHeader( "ETag", image.getETag() );
+        if ( image.getLastModified() > 0 ) {
+            response.setDateHeader( "Last-Modified", image.getLastModified() );
+        }
+
+        if ( this.isNotModified( request, image ) ) {
+            response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+            return true;
+        }
+
+        response.setContentLength( image.getData().length );
+        os.write( image.getData() );
+        return true;
+    }
+
+    private boolean isNotModified( HttpServletRequest request, QCImage image ) {
+        String ifNoneMatch = request.getHeader( "If-None-Match" );
+        if ( ifNoneMatch != null ) {
+            return ifNoneMatch.trim().equals( "*" ) || ifNoneMatch.contains( image.getETag() );
+        }
+
+        if ( image.getLastModified() <= 0 ) {
+            return false;
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader( "If-Modified-Since" );
+            // the header only has whole seconds.
+            return ifModifiedSince >= 0 && image.getLastModified() / 1000 <= ifModifiedSince / 1000;
+        } catch ( IllegalArgumentException e ) {
+            return false;
+        }
+    }
+
     private void addChartToGraphics( JFreeChart chart, Graphics2D g2, double x, double y, double width,
             double height ) {
         chart.draw( g2, new Rectangle2D.Double( x, y, width, height ), null, null );
@@ -1394,4 +1518,16 @@ public class ExpressionExperimentQCController extends BaseController {
             return pass == 0;
         }
     }
+
+    /**
+     * Makes a QC image, for {@link #writeCachedImage}.
+     */
+    interface QCImageRenderer {
+
+        /**
+         * @return false if there is nothing to show.
+         */
+        boolean render( OutputStream os ) throws Exception;
+    }
+
 }
@@ -0,0 +1,188 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.web.controller.expression.experiment;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import ubic.gemma.core.visualization.QCImageCache;
+import ubic.gemma.model.common.auditAndSecurity.curation.CurationDetails;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.web.controller.expression.experiment.ExpressionExperimentQCController.QCImageRenderer;
+import ubic.gemma.web.util.BaseSpringWebTest;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the caching of QC images and the answers to conditional requests for them.
+ */
+public class ExpressionExperimentQCControllerTest extends BaseSpringWebTest {
+
+    private static final byte[] PNG = new byte[] { 1, 2, 3 };
+    private static final String KEY = "pcaScree";
+
+    @Autowired
+    private ExpressionExperimentQCController controller;
+
+    @Autowired
+    private QCImageCache qcImageCache;
+
+    private ExpressionExperiment ee;
+    private final AtomicInteger renders = new AtomicInteger();
+    private final QCImageRenderer renderer = new QCImageRenderer() {
+        @Override
+        public boolean render( OutputStream os ) throws Exception {
+            renders.incrementAndGet();
+            os.write( PNG );
+            return true;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        qcImageCache.clearCache();
+        renders.set( 0 );
+        ee = ExpressionExperiment.Factory.newInstance();
+        ee.setId( 1L );
+        CurationDetails curationDetails = new CurationDetails();
+        // whole seconds, as in the Last-Modified header.
+        curationDetails.setLastUpdated( new Date( 1500000000000L ) );
+        ee.setCurationDetails( curationDetails );
+    }
+
+    @Test
+    public void testRenderedOnce() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue( controller.writeCachedImage( ee, KEY, this.newGet( "/" ), response, os, renderer ) );
+        assertEquals( HttpServletResponse.SC_OK, response.getStatus() );
+        assertArrayEquals( PNG, os.toByteArray() );
+        assertNotNull( response.getHeader( "ETag" ) );
+        assertEquals( 1, renders.get() );
+
+        MockHttpServletResponse second = new MockHttpServletResponse();
+        os = new ByteArrayOutputStream();
+        assertTrue( controller.writeCachedImage( ee, KEY, this.newGet( "/" ), second, os, renderer ) );
+        assertArrayEquals( PNG, os.toByteArray() );
+        assertEquals( response.getHeader( "ETag" ), second.getHeader( "ETag" ) );
+        assertEquals( 1, renders.get() );
+    }
+
+    @Test
+    public void testRenderedAgainAfterUpdate() throws Exception {
+        String eTag = this.write( this.newGet( "/" ) ).getHeader( "ETag" );
+
+        ee.getCurationDetails().setLastUpdated( new Date( 1600000000000L ) );
+        MockHttpServletRequest request = this.newGet( "/" );
+        request.addHeader( "If-None-Match", eTag );
+        MockHttpServletResponse response = this.write( request );
+        assertEquals( HttpServletResponse.SC_OK, response.getStatus() );
+        assertNotEquals( eTag, response.getHeader( "ETag" ) );
+        assertEquals( 2, renders.get() );
+    }
+
+    @Test
+    public void testRenderedAgainAfterClear() throws Exception {
+        this.write( this.newGet( "/" ) );
+        qcImageCache.clearCache( ee.getId() );
+        this.write( this.newGet( "/" ) );
+        assertEquals( 2, renders.get() );
+    }
+
+    @Test
+    public void testIfNoneMatch() throws Exception {
+        String eTag = this.write( this.newGet( "/" ) ).getHeader( "ETag" );
+
+        MockHttpServletRequest request = this.newGet( "/" );
+        request.addHeader( "If-None-Match", eTag );
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertTrue( controller.writeCachedImage( ee, KEY, request, response, os, renderer ) );
+        assertEquals( HttpServletResponse.SC_NOT_MODIFIED, response.getStatus() );
+        assertEquals( 0, os.size() );
+        assertEquals( eTag, response.getHeader( "ETag" ) );
+
+        request = this.newGet( "/" );
+        request.addHeader( "If-None-Match", "\"other\", " + eTag );
+        assertEquals( HttpServletResponse.SC_NOT_MODIFIED, this.write( request ).getStatus() );
+
+        request = this.newGet( "/" );
+        request.addHeader( "If-None-Match", "*" );
+        assertEquals( HttpServletResponse.SC_NOT_MODIFIED, this.write( request ).getStatus() );
+
+        request = this.newGet( "/" );
+        request.addHeader( "If-None-Match", "\"other\"" );
+        assertEquals( HttpServletResponse.SC_OK, this.write( request ).getStatus() );
+        assertEquals( 1, renders.get() );
+    }
+
+    @Test
+    public void testIfModifiedSince() throws Exception {
+        long lastUpdated = ee.getCurationDetails().getLastUpdated().getTime();
+        MockHttpServletResponse response = this.write( this.newGet( "/" ) );
+        assertEquals( lastUpdated, ( long ) ( Long ) response.getHeaderValue( "Last-Modified" ) );
+
+        MockHttpServletRequest request = this.newGet( "/" );
+        request.addHeader( "If-Modified-Since", lastUpdated );
+        assertEquals( HttpServletResponse.SC_NOT_MODIFIED, this.write( request ).getStatus() );
+
+        request = this.newGet( "/" );
+        request.addHeader( "If-Modified-Since", lastUpdated - 1000 );
+        assertEquals( HttpServletResponse.SC_OK, this.write( request ).getStatus() );
+
+        // the entity tag takes precedence.
+        request = this.newGet( "/" );
+        request.addHeader( "If-Modified-Since", lastUpdated );
+        request.addHeader( "If-None-Match", "\"other\"" );
+        assertEquals( HttpServletResponse.SC_OK, this.write( request ).getStatus() );
+    }
+
+    @Test
+    public void testNothingToShow() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        boolean ok = controller.writeCachedImage( ee, KEY, this.newGet( "/" ), response, os,
+                new QCImageRenderer() {
+                    @Override
+                    public boolean render( OutputStream out ) {
+                        return false;
+                    }
+                } );
+        assertFalse( ok );
+        assertEquals( 0, os.size() );
+        assertNull( response.getHeader( "ETag" ) );
+        assertNull( qcImageCache.get( ee.getId(), KEY, ee.getCurationDetails().getLastUpdated() ) );
+    }
+
+    private MockHttpServletResponse write( MockHttpServletRequest request ) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.writeCachedImage( ee, KEY, request, response, new ByteArrayOutputStream(), renderer );
+        return response;
+    }
+
+}